@@ -0,0 +1,83 @@
+package com.gravity9.mongocse;
+
+/**
+ * Limits how many events a worker drains from the change stream cursor before dispatching them to listeners.
+ * A batch is closed when it reaches {@code maxEvents}, when its estimated size reaches {@code maxBytes}
+ * or when the cursor has no more buffered events and {@code lingerMs} has passed since the first event of the batch.
+ * A {@code maxBytes} or {@code lingerMs} of {@code 0} disables that limit.
+ * <p>
+ * The size of a batch is the raw size of its documents as sent by the server, so a byte budget makes the change
+ * stream keep documents raw, see {@link DeliveryMode}. While lingering, the worker waits for more events in
+ * {@code getMore} calls that return as soon as events arrive, but wait up to {@code maxAwaitTimeInMs} on an idle
+ * stream, so a batch of an idle stream can close up to {@code maxAwaitTimeInMs} after {@code lingerMs}.
+ */
+public final class BatchPolicy {
+
+    private static final int DEFAULT_MAX_EVENTS = 1000;
+
+    private static final int CATCH_UP_MAX_EVENTS = 10_000;
+
+    private final int maxEvents;
+
+    private final long maxBytes;
+
+    private final long lingerMs;
+
+    private BatchPolicy(int maxEvents, long maxBytes, long lingerMs) {
+        if (maxEvents < 1) {
+            throw new IllegalArgumentException("Batch must allow at least one event: " + maxEvents);
+        }
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Batch byte budget cannot be negative: " + maxBytes);
+        }
+        if (lingerMs < 0) {
+            throw new IllegalArgumentException("Batch linger time cannot be negative: " + lingerMs);
+        }
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+        this.lingerMs = lingerMs;
+    }
+
+    public static BatchPolicy of(int maxEvents, long maxBytes, long lingerMs) {
+        return new BatchPolicy(maxEvents, maxBytes, lingerMs);
+    }
+
+    public static BatchPolicy maxEvents(int maxEvents) {
+        return new BatchPolicy(maxEvents, 0, 0);
+    }
+
+    /**
+     * Drains every event already buffered in the cursor, up to 1000 events, without waiting for more.
+     */
+    public static BatchPolicy defaultPolicy() {
+        return maxEvents(DEFAULT_MAX_EVENTS);
+    }
+
+    /**
+     * Drains up to 10000 events per batch, for partitions replaying events from an operation time.
+     */
+    public static BatchPolicy catchUpPolicy() {
+        return maxEvents(CATCH_UP_MAX_EVENTS);
+    }
+
+    public int getMaxEvents() {
+        return maxEvents;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public long getLingerMs() {
+        return lingerMs;
+    }
+
+    boolean hasByteBudget() {
+        return maxBytes > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchPolicy{maxEvents=" + maxEvents + ", maxBytes=" + maxBytes + ", lingerMs=" + lingerMs + '}';
+    }
+}
@@ -0,0 +1,84 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.DocumentCodec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Reads batches of events from a change stream cursor according to a {@link BatchPolicy}.
+ */
+final class BatchReader {
+
+    private static final int EVENT_OVERHEAD_BYTES = 256;
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+    private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+
+    private final BatchPolicy batchPolicy;
+
+    BatchReader(BatchPolicy batchPolicy) {
+        this.batchPolicy = batchPolicy;
+    }
+
+    /**
+     * Waits up to {@code maxAwaitTime} for the first event, then keeps reading while events are available or the
+     * linger time has not passed, until the batch is full or {@code keepReading} returns false.
+     *
+     * @return the events read, empty if no event arrived within {@code maxAwaitTime}
+     */
+    List<ChangeStreamDocument<Document>> read(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor,
+                                              BooleanSupplier keepReading) {
+        ChangeStreamDocument<Document> first = cursor.tryNext();
+        if (first == null) {
+            return List.of();
+        }
+
+        List<ChangeStreamDocument<Document>> batch = new ArrayList<>();
+        batch.add(first);
+        long batchBytes = batchPolicy.hasByteBudget() ? estimateSize(first) : 0;
+        long lingerDeadline = System.nanoTime() + MILLISECONDS.toNanos(batchPolicy.getLingerMs());
+
+        while (batch.size() < batchPolicy.getMaxEvents()
+                && (!batchPolicy.hasByteBudget() || batchBytes < batchPolicy.getMaxBytes())
+                && (cursor.available() > 0 || System.nanoTime() < lingerDeadline)
+                && keepReading.getAsBoolean()) {
+            ChangeStreamDocument<Document> next = cursor.tryNext();
+            if (next != null) {
+                batch.add(next);
+                batchBytes += batchPolicy.hasByteBudget() ? estimateSize(next) : 0;
+            }
+        }
+
+        return Collections.unmodifiableList(batch);
+    }
+
+    private static long estimateSize(ChangeStreamDocument<Document> document) {
+        long size = EVENT_OVERHEAD_BYTES;
+        size += estimateSize(document.getFullDocument());
+        size += estimateSize(document.getFullDocumentBeforeChange());
+        var updateDescription = document.getUpdateDescription();
+        if (updateDescription != null && updateDescription.getUpdatedFields() != null) {
+            size += new RawBsonDocument(updateDescription.getUpdatedFields(), BSON_DOCUMENT_CODEC).getByteBuffer().remaining();
+        }
+        return size;
+    }
+
+    /**
+     * Documents read raw, see {@link ChangeStreamIterableFactory#readsRawDocuments}, are measured without encoding.
+     */
+    private static long estimateSize(Document document) {
+        if (document instanceof LazyDocument lazyDocument && !lazyDocument.isDecoded()) {
+            return lazyDocument.getRawDocument().getByteBuffer().remaining();
+        }
+        return document == null ? 0 : new RawBsonDocument(document, DOCUMENT_CODEC).getByteBuffer().remaining();
+    }
+}
@@ -0,0 +1,79 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonBoolean;
+import org.bson.BsonDocument;
+
+/**
+ * Decides whether partitions without a resume token deliver the documents already in the collection before its changes.
+ * Snapshots need a {@link MongoCseManager} in {@link StreamMode#PER_PARTITION} mode.
+ * <p>
+ * With a snapshot, a partition first records the current position of its change stream, then reads the documents of
+ * the collection whose key belongs to it, in {@code _id} order, and hands them to its listeners as snapshot events:
+ * {@code insert} events with the document in {@code fullDocument}, an empty resume token and {@code snapshot: true} among
+ * their extra elements, see {@link #isSnapshotEvent}. Afterwards the change stream is resumed from the recorded
+ * position, so a change made during the scan may be delivered after a snapshot event that already contains it.
+ * <p>
+ * Every partition scans its own documents, so partitions scan in parallel. The last delivered {@code _id} is stored
+ * with the partition's resume token after every batch, and a partition restarted mid-scan continues after it.
+ * Repartitioning a collection whose snapshot has not completed drops the remaining snapshot.
+ */
+public final class BootstrapPolicy {
+
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private static final String SNAPSHOT_FIELD = "snapshot";
+
+    private final int batchSize;
+
+    private BootstrapPolicy(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Partitions without a resume token start at the current end of the change stream.
+     */
+    public static BootstrapPolicy disabled() {
+        return new BootstrapPolicy(0);
+    }
+
+    /**
+     * Partitions without a resume token deliver the documents of the collection first, {@code batchSize} documents per
+     * batch and per stored scan position.
+     */
+    public static BootstrapPolicy snapshot(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Snapshot batch size must be positive: " + batchSize);
+        }
+        return new BootstrapPolicy(batchSize);
+    }
+
+    public static BootstrapPolicy defaultSnapshot() {
+        return snapshot(DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @return true if the event was read from the collection by the snapshot rather than from the change stream
+     */
+    public static boolean isSnapshotEvent(ChangeStreamDocument<?> event) {
+        BsonDocument extraElements = event.getExtraElements();
+        return extraElements != null && extraElements.getBoolean(SNAPSHOT_FIELD, BsonBoolean.FALSE).getValue();
+    }
+
+    public boolean isEnabled() {
+        return batchSize > 0;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    static BsonDocument snapshotMarker() {
+        return new BsonDocument(SNAPSHOT_FIELD, BsonBoolean.TRUE);
+    }
+
+    @Override
+    public String toString() {
+        return "BootstrapPolicy{batchSize=" + batchSize + '}';
+    }
+}
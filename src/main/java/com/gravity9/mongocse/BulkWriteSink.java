@@ -0,0 +1,300 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.ChangeStreamBatchListener;
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.TruncatedArray;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Writes the events of a manager to another collection with bulk writes, for copying or transforming a collection.
+ * <p>
+ * Register the sink like any listener, e.g. {@code manager.registerListenerToAllPartitions(sink)}. Each batch is
+ * turned into write models, by default a {@code ReplaceOne} upsert of the {@code fullDocument} for inserts, replaces
+ * and updates, an {@code UpdateOne} of the update description for updates without {@code fullDocument}, and a
+ * {@code DeleteOne} for deletes, all filtered by the {@code documentKey} of the event. Events that do not change a
+ * document, like drops and renames, are skipped; a custom {@code mapper} can transform documents or write elsewhere.
+ * <p>
+ * An upserting replace or a delete makes the earlier models of the same document key in the batch redundant, so
+ * they are dropped. The remaining models are written in rounds holding at most one model per document key, each
+ * round as unordered bulk writes of up to {@code maxWriteModels} models: models of one key keep their order, models
+ * of different keys are applied in any order. The size and linger time of a batch, and so of a flush, are set by the
+ * {@link BatchPolicy} of the manager.
+ * <p>
+ * The default models can be applied more than once with the same result, so a failed bulk write is retried as a
+ * whole, up to {@code maxRetries} times with a doubling back-off. If it still fails, the exception is thrown to the
+ * worker, whose resume token only advances once all listeners returned, so the batch is read and written again.
+ */
+public final class BulkWriteSink implements ChangeStreamBatchListener {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkWriteSink.class);
+
+    private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+    private static final ReplaceOptions UPSERT = new ReplaceOptions().upsert(true);
+
+    private final MongoCollection<Document> target;
+
+    private final Function<ChangeStreamDocument<Document>, List<WriteModel<Document>>> mapper;
+
+    private final int maxWriteModels;
+
+    private final int maxRetries;
+
+    private final long retryBackoffMs;
+
+    private final LongAdder bulkWrites = new LongAdder();
+
+    private final LongAdder writtenModels = new LongAdder();
+
+    private final LongAdder retries = new LongAdder();
+
+    private BulkWriteSink(Builder builder) {
+        this.target = builder.target;
+        this.mapper = builder.mapper;
+        this.maxWriteModels = builder.maxWriteModels;
+        this.maxRetries = builder.maxRetries;
+        this.retryBackoffMs = builder.retryBackoffMs;
+    }
+
+    /**
+     * @param target collection the events are written to
+     */
+    public static Builder builder(MongoCollection<Document> target) {
+        return new Builder(target);
+    }
+
+    /**
+     * Default models of an event: a {@code ReplaceOne} upsert of the full document, an {@code UpdateOne} of the
+     * update description, a {@code DeleteOne}, or none. An update description with truncated arrays becomes two
+     * models, since truncating an array and setting its elements cannot share one update.
+     */
+    public static List<WriteModel<Document>> writeModels(ChangeStreamDocument<Document> event) {
+        OperationType operationType = event.getOperationType();
+        BsonDocument documentKey = event.getDocumentKey();
+        if (operationType == null || documentKey == null) {
+            return List.of();
+        }
+        Document fullDocument = event.getFullDocument();
+        return switch (operationType) {
+            case INSERT, REPLACE, UPDATE -> fullDocument != null
+                    ? List.of(new ReplaceOneModel<>(documentKey, fullDocument, UPSERT))
+                    : updateModels(documentKey, event.getUpdateDescription());
+            case DELETE -> List.of(new DeleteOneModel<>(documentKey));
+            default -> List.of();
+        };
+    }
+
+    @Override
+    public void handleBatch(List<ChangeStreamDocument<Document>> events) {
+        for (List<WriteModel<Document>> round : plan(events)) {
+            for (int from = 0; from < round.size(); from += maxWriteModels) {
+                write(round.subList(from, Math.min(round.size(), from + maxWriteModels)));
+            }
+        }
+    }
+
+    public Stats stats() {
+        return new Stats(bulkWrites.sum(), writtenModels.sum(), retries.sum());
+    }
+
+    /**
+     * Groups the models of the events by document key, and splits them into rounds holding the n-th model of
+     * every key.
+     */
+    List<List<WriteModel<Document>>> plan(List<ChangeStreamDocument<Document>> events) {
+        Map<BsonDocument, List<WriteModel<Document>>> modelsByKey = new LinkedHashMap<>();
+        for (ChangeStreamDocument<Document> event : events) {
+            for (WriteModel<Document> model : mapper.apply(event)) {
+                List<WriteModel<Document>> models = modelsByKey.computeIfAbsent(event.getDocumentKey(), key -> new ArrayList<>());
+                if (supersedes(model)) {
+                    models.clear();
+                }
+                models.add(model);
+            }
+        }
+
+        int rounds = modelsByKey.values().stream().mapToInt(List::size).max().orElse(0);
+
+        List<List<WriteModel<Document>>> plan = new ArrayList<>(rounds);
+        for (int round = 0; round < rounds; round++) {
+            List<WriteModel<Document>> models = new ArrayList<>(modelsByKey.size());
+            for (List<WriteModel<Document>> keyModels : modelsByKey.values()) {
+                if (round < keyModels.size()) {
+                    models.add(keyModels.get(round));
+                }
+            }
+            plan.add(models);
+        }
+        return plan;
+    }
+
+    /**
+     * An upserting replace or a delete sets the whole state of a document, whatever was written before.
+     */
+    private static boolean supersedes(WriteModel<Document> model) {
+        return model instanceof DeleteOneModel
+                || model instanceof ReplaceOneModel<Document> replace && replace.getReplaceOptions().isUpsert();
+    }
+
+    private void write(List<WriteModel<Document>> models) {
+        long backoffMs = retryBackoffMs;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                target.bulkWrite(models, UNORDERED);
+                bulkWrites.increment();
+                writtenModels.add(models.size());
+                return;
+            } catch (MongoException e) {
+                if (attempt >= maxRetries) {
+                    throw e;
+                }
+                retries.increment();
+                log.warn("Bulk write of {} models to {} failed, retrying in {} ms: {}",
+                        models.size(), target.getNamespace(), backoffMs, e.getMessage());
+                sleep(backoffMs);
+                backoffMs *= 2;
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to retry a bulk write", e);
+        }
+    }
+
+    private static List<WriteModel<Document>> updateModels(BsonDocument documentKey, UpdateDescription description) {
+        if (description == null) {
+            return List.of();
+        }
+        List<WriteModel<Document>> models = new ArrayList<>(2);
+        List<TruncatedArray> truncatedArrays = description.getTruncatedArrays();
+        if (truncatedArrays != null && !truncatedArrays.isEmpty()) {
+            BsonDocument truncate = new BsonDocument();
+            truncatedArrays.forEach(array -> truncate.put(array.getField(),
+                    new BsonDocument("$each", new BsonArray()).append("$slice", new BsonInt32(array.getNewSize()))));
+            models.add(new UpdateOneModel<>(documentKey, new BsonDocument("$push", truncate)));
+        }
+
+        BsonDocument update = new BsonDocument();
+        BsonDocument updatedFields = description.getUpdatedFields();
+        if (updatedFields != null && !updatedFields.isEmpty()) {
+            update.put("$set", updatedFields);
+        }
+        List<String> removedFields = description.getRemovedFields();
+        if (removedFields != null && !removedFields.isEmpty()) {
+            BsonDocument unset = new BsonDocument();
+            removedFields.forEach(field -> unset.put(field, new BsonString("")));
+            update.put("$unset", unset);
+        }
+        if (!update.isEmpty()) {
+            models.add(new UpdateOneModel<>(documentKey, update));
+        }
+        return models;
+    }
+
+    /**
+     * Snapshot of the writes of a sink. {@code retries} counts failed bulk writes that were tried again.
+     */
+    public record Stats(long bulkWrites, long writeModels, long retries) {
+    }
+
+    public static final class Builder {
+
+        private static final int DEFAULT_MAX_WRITE_MODELS = 1000;
+
+        private static final int DEFAULT_MAX_RETRIES = 3;
+
+        private static final long DEFAULT_RETRY_BACKOFF_MS = 100;
+
+        private final MongoCollection<Document> target;
+
+        private Function<ChangeStreamDocument<Document>, List<WriteModel<Document>>> mapper = BulkWriteSink::writeModels;
+
+        private int maxWriteModels = DEFAULT_MAX_WRITE_MODELS;
+
+        private int maxRetries = DEFAULT_MAX_RETRIES;
+
+        private long retryBackoffMs = DEFAULT_RETRY_BACKOFF_MS;
+
+        private Builder(MongoCollection<Document> target) {
+            this.target = Objects.requireNonNull(target, "target");
+        }
+
+        /**
+         * Turns an event into the models written for it, in order; an empty list skips the event. Models are grouped
+         * by the {@code documentKey} of their event, so keep a document's models on the same key, and keep them
+         * idempotent so retries and events read again after a failure do no harm. Defaults to
+         * {@link BulkWriteSink#writeModels(ChangeStreamDocument)}.
+         */
+        public Builder mapper(Function<ChangeStreamDocument<Document>, List<WriteModel<Document>>> mapper) {
+            this.mapper = Objects.requireNonNull(mapper, "mapper");
+            return this;
+        }
+
+        /**
+         * Largest number of models sent in one bulk write. Defaults to 1000.
+         */
+        public Builder maxWriteModels(int maxWriteModels) {
+            this.maxWriteModels = maxWriteModels;
+            return this;
+        }
+
+        /**
+         * Number of times a failed bulk write is tried again before the batch fails. Defaults to 3.
+         */
+        public Builder maxRetries(int maxRetries) {
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Wait before the first retry of a bulk write, doubled for every further retry. Defaults to 100 ms.
+         */
+        public Builder retryBackoffMs(long retryBackoffMs) {
+            this.retryBackoffMs = retryBackoffMs;
+            return this;
+        }
+
+        public BulkWriteSink build() {
+            if (maxWriteModels < 1) {
+                throw new IllegalArgumentException("Bulk write must allow at least one model: " + maxWriteModels);
+            }
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("Number of retries cannot be negative: " + maxRetries);
+            }
+            if (retryBackoffMs < 0) {
+                throw new IllegalArgumentException("Retry back-off cannot be negative: " + retryBackoffMs);
+            }
+            return new BulkWriteSink(this);
+        }
+    }
+}
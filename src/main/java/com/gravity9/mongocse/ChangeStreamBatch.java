@@ -0,0 +1,22 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Events drained from a change stream cursor in a single poll, together with the resume token
+ * the partition can be checkpointed at once all of them are handled.
+ */
+record ChangeStreamBatch(List<ChangeStreamDocument<Document>> events, BsonDocument resumeToken) {
+
+    boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    int size() {
+        return events.size();
+    }
+}
@@ -1,51 +1,91 @@
 package com.gravity9.mongocse;
 
+import com.mongodb.client.AggregateIterable;
 import com.mongodb.client.ChangeStreamIterable;
 import com.mongodb.client.MongoCollection;
-import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.MongoDatabase;
 import org.bson.BsonValue;
 import org.bson.Document;
-import org.bson.conversions.Bson;
-
-import java.util.List;
-
-import static com.gravity9.mongocse.MongoExpressions.abs;
-import static com.gravity9.mongocse.MongoExpressions.and;
-import static com.gravity9.mongocse.MongoExpressions.cond;
-import static com.gravity9.mongocse.MongoExpressions.documentKey;
-import static com.gravity9.mongocse.MongoExpressions.eq;
-import static com.gravity9.mongocse.MongoExpressions.expr;
-import static com.gravity9.mongocse.MongoExpressions.fullDocumentBeforeChangeKey;
-import static com.gravity9.mongocse.MongoExpressions.fullDocumentKey;
-import static com.gravity9.mongocse.MongoExpressions.mod;
-import static com.gravity9.mongocse.MongoExpressions.or;
-import static com.gravity9.mongocse.MongoExpressions.toHashedIndexKey;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+
+import java.util.Collection;
+
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 class ChangeStreamIterableFactory {
 
-    private static final String NULL_STRING = "null";
-
-    static ChangeStreamIterable<Document> createWatch(MongoConfig mongoConfig, MongoCollection<Document> collection, int partition) {
-        return collection.watch(List.of(
-                        Aggregates.match(
-                          and(List.of(
-                            mongoConfig.getMatch(),
-                            or(List.of(
-                              partitionMatchExpression(fullDocumentKey(mongoConfig.getKeyName()), mongoConfig.getNumberOfPartitions(), partition),
-                              partitionMatchExpression(documentKey(mongoConfig.getKeyName()), mongoConfig.getNumberOfPartitions(), partition),
-                              partitionMatchExpression(fullDocumentBeforeChangeKey(mongoConfig.getKeyName()), mongoConfig.getNumberOfPartitions(), partition)
-                            ))
-                          ))
-                        )
-                ))
-                .fullDocument(mongoConfig.getFullDocument())
-                .fullDocumentBeforeChange(mongoConfig.getFullDocumentBeforeChange())
+    static ChangeStreamIterable<Document> createWatch(MongoConfig mongoConfig, MongoCollection<Document> collection, SlotLayout layout, int partition) {
+        return withDeliveryMode(mongoConfig, collection).watch(PartitionPipelinePlanner.partitionPipeline(mongoConfig, layout, partition))
+                .fullDocument(mongoConfig.getStreamFullDocument())
+                .fullDocumentBeforeChange(mongoConfig.getStreamFullDocumentBeforeChange())
+                .maxAwaitTime(mongoConfig.getMaxAwaitTimeInMs(), MILLISECONDS);
+    }
+
+    /**
+     * Watch shared by all partitions in {@link StreamMode#FAN_OUT} mode, without the partition filter.
+     */
+    static ChangeStreamIterable<Document> createWatch(MongoConfig mongoConfig, MongoCollection<Document> collection) {
+        return withDeliveryMode(mongoConfig, collection).watch(PartitionPipelinePlanner.sharedPipeline(mongoConfig))
+                .fullDocument(mongoConfig.getStreamFullDocument())
+                .fullDocumentBeforeChange(mongoConfig.getStreamFullDocumentBeforeChange())
+                .maxAwaitTime(mongoConfig.getMaxAwaitTimeInMs(), MILLISECONDS);
+    }
+
+    /**
+     * Watch of a {@link MongoCseDatabaseManager} over the given collections of a database.
+     */
+    static ChangeStreamIterable<Document> createWatch(MongoConfig mongoConfig, MongoDatabase database, Collection<String> collectionNames) {
+        MongoDatabase watched = readsRawDocuments(mongoConfig)
+                ? database.withCodecRegistry(lazyCodecRegistry(database.getCodecRegistry()))
+                : database;
+        return watched.watch(PartitionPipelinePlanner.databasePipeline(mongoConfig, collectionNames))
+                .fullDocument(mongoConfig.getStreamFullDocument())
+                .fullDocumentBeforeChange(mongoConfig.getStreamFullDocumentBeforeChange())
                 .maxAwaitTime(mongoConfig.getMaxAwaitTimeInMs(), MILLISECONDS);
     }
 
-    private static Bson partitionMatchExpression(BsonValue documentKey, int partitionNumbers, int partitionNo) {
-        return expr(eq(cond(documentKey, mod(abs(toHashedIndexKey(documentKey)), partitionNumbers), NULL_STRING), partitionNo));
+    /**
+     * Scan of the partition's documents for its {@link BootstrapPolicy bootstrap} snapshot, after {@code afterId} if given.
+     * Results are kept raw, so only the fields taken into the snapshot events are decoded.
+     */
+    static AggregateIterable<RawBsonDocument> createSnapshotScan(MongoConfig mongoConfig, MongoCollection<Document> collection, SlotLayout layout,
+                                                               int partition, BsonValue afterId) {
+        return collection.aggregate(PartitionPipelinePlanner.snapshotPipeline(mongoConfig, layout, partition, afterId), RawBsonDocument.class)
+                .batchSize(mongoConfig.getBootstrapPolicy().getBatchSize());
+    }
+
+    /**
+     * Codec decoding documents the way the change stream of the collection decodes {@code fullDocument}.
+     */
+    static Codec<Document> documentCodec(MongoConfig mongoConfig, MongoCollection<Document> collection) {
+        return withDeliveryMode(mongoConfig, collection).getCodecRegistry().get(Document.class);
+    }
+
+    private static MongoCollection<Document> withDeliveryMode(MongoConfig mongoConfig, MongoCollection<Document> collection) {
+        if (!readsRawDocuments(mongoConfig)) {
+            return collection;
+        }
+        return collection.withCodecRegistry(lazyCodecRegistry(collection.getCodecRegistry()));
+    }
+
+    /**
+     * Documents are kept raw in {@link DeliveryMode#LAZY} mode, and whenever a batch policy has a byte budget, so
+     * batches are measured by the size the server sent instead of by encoding every document again.
+     */
+    static boolean readsRawDocuments(MongoConfig mongoConfig) {
+        return mongoConfig.getDeliveryMode() == DeliveryMode.LAZY
+                || mongoConfig.getBatchPolicy().hasByteBudget()
+                || mongoConfig.getCatchUpBatchPolicy().hasByteBudget();
+    }
+
+    private static CodecRegistry lazyCodecRegistry(CodecRegistry codecRegistry) {
+        return CodecRegistries.fromRegistries(
+                CodecRegistries.fromCodecs(new LazyDocumentCodec(codecRegistry.get(Document.class))),
+                codecRegistry
+        );
     }
 
 }
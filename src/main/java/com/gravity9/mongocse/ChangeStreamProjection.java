@@ -0,0 +1,222 @@
+package com.gravity9.mongocse;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.gravity9.mongocse.MongoExpressions.cond;
+
+/**
+ * Fields of {@code fullDocument}, {@code fullDocumentBeforeChange} and {@code updateDescription} the server sends
+ * with every event, so that large documents do not travel to the client for the few fields the listeners read.
+ * The stages run after the partition filter, so partitions are matched on the complete event.
+ * <p>
+ * Included fields are top-level fields; the partitioning key is always kept. Excluded fields of the documents can be
+ * nested, given with dots, but never the key or one of its parents. Fields of {@code updateDescription} are matched
+ * by their top-level field, so excluding {@code address} also drops updates of {@code address.city}.
+ */
+public final class ChangeStreamProjection {
+
+    private static final ChangeStreamProjection NONE = new ChangeStreamProjection(new EnumMap<>(Target.class));
+
+    private final Map<Target, Selection> selections;
+
+    private ChangeStreamProjection(Map<Target, Selection> selections) {
+        this.selections = selections;
+    }
+
+    /**
+     * Events as the server produces them.
+     */
+    public static ChangeStreamProjection none() {
+        return NONE;
+    }
+
+    public ChangeStreamProjection includeFullDocument(String... fields) {
+        return with(Target.FULL_DOCUMENT, true, fields);
+    }
+
+    public ChangeStreamProjection excludeFullDocument(String... fields) {
+        return with(Target.FULL_DOCUMENT, false, fields);
+    }
+
+    public ChangeStreamProjection includeFullDocumentBeforeChange(String... fields) {
+        return with(Target.FULL_DOCUMENT_BEFORE_CHANGE, true, fields);
+    }
+
+    public ChangeStreamProjection excludeFullDocumentBeforeChange(String... fields) {
+        return with(Target.FULL_DOCUMENT_BEFORE_CHANGE, false, fields);
+    }
+
+    /**
+     * Keeps only updates and removals of the given top-level fields in {@code updateDescription}.
+     */
+    public ChangeStreamProjection includeUpdatedFields(String... fields) {
+        return with(Target.UPDATE_DESCRIPTION, true, fields);
+    }
+
+    /**
+     * Drops updates and removals of the given top-level fields from {@code updateDescription}.
+     */
+    public ChangeStreamProjection excludeUpdatedFields(String... fields) {
+        return with(Target.UPDATE_DESCRIPTION, false, fields);
+    }
+
+    public boolean isEmpty() {
+        return selections.isEmpty();
+    }
+
+    private ChangeStreamProjection with(Target target, boolean include, String... fields) {
+        if (selections.containsKey(target)) {
+            throw new IllegalArgumentException("Fields of " + target.path + " are already projected: " + selections.get(target));
+        }
+        if (fields == null || fields.length == 0) {
+            throw new IllegalArgumentException("No fields of " + target.path + " to project");
+        }
+        for (String field : fields) {
+            if (field == null || field.isBlank() || field.startsWith("$") || field.startsWith(".") || field.endsWith(".")) {
+                throw new IllegalArgumentException("Invalid field name for " + target.path + ": " + field);
+            }
+            if ((include || target == Target.UPDATE_DESCRIPTION) && field.contains(".")) {
+                throw new IllegalArgumentException("Only top-level fields of " + target.path + " can be "
+                        + (include ? "included" : "excluded") + ": " + field);
+            }
+        }
+        Map<Target, Selection> copy = new EnumMap<>(Target.class);
+        copy.putAll(selections);
+        copy.put(target, new Selection(include, List.copyOf(new LinkedHashSet<>(Arrays.asList(fields)))));
+        return new ChangeStreamProjection(copy);
+    }
+
+    /**
+     * Checks that no exclusion drops the partitioning key, which keys in {@code _id} are exempt from: the key is
+     * read from {@code documentKey} then.
+     *
+     * @throws IllegalArgumentException if the key or one of its parents is excluded
+     */
+    void validate(String keyName) {
+        if (isIdKey(keyName)) {
+            return;
+        }
+        for (Target target : List.of(Target.FULL_DOCUMENT, Target.FULL_DOCUMENT_BEFORE_CHANGE)) {
+            Selection selection = selections.get(target);
+            if (selection == null || selection.include()) {
+                continue;
+            }
+            for (String field : selection.fields()) {
+                if (StageValidator.overlaps(field, keyName)) {
+                    throw new IllegalArgumentException("Cannot exclude " + target.path + "." + field
+                            + ", events are partitioned by " + keyName);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the {@code $unset} and {@code $set} stages applying the projection, none if nothing is projected
+     */
+    List<Bson> stages(String keyName) {
+        List<String> unset = new ArrayList<>();
+        Document set = new Document();
+        selections.forEach((target, selection) -> {
+            if (target == Target.UPDATE_DESCRIPTION) {
+                set.append(target.path, updateDescription(selection));
+            } else if (selection.include()) {
+                Set<String> fields = new LinkedHashSet<>(selection.fields());
+                if (!isIdKey(keyName)) {
+                    fields.add(topLevelField(keyName));
+                }
+                set.append(target.path, ifDocument("$" + target.path,
+                        new Document("$arrayToObject", keptEntries("$" + target.path, "$$this.k", true, List.copyOf(fields)))));
+            } else {
+                selection.fields().forEach(field -> unset.add(target.path + "." + field));
+            }
+        });
+
+        List<Bson> stages = new ArrayList<>(2);
+        if (!unset.isEmpty()) {
+            stages.add(new Document("$unset", unset));
+        }
+        if (!set.isEmpty()) {
+            stages.add(new Document("$set", set));
+        }
+        return Collections.unmodifiableList(stages);
+    }
+
+    /**
+     * {@code updatedFields} and {@code removedFields} filtered by their top-level field; {@code truncatedArrays} and
+     * {@code disambiguatedPaths} are left alone.
+     */
+    private static Bson updateDescription(Selection selection) {
+        Document updatedFields = new Document("$arrayToObject", keptEntries(
+                "$updateDescription.updatedFields", topLevelOf("$$this.k"), selection.include(), selection.fields()));
+        Document removedFields = new Document("$filter", new Document("input", "$updateDescription.removedFields")
+                .append("cond", membership(topLevelOf("$$this"), selection.include(), selection.fields())));
+        return ifDocument("$updateDescription", new Document("$mergeObjects", List.of("$updateDescription",
+                new Document("updatedFields", updatedFields).append("removedFields", removedFields))));
+    }
+
+    private static Bson keptEntries(String document, Object name, boolean include, List<String> fields) {
+        return new Document("$filter", new Document("input", new Document("$objectToArray", document))
+                .append("cond", membership(name, include, fields)));
+    }
+
+    private static Bson membership(Object name, boolean include, List<String> fields) {
+        Document in = new Document("$in", List.of(name, fields));
+        return include ? in : new Document("$not", List.of(in));
+    }
+
+    private static Bson topLevelOf(String path) {
+        return new Document("$arrayElemAt", List.of(new Document("$split", List.of(path, ".")), 0));
+    }
+
+    /**
+     * Events without the document, e.g. inserts without {@code updateDescription}, or deletes without
+     * {@code fullDocument}, keep the field missing instead of getting an empty document.
+     */
+    private static Bson ifDocument(String path, Bson projected) {
+        return cond(new Document("$eq", List.of(new Document("$type", path), "object")), projected, path);
+    }
+
+    private static boolean isIdKey(String keyName) {
+        return "_id".equals(keyName) || keyName.startsWith("_id.");
+    }
+
+    private static String topLevelField(String path) {
+        int dot = path.indexOf('.');
+        return dot < 0 ? path : path.substring(0, dot);
+    }
+
+    @Override
+    public String toString() {
+        return "ChangeStreamProjection" + selections;
+    }
+
+    private enum Target {
+        FULL_DOCUMENT("fullDocument"),
+        FULL_DOCUMENT_BEFORE_CHANGE("fullDocumentBeforeChange"),
+        UPDATE_DESCRIPTION("updateDescription");
+
+        private final String path;
+
+        Target(String path) {
+            this.path = path;
+        }
+    }
+
+    private record Selection(boolean include, List<String> fields) {
+
+        @Override
+        public String toString() {
+            return (include ? "include" : "exclude") + fields;
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.ChangeStreamBatchListener;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link Flow.Publisher} of the events of the partitions it is registered to, for reactive pipelines.
+ * <p>
+ * Register the publisher like any listener, to some partitions or with
+ * {@code manager.registerListenerToAllPartitions(publisher)} to merge all partitions into one publisher. A worker
+ * handing a batch to the publisher waits until the subscriber has requested its events, and only then reads its next
+ * batch from the change stream, so a slow subscriber holds back the cursors instead of filling a buffer. At most one
+ * batch per partition, bounded by the {@link BatchPolicy}, waits for demand. The resume token of a partition only
+ * advances once {@code onNext} has returned for every event of a batch, so events delivered before a crash are
+ * delivered again, and events that were never requested are not lost.
+ * <p>
+ * The publisher has one subscriber at a time; a second subscriber gets {@code onError}. Signals of all partitions
+ * are serialized, and {@code onNext} is called by the worker threads, so a subscriber that does heavy work should
+ * hand events over to an executor of its own. While nobody subscribes, or after the subscriber cancelled, the
+ * workers wait for the next subscriber. {@link #close()} completes the subscriber and releases waiting workers; their
+ * batches fail and are read again once the partitions restart, so close the publisher right before stopping the
+ * manager.
+ */
+public final class ChangeStreamPublisher implements Flow.Publisher<ChangeStreamDocument<Document>>, ChangeStreamBatchListener, Closeable {
+
+    private static final Flow.Subscription NO_SUBSCRIPTION = new Flow.Subscription() {
+        @Override
+        public void request(long n) {
+            // nothing to deliver
+        }
+
+        @Override
+        public void cancel() {
+            // nothing to cancel
+        }
+    };
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition demandAvailable = lock.newCondition();
+
+    private PublisherSubscription subscription;
+
+    private boolean closed;
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ChangeStreamDocument<Document>> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber");
+        lock.lock();
+        try {
+            if (closed) {
+                subscriber.onSubscribe(NO_SUBSCRIPTION);
+                subscriber.onComplete();
+            } else if (subscription != null) {
+                subscriber.onSubscribe(NO_SUBSCRIPTION);
+                subscriber.onError(new IllegalStateException("Publisher already has a subscriber"));
+            } else {
+                subscription = new PublisherSubscription(subscriber);
+                subscriber.onSubscribe(subscription);
+                demandAvailable.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hands the events to the subscriber as it requests them, and returns once all of them were delivered.
+     *
+     * @throws IllegalStateException if the publisher was closed before all events were requested
+     */
+    @Override
+    public void handleBatch(List<ChangeStreamDocument<Document>> events) {
+        for (ChangeStreamDocument<Document> event : events) {
+            lock.lock();
+            try {
+                PublisherSubscription current = awaitDemand();
+                current.demand--;
+                try {
+                    current.subscriber.onNext(event);
+                } catch (RuntimeException e) {
+                    // a failing subscriber is cancelled, and the batch is read again for the next one
+                    current.cancel();
+                    throw e;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return true while a subscriber has not cancelled its subscription
+     */
+    public boolean hasSubscriber() {
+        lock.lock();
+        try {
+            return subscription != null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes the subscriber, and makes workers waiting for demand fail their batch. Later subscribers are completed
+     * right away.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            PublisherSubscription current = subscription;
+            subscription = null;
+            demandAvailable.signalAll();
+            if (current != null) {
+                current.subscriber.onComplete();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private PublisherSubscription awaitDemand() {
+        while (true) {
+            if (closed) {
+                throw new IllegalStateException("Publisher was closed before its subscriber requested all events");
+            }
+            PublisherSubscription current = subscription;
+            if (current != null && current.demand > 0) {
+                return current;
+            }
+            try {
+                demandAvailable.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for demand", e);
+            }
+        }
+    }
+
+    private final class PublisherSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super ChangeStreamDocument<Document>> subscriber;
+
+        // guarded by lock
+        private long demand;
+
+        private PublisherSubscription(Flow.Subscriber<? super ChangeStreamDocument<Document>> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            lock.lock();
+            try {
+                if (subscription != this) {
+                    return;
+                }
+                if (n <= 0) {
+                    subscription = null;
+                    subscriber.onError(new IllegalArgumentException("Requested number of events must be positive: " + n));
+                    return;
+                }
+                demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                demandAvailable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            lock.lock();
+            try {
+                if (subscription == this) {
+                    subscription = null;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.gravity9.mongocse;
 
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.types.ObjectId;
 
 public class ChangeStreamWorkerConfig {
@@ -8,6 +10,11 @@ public class ChangeStreamWorkerConfig {
     private String collection;
     private int partition;
     private String resumeToken;
+    // cluster time of the resume token, or the operation time a partition without a token starts at
+    private BsonTimestamp clusterTime;
+    // set while the partition scans the collection for its bootstrap snapshot
+    private String snapshotResumeToken;
+    private BsonDocument snapshotPosition;
 
     public ObjectId getId() {
         return id;
@@ -40,4 +47,28 @@ public class ChangeStreamWorkerConfig {
     public void setResumeToken(String resumeToken) {
         this.resumeToken = resumeToken;
     }
+
+    public BsonTimestamp getClusterTime() {
+        return clusterTime;
+    }
+
+    public void setClusterTime(BsonTimestamp clusterTime) {
+        this.clusterTime = clusterTime;
+    }
+
+    public String getSnapshotResumeToken() {
+        return snapshotResumeToken;
+    }
+
+    public void setSnapshotResumeToken(String snapshotResumeToken) {
+        this.snapshotResumeToken = snapshotResumeToken;
+    }
+
+    public BsonDocument getSnapshotPosition() {
+        return snapshotPosition;
+    }
+
+    public void setSnapshotPosition(BsonDocument snapshotPosition) {
+        this.snapshotPosition = snapshotPosition;
+    }
 }
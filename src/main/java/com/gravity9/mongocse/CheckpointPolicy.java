@@ -0,0 +1,95 @@
+package com.gravity9.mongocse;
+
+/**
+ * Decides how often workers persist their resume tokens.
+ * Tokens are always coalesced per partition and written in the background, a checkpoint is written when
+ * either the event threshold or the time interval is reached (whichever comes first), and always on shutdown.
+ * A threshold of {@code 0} disables that trigger.
+ */
+public final class CheckpointPolicy {
+
+    private static final int DEFAULT_EVENT_THRESHOLD = 100;
+    private static final long DEFAULT_INTERVAL_MS = 1000L;
+
+    private final int eventThreshold;
+
+    private final long intervalMs;
+
+    private CheckpointPolicy(int eventThreshold, long intervalMs) {
+        if (eventThreshold < 0) {
+            throw new IllegalArgumentException("Checkpoint event threshold cannot be negative: " + eventThreshold);
+        }
+        if (intervalMs < 0) {
+            throw new IllegalArgumentException("Checkpoint interval cannot be negative: " + intervalMs);
+        }
+        this.eventThreshold = eventThreshold;
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Checkpoints after every {@code events} processed events of a partition.
+     */
+    public static CheckpointPolicy everyEvents(int events) {
+        return new CheckpointPolicy(requirePositive(events), 0);
+    }
+
+    /**
+     * Checkpoints all partitions with pending tokens every {@code intervalMs} milliseconds.
+     */
+    public static CheckpointPolicy everyMillis(long intervalMs) {
+        return new CheckpointPolicy(0, requirePositive(intervalMs));
+    }
+
+    /**
+     * Checkpoints after {@code events} processed events of a partition or every {@code intervalMs} milliseconds.
+     */
+    public static CheckpointPolicy everyEventsOrMillis(int events, long intervalMs) {
+        return new CheckpointPolicy(requirePositive(events), requirePositive(intervalMs));
+    }
+
+    /**
+     * Checkpoints only when workers are stopped.
+     */
+    public static CheckpointPolicy onShutdown() {
+        return new CheckpointPolicy(0, 0);
+    }
+
+    public static CheckpointPolicy defaultPolicy() {
+        return everyEventsOrMillis(DEFAULT_EVENT_THRESHOLD, DEFAULT_INTERVAL_MS);
+    }
+
+    public int getEventThreshold() {
+        return eventThreshold;
+    }
+
+    public long getIntervalMs() {
+        return intervalMs;
+    }
+
+    boolean hasEventThreshold() {
+        return eventThreshold > 0;
+    }
+
+    boolean hasInterval() {
+        return intervalMs > 0;
+    }
+
+    private static int requirePositive(int value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Checkpoint event threshold must be positive: " + value);
+        }
+        return value;
+    }
+
+    private static long requirePositive(long value) {
+        if (value < 1) {
+            throw new IllegalArgumentException("Checkpoint interval must be positive: " + value);
+        }
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return "CheckpointPolicy{eventThreshold=" + eventThreshold + ", intervalMs=" + intervalMs + '}';
+    }
+}
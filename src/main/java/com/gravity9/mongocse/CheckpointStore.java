@@ -0,0 +1,91 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.types.ObjectId;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Storage of the resume tokens and snapshot positions of the partitions of a collection, see
+ * {@code MongoConfig.checkpointStore}. By default they are stored in the worker config collection of the watched
+ * database; {@link MappedFileCheckpointStore} keeps them in a local file instead.
+ * <p>
+ * A partition's checkpoint is addressed by the {@code id} of the config {@link #getConfigOrInit} returns for it. Writes
+ * of one partition come from one thread at a time, but writes of different partitions and reads may run concurrently.
+ * Fencing tokens are only passed while partitions are leased, which needs the default store; other stores ignore them.
+ * <p>
+ * Managers do not close a store they were given.
+ */
+public interface CheckpointStore extends Closeable {
+
+    /**
+     * @return the checkpoint of the partition, created without a resume token if the store has none
+     */
+    ChangeStreamWorkerConfig getConfigOrInit(String listenedCollection, int partition);
+
+    /**
+     * Loads the checkpoints of partitions {@code 0} to {@code partitions - 1} of a collection at once, creating the
+     * missing ones. Managers call it on start, so stores should answer it without a round trip per partition.
+     *
+     * @return checkpoint of every partition, by partition
+     */
+    default Map<Integer, ChangeStreamWorkerConfig> getConfigsOrInit(String listenedCollection, int partitions) {
+        Map<Integer, ChangeStreamWorkerConfig> configs = new HashMap<>(partitions);
+        for (int partition = 0; partition < partitions; partition++) {
+            configs.put(partition, getConfigOrInit(listenedCollection, partition));
+        }
+        return configs;
+    }
+
+    void updateResumeToken(ObjectId id, String resumeToken);
+
+    /**
+     * Writes resume tokens, each only if its config still carries the given fencing token.
+     *
+     * @param fencingTokens fencing token per config id; configs without one are written unconditionally
+     * @return ids of the configs whose token was written
+     */
+    Set<ObjectId> updateResumeTokens(Map<ObjectId, String> resumeTokens, Map<ObjectId, Long> fencingTokens);
+
+    void clearResumeToken(ObjectId id);
+
+    /**
+     * Replaces the resume token of a partition by an operation time, so the partition starts its change stream there.
+     *
+     * @param operationTime null to start the change stream at its current end
+     */
+    void resetResumeToken(ObjectId id, BsonTimestamp operationTime, Long fencingToken);
+
+    /**
+     * Stores the stream position a partition's snapshot started at and the {@code _id} its scan delivered last.
+     *
+     * @param position {@code _id} of the last delivered document, null before the scan delivered any
+     */
+    void updateSnapshot(ObjectId id, String snapshotResumeToken, BsonDocument position, Long fencingToken);
+
+    /**
+     * Ends a partition's snapshot, resuming its change stream from the position the snapshot started at.
+     */
+    void completeSnapshot(ObjectId id, String resumeToken, Long fencingToken);
+
+    /**
+     * Sets the resume token of partitions {@code 0} to {@code partitions - 1} of a collection, creating missing
+     * checkpoints, and drops their snapshot positions.
+     *
+     * @param resumeToken null to start the partitions at the current end of the change stream
+     */
+    void resetPartitions(String listenedCollection, int partitions, String resumeToken);
+
+    /**
+     * Removes the checkpoints of the partitions of a collection from {@code firstRemoved} on.
+     */
+    void removePartitions(String listenedCollection, int firstRemoved);
+
+    @Override
+    default void close() {
+    }
+}
@@ -1,62 +1,126 @@
 package com.gravity9.mongocse;
 
+import com.mongodb.MongoCommandException;
 import com.mongodb.client.MongoCollection;
 import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
 import com.mongodb.client.model.Updates;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.Document;
+import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-class ConfigManager {
+/**
+ * Cluster configs, leases and members of the watched collections, and the default {@link CheckpointStore} of their partitions.
+ */
+class ConfigManager implements CheckpointStore {
 
 	private static final Logger log = LoggerFactory.getLogger(ConfigManager.class);
 
+	private static final String FENCING_TOKEN = "fencingToken";
+	private static final String RESUME_TOKEN = "resumeToken";
+	private static final String CLUSTER_TIME = "clusterTime";
+	private static final String SNAPSHOT_RESUME_TOKEN = "snapshotResumeToken";
+	private static final String SNAPSHOT_POSITION = "snapshotPosition";
+	private static final String OWNER = "owner";
+	private static final String MEMBER = "member";
+	private static final String EXPIRES_AT = "expiresAt";
+	private static final String NOW = "$$NOW";
+	private static final int DUPLICATE_KEY = 11000;
+
 	private final MongoCollection<ChangeStreamWorkerConfig> workerConfigCollection;
 
 	private final MongoCollection<WorkerClusterConfig> clusterConfigCollection;
 
+	// lease and member documents, stored next to the cluster configs
+	private final MongoCollection<Document> coordinationCollection;
+
 	ConfigManager(MongoConfig mongoConfig, MongoClientProvider clientProvider) {
-		MongoDatabase db = clientProvider.getClient().getDatabase(mongoConfig.getDatabaseName());
-		ArrayList<String> dbList = clientProvider.getClient().listDatabaseNames().into(new ArrayList<>());
-		if (!dbList.contains(mongoConfig.getDatabaseName())) {
+		// clients provided by the application may lack the codecs of the config classes
+		MongoDatabase db = clientProvider.getClient().getDatabase(mongoConfig.getDatabaseName())
+			.withCodecRegistry(DefaultMongoClientProvider.CODEC_REGISTRY);
+		Document database = clientProvider.getClient().listDatabases()
+			.nameOnly(true)
+			.filter(Filters.eq("name", mongoConfig.getDatabaseName()))
+			.first();
+		if (database == null) {
 			log.warn("Database: {} does not exist. A new DB will be created.", mongoConfig.getDatabaseName());
 		}
 		workerConfigCollection = db.getCollection(mongoConfig.getWorkerConfigCollectionName(), ChangeStreamWorkerConfig.class);
 		clusterConfigCollection = db.getCollection(mongoConfig.getClusterConfigCollectionName(), WorkerClusterConfig.class);
+		coordinationCollection = db.getCollection(mongoConfig.getClusterConfigCollectionName());
+	}
+
+	/**
+	 * Creates the indexes config lookups use, if they do not exist yet.
+	 */
+	void ensureIndexes() {
+		clusterConfigCollection.createIndex(Indexes.ascending("collection"));
+		try {
+			workerConfigCollection.createIndex(Indexes.ascending("collection", "partition"), new IndexOptions().unique(true));
+		} catch (MongoCommandException e) {
+			if (e.getErrorCode() != DUPLICATE_KEY) {
+				throw e;
+			}
+			// configs created concurrently before the index existed; lookups still work, just without the index
+			log.warn("Could not create unique index on {}, it holds several configs of one partition", workerConfigCollection.getNamespace(), e);
+		}
 	}
 
-	void verifyClusterConfig(String collectionName, Integer partitions) {
+	void verifyClusterConfig(String collectionName, SlotLayout layout) {
 		WorkerClusterConfig clusterConfig = findConfig(collectionName).orElse(null);
 		if (clusterConfig == null) {
 			return;
 		}
 
-		if (clusterConfig.getPartitions() == partitions) {
+		SlotLayout existingLayout = SlotLayout.of(clusterConfig);
+		if (existingLayout.slots() != layout.slots()) {
+			log.info("Collection {} keeps the {} slots of its config instead of the requested {} until MongoCseManager.repartition re-slots it",
+				collectionName, existingLayout.slots(), layout.slots());
+		}
+
+		if (existingLayout.partitions() == layout.partitions()) {
 			return;
 		}
 
 		String message = String.format(
-			"Found previous config for collection %s with different number of partitions! In existing config: %d, in requested config: %d",
+			"Found previous config for collection %s with different number of partitions! In existing config: %d, in requested config: %d. "
+				+ "Use MongoCseManager.repartition to change it.",
 			collectionName,
-			clusterConfig.getPartitions(),
-			partitions
+			existingLayout.partitions(),
+			layout.partitions()
 		);
 
 		throw new IllegalArgumentException(message);
 	}
 
-	WorkerClusterConfig getOrInitClusterConfig(String collectionName, Integer partitions) {
+	WorkerClusterConfig getOrInitClusterConfig(String collectionName, SlotLayout layout) {
 		return findConfig(collectionName)
 			.orElseGet(() -> {
 				log.info("Creating new cluster config for collection {}", collectionName);
 				var clusterConfig = new WorkerClusterConfig();
 				clusterConfig.setCollection(collectionName);
-				clusterConfig.setPartitions(partitions);
+				clusterConfig.setPartitions(layout.partitions());
+				clusterConfig.setSlots(layout.slots());
 				clusterConfigCollection.insertOne(clusterConfig);
 				return findConfig(collectionName).orElseThrow(() -> new IllegalStateException("Could not create config for collection: " + collectionName));
 			});
@@ -64,47 +128,324 @@ class ConfigManager {
 
 	private Optional<WorkerClusterConfig> findConfig(String collectionName) {
 		return Optional.ofNullable(clusterConfigCollection.find(Filters.and(List.of(
-			Filters.eq("collection", collectionName)
+			Filters.eq("collection", collectionName),
+			Filters.exists("partitions")
 		))).first());
 	}
 
-	ChangeStreamWorkerConfig getConfigOrInit(String listenedCollection, Integer partition) {
-		ChangeStreamWorkerConfig changeStreamWorkerConfig = workerConfigCollection.find(Filters.and(List.of(
-			Filters.eq("collection", listenedCollection),
-			Filters.eq("partition", partition)
-		))).first();
+	@Override
+	public ChangeStreamWorkerConfig getConfigOrInit(String listenedCollection, int partition) {
+		ChangeStreamWorkerConfig changeStreamWorkerConfig = workerConfigCollection.find(partitionFilter(listenedCollection, partition)).first();
 
 		if (changeStreamWorkerConfig == null) {
 			log.info("Creating new config for partition {} on collection {}", partition, listenedCollection);
-			changeStreamWorkerConfig = new ChangeStreamWorkerConfig();
-			changeStreamWorkerConfig.setCollection(listenedCollection);
-			changeStreamWorkerConfig.setPartition(partition);
-
-			workerConfigCollection.insertOne(changeStreamWorkerConfig);
+			// upserted, so managers creating the config at the same time end up with the same one
+			workerConfigCollection.updateOne(partitionFilter(listenedCollection, partition), Updates.setOnInsert("partition", partition),
+				new UpdateOptions().upsert(true));
 
-			changeStreamWorkerConfig = workerConfigCollection.find(Filters.and(List.of(
-				Filters.eq("collection", listenedCollection),
-				Filters.eq("partition", partition)
-			))).first();
+			changeStreamWorkerConfig = workerConfigCollection.find(partitionFilter(listenedCollection, partition)).first();
 		}
 
 		return changeStreamWorkerConfig;
 	}
 
-	ChangeStreamWorkerConfig updateResumeToken(ObjectId id, String resumeToken) {
+	/**
+	 * Loads all configs of the collection with one query, and creates the missing ones with one bulk write.
+	 */
+	@Override
+	public Map<Integer, ChangeStreamWorkerConfig> getConfigsOrInit(String listenedCollection, int partitions) {
+		Map<Integer, ChangeStreamWorkerConfig> configs = findConfigs(listenedCollection, partitions);
+		if (configs.size() == partitions) {
+			return configs;
+		}
+
+		List<UpdateOneModel<ChangeStreamWorkerConfig>> inserts = new ArrayList<>();
+		for (int partition = 0; partition < partitions; partition++) {
+			if (!configs.containsKey(partition)) {
+				inserts.add(new UpdateOneModel<>(
+					partitionFilter(listenedCollection, partition),
+					Updates.setOnInsert("partition", partition),
+					new UpdateOptions().upsert(true)
+				));
+			}
+		}
+		log.info("Creating new configs for {} partitions on collection {}", inserts.size(), listenedCollection);
+		workerConfigCollection.bulkWrite(inserts, new BulkWriteOptions().ordered(false));
+		return findConfigs(listenedCollection, partitions);
+	}
+
+	private Map<Integer, ChangeStreamWorkerConfig> findConfigs(String listenedCollection, int partitions) {
+		Map<Integer, ChangeStreamWorkerConfig> configs = new HashMap<>(partitions);
+		workerConfigCollection.find(Filters.and(
+				Filters.eq("collection", listenedCollection),
+				Filters.lt("partition", partitions)
+			))
+			.forEach(config -> configs.putIfAbsent(config.getPartition(), config));
+		return configs;
+	}
+
+	@Override
+	public void updateResumeToken(ObjectId id, String resumeToken) {
 		workerConfigCollection.updateOne(
 			Filters.eq("_id", id),
-			Updates.set("resumeToken", resumeToken)
+			setResumeToken(resumeToken)
 		);
+	}
 
-		return workerConfigCollection.find(Filters.eq("_id", id)).first();
+	void updateResumeTokens(Map<ObjectId, String> resumeTokens) {
+		updateResumeTokens(resumeTokens, Map.of());
 	}
 
-	void clearResumeToken(ObjectId id) {
+	@Override
+	public Set<ObjectId> updateResumeTokens(Map<ObjectId, String> resumeTokens, Map<ObjectId, Long> fencingTokens) {
+		if (resumeTokens.isEmpty()) {
+			return Set.of();
+		}
+
+		List<UpdateOneModel<ChangeStreamWorkerConfig>> updates = resumeTokens.entrySet().stream()
+			.map(entry -> new UpdateOneModel<ChangeStreamWorkerConfig>(
+				fenced(entry.getKey(), fencingTokens.get(entry.getKey())),
+				setResumeToken(entry.getValue())
+			))
+			.toList();
+		int matched = workerConfigCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false)).getMatchedCount();
+		if (matched == resumeTokens.size()) {
+			return resumeTokens.keySet();
+		}
+
+		// the bulk result only counts matches, so read back which configs carry the written token
+		Set<ObjectId> written = new HashSet<>();
+		workerConfigCollection.find(Filters.in("_id", resumeTokens.keySet()))
+			.forEach(config -> {
+				if (config.getResumeToken() != null && config.getResumeToken().equals(resumeTokens.get(config.getId()))) {
+					written.add(config.getId());
+				}
+			});
+		return written;
+	}
+
+	/**
+	 * Switches the collection to a new layout whose partitions all resume after the hand-off token.
+	 * Every checkpoint is set to the token before the cluster config changes, so a crash in between leaves the
+	 * previous layout resuming from the same point. Checkpoints of partitions the new layout no longer has are removed last.
+	 *
+	 * @param handOffToken resume token every partition of the old layout has reached, null to start the new layout fresh
+	 */
+	void repartition(CheckpointStore checkpoints, String collectionName, SlotLayout layout, int previousPartitions, String handOffToken) {
+		checkpoints.resetPartitions(collectionName, Math.max(layout.partitions(), previousPartitions), handOffToken);
+
+		clusterConfigCollection.updateOne(
+			Filters.eq("collection", collectionName),
+			Updates.combine(Updates.set("partitions", layout.partitions()), Updates.set("slots", layout.slots()))
+		);
+
+		checkpoints.removePartitions(collectionName, layout.partitions());
+		log.info("Collection {} now has {} partitions over {} slots", collectionName, layout.partitions(), layout.slots());
+	}
+
+	@Override
+	public void resetPartitions(String listenedCollection, int partitions, String resumeToken) {
+		List<UpdateOneModel<ChangeStreamWorkerConfig>> updates = new ArrayList<>();
+		for (int partition = 0; partition < partitions; partition++) {
+			updates.add(new UpdateOneModel<>(
+				partitionFilter(listenedCollection, partition),
+				Updates.combine(
+					resumeToken == null ? Updates.combine(Updates.unset(RESUME_TOKEN), Updates.unset(CLUSTER_TIME)) : setResumeToken(resumeToken),
+					// scan positions of the old layout do not apply to the partitions of the new one
+					Updates.unset(SNAPSHOT_RESUME_TOKEN),
+					Updates.unset(SNAPSHOT_POSITION)
+				),
+				new UpdateOptions().upsert(true)
+			));
+		}
+		workerConfigCollection.bulkWrite(updates, new BulkWriteOptions().ordered(false));
+	}
+
+	@Override
+	public void removePartitions(String listenedCollection, int firstRemoved) {
+		workerConfigCollection.deleteMany(Filters.and(
+			Filters.eq("collection", listenedCollection),
+			Filters.gte("partition", firstRemoved)
+		));
+	}
+
+	@Override
+	public void updateSnapshot(ObjectId id, String snapshotResumeToken, BsonDocument position, Long fencingToken) {
+		workerConfigCollection.updateOne(
+			fenced(id, fencingToken),
+			Updates.combine(
+				Updates.set(SNAPSHOT_RESUME_TOKEN, snapshotResumeToken),
+				position == null ? Updates.unset(SNAPSHOT_POSITION) : Updates.set(SNAPSHOT_POSITION, position)
+			)
+		);
+	}
+
+	@Override
+	public void completeSnapshot(ObjectId id, String resumeToken, Long fencingToken) {
+		workerConfigCollection.updateOne(
+			fenced(id, fencingToken),
+			Updates.combine(
+				setResumeToken(resumeToken),
+				Updates.unset(SNAPSHOT_RESUME_TOKEN),
+				Updates.unset(SNAPSHOT_POSITION)
+			)
+		);
+	}
+
+	@Override
+	public void clearResumeToken(ObjectId id) {
+		clearResumeToken(id, null);
+	}
+
+	void clearResumeToken(ObjectId id, Long fencingToken) {
 		log.info("Clearing resume token for config with id {}", id);
 		workerConfigCollection.updateOne(
-			Filters.eq("_id", id),
-			Updates.unset("resumeToken")
+			fenced(id, fencingToken),
+			Updates.unset(RESUME_TOKEN)
+		);
+	}
+
+	@Override
+	public void resetResumeToken(ObjectId id, BsonTimestamp operationTime, Long fencingToken) {
+		log.info("Resetting resume token for config with id {} to operation time {}", id, operationTime);
+		workerConfigCollection.updateOne(
+			fenced(id, fencingToken),
+			Updates.combine(
+				Updates.unset(RESUME_TOKEN),
+				operationTime == null ? Updates.unset(CLUSTER_TIME) : Updates.set(CLUSTER_TIME, operationTime)
+			)
+		);
+	}
+
+	/**
+	 * Stores the cluster time of a resume token next to it, so the partition can restart from that time if the
+	 * token can no longer be resumed.
+	 */
+	private static Bson setResumeToken(String resumeToken) {
+		BsonTimestamp clusterTime = ResumeTokens.clusterTime(resumeToken);
+		return Updates.combine(
+			Updates.set(RESUME_TOKEN, resumeToken),
+			clusterTime == null ? Updates.unset(CLUSTER_TIME) : Updates.set(CLUSTER_TIME, clusterTime)
+		);
+	}
+
+	private static Bson partitionFilter(String listenedCollection, int partition) {
+		return Filters.and(Filters.eq("collection", listenedCollection), Filters.eq("partition", partition));
+	}
+
+	private static Bson fenced(ObjectId id, Long fencingToken) {
+		return fencingToken == null
+			? Filters.eq("_id", id)
+			: Filters.and(Filters.eq("_id", id), Filters.eq(FENCING_TOKEN, fencingToken));
+	}
+
+	/**
+	 * Stamps a worker config with the fencing token of a new lease, so writes of earlier lease holders no longer match.
+	 *
+	 * @return false if the config already carries a newer fencing token
+	 */
+	boolean fence(ObjectId id, long fencingToken) {
+		return workerConfigCollection.updateOne(
+			Filters.and(Filters.eq("_id", id), Filters.or(Filters.exists(FENCING_TOKEN, false), Filters.lte(FENCING_TOKEN, fencingToken))),
+			Updates.set(FENCING_TOKEN, fencingToken)
+		).getMatchedCount() == 1;
+	}
+
+	/**
+	 * Takes the lease of a partition if it is free or expired. Every acquisition increases the fencing token.
+	 *
+	 * @return the fencing token of the new lease, or empty if another member holds the lease
+	 */
+	OptionalLong acquireLease(String collectionName, int partition, String memberId, long durationMs) {
+		Bson free = Filters.or(Filters.eq(OWNER, null), Filters.expr(new Document("$lt", List.of("$" + EXPIRES_AT, NOW))));
+		List<Bson> acquire = List.of(new Document("$set", new Document("collection", collectionName)
+			.append("partition", partition)
+			.append(OWNER, memberId)
+			.append(EXPIRES_AT, expiresIn(durationMs))
+			.append(FENCING_TOKEN, new Document("$add", List.of(new Document("$ifNull", List.of("$" + FENCING_TOKEN, 0L)), 1L)))));
+		try {
+			Document lease = coordinationCollection.findOneAndUpdate(
+				Filters.and(Filters.eq("_id", leaseId(collectionName, partition)), free),
+				acquire,
+				new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER)
+			);
+			return lease == null ? OptionalLong.empty() : OptionalLong.of(lease.getLong(FENCING_TOKEN));
+		} catch (MongoCommandException e) {
+			if (e.getErrorCode() == DUPLICATE_KEY) {
+				// the lease exists and is held by another member
+				return OptionalLong.empty();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * @return false if the lease was taken over by another member
+	 */
+	boolean renewLease(String collectionName, int partition, String memberId, long fencingToken, long durationMs) {
+		return coordinationCollection.updateOne(
+			heldLease(collectionName, partition, memberId, fencingToken),
+			List.of(new Document("$set", new Document(EXPIRES_AT, expiresIn(durationMs))))
+		).getMatchedCount() == 1;
+	}
+
+	void releaseLease(String collectionName, int partition, String memberId, long fencingToken) {
+		coordinationCollection.updateOne(
+			heldLease(collectionName, partition, memberId, fencingToken),
+			Updates.combine(Updates.unset(OWNER), Updates.unset(EXPIRES_AT))
 		);
 	}
+
+	/**
+	 * Registers the member, or keeps it registered, for another {@code durationMs}.
+	 */
+	void heartbeat(String collectionName, String memberId, long durationMs) {
+		coordinationCollection.updateOne(
+			Filters.eq("_id", memberDocumentId(collectionName, memberId)),
+			List.of(new Document("$set", new Document("collection", collectionName)
+				.append(MEMBER, memberId)
+				.append(EXPIRES_AT, expiresIn(durationMs)))),
+			new UpdateOptions().upsert(true)
+		);
+	}
+
+	/**
+	 * @return ids of the members whose registration has not expired, sorted
+	 */
+	List<String> liveMembers(String collectionName) {
+		return coordinationCollection.find(Filters.and(
+				Filters.eq("collection", collectionName),
+				Filters.exists(MEMBER),
+				Filters.expr(new Document("$gt", List.of("$" + EXPIRES_AT, NOW)))
+			))
+			.map(member -> member.getString(MEMBER))
+			.into(new ArrayList<>())
+			.stream()
+			.sorted()
+			.toList();
+	}
+
+	void leave(String collectionName, String memberId) {
+		coordinationCollection.deleteOne(Filters.eq("_id", memberDocumentId(collectionName, memberId)));
+	}
+
+	private static Bson heldLease(String collectionName, int partition, String memberId, long fencingToken) {
+		return Filters.and(
+			Filters.eq("_id", leaseId(collectionName, partition)),
+			Filters.eq(OWNER, memberId),
+			Filters.eq(FENCING_TOKEN, fencingToken)
+		);
+	}
+
+	private static Document expiresIn(long durationMs) {
+		return new Document("$add", List.of(NOW, durationMs));
+	}
+
+	private static String leaseId(String collectionName, int partition) {
+		return collectionName + "/lease/" + partition;
+	}
+
+	private static String memberDocumentId(String collectionName, String memberId) {
+		return collectionName + "/member/" + memberId;
+	}
 }
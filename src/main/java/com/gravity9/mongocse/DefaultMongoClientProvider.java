@@ -2,22 +2,62 @@ package com.gravity9.mongocse;
 
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoClients;
 import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.codecs.pojo.PojoCodecProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.bson.codecs.configuration.CodecRegistries.fromProviders;
 import static org.bson.codecs.configuration.CodecRegistries.fromRegistries;
 
+/**
+ * Creates its clients on first use. With a positive number of stream connections, change streams get a client of
+ * their own, see {@link MongoClientProvider#create(MongoClientSettings, int)}; otherwise they share the config client.
+ */
 class DefaultMongoClientProvider implements MongoClientProvider {
 
-	private final String mongoConnectionUri;
+	private static final Logger log = LoggerFactory.getLogger(DefaultMongoClientProvider.class);
+
+	static final CodecRegistry CODEC_REGISTRY = fromRegistries(MongoClientSettings.getDefaultCodecRegistry(),
+			fromProviders(PojoCodecProvider.builder().automatic(true).build()));
+
+	private final MongoClientSettings settings;
+
+	private volatile int streamConnections;
+
+	private final boolean compressStreams;
 
 	private volatile MongoClient client;
 
+	private volatile MongoClient streamClient;
+
 	DefaultMongoClientProvider(String mongoConnectionUri) {
-		this.mongoConnectionUri = mongoConnectionUri;
+		this(MongoClientSettings.builder().applyConnectionString(new ConnectionString(mongoConnectionUri)).build(), 0, false);
+	}
+
+	DefaultMongoClientProvider(MongoClientSettings settings, int streamConnections, boolean compressStreams) {
+		this.settings = settings;
+		this.streamConnections = streamConnections;
+		this.compressStreams = compressStreams;
+	}
+
+	/**
+	 * Provider a manager creates when no {@code clientProvider} is configured, from the configured
+	 * {@code clientSettings} or else the connection URI.
+	 *
+	 * @param streamConnections number of change streams the manager can read at the same time
+	 */
+	static DefaultMongoClientProvider forManager(MongoConfig mongoConfig, int streamConnections) {
+		MongoClientSettings settings = mongoConfig.getClientSettings() != null
+				? mongoConfig.getClientSettings()
+				: MongoClientSettings.builder().applyConnectionString(new ConnectionString(mongoConfig.getConnectionUri())).build();
+		return new DefaultMongoClientProvider(settings, streamConnections, mongoConfig.isStreamCompression());
 	}
 
 	@Override
@@ -25,7 +65,9 @@ class DefaultMongoClientProvider implements MongoClientProvider {
 		if (client == null) {
 			synchronized (this) {
 				if (client == null) {
-					client = createClient();
+					client = MongoClients.create(MongoClientSettings.builder(settings)
+							.codecRegistry(fromRegistries(settings.getCodecRegistry(), CODEC_REGISTRY))
+							.build());
 				}
 			}
 		}
@@ -33,29 +75,93 @@ class DefaultMongoClientProvider implements MongoClientProvider {
 		return client;
 	}
 
-	private MongoClient createClient() {
-		ConnectionString connectionString = new ConnectionString(mongoConnectionUri);
-		CodecRegistry pojoCodecRegistry = fromProviders(PojoCodecProvider.builder().automatic(true).build());
-		CodecRegistry codecRegistry = fromRegistries(MongoClientSettings.getDefaultCodecRegistry(),
-				pojoCodecRegistry);
-		MongoClientSettings clientSettings = MongoClientSettings.builder()
-				.applyConnectionString(connectionString)
-				.codecRegistry(codecRegistry)
-				.build();
+	@Override
+	public MongoClient getStreamClient() {
+		if (streamConnections <= 0) {
+			return getClient();
+		}
+		if (streamClient == null) {
+			synchronized (this) {
+				if (streamClient == null) {
+					streamClient = createStreamClient();
+				}
+			}
+		}
 
-		return MongoClients.create(clientSettings);
+		return streamClient;
+	}
+
+	/**
+	 * Sizes the connection pool of the stream client for a different number of change streams. A stream client with
+	 * a pool of another size is closed, and created again on next use, so call it only while no change stream is open.
+	 * Does nothing if the streams share the config client.
+	 */
+	void resizeStreamConnections(int connections) {
+		synchronized (this) {
+			if (streamConnections <= 0 || connections == streamConnections) {
+				return;
+			}
+			log.info("Resizing the change stream connection pool from {} to {} connections", streamConnections, connections);
+			streamConnections = connections;
+			if (streamClient != null) {
+				streamClient.close();
+				streamClient = null;
+			}
+		}
+	}
+
+	int getStreamConnections() {
+		return streamConnections;
+	}
+
+	private MongoClient createStreamClient() {
+		MongoClientSettings.Builder streamSettings = MongoClientSettings.builder(settings)
+				.codecRegistry(fromRegistries(settings.getCodecRegistry(), CODEC_REGISTRY))
+				.applyToConnectionPoolSettings(pool -> pool.maxSize(streamConnections));
+		if (compressStreams && settings.getCompressorList().isEmpty()) {
+			List<MongoCompressor> compressors = availableCompressors();
+			log.info("Reading change streams with up to {} connections and compressors {}", streamConnections, compressors);
+			streamSettings.compressorList(compressors);
+		}
+		return MongoClients.create(streamSettings.build());
+	}
+
+	/**
+	 * Compressors in order of preference, skipping those whose codec library is not on the classpath; the server
+	 * picks the first one it supports.
+	 */
+	static List<MongoCompressor> availableCompressors() {
+		List<MongoCompressor> compressors = new ArrayList<>();
+		if (isPresent("com.github.luben.zstd.Zstd")) {
+			compressors.add(MongoCompressor.createZstdCompressor());
+		}
+		if (isPresent("org.xerial.snappy.Snappy")) {
+			compressors.add(MongoCompressor.createSnappyCompressor());
+		}
+		compressors.add(MongoCompressor.createZlibCompressor());
+		return compressors;
+	}
+
+	private static boolean isPresent(String className) {
+		try {
+			Class.forName(className, false, DefaultMongoClientProvider.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
 	}
 
 	@Override
 	public void close() {
-		if (client != null) {
-			synchronized (this) {
-				if (client != null) {
-					client.close();
-					client = null;
-				}
+		synchronized (this) {
+			if (streamClient != null) {
+				streamClient.close();
+				streamClient = null;
+			}
+			if (client != null) {
+				client.close();
+				client = null;
 			}
 		}
 	}
 }
-
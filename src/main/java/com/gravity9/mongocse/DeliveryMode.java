@@ -0,0 +1,21 @@
+package com.gravity9.mongocse;
+
+/**
+ * Defines how {@code fullDocument} and {@code fullDocumentBeforeChange} of change events are decoded.
+ */
+public enum DeliveryMode {
+
+    /**
+     * The driver decodes every document into a {@link org.bson.Document} before the event reaches the listeners.
+     * If a {@link BatchPolicy} of the manager has a byte budget, documents are kept raw as in {@link #LAZY} mode
+     * instead, so batches can be measured without encoding their documents again.
+     */
+    DECODED,
+
+    /**
+     * Documents keep their raw BSON bytes and a field is only decoded when a listener reads it.
+     * Iterating over, comparing or modifying a document decodes it fully, after which it behaves like a regular
+     * {@link org.bson.Document}.
+     */
+    LAZY
+}
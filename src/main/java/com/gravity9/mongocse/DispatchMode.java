@@ -0,0 +1,27 @@
+package com.gravity9.mongocse;
+
+/**
+ * Defines which thread hands the events of a partition to its listeners.
+ */
+public enum DispatchMode {
+
+    /**
+     * The worker thread reading the change stream calls the listeners before polling the cursor again.
+     */
+    DIRECT,
+
+    /**
+     * Each partition gets a separate dispatcher thread. The reader thread keeps polling the cursor and queues
+     * batches in a bounded buffer (see {@code dispatchBufferCapacity}), blocking when the buffer is full.
+     * Resume tokens are checkpointed only after the dispatcher handled the batch.
+     */
+    PIPELINED,
+
+    /**
+     * Events of a partition are spread over {@code dispatchLanes} lanes by the hash of their {@code keyName} value,
+     * each lane with its own thread. Events of the same document are handled in order, events of different documents
+     * may be handled concurrently, so listeners must be thread-safe. Resume tokens only advance past an event once it
+     * and every earlier event of the partition are handled.
+     */
+    KEYED
+}
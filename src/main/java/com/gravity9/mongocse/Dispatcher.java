@@ -0,0 +1,28 @@
+package com.gravity9.mongocse;
+
+/**
+ * Stage between the thread reading the change stream of a partition and the listeners, used when the reader
+ * should not call the listeners itself.
+ */
+interface Dispatcher {
+
+    void start();
+
+    /**
+     * Queues a batch for the listeners, waiting while the dispatcher is full.
+     *
+     * @throws IllegalStateException if a previous batch failed and the stream must be repositioned
+     */
+    void submit(ChangeStreamBatch batch);
+
+    /**
+     * Drops all queued events and waits until the events currently being handled are done.
+     * Afterwards no more tokens will be committed until new batches are submitted.
+     */
+    void discardPending();
+
+    /**
+     * Handles all queued events and stops the dispatcher threads.
+     */
+    void stop() throws InterruptedException;
+}
@@ -0,0 +1,376 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.TruncatedArray;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonNull;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Last known versions of the documents of a partition, used to rebuild the images of events the server sends
+ * without them, see {@link ImageCachePolicy}.
+ * <p>
+ * Applying an update is idempotent, since {@code updatedFields} carries values rather than operators, so events
+ * replayed after a reconnect converge to the same documents. The cache is still cleared on reconnects, because
+ * pre-images of replayed events would show later versions. Not thread-safe; only the thread reading the stream of the
+ * partition uses it.
+ */
+final class DocumentImageCache {
+
+    private static final Logger log = LoggerFactory.getLogger(DocumentImageCache.class);
+
+    private static final Codec<Document> DOCUMENT_CODEC = DefaultMongoClientProvider.CODEC_REGISTRY.get(Document.class);
+
+    private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+
+    private static final EncoderContext ENCODER_CONTEXT = EncoderContext.builder().build();
+
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private static final Set<OperationType> CLEARING_OPERATIONS = EnumSet.of(
+            OperationType.DROP, OperationType.RENAME, OperationType.DROP_DATABASE, OperationType.INVALIDATE);
+
+    private static final int MAX_INDEX_DIGITS = 9;
+
+    private final Map<BsonDocument, BsonDocument> documents;
+
+    private final boolean preImages;
+
+    private final Function<List<BsonValue>, List<BsonDocument>> lookup;
+
+    /**
+     * @param lookup finds the current versions of the documents with the given {@code _id} values
+     */
+    DocumentImageCache(ImageCachePolicy policy, Function<List<BsonValue>, List<BsonDocument>> lookup) {
+        this.documents = new LruMap(policy.getMaxDocuments());
+        this.preImages = policy.isPreImages();
+        this.lookup = lookup;
+    }
+
+    DocumentImageCache(ImageCachePolicy policy, MongoCollection<BsonDocument> collection) {
+        this(policy, ids -> collection.find(Filters.in("_id", ids)).into(new ArrayList<>()));
+    }
+
+    /**
+     * @return the batch with post-images of updates and, if enabled, pre-images of updates, replaces and deletes
+     */
+    ChangeStreamBatch reconstruct(ChangeStreamBatch batch) {
+        if (batch.isEmpty()) {
+            return batch;
+        }
+        Map<BsonValue, BsonDocument> lookedUp = lookUp(missingDocuments(batch.events()));
+        List<ChangeStreamDocument<Document>> events = new ArrayList<>(batch.size());
+        for (ChangeStreamDocument<Document> event : batch.events()) {
+            events.add(reconstruct(event, lookedUp));
+        }
+        return new ChangeStreamBatch(events, batch.resumeToken());
+    }
+
+    void clear() {
+        documents.clear();
+    }
+
+    int size() {
+        return documents.size();
+    }
+
+    /**
+     * {@code _id} values of the documents updated in the batch that neither the cache nor an earlier event of the
+     * batch has a version of, so they are looked up with a single query.
+     */
+    private List<BsonValue> missingDocuments(List<ChangeStreamDocument<Document>> events) {
+        Set<BsonDocument> known = new HashSet<>();
+        List<BsonValue> missing = new ArrayList<>();
+        Set<BsonValue> requested = new HashSet<>();
+        for (ChangeStreamDocument<Document> event : events) {
+            BsonDocument key = event.getDocumentKey();
+            OperationType operationType = event.getOperationType();
+            if (key == null || operationType == null) {
+                continue;
+            }
+            switch (operationType) {
+                case INSERT, REPLACE -> known.add(key);
+                case UPDATE -> {
+                    boolean cached = known.contains(key) || documents.containsKey(key);
+                    if ((!cached || !isApplicable(event.getUpdateDescription())) && key.containsKey("_id") && requested.add(key.get("_id"))) {
+                        missing.add(key.get("_id"));
+                    }
+                }
+                default -> {
+                    // other events do not need a lookup
+                }
+            }
+        }
+        return missing;
+    }
+
+    private Map<BsonValue, BsonDocument> lookUp(List<BsonValue> ids) {
+        Map<BsonValue, BsonDocument> found = new HashMap<>();
+        if (ids.isEmpty()) {
+            return found;
+        }
+        ids.forEach(id -> found.put(id, null));
+        lookup.apply(ids).forEach(document -> found.put(document.get("_id"), document));
+        log.trace("Looked up {} documents missing from the image cache", ids.size());
+        return found;
+    }
+
+    private ChangeStreamDocument<Document> reconstruct(ChangeStreamDocument<Document> event, Map<BsonValue, BsonDocument> lookedUp) {
+        OperationType operationType = event.getOperationType();
+        BsonDocument key = event.getDocumentKey();
+        if (operationType == null) {
+            return event;
+        }
+        switch (operationType) {
+            case INSERT, REPLACE -> {
+                BsonDocument previous = key == null || event.getFullDocument() == null ? null : documents.put(key, toBson(event.getFullDocument()));
+                return preImages && operationType == OperationType.REPLACE ? withImages(event, event.getFullDocument(), decode(previous)) : event;
+            }
+            case UPDATE -> {
+                return key == null ? event : update(event, key, lookedUp);
+            }
+            case DELETE -> {
+                BsonDocument previous = key == null ? null : documents.remove(key);
+                return preImages ? withImages(event, event.getFullDocument(), decode(previous)) : event;
+            }
+            default -> {
+                if (CLEARING_OPERATIONS.contains(operationType)) {
+                    documents.clear();
+                }
+                return event;
+            }
+        }
+    }
+
+    private ChangeStreamDocument<Document> update(ChangeStreamDocument<Document> event, BsonDocument key, Map<BsonValue, BsonDocument> lookedUp) {
+        BsonDocument cached = documents.get(key);
+        UpdateDescription description = event.getUpdateDescription();
+        if (cached != null && isApplicable(description)) {
+            BsonDocument document = cached instanceof RawBsonDocument raw ? raw.decode(BSON_DOCUMENT_CODEC) : cached;
+            Document preImage = preImages ? decode(document) : null;
+            if (apply(document, description)) {
+                documents.put(key, document);
+                return withImages(event, decode(document), preImage);
+            }
+            log.debug("Could not apply update of document {} to its cached version, looking it up", key.toJson());
+            documents.remove(key);
+        }
+
+        BsonValue id = key.get("_id");
+        if (id == null) {
+            return event;
+        }
+        BsonDocument current = lookedUp.containsKey(id) ? lookedUp.get(id) : lookUp(List.of(id)).get(id);
+        if (current != null) {
+            documents.put(key, current);
+        }
+        return withImages(event, current == null ? null : decode(current), null);
+    }
+
+    /**
+     * @param preImage pre-image to set, or null to keep the one of the event
+     */
+    private static ChangeStreamDocument<Document> withImages(ChangeStreamDocument<Document> event, Document postImage, Document preImage) {
+        return new ChangeStreamDocument<>(event.getOperationTypeString(), event.getResumeToken(), event.getNamespaceDocument(),
+                event.getNamespaceTypeString(), event.getDestinationNamespaceDocument(), postImage,
+                preImage == null ? event.getFullDocumentBeforeChange() : preImage,
+                event.getDocumentKey(), event.getClusterTime(), event.getUpdateDescription(), event.getTxnNumber(), event.getLsid(),
+                event.getWallTime(), event.getSplitEvent(), event.getExtraElements());
+    }
+
+    /**
+     * Field names with dots or dollars make paths ambiguous; such updates are looked up instead.
+     */
+    private static boolean isApplicable(UpdateDescription description) {
+        if (description == null) {
+            return false;
+        }
+        BsonDocument disambiguatedPaths = description.getDisambiguatedPaths();
+        return disambiguatedPaths == null || disambiguatedPaths.isEmpty();
+    }
+
+    /**
+     * Applies an update description like the server did: arrays are truncated first, then fields are set and removed.
+     *
+     * @return false if a path does not fit the document, which is then left partially updated
+     */
+    static boolean apply(BsonDocument document, UpdateDescription description) {
+        List<TruncatedArray> truncatedArrays = description.getTruncatedArrays();
+        if (truncatedArrays != null) {
+            for (TruncatedArray truncatedArray : truncatedArrays) {
+                BsonValue array = resolve(document, truncatedArray.getField());
+                if (array == null || !array.isArray()) {
+                    return false;
+                }
+                BsonArray values = array.asArray();
+                while (values.size() > truncatedArray.getNewSize()) {
+                    values.remove(values.size() - 1);
+                }
+            }
+        }
+        BsonDocument updatedFields = description.getUpdatedFields();
+        if (updatedFields != null) {
+            for (Map.Entry<String, BsonValue> field : updatedFields.entrySet()) {
+                if (!set(document, field.getKey(), copy(field.getValue()))) {
+                    return false;
+                }
+            }
+        }
+        List<String> removedFields = description.getRemovedFields();
+        if (removedFields != null) {
+            for (String path : removedFields) {
+                int dot = path.lastIndexOf('.');
+                BsonValue parent = dot < 0 ? document : resolve(document, path.substring(0, dot));
+                if (parent != null && parent.isDocument()) {
+                    parent.asDocument().remove(path.substring(dot + 1));
+                }
+            }
+        }
+        return true;
+    }
+
+    private static BsonValue resolve(BsonDocument document, String path) {
+        BsonValue current = document;
+        for (String segment : path.split("\\.", -1)) {
+            current = current == null ? null : child(current, segment);
+        }
+        return current;
+    }
+
+    private static boolean set(BsonDocument document, String path, BsonValue value) {
+        String[] segments = path.split("\\.", -1);
+        BsonValue parent = document;
+        for (int i = 0; i < segments.length - 1; i++) {
+            BsonValue child = child(parent, segments[i]);
+            if (child == null) {
+                child = new BsonDocument();
+                if (!put(parent, segments[i], child)) {
+                    return false;
+                }
+            }
+            parent = child;
+        }
+        return put(parent, segments[segments.length - 1], value);
+    }
+
+    private static BsonValue child(BsonValue parent, String segment) {
+        if (parent.isDocument()) {
+            return parent.asDocument().get(segment);
+        }
+        if (parent.isArray()) {
+            int index = index(segment);
+            BsonArray values = parent.asArray();
+            return index >= 0 && index < values.size() ? values.get(index) : null;
+        }
+        return null;
+    }
+
+    /**
+     * Sets a field of a document or an element of an array, padding the array with nulls like {@code $set} does.
+     */
+    private static boolean put(BsonValue parent, String segment, BsonValue value) {
+        if (parent.isDocument()) {
+            parent.asDocument().put(segment, value);
+            return true;
+        }
+        int index = parent.isArray() ? index(segment) : -1;
+        if (index < 0) {
+            return false;
+        }
+        BsonArray array = parent.asArray();
+        while (array.size() < index) {
+            array.add(BsonNull.VALUE);
+        }
+        if (index == array.size()) {
+            array.add(value);
+        } else {
+            array.set(index, value);
+        }
+        return true;
+    }
+
+    private static int index(String segment) {
+        if (segment.isEmpty() || segment.length() > MAX_INDEX_DIGITS || !segment.chars().allMatch(Character::isDigit)) {
+            return -1;
+        }
+        return Integer.parseInt(segment);
+    }
+
+    /**
+     * Values of {@code updatedFields} are also handed to listeners, so the cache keeps copies it can modify.
+     */
+    private static BsonValue copy(BsonValue value) {
+        if (value.isDocument()) {
+            return value.asDocument().clone();
+        }
+        if (value.isArray()) {
+            return value.asArray().clone();
+        }
+        return value;
+    }
+
+    /**
+     * Lazily delivered documents are cached as their raw bytes and only decoded once they are updated.
+     */
+    private static BsonDocument toBson(Document document) {
+        if (document instanceof LazyDocument lazy && lazy.getRawDocument() != null) {
+            return lazy.getRawDocument();
+        }
+        BsonDocument bson = new BsonDocument();
+        DOCUMENT_CODEC.encode(new BsonDocumentWriter(bson), document, ENCODER_CONTEXT);
+        return bson;
+    }
+
+    private static Document decode(BsonDocument document) {
+        if (document == null) {
+            return null;
+        }
+        return DOCUMENT_CODEC.decode(new BsonDocumentReader(document), DECODER_CONTEXT);
+    }
+
+    private static final class LruMap extends LinkedHashMap<BsonDocument, BsonDocument> {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int INITIAL_CAPACITY = 16;
+
+        private static final float LOAD_FACTOR = 0.75f;
+
+        private final int maxSize;
+
+        LruMap(int maxSize) {
+            super(INITIAL_CAPACITY, LOAD_FACTOR, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<BsonDocument, BsonDocument> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.logging.LoggingUtil;
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.MongoNamespace;
+import com.mongodb.ServerCursor;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * The single change stream of a manager running in {@link StreamMode#FAN_OUT} mode, or of a
+ * {@link MongoCseDatabaseManager} watching several collections of a database.
+ * Each batch read from the stream is split by collection and {@link PartitionKey} into one batch per partition and
+ * handed to the partition workers through bounded inboxes, so a slow partition pushes back on the stream. Every partition batch
+ * carries the resume token of the whole batch. Partitions without events in a batch still receive the token at
+ * least once per {@code maxAwaitTimeInMs}, so their checkpoints keep up with the stream.
+ * <p>
+ * The stream resumes from the oldest resume token committed by any partition. Partitions skip events at or before
+ * their own token. When a partition fails to handle a batch it asks for a rewind: the stream reopens from the
+ * oldest committed token under a new generation and the partition drops deliveries of older generations.
+ */
+final class FanOutStream implements Runnable {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOutStream.class);
+
+    private static final String RESUME_TOKEN_DATA_PROPERTY = "_data";
+    private static final String NON_RESUMABLE_CHANGE_STREAM_ERROR = "NonResumableChangeStreamError";
+    private static final long DEFAULT_INIT_TIMEOUT_MS = 30 * 1000L;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 30 * 1000L;
+    private static final long PARTITION_WAIT_STEP_MS = 100;
+
+    private final MongoConfig mongoConfig;
+    private final MongoClientProvider clientProvider;
+    private final WorkerThreads workerThreads;
+    private final ChangeStreamMetrics metrics;
+    private final BatchReader batchReader;
+    private final PartitionKey partitionKey;
+    private final Map<String, Route> routes;
+    private final Inbox[] inboxes;
+    private final boolean databaseWide;
+    private final String source;
+    private final String streamId;
+    private final AtomicLong generation = new AtomicLong();
+    private volatile CompletableFuture<Void> initialized = CompletableFuture.completedFuture(null);
+    private volatile CompletableFuture<Void> terminated = CompletableFuture.completedFuture(null);
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> currentCursor;
+    private volatile boolean running = false;
+    private volatile boolean rewindRequested = false;
+    private long lastBroadcastNanos;
+
+    FanOutStream(MongoConfig mongoConfig, SlotLayout layout, MongoClientProvider clientProvider, WorkerThreads workerThreads, String managerId) {
+        this(mongoConfig, Map.of(mongoConfig.getCollectionName(), layout), false, clientProvider, workerThreads, managerId);
+    }
+
+    private FanOutStream(MongoConfig mongoConfig, Map<String, SlotLayout> layouts, boolean databaseWide,
+                         MongoClientProvider clientProvider, WorkerThreads workerThreads, String managerId) {
+        this.mongoConfig = mongoConfig;
+        this.clientProvider = clientProvider;
+        this.workerThreads = workerThreads;
+        this.metrics = mongoConfig.getMetrics();
+        this.batchReader = new BatchReader(mongoConfig.getBatchPolicy());
+        this.partitionKey = new PartitionKey(mongoConfig.getKeyName());
+        this.databaseWide = databaseWide;
+        this.source = databaseWide ? "database " + mongoConfig.getDatabaseName() : "collection " + mongoConfig.getCollectionName();
+        this.streamId = managerId + "_stream";
+        this.routes = new LinkedHashMap<>();
+        List<Inbox> allInboxes = new ArrayList<>();
+        layouts.forEach((collectionName, layout) -> {
+            Inbox[] collectionInboxes = new Inbox[layout.partitions()];
+            for (int partition = 0; partition < collectionInboxes.length; partition++) {
+                collectionInboxes[partition] = new Inbox(allInboxes.size(), partition, mongoConfig.getDispatchBufferCapacity());
+                allInboxes.add(collectionInboxes[partition]);
+            }
+            routes.put(collectionName, new Route(layout, collectionInboxes));
+        });
+        this.inboxes = allInboxes.toArray(Inbox[]::new);
+    }
+
+    /**
+     * Stream over the given collections of the configured database, routing events by the collection of their
+     * namespace. Every collection keeps its own layout, and each of its partitions its own resume token.
+     */
+    static FanOutStream forDatabase(MongoConfig mongoConfig, Map<String, SlotLayout> layouts, MongoClientProvider clientProvider,
+                                    WorkerThreads workerThreads, String managerId) {
+        return new FanOutStream(mongoConfig, layouts, true, clientProvider, workerThreads, managerId);
+    }
+
+    Inbox inbox(String collectionName, int partition) {
+        return routes.get(collectionName).inboxes()[partition];
+    }
+
+    /**
+     * Submits the stream to the worker executor. The stream opens its cursor once every partition has loaded its
+     * resume token, so the partition workers have to be started as well.
+     *
+     * @return future completed once the change stream cursor is open
+     */
+    CompletableFuture<Void> startAsync() {
+        for (Inbox inbox : inboxes) {
+            inbox.ready = new CompletableFuture<>();
+        }
+        initialized = new CompletableFuture<>();
+        terminated = new CompletableFuture<>();
+        running = true;
+        try {
+            workerThreads.execute(this);
+        } catch (RejectedExecutionException e) {
+            running = false;
+            terminated.complete(null);
+            initialized.completeExceptionally(e);
+        }
+        return initialized.copy().orTimeout(DEFAULT_INIT_TIMEOUT_MS, MILLISECONDS);
+    }
+
+    /**
+     * Stops reading and wakes up the cursor. Batches already in the inboxes are still handled by the workers.
+     */
+    CompletableFuture<Void> stopAsync() {
+        running = false;
+        wakeUpInboxes();
+        wakeUpCursor();
+        CompletableFuture<Void> streamTerminated = terminated;
+        return streamTerminated.copy()
+                .completeOnTimeout(null, DEFAULT_SHUTDOWN_TIMEOUT_MS, MILLISECONDS)
+                .thenRun(() -> {
+                    if (streamTerminated.isDone()) {
+                        log.info("{} - Shared change stream on {} stopped!", streamId, source);
+                    } else {
+                        log.warn("{} - Shared change stream on {} did not stop within {} ms",
+                                streamId, source, DEFAULT_SHUTDOWN_TIMEOUT_MS);
+                    }
+                });
+    }
+
+    @Override
+    public void run() {
+        LoggingUtil.setLoggingContext(streamId);
+        try {
+            if (!running || !awaitPartitions()) {
+                return;
+            }
+            log.info("Starting shared change stream for {} partitions on {}", inboxes.length, source);
+            processData();
+        } catch (RuntimeException e) {
+            log.error("Shared change stream on {} failed", source, e);
+            initialized.completeExceptionally(e);
+        } finally {
+            terminated.complete(null);
+            initialized.completeExceptionally(new IllegalStateException("Shared change stream was stopped before it was opened"));
+            LoggingUtil.removeLoggingContext();
+        }
+    }
+
+    private void processData() {
+        startPartitionsWithoutToken();
+        boolean startFresh = false;
+
+        while (running) {
+            // the flag is cleared before the generation moves on, so a rewind requested meanwhile is never lost
+            rewindRequested = false;
+            long currentGeneration = generation.incrementAndGet();
+            ChangeStreamIterable<Document> watch = createWatch();
+            String oldestToken = startFresh ? null : oldestCommittedToken();
+            if (oldestToken != null) {
+                log.info("Resuming shared change stream on {} with token: {}", source, oldestToken);
+                watch.resumeAfter(buildResumeToken(oldestToken));
+            }
+            startFresh = false;
+
+            try (var cursor = watch.cursor()) {
+                currentCursor = cursor;
+                if (initialized.complete(null)) {
+                    log.info("Shared change stream on {} is now started!", source);
+                }
+                BooleanSupplier keepReading = () -> running && !rewindRequested;
+                while (keepReading.getAsBoolean()) {
+                    route(batchReader.read(cursor, keepReading), cursor.getResumeToken(), currentGeneration);
+                }
+            } catch (MongoCommandException ex) {
+                if (!running) {
+                    log.debug("Shared change stream cursor closed on shutdown: {}", ex.getMessage());
+                } else if (ex.hasErrorLabel(NON_RESUMABLE_CHANGE_STREAM_ERROR)) {
+                    reconnected();
+                    log.error("Non-resumable change stream error on shared stream for {}. Restarting fresh.", source, ex);
+                    startFresh = true;
+                } else {
+                    reconnected();
+                    log.error("MongoDB command error {} on shared stream for {}", ex.getErrorCode(), source, ex);
+                }
+            } catch (Exception ex) {
+                if (running) {
+                    reconnected();
+                    log.error("Exception on shared stream for {}", source, ex);
+                } else {
+                    log.debug("Shared change stream cursor closed on shutdown: {}", ex.getMessage());
+                }
+            }
+            currentCursor = null;
+        }
+    }
+
+    /**
+     * Waits until every partition has loaded its resume token, or the stream is stopped.
+     */
+    private boolean awaitPartitions() {
+        CompletableFuture<Void> allReady = CompletableFuture.allOf(
+                Arrays.stream(inboxes).map(inbox -> inbox.ready).toArray(CompletableFuture[]::new));
+        while (running) {
+            try {
+                allReady.get(PARTITION_WAIT_STEP_MS, MILLISECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                log.trace("Waiting for partitions of {} to load their resume tokens", source);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Partition failed to start", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A partition without a resume token starts fresh in {@link StreamMode#PER_PARTITION} mode. When other
+     * partitions make the shared stream resume further back, such a partition first gets the current token of the
+     * stream, so it skips the older events.
+     */
+    private void startPartitionsWithoutToken() {
+        boolean anyWithToken = false;
+        boolean anyWithoutToken = false;
+        for (Inbox inbox : inboxes) {
+            anyWithToken |= inbox.committedToken != null;
+            anyWithoutToken |= inbox.committedToken == null;
+        }
+        if (!anyWithToken || !anyWithoutToken) {
+            return;
+        }
+
+        BsonDocument currentToken;
+        try (var cursor = createWatch().cursor()) {
+            currentToken = cursor.getResumeToken();
+        }
+        ChangeStreamBatch tokenOnly = new ChangeStreamBatch(List.of(), currentToken);
+        for (Inbox inbox : inboxes) {
+            if (inbox.committedToken == null) {
+                log.info("No resume token found for partition {} on {}, starting it at the current token", inbox.partition, source);
+                inbox.deliveries.put(new Delivery(generation.get(), tokenOnly), () -> running);
+            }
+        }
+    }
+
+    private ChangeStreamIterable<Document> createWatch() {
+        MongoDatabase database = clientProvider.getStreamClient().getDatabase(mongoConfig.getDatabaseName());
+        if (databaseWide) {
+            return ChangeStreamIterableFactory.createWatch(mongoConfig, database, routes.keySet());
+        }
+        return ChangeStreamIterableFactory.createWatch(mongoConfig, database.getCollection(mongoConfig.getCollectionName()));
+    }
+
+    private void route(List<ChangeStreamDocument<Document>> events, BsonDocument resumeToken, long currentGeneration) {
+        List<List<ChangeStreamDocument<Document>>> routed = new ArrayList<>(Collections.nCopies(inboxes.length, null));
+        for (ChangeStreamDocument<Document> event : events) {
+            Route route = routeOf(event);
+            if (route == null) {
+                continue;
+            }
+            partitionKey.forEachPartition(event, route.layout(), partition -> {
+                int index = route.inboxes()[partition].index;
+                List<ChangeStreamDocument<Document>> partitionEvents = routed.get(index);
+                if (partitionEvents == null) {
+                    partitionEvents = new ArrayList<>();
+                    routed.set(index, partitionEvents);
+                }
+                partitionEvents.add(event);
+                metrics.eventReceived(partition, event.getOperationType());
+            });
+        }
+
+        long now = System.nanoTime();
+        boolean broadcast = events.isEmpty() || now - lastBroadcastNanos >= MILLISECONDS.toNanos(mongoConfig.getMaxAwaitTimeInMs());
+        for (Inbox inbox : inboxes) {
+            List<ChangeStreamDocument<Document>> partitionEvents = routed.get(inbox.index);
+            if (partitionEvents == null) {
+                if (events.isEmpty()) {
+                    metrics.idlePoll(inbox.partition);
+                }
+                if (!broadcast) {
+                    continue;
+                }
+            } else {
+                metrics.batchReceived(inbox.partition, partitionEvents.size());
+            }
+
+            ChangeStreamBatch batch = new ChangeStreamBatch(
+                    partitionEvents == null ? List.of() : Collections.unmodifiableList(partitionEvents), resumeToken);
+            if (!inbox.deliveries.put(new Delivery(currentGeneration, batch), () -> running && !rewindRequested)) {
+                return;
+            }
+        }
+        if (broadcast) {
+            lastBroadcastNanos = now;
+        }
+    }
+
+    /**
+     * @return the route of the event's collection, or null for events of other collections and of the whole
+     * database, like {@code dropDatabase}
+     */
+    private Route routeOf(ChangeStreamDocument<Document> event) {
+        if (!databaseWide) {
+            return routes.values().iterator().next();
+        }
+        MongoNamespace namespace = event.getNamespace();
+        return namespace == null ? null : routes.get(namespace.getCollectionName());
+    }
+
+    private String oldestCommittedToken() {
+        String oldest = null;
+        for (Inbox inbox : inboxes) {
+            String token = inbox.committedToken;
+            if (token != null && (oldest == null || token.compareTo(oldest) < 0)) {
+                oldest = token;
+            }
+        }
+        return oldest;
+    }
+
+    private void reconnected() {
+        for (Inbox inbox : inboxes) {
+            metrics.reconnected(inbox.partition);
+        }
+    }
+
+    private long requestRewind() {
+        rewindRequested = true;
+        wakeUpInboxes();
+        return generation.get() + 1;
+    }
+
+    private void wakeUpInboxes() {
+        for (Inbox inbox : inboxes) {
+            inbox.deliveries.wakeUp();
+        }
+    }
+
+    private void wakeUpCursor() {
+        var cursor = currentCursor;
+        ServerCursor serverCursor = cursor == null ? null : cursor.getServerCursor();
+        if (serverCursor == null) {
+            return;
+        }
+
+        try {
+            clientProvider.getClient()
+                    .getDatabase(mongoConfig.getDatabaseName())
+                    // database change streams are aggregations on the $cmd.aggregate namespace
+                    .runCommand(new Document("killCursors", databaseWide ? "$cmd.aggregate" : mongoConfig.getCollectionName())
+                            .append("cursors", List.of(serverCursor.getId())));
+        } catch (MongoException | IllegalStateException e) {
+            log.debug("{} - Could not kill shared cursor, waiting for it to time out: {}", streamId, e.getMessage());
+        }
+    }
+
+    private static BsonDocument buildResumeToken(String resumeToken) {
+        return new BsonDocument(RESUME_TOKEN_DATA_PROPERTY, new BsonString(resumeToken));
+    }
+
+    /**
+     * Layout and partition inboxes of one collection read by the stream.
+     */
+    private record Route(SlotLayout layout, Inbox[] inboxes) {
+    }
+
+    /**
+     * Batch for one partition, tagged with the generation of the stream it was read from.
+     */
+    record Delivery(long generation, ChangeStreamBatch batch) {
+    }
+
+    /**
+     * Hand-over point between the shared stream and the worker of one partition. The stream is the only producer
+     * and the worker the only consumer.
+     */
+    final class Inbox {
+
+        private final int index;
+
+        private final int partition;
+
+        private final SpscRingBuffer<Delivery> deliveries;
+
+        private volatile CompletableFuture<Void> ready = CompletableFuture.completedFuture(null);
+
+        private volatile String committedToken;
+
+        private Inbox(int index, int partition, int capacity) {
+            this.index = index;
+            this.partition = partition;
+            this.deliveries = new SpscRingBuffer<>(capacity);
+        }
+
+        /**
+         * Called by the worker once it has loaded its resume token; deliveries left over from a previous run are
+         * dropped.
+         */
+        void open(String resumeToken) {
+            while (deliveries.poll() != null) {
+                log.trace("Dropping delivery left over from a previous run");
+            }
+            committedToken = resumeToken;
+            ready.complete(null);
+        }
+
+        void committed(String resumeToken) {
+            committedToken = resumeToken;
+        }
+
+        Delivery poll() {
+            return deliveries.poll();
+        }
+
+        boolean isEmpty() {
+            return deliveries.isEmpty();
+        }
+
+        void awaitDelivery(BooleanSupplier keepWaiting) {
+            deliveries.awaitElement(keepWaiting);
+        }
+
+        /**
+         * Wakes up the worker waiting for a delivery, called once its wait condition turned false.
+         */
+        void wakeUp() {
+            deliveries.wakeUp();
+        }
+
+        /**
+         * Asks the stream to reopen from the oldest committed token.
+         *
+         * @return the first generation whose deliveries contain the replayed events
+         */
+        long requestRewind() {
+            return FanOutStream.this.requestRewind();
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonDbPointer;
+import org.bson.BsonDocument;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonType;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+
+/**
+ * Java port of the server's {@code $toHashedIndexKey} (the hash used by hashed indexes and hashed sharding).
+ * The value is fed into MD5 after the seed {@code 0}: every element contributes its canonical type, numbers are
+ * squashed to a 64-bit integer, other scalars contribute their raw BSON value bytes, and documents and arrays are
+ * hashed element by element including field names and the terminating end-of-object element.
+ * The first 8 bytes of the digest, read as a little-endian long, are the result.
+ */
+final class HashedIndexKey {
+
+    private static final int SEED = 0;
+    private static final int DIGEST_LONG_BYTES = 8;
+    private static final int EOO_CANONICAL_TYPE = 0;
+    private static final double LONG_MAX_PLUS_ONE = 0x1p63;
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(HashedIndexKey::newDigest);
+
+    private HashedIndexKey() {
+    }
+
+    static long hash(BsonValue value) {
+        MessageDigest digest = MD5.get();
+        digest.reset();
+        Hasher hasher = new Hasher(digest);
+        hasher.addInt(SEED);
+        hasher.addElement(null, value);
+        byte[] result = digest.digest();
+        return ByteBuffer.wrap(result, 0, DIGEST_LONG_BYTES).order(ByteOrder.LITTLE_ENDIAN).getLong();
+    }
+
+    /**
+     * Canonical type order used by the server to compare and hash values of different BSON types.
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    static int canonicalType(BsonType type) {
+        return switch (type) {
+            case MIN_KEY -> -1;
+            case MAX_KEY -> 127;
+            case END_OF_DOCUMENT, UNDEFINED -> 0;
+            case NULL -> 5;
+            case DECIMAL128, DOUBLE, INT32, INT64 -> 10;
+            case STRING, SYMBOL -> 15;
+            case DOCUMENT -> 20;
+            case ARRAY -> 25;
+            case BINARY -> 30;
+            case OBJECT_ID -> 35;
+            case BOOLEAN -> 40;
+            case DATE_TIME -> 45;
+            case TIMESTAMP -> 47;
+            case REGULAR_EXPRESSION -> 50;
+            case DB_POINTER -> 55;
+            case JAVASCRIPT -> 60;
+            case JAVASCRIPT_WITH_SCOPE -> 65;
+        };
+    }
+
+    /**
+     * Same as the server's {@code safeNumberLongForHash}: doubles and decimals are truncated or rounded to a long,
+     * clamped to the long range, and NaN becomes {@code 0}.
+     */
+    static long safeNumberLong(BsonValue value) {
+        return switch (value.getBsonType()) {
+            case INT32 -> value.asInt32().getValue();
+            case INT64 -> value.asInt64().getValue();
+            case DOUBLE -> safeDoubleToLong(value.asDouble().getValue());
+            case DECIMAL128 -> safeDecimalToLong(value.asDecimal128().getValue());
+            default -> throw new IllegalArgumentException("Not a number: " + value.getBsonType());
+        };
+    }
+
+    private static long safeDoubleToLong(double value) {
+        if (Double.isNaN(value)) {
+            return 0;
+        }
+        if (value >= LONG_MAX_PLUS_ONE) {
+            return Long.MAX_VALUE;
+        }
+        if (value < Long.MIN_VALUE) {
+            return Long.MIN_VALUE;
+        }
+        return (long) value;
+    }
+
+    private static long safeDecimalToLong(Decimal128 value) {
+        if (value.isNaN()) {
+            return 0;
+        }
+        if (value.isInfinite()) {
+            return value.isNegative() ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        BigDecimal rounded = toBigDecimal(value).setScale(0, RoundingMode.HALF_EVEN);
+        if (rounded.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0) {
+            return Long.MAX_VALUE;
+        }
+        if (rounded.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) < 0) {
+            return Long.MIN_VALUE;
+        }
+        return rounded.longValueExact();
+    }
+
+    /**
+     * Unlike {@link Decimal128#bigDecimalValue()}, also accepts negative zero. Only for finite values.
+     */
+    static BigDecimal toBigDecimal(Decimal128 value) {
+        return new BigDecimal(value.toString());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+
+    private static final class Hasher {
+
+        private final MessageDigest digest;
+
+        private final ByteBuffer scratch = ByteBuffer.allocate(Long.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+        private Hasher(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        /**
+         * @param fieldName name of the element inside its parent document or array, null for the hashed value itself
+         */
+        void addElement(String fieldName, BsonValue value) {
+            addInt(canonicalType(value.getBsonType()));
+            if (fieldName != null) {
+                addCString(fieldName);
+            }
+
+            switch (value.getBsonType()) {
+                case INT32, INT64, DOUBLE, DECIMAL128 -> addLong(safeNumberLong(value));
+                case DOCUMENT -> addDocument(value.asDocument());
+                case ARRAY -> {
+                    var values = value.asArray().getValues();
+                    for (int i = 0; i < values.size(); i++) {
+                        addElement(Integer.toString(i), values.get(i));
+                    }
+                    addEndOfObject();
+                }
+                case JAVASCRIPT_WITH_SCOPE -> throw new IllegalArgumentException("Cannot hash JavaScript with scope");
+                default -> addScalar(value);
+            }
+        }
+
+        private void addDocument(BsonDocument document) {
+            for (Map.Entry<String, BsonValue> entry : document.entrySet()) {
+                addElement(entry.getKey(), entry.getValue());
+            }
+            addEndOfObject();
+        }
+
+        private void addEndOfObject() {
+            addInt(EOO_CANONICAL_TYPE);
+            addCString("");
+        }
+
+        private void addScalar(BsonValue value) {
+            switch (value.getBsonType()) {
+                case STRING -> addString(value.asString().getValue());
+                case SYMBOL -> addString(value.asSymbol().getSymbol());
+                case JAVASCRIPT -> addString(value.asJavaScript().getCode());
+                case OBJECT_ID -> digest.update(value.asObjectId().getValue().toByteArray());
+                case BOOLEAN -> digest.update((byte) (value.asBoolean().getValue() ? 1 : 0));
+                case DATE_TIME -> addLong(value.asDateTime().getValue());
+                case TIMESTAMP -> addLong(value.asTimestamp().getValue());
+                case BINARY -> addBinary(value.asBinary());
+                case REGULAR_EXPRESSION -> {
+                    BsonRegularExpression regex = value.asRegularExpression();
+                    addCString(regex.getPattern());
+                    addCString(regex.getOptions());
+                }
+                case DB_POINTER -> {
+                    BsonDbPointer pointer = value.asDBPointer();
+                    addString(pointer.getNamespace());
+                    digest.update(pointer.getId().toByteArray());
+                }
+                // null, undefined, min key and max key have no value bytes
+                default -> {
+                }
+            }
+        }
+
+        private void addBinary(BsonBinary binary) {
+            byte[] data = binary.getData();
+            if (binary.getType() == BsonBinarySubType.OLD_BINARY.getValue()) {
+                // the deprecated subtype 2 repeats the length inside the value
+                addInt(data.length + Integer.BYTES);
+                digest.update(binary.getType());
+                addInt(data.length);
+            } else {
+                addInt(data.length);
+                digest.update(binary.getType());
+            }
+            digest.update(data);
+        }
+
+        private void addString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            addInt(bytes.length + 1);
+            digest.update(bytes);
+            digest.update((byte) 0);
+        }
+
+        private void addCString(String value) {
+            digest.update(value.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+
+        void addInt(int value) {
+            scratch.clear();
+            scratch.putInt(value);
+            digest.update(scratch.array(), 0, Integer.BYTES);
+        }
+
+        private void addLong(long value) {
+            scratch.clear();
+            scratch.putLong(value);
+            digest.update(scratch.array(), 0, Long.BYTES);
+        }
+    }
+}
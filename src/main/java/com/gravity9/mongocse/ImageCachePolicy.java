@@ -0,0 +1,91 @@
+package com.gravity9.mongocse;
+
+/**
+ * Decides whether post-images and pre-images of updates are rebuilt on the client instead of by the server.
+ * <p>
+ * With a cache, every partition keeps the last known version of up to {@code maxDocuments} of its documents, taken from
+ * inserts and replaces, and applies the {@code updateDescription} of each update to it. The change stream is then
+ * opened without {@code fullDocument} lookups and without pre-images, so the server neither reads the document again
+ * for every update nor needs the {@code changeStreamPreAndPostImages} collection option. Updates of documents missing
+ * from the cache are looked up once per batch, like {@code UPDATE_LOOKUP} does, and have no pre-image.
+ */
+public final class ImageCachePolicy {
+
+    private static final int DEFAULT_MAX_DOCUMENTS = 10_000;
+
+    private final int maxDocuments;
+
+    private final boolean preImages;
+
+    private ImageCachePolicy(int maxDocuments, boolean preImages) {
+        this.maxDocuments = maxDocuments;
+        this.preImages = preImages;
+    }
+
+    /**
+     * Images come from the server as configured by {@code fullDocument} and {@code fullDocumentBeforeChange}.
+     */
+    public static ImageCachePolicy disabled() {
+        return new ImageCachePolicy(0, false);
+    }
+
+    /**
+     * Rebuilds post-images of updates from up to {@code maxDocuments} cached documents per partition.
+     */
+    public static ImageCachePolicy postImages(int maxDocuments) {
+        return of(maxDocuments, false);
+    }
+
+    /**
+     * Rebuilds post-images of updates and provides the cached version as pre-image of updates, replaces and deletes.
+     */
+    public static ImageCachePolicy prePostImages(int maxDocuments) {
+        return of(maxDocuments, true);
+    }
+
+    public static ImageCachePolicy defaultCache() {
+        return postImages(DEFAULT_MAX_DOCUMENTS);
+    }
+
+    private static ImageCachePolicy of(int maxDocuments, boolean preImages) {
+        if (maxDocuments < 1) {
+            throw new IllegalArgumentException("Image cache must hold at least one document: " + maxDocuments);
+        }
+        return new ImageCachePolicy(maxDocuments, preImages);
+    }
+
+    public boolean isEnabled() {
+        return maxDocuments > 0;
+    }
+
+    public int getMaxDocuments() {
+        return maxDocuments;
+    }
+
+    public boolean isPreImages() {
+        return preImages;
+    }
+
+    /**
+     * Without server images, updates only carry the key in {@code documentKey}, so partitions must be keyed by
+     * {@code _id}. A projection would leave the cached documents incomplete.
+     *
+     * @throws IllegalArgumentException if the cache is enabled with another key or a projection
+     */
+    void validate(String keyName, ChangeStreamProjection projection) {
+        if (!isEnabled()) {
+            return;
+        }
+        if (!"_id".equals(keyName) && !keyName.startsWith("_id.")) {
+            throw new IllegalArgumentException("Image cache needs partitions keyed by _id, not " + keyName);
+        }
+        if (!projection.isEmpty()) {
+            throw new IllegalArgumentException("Image cache cannot be combined with a projection: " + projection);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ImageCachePolicy{maxDocuments=" + maxDocuments + ", preImages=" + preImages + '}';
+    }
+}
@@ -0,0 +1,242 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * Dispatch stage of a partition running in {@link DispatchMode#KEYED} mode.
+ * Events are routed by the hash of the {@code _id} in their {@code documentKey} to one of several lanes, each with its
+ * own thread and bounded ring buffer, so events of the same document are handled in order while different documents
+ * are handled in parallel. The {@code documentKey} is used rather than the partition key because it is on every
+ * document event and never changes, while a custom key can be missing, e.g. on deletes without a pre-image, or
+ * change between versions of a document. Events without a {@code documentKey}, like drops, use the first lane.
+ * Every event is also appended to a commit queue in stream order; the resume token only advances past
+ * an event once it and all events before it, in every lane, are handled.
+ */
+class KeyedDispatcher implements Dispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(KeyedDispatcher.class);
+
+    private static final int HASH_SPREAD_SHIFT = 16;
+
+    private static final String ID_FIELD = "_id";
+
+    private final int maxLaneBatch;
+
+    private final Consumer<List<ChangeStreamDocument<Document>>> handler;
+
+    private final ObjIntConsumer<BsonDocument> committer;
+
+    private final Lane[] lanes;
+
+    private final Queue<Entry> commitQueue = new ConcurrentLinkedQueue<>();
+
+    private final Lock commitLock = new ReentrantLock();
+
+    private volatile boolean running = true;
+
+    private volatile boolean discarding = false;
+
+    private volatile RuntimeException failure;
+
+    /**
+     * @param handler   called from the lane threads with events of that lane, in stream order
+     * @param committer called with the newest resume token below which all events are handled and the number of
+     *                  events it covers; calls are never concurrent
+     */
+    KeyedDispatcher(String workerId,
+                    MongoConfig mongoConfig,
+                    Consumer<List<ChangeStreamDocument<Document>>> handler,
+                    ObjIntConsumer<BsonDocument> committer,
+                    WorkerThreads workerThreads) {
+        this.maxLaneBatch = mongoConfig.getBatchPolicy().getMaxEvents();
+        this.handler = handler;
+        this.committer = committer;
+        this.lanes = new Lane[mongoConfig.getDispatchLanes()];
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = new Lane(maxLaneBatch);
+            lane.thread = workerThreads.newThread(() -> laneLoop(lane), workerId + "_lane_" + i);
+            lanes[i] = lane;
+        }
+    }
+
+    @Override
+    public void start() {
+        for (Lane lane : lanes) {
+            lane.thread.start();
+        }
+    }
+
+    @Override
+    public void submit(ChangeStreamBatch batch) {
+        throwIfFailed();
+        for (ChangeStreamDocument<Document> event : batch.events()) {
+            Entry entry = new Entry(event, event.getResumeToken());
+            commitQueue.add(entry);
+            if (!lanes[laneOf(event)].buffer.put(entry, () -> running && failure == null)) {
+                break;
+            }
+        }
+        throwIfFailed();
+
+        if (batch.resumeToken() != null) {
+            Entry batchEnd = new Entry(null, batch.resumeToken());
+            batchEnd.done = true;
+            commitQueue.add(batchEnd);
+            advanceWatermark();
+        }
+    }
+
+    @Override
+    public void discardPending() {
+        discarding = true;
+        for (Lane lane : lanes) {
+            while (!lane.buffer.isEmpty() || lane.busy) {
+                Thread.onSpinWait();
+                Thread.yield();
+            }
+        }
+        commitLock.lock();
+        try {
+            commitQueue.clear();
+        } finally {
+            commitLock.unlock();
+        }
+        failure = null;
+        discarding = false;
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        running = false;
+        for (Lane lane : lanes) {
+            lane.buffer.wakeUp();
+        }
+        for (Lane lane : lanes) {
+            lane.thread.join();
+        }
+    }
+
+    int laneOf(ChangeStreamDocument<Document> event) {
+        BsonDocument documentKey = event.getDocumentKey();
+        if (documentKey == null) {
+            return 0;
+        }
+        // documentKey also holds the shard key on sharded collections, which can be updated
+        BsonValue id = documentKey.get(ID_FIELD);
+        int hash = id == null ? documentKey.hashCode() : id.hashCode();
+        return Math.floorMod(hash ^ (hash >>> HASH_SPREAD_SHIFT), lanes.length);
+    }
+
+    private void laneLoop(Lane lane) {
+        List<Entry> entries = new ArrayList<>();
+        List<ChangeStreamDocument<Document>> events = new ArrayList<>();
+        while (running || !lane.buffer.isEmpty()) {
+            lane.busy = true;
+            Entry entry;
+            while (entries.size() < maxLaneBatch && (entry = lane.buffer.poll()) != null) {
+                entries.add(entry);
+            }
+            if (entries.isEmpty()) {
+                lane.busy = false;
+                lane.buffer.awaitElement(() -> running);
+                continue;
+            }
+
+            try {
+                if (!discarding && failure == null) {
+                    entries.forEach(handled -> events.add(handled.event));
+                    handler.accept(List.copyOf(events));
+                    entries.forEach(handled -> handled.done = true);
+                }
+            } catch (RuntimeException e) {
+                log.error("Listener failed in lane thread {}, discarding queued events", lane.thread.getName(), e);
+                failure = e;
+            } finally {
+                entries.clear();
+                events.clear();
+                lane.busy = false;
+            }
+            advanceWatermark();
+        }
+    }
+
+    /**
+     * Commits the token of the last event of the longest fully handled prefix of the commit queue.
+     * Only one thread commits at a time; a thread that finds the lock taken leaves the work to the holder, which
+     * checks the queue again after releasing the lock.
+     */
+    private void advanceWatermark() {
+        while (commitLock.tryLock()) {
+            try {
+                Entry last = null;
+                int events = 0;
+                Entry head;
+                while ((head = commitQueue.peek()) != null && head.done) {
+                    commitQueue.poll();
+                    last = head;
+                    if (head.event != null) {
+                        events++;
+                    }
+                }
+                if (last != null && last.resumeToken != null) {
+                    committer.accept(last.resumeToken, events);
+                }
+            } finally {
+                commitLock.unlock();
+            }
+
+            Entry head = commitQueue.peek();
+            if (head == null || !head.done) {
+                return;
+            }
+        }
+    }
+
+    private void throwIfFailed() {
+        RuntimeException currentFailure = failure;
+        if (currentFailure != null) {
+            throw new IllegalStateException("Dispatching a previous event failed", currentFailure);
+        }
+    }
+
+    private static final class Lane {
+
+        private final SpscRingBuffer<Entry> buffer;
+
+        private Thread thread;
+
+        private volatile boolean busy = false;
+
+        private Lane(int capacity) {
+            this.buffer = new SpscRingBuffer<>(capacity);
+        }
+    }
+
+    private static final class Entry {
+
+        private final ChangeStreamDocument<Document> event;
+
+        private final BsonDocument resumeToken;
+
+        private volatile boolean done = false;
+
+        private Entry(ChangeStreamDocument<Document> event, BsonDocument resumeToken) {
+            this.event = event;
+            this.resumeToken = resumeToken;
+        }
+    }
+}
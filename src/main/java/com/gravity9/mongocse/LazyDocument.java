@@ -0,0 +1,177 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link Document} backed by the raw BSON bytes of the server response, used in {@link DeliveryMode#LAZY} mode.
+ * Reading a field decodes only that field. Any other use of the document, such as iterating over it, comparing it
+ * or modifying it, decodes it fully once and from then on it behaves like a regular {@link Document}.
+ * Like {@link Document}, it is not thread-safe and only equal to documents of the same class; copy it with
+ * {@link Document#Document(java.util.Map)} to compare it with a regular document.
+ */
+final class LazyDocument extends Document {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final DecoderContext DECODER_CONTEXT = DecoderContext.builder().build();
+
+    private transient Codec<Document> codec;
+
+    private transient RawBsonDocument raw;
+
+    LazyDocument(RawBsonDocument raw, Codec<Document> codec) {
+        this.raw = raw;
+        this.codec = codec;
+    }
+
+    /**
+     * @return the raw document, or null if the document was already decoded
+     */
+    RawBsonDocument getRawDocument() {
+        return raw;
+    }
+
+    boolean isDecoded() {
+        return raw == null;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (raw == null) {
+            return super.get(key);
+        }
+        if (!(key instanceof String name)) {
+            return null;
+        }
+        BsonValue value = raw.get(name);
+        if (value == null) {
+            return null;
+        }
+        return codec.decode(new BsonDocumentReader(new BsonDocument(name, value)), DECODER_CONTEXT).get(name);
+    }
+
+    @Override
+    public <T> T get(Object key, Class<T> clazz) {
+        return clazz.cast(get(key));
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T get(Object key, T defaultValue) {
+        Object value = get(key);
+        return value == null ? defaultValue : (T) value;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return raw == null ? super.containsKey(key) : raw.containsKey(key);
+    }
+
+    @Override
+    public int size() {
+        return raw == null ? super.size() : raw.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return raw == null ? super.isEmpty() : raw.isEmpty();
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        decode();
+        return super.containsValue(value);
+    }
+
+    @Override
+    public Object put(String key, Object value) {
+        decode();
+        return super.put(key, value);
+    }
+
+    @Override
+    public Document append(String key, Object value) {
+        decode();
+        return super.append(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        decode();
+        return super.remove(key);
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ?> map) {
+        decode();
+        super.putAll(map);
+    }
+
+    @Override
+    public void clear() {
+        decode();
+        super.clear();
+    }
+
+    @Override
+    public Set<String> keySet() {
+        decode();
+        return super.keySet();
+    }
+
+    @Override
+    public Collection<Object> values() {
+        decode();
+        return super.values();
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet() {
+        decode();
+        return super.entrySet();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        return o instanceof LazyDocument other && entrySet().equals(other.entrySet());
+    }
+
+    @Override
+    public int hashCode() {
+        decode();
+        return super.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        decode();
+        return super.toString();
+    }
+
+    private void decode() {
+        if (raw == null) {
+            return;
+        }
+        RawBsonDocument toDecode = raw;
+        raw = null;
+        super.putAll(toDecode.decode(codec));
+        codec = null;
+    }
+
+    private Object writeReplace() {
+        return new Document(this);
+    }
+}
@@ -0,0 +1,45 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+
+/**
+ * Decodes documents into {@link LazyDocument}s by copying their raw bytes, leaving the field decoding to the
+ * {@code delegate} codec when fields are read.
+ */
+class LazyDocumentCodec implements Codec<Document> {
+
+    private static final RawBsonDocumentCodec RAW_CODEC = new RawBsonDocumentCodec();
+
+    private final Codec<Document> delegate;
+
+    LazyDocumentCodec(Codec<Document> delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public Document decode(BsonReader reader, DecoderContext decoderContext) {
+        return new LazyDocument(RAW_CODEC.decode(reader, decoderContext), delegate);
+    }
+
+    @Override
+    public void encode(BsonWriter writer, Document value, EncoderContext encoderContext) {
+        RawBsonDocument raw = value instanceof LazyDocument lazy ? lazy.getRawDocument() : null;
+        if (raw != null) {
+            RAW_CODEC.encode(writer, raw, encoderContext);
+        } else {
+            delegate.encode(writer, value, encoderContext);
+        }
+    }
+
+    @Override
+    public Class<Document> getEncoderClass() {
+        return Document.class;
+    }
+}
@@ -0,0 +1,71 @@
+package com.gravity9.mongocse;
+
+/**
+ * Decides whether managers of the same collection share its partitions.
+ * Without leases every manager runs all partitions. With leases, managers register in the cluster config collection
+ * and split the partitions between the live ones: a manager only runs the partitions it holds a lease for, renews
+ * its leases every heartbeat interval and takes over partitions whose lease expired. Lease expiry is measured with
+ * the clock of the MongoDB server, so the clocks of the managers do not need to agree.
+ */
+public final class LeasePolicy {
+
+    private static final long DEFAULT_LEASE_DURATION_MS = 10_000L;
+    private static final int HEARTBEATS_PER_LEASE = 3;
+
+    private final long leaseDurationMs;
+
+    private final long heartbeatIntervalMs;
+
+    private LeasePolicy(long leaseDurationMs, long heartbeatIntervalMs) {
+        this.leaseDurationMs = leaseDurationMs;
+        this.heartbeatIntervalMs = heartbeatIntervalMs;
+    }
+
+    /**
+     * Every manager runs all partitions of the collection.
+     */
+    public static LeasePolicy disabled() {
+        return new LeasePolicy(0, 0);
+    }
+
+    /**
+     * Shares partitions through leases of {@code leaseDurationMs} milliseconds, renewed three times per lease duration.
+     */
+    public static LeasePolicy leases(long leaseDurationMs) {
+        return leases(leaseDurationMs, leaseDurationMs / HEARTBEATS_PER_LEASE);
+    }
+
+    /**
+     * Shares partitions through leases of {@code leaseDurationMs} milliseconds, renewed every {@code heartbeatIntervalMs}.
+     * A partition of a manager that stopped without releasing its leases is taken over once its lease expires.
+     */
+    public static LeasePolicy leases(long leaseDurationMs, long heartbeatIntervalMs) {
+        if (heartbeatIntervalMs < 1 || heartbeatIntervalMs >= leaseDurationMs) {
+            throw new IllegalArgumentException(String.format(
+                    "Heartbeat interval must be positive and shorter than the lease duration: %d ms, lease %d ms",
+                    heartbeatIntervalMs, leaseDurationMs));
+        }
+        return new LeasePolicy(leaseDurationMs, heartbeatIntervalMs);
+    }
+
+    public static LeasePolicy defaultLeases() {
+        return leases(DEFAULT_LEASE_DURATION_MS);
+    }
+
+    public long getLeaseDurationMs() {
+        return leaseDurationMs;
+    }
+
+    public long getHeartbeatIntervalMs() {
+        return heartbeatIntervalMs;
+    }
+
+    boolean isEnabled() {
+        return leaseDurationMs > 0;
+    }
+
+    @Override
+    public String toString() {
+        return "LeasePolicy{leaseDurationMs=" + leaseDurationMs + ", heartbeatIntervalMs=" + heartbeatIntervalMs + '}';
+    }
+}
@@ -0,0 +1,621 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+
+/**
+ * {@link CheckpointStore} keeping the checkpoints of up to {@code maxPartitions} partitions in a memory-mapped local
+ * file, for applications running all partitions of their collections in one process, so that storing a resume token
+ * does not take a write to the watched database.
+ * <p>
+ * Every partition owns a slot of the file with two copies of its checkpoint. A write goes to the older copy and stamps
+ * it with a CRC32 and a higher sequence number last, so a write torn by a crash fails its checksum and the partition
+ * resumes from the other copy. Resume tokens are stored as the bytes of their hex {@code _data}, half the size of the
+ * string, followed by their cluster time; snapshot positions are stored as BSON.
+ * <p>
+ * A write reaches the page cache before it returns and so survives a crash of the process; {@link FsyncPolicy} decides
+ * whether it also waits for the disk. The file is locked while the store is open, so one store uses it at a time.
+ * The store has no fencing tokens and cannot be used with leases.
+ */
+public final class MappedFileCheckpointStore implements CheckpointStore {
+
+    /**
+     * When writes are forced to the disk.
+     */
+    public enum FsyncPolicy {
+        /**
+         * Written pages reach the disk when the operating system writes them back, and at the latest on close.
+         * Writes survive a crash of the process, but not of the machine.
+         */
+        NEVER,
+        /**
+         * Every write forces the slots it changed to the disk before it returns.
+         */
+        ON_WRITE
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(MappedFileCheckpointStore.class);
+
+    // "MCSE"
+    private static final int MAGIC = 0x4D435345;
+    private static final int VERSION = 1;
+    private static final int VERSION_OFFSET = Integer.BYTES;
+    private static final int SLOTS_OFFSET = 2 * Integer.BYTES;
+    private static final int HEADER_SIZE = 64;
+
+    // collection name length, partition and collection name of the slot; a length of 0 marks a free slot
+    private static final int KEY_SIZE = 256;
+    private static final int NAME_OFFSET = 2 * Integer.BYTES;
+    private static final int MAX_NAME_LENGTH = KEY_SIZE - NAME_OFFSET;
+
+    // sequence, payload length and checksum of a copy, followed by the payload
+    private static final int RECORD_SIZE = 1024;
+    private static final int LENGTH_OFFSET = Long.BYTES;
+    private static final int CHECKSUM_OFFSET = Long.BYTES + Integer.BYTES;
+    private static final int PAYLOAD_OFFSET = 16;
+    private static final int PAYLOAD_CAPACITY = RECORD_SIZE - PAYLOAD_OFFSET;
+
+    private static final int SLOT_SIZE = KEY_SIZE + 2 * RECORD_SIZE;
+    private static final int MAX_SLOTS = (Integer.MAX_VALUE - HEADER_SIZE) / SLOT_SIZE;
+
+    private static final byte RESUME_TOKEN_BIT = 1;
+    private static final byte CLUSTER_TIME_BIT = 2;
+    private static final byte SNAPSHOT_RESUME_TOKEN_BIT = 4;
+    private static final byte SNAPSHOT_POSITION_BIT = 8;
+
+    private static final byte UTF8_TOKEN = 0;
+    private static final byte UPPER_HEX_TOKEN = 1;
+    private static final byte LOWER_HEX_TOKEN = 2;
+
+    private static final HexFormat LOWER_HEX = HexFormat.of();
+    private static final HexFormat UPPER_HEX = HexFormat.of().withUpperCase();
+    private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec();
+
+    private static final int OBJECT_ID_SIZE = 12;
+
+    private final Path file;
+
+    private final FileChannel channel;
+
+    private final FileLock fileLock;
+
+    private final Lock lock = new ReentrantLock();
+
+    private final MappedByteBuffer buffer;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    private final Slot[] slots;
+
+    private final Map<ObjectId, Slot> slotsById = new HashMap<>();
+
+    private final Map<SlotKey, Slot> slotsByKey = new HashMap<>();
+
+    private int dirtyFrom = Integer.MAX_VALUE;
+
+    private int dirtyTo;
+
+    private boolean closed;
+
+    private MappedFileCheckpointStore(Path file, FileChannel channel, FileLock fileLock, MappedByteBuffer buffer, int slots,
+                                      FsyncPolicy fsyncPolicy) {
+        this.file = file;
+        this.channel = channel;
+        this.fileLock = fileLock;
+        this.buffer = buffer;
+        this.slots = new Slot[slots];
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Opens the store in the file, creating the file if it does not exist. A file created with more partitions keeps
+     * its size; a file created with fewer grows.
+     *
+     * @param maxPartitions number of partitions, over all collections, the store has slots for
+     * @throws IllegalStateException if another store has the file open
+     */
+    public static MappedFileCheckpointStore open(Path file, int maxPartitions, FsyncPolicy fsyncPolicy) throws IOException {
+        if (maxPartitions < 1 || maxPartitions > MAX_SLOTS) {
+            throw new IllegalArgumentException("Number of partitions must be between 1 and " + MAX_SLOTS + ": " + maxPartitions);
+        }
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileLock fileLock = tryLock(channel);
+            if (fileLock == null) {
+                throw new IllegalStateException("Checkpoint file " + file + " is used by another store");
+            }
+            int slots = Math.max(maxPartitions, existingSlots(channel, file));
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            buffer.putInt(0, MAGIC).putInt(VERSION_OFFSET, VERSION).putInt(SLOTS_OFFSET, slots);
+            var store = new MappedFileCheckpointStore(file, channel, fileLock, buffer, slots, fsyncPolicy);
+            store.load();
+            return store;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            // held by another store of this process
+            return null;
+        }
+    }
+
+    private static int existingSlots(FileChannel channel, Path file) throws IOException {
+        if (channel.size() == 0) {
+            return 0;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        int read = 0;
+        while (header.hasRemaining() && read >= 0) {
+            read = channel.read(header, header.position());
+        }
+        if (header.getInt(0) != MAGIC || header.getInt(VERSION_OFFSET) != VERSION) {
+            throw new IllegalArgumentException(file + " is not a checkpoint file of version " + VERSION);
+        }
+        return header.getInt(SLOTS_OFFSET);
+    }
+
+    @Override
+    public ChangeStreamWorkerConfig getConfigOrInit(String listenedCollection, int partition) {
+        lock.lock();
+        try {
+            ensureOpen();
+            Slot slot = getOrAllocate(listenedCollection, partition);
+            sync();
+            return toConfig(slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Map<Integer, ChangeStreamWorkerConfig> getConfigsOrInit(String listenedCollection, int partitions) {
+        lock.lock();
+        try {
+            ensureOpen();
+            Map<Integer, ChangeStreamWorkerConfig> configs = new HashMap<>(partitions);
+            for (int partition = 0; partition < partitions; partition++) {
+                configs.put(partition, toConfig(getOrAllocate(listenedCollection, partition)));
+            }
+            sync();
+            return configs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void updateResumeToken(ObjectId id, String resumeToken) {
+        update(id, checkpoint -> checkpoint.withResumeToken(resumeToken));
+    }
+
+    @Override
+    public Set<ObjectId> updateResumeTokens(Map<ObjectId, String> resumeTokens, Map<ObjectId, Long> fencingTokens) {
+        lock.lock();
+        try {
+            ensureOpen();
+            Set<ObjectId> written = new HashSet<>();
+            for (Map.Entry<ObjectId, String> entry : resumeTokens.entrySet()) {
+                Slot slot = slotsById.get(entry.getKey());
+                if (slot != null) {
+                    write(slot, slot.checkpoint.withResumeToken(entry.getValue()));
+                    written.add(entry.getKey());
+                }
+            }
+            sync();
+            return written;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void clearResumeToken(ObjectId id) {
+        // keeps the cluster time, as the worker config collection does
+        update(id, checkpoint -> new Checkpoint(null, checkpoint.clusterTime(), checkpoint.snapshotResumeToken(), checkpoint.snapshotPosition()));
+    }
+
+    @Override
+    public void resetResumeToken(ObjectId id, BsonTimestamp operationTime, Long fencingToken) {
+        log.info("Resetting resume token for checkpoint with id {} to operation time {}", id, operationTime);
+        update(id, checkpoint -> new Checkpoint(null, operationTime, checkpoint.snapshotResumeToken(), checkpoint.snapshotPosition()));
+    }
+
+    @Override
+    public void updateSnapshot(ObjectId id, String snapshotResumeToken, BsonDocument position, Long fencingToken) {
+        update(id, checkpoint -> new Checkpoint(checkpoint.resumeToken(), checkpoint.clusterTime(), snapshotResumeToken,
+                position == null ? null : position.clone()));
+    }
+
+    @Override
+    public void completeSnapshot(ObjectId id, String resumeToken, Long fencingToken) {
+        update(id, checkpoint -> Checkpoint.EMPTY.withResumeToken(resumeToken));
+    }
+
+    @Override
+    public void resetPartitions(String listenedCollection, int partitions, String resumeToken) {
+        lock.lock();
+        try {
+            ensureOpen();
+            for (int partition = 0; partition < partitions; partition++) {
+                write(getOrAllocate(listenedCollection, partition), Checkpoint.EMPTY.withResumeToken(resumeToken));
+            }
+            sync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removePartitions(String listenedCollection, int firstRemoved) {
+        lock.lock();
+        try {
+            ensureOpen();
+            for (Slot slot : slots) {
+                if (slot != null && slot.collection.equals(listenedCollection) && slot.partition >= firstRemoved) {
+                    free(slot);
+                }
+            }
+            sync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces all writes to the disk and releases the file.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                buffer.force();
+                fileLock.release();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not close checkpoint file " + file, e);
+            } finally {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.warn("Could not close checkpoint file {}", file, e);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    public int getMaxPartitions() {
+        return slots.length;
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    private void load() {
+        lock.lock();
+        try {
+            for (int index = 0; index < slots.length; index++) {
+                int offset = slotOffset(index);
+                int nameLength = buffer.getInt(offset);
+                if (nameLength <= 0 || nameLength > MAX_NAME_LENGTH) {
+                    continue;
+                }
+                byte[] name = new byte[nameLength];
+                buffer.get(offset + NAME_OFFSET, name);
+                Slot slot = new Slot(index, new String(name, StandardCharsets.UTF_8), buffer.getInt(offset + Integer.BYTES));
+                readLatestCopy(slot);
+                register(slot);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void readLatestCopy(Slot slot) {
+        for (int copy = 0; copy < 2; copy++) {
+            int offset = recordOffset(slot.index, copy);
+            long sequence = buffer.getLong(offset);
+            int length = buffer.getInt(offset + LENGTH_OFFSET);
+            if (sequence <= slot.sequence || sequence % 2 != copy || length < 0 || length > PAYLOAD_CAPACITY) {
+                continue;
+            }
+            byte[] payload = new byte[length];
+            buffer.get(offset + PAYLOAD_OFFSET, payload);
+            if (buffer.getInt(offset + CHECKSUM_OFFSET) == checksum(sequence, payload)) {
+                slot.sequence = sequence;
+                slot.checkpoint = decode(payload);
+            }
+        }
+    }
+
+    private void update(ObjectId id, UnaryOperator<Checkpoint> change) {
+        lock.lock();
+        try {
+            ensureOpen();
+            Slot slot = slotsById.get(id);
+            if (slot != null) {
+                write(slot, change.apply(slot.checkpoint));
+                sync();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Slot getOrAllocate(String collection, int partition) {
+        Slot slot = slotsByKey.get(new SlotKey(collection, partition));
+        return slot == null ? allocate(collection, partition) : slot;
+    }
+
+    private Slot allocate(String collection, int partition) {
+        byte[] name = collection.getBytes(StandardCharsets.UTF_8);
+        if (name.length == 0 || name.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Collection names must have 1 to " + MAX_NAME_LENGTH + " bytes: " + collection);
+        }
+        int index = Arrays.asList(slots).indexOf(null);
+        if (index < 0) {
+            throw new IllegalStateException("All " + slots.length + " partition slots of checkpoint file " + file
+                    + " are used, open it with more partitions");
+        }
+        log.info("Creating new checkpoint for partition {} on collection {}", partition, collection);
+        int offset = slotOffset(index);
+        buffer.putLong(recordOffset(index, 0), 0);
+        buffer.putLong(recordOffset(index, 1), 0);
+        buffer.putInt(offset + Integer.BYTES, partition);
+        buffer.put(offset + NAME_OFFSET, name);
+        // the name length marks the slot as used, so it is written last
+        buffer.putInt(offset, name.length);
+        markDirty(offset, SLOT_SIZE);
+
+        Slot slot = new Slot(index, collection, partition);
+        register(slot);
+        return slot;
+    }
+
+    private void register(Slot slot) {
+        slots[slot.index] = slot;
+        slotsById.put(slot.id, slot);
+        slotsByKey.put(new SlotKey(slot.collection, slot.partition), slot);
+    }
+
+    private void free(Slot slot) {
+        int offset = slotOffset(slot.index);
+        buffer.putInt(offset, 0);
+        buffer.putLong(recordOffset(slot.index, 0), 0);
+        buffer.putLong(recordOffset(slot.index, 1), 0);
+        markDirty(offset, SLOT_SIZE);
+        slots[slot.index] = null;
+        slotsById.remove(slot.id);
+        slotsByKey.remove(new SlotKey(slot.collection, slot.partition));
+    }
+
+    private void write(Slot slot, Checkpoint checkpoint) {
+        byte[] payload = encode(checkpoint, slot);
+        long sequence = slot.sequence + 1;
+        int offset = recordOffset(slot.index, (int) (sequence % 2));
+        buffer.put(offset + PAYLOAD_OFFSET, payload);
+        buffer.putInt(offset + LENGTH_OFFSET, payload.length);
+        buffer.putInt(offset + CHECKSUM_OFFSET, checksum(sequence, payload));
+        // the sequence makes this copy the current one, so it is written last
+        buffer.putLong(offset, sequence);
+        markDirty(offset, RECORD_SIZE);
+        slot.sequence = sequence;
+        slot.checkpoint = checkpoint;
+    }
+
+    private void markDirty(int offset, int length) {
+        dirtyFrom = Math.min(dirtyFrom, offset);
+        dirtyTo = Math.max(dirtyTo, offset + length);
+    }
+
+    private void sync() {
+        if (fsyncPolicy == FsyncPolicy.ON_WRITE && dirtyTo > dirtyFrom) {
+            buffer.force(dirtyFrom, dirtyTo - dirtyFrom);
+        }
+        dirtyFrom = Integer.MAX_VALUE;
+        dirtyTo = 0;
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("Checkpoint file " + file + " is closed");
+        }
+    }
+
+    private static int slotOffset(int index) {
+        return HEADER_SIZE + index * SLOT_SIZE;
+    }
+
+    private static int recordOffset(int index, int copy) {
+        return slotOffset(index) + KEY_SIZE + copy * RECORD_SIZE;
+    }
+
+    private static int checksum(long sequence, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES + Integer.BYTES).putLong(sequence).putInt(payload.length).flip());
+        crc.update(payload);
+        return (int) crc.getValue();
+    }
+
+    private static ChangeStreamWorkerConfig toConfig(Slot slot) {
+        var config = new ChangeStreamWorkerConfig();
+        config.setId(slot.id);
+        config.setCollection(slot.collection);
+        config.setPartition(slot.partition);
+        config.setResumeToken(slot.checkpoint.resumeToken());
+        config.setClusterTime(slot.checkpoint.clusterTime());
+        config.setSnapshotResumeToken(slot.checkpoint.snapshotResumeToken());
+        BsonDocument position = slot.checkpoint.snapshotPosition();
+        config.setSnapshotPosition(position == null ? null : position.clone());
+        return config;
+    }
+
+    private static byte[] encode(Checkpoint checkpoint, Slot slot) {
+        ByteBuffer out = ByteBuffer.allocate(PAYLOAD_CAPACITY);
+        try {
+            byte fields = 0;
+            fields |= checkpoint.resumeToken() == null ? 0 : RESUME_TOKEN_BIT;
+            fields |= checkpoint.clusterTime() == null ? 0 : CLUSTER_TIME_BIT;
+            fields |= checkpoint.snapshotResumeToken() == null ? 0 : SNAPSHOT_RESUME_TOKEN_BIT;
+            fields |= checkpoint.snapshotPosition() == null ? 0 : SNAPSHOT_POSITION_BIT;
+            out.put(fields);
+            if (checkpoint.resumeToken() != null) {
+                putToken(out, checkpoint.resumeToken());
+            }
+            if (checkpoint.clusterTime() != null) {
+                out.putLong(checkpoint.clusterTime().getValue());
+            }
+            if (checkpoint.snapshotResumeToken() != null) {
+                putToken(out, checkpoint.snapshotResumeToken());
+            }
+            if (checkpoint.snapshotPosition() != null) {
+                ByteBuffer position = new RawBsonDocument(checkpoint.snapshotPosition(), BSON_DOCUMENT_CODEC).getByteBuffer().asNIO();
+                out.putInt(position.remaining()).put(position);
+            }
+        } catch (BufferOverflowException e) {
+            throw new IllegalArgumentException("Checkpoint of partition " + slot.partition + " of collection " + slot.collection
+                    + " does not fit in the " + PAYLOAD_CAPACITY + " bytes of a slot", e);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static Checkpoint decode(byte[] payload) {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        byte fields = in.get();
+        String resumeToken = (fields & RESUME_TOKEN_BIT) == 0 ? null : getToken(in);
+        BsonTimestamp clusterTime = (fields & CLUSTER_TIME_BIT) == 0 ? null : new BsonTimestamp(in.getLong());
+        String snapshotResumeToken = (fields & SNAPSHOT_RESUME_TOKEN_BIT) == 0 ? null : getToken(in);
+        BsonDocument snapshotPosition = null;
+        if ((fields & SNAPSHOT_POSITION_BIT) != 0) {
+            byte[] position = new byte[in.getInt()];
+            in.get(position);
+            snapshotPosition = new RawBsonDocument(position).decode(BSON_DOCUMENT_CODEC);
+        }
+        return new Checkpoint(resumeToken, clusterTime, snapshotResumeToken, snapshotPosition);
+    }
+
+    private static void putToken(ByteBuffer out, String token) {
+        byte form = tokenForm(token);
+        byte[] bytes = form == UTF8_TOKEN ? token.getBytes(StandardCharsets.UTF_8) : LOWER_HEX.parseHex(token);
+        out.put(form).putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getToken(ByteBuffer in) {
+        byte form = in.get();
+        byte[] bytes = new byte[Short.toUnsignedInt(in.getShort())];
+        in.get(bytes);
+        return switch (form) {
+            case UPPER_HEX_TOKEN -> UPPER_HEX.formatHex(bytes);
+            case LOWER_HEX_TOKEN -> LOWER_HEX.formatHex(bytes);
+            default -> new String(bytes, StandardCharsets.UTF_8);
+        };
+    }
+
+    /**
+     * Resume tokens are hex strings, upper case as the server writes them; other tokens are stored as they are.
+     */
+    private static byte tokenForm(String token) {
+        if (token.isEmpty() || token.length() % 2 != 0) {
+            return UTF8_TOKEN;
+        }
+        boolean upperCase = false;
+        boolean lowerCase = false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (c >= 'A' && c <= 'F') {
+                upperCase = true;
+            } else if (c >= 'a' && c <= 'f') {
+                lowerCase = true;
+            } else if (c < '0' || c > '9') {
+                return UTF8_TOKEN;
+            }
+        }
+        if (upperCase && lowerCase) {
+            return UTF8_TOKEN;
+        }
+        return lowerCase ? LOWER_HEX_TOKEN : UPPER_HEX_TOKEN;
+    }
+
+    @Override
+    public String toString() {
+        return "MappedFileCheckpointStore{file=" + file + ", maxPartitions=" + slots.length + ", fsyncPolicy=" + fsyncPolicy + '}';
+    }
+
+    private record SlotKey(String collection, int partition) {
+    }
+
+    private record Checkpoint(String resumeToken, BsonTimestamp clusterTime, String snapshotResumeToken, BsonDocument snapshotPosition) {
+
+        static final Checkpoint EMPTY = new Checkpoint(null, null, null, null);
+
+        Checkpoint withResumeToken(String token) {
+            return new Checkpoint(token, ResumeTokens.clusterTime(token), snapshotResumeToken, snapshotPosition);
+        }
+    }
+
+    private static final class Slot {
+
+        private final int index;
+
+        private final ObjectId id;
+
+        private final String collection;
+
+        private final int partition;
+
+        private long sequence;
+
+        private Checkpoint checkpoint = Checkpoint.EMPTY;
+
+        private Slot(int index, String collection, int partition) {
+            this.index = index;
+            // stable for the slot, so ids of a file are the same after a restart
+            this.id = new ObjectId(ByteBuffer.allocate(OBJECT_ID_SIZE).putInt(OBJECT_ID_SIZE - Integer.BYTES, index).array());
+            this.collection = collection;
+            this.partition = partition;
+        }
+    }
+}
@@ -0,0 +1,368 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.ChangeStreamBatchListener;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copy of a collection kept up to date by the events of a manager, readable by key from any thread.
+ * <p>
+ * Register the view to all partitions of a manager, e.g. {@code manager.registerListenerToAllPartitions(view)}.
+ * Inserts, replaces and updates store the {@code fullDocument} of the event, so updates need
+ * {@code FullDocument.UPDATE_LOOKUP} or an {@link ImageCachePolicy}; an update without it drops the document from
+ * the view rather than keeping a stale version. Deletes remove the document, and dropping or renaming the collection
+ * empties the view.
+ * <p>
+ * Documents are stored as BSON outside the Java heap, in pages of {@code pageSize} bytes split over
+ * {@code segments} segments by the hash of their key, so a large view does not add to garbage collection pauses.
+ * Reads never take a lock and so never hold back the workers updating the view; a document read is copied to the
+ * heap and decoded lazily, field by field. Keys and values of indexed fields are compared as BSON values, so an
+ * {@code int} key does not find a document whose key is a {@code long}. If several documents have the same key,
+ * the view holds the last one written.
+ */
+public final class MaterializedView implements ChangeStreamBatchListener {
+
+    private static final Codec<Document> DOCUMENT_CODEC = DefaultMongoClientProvider.CODEC_REGISTRY.get(Document.class);
+
+    private static final String ID_FIELD = "_id";
+
+    private final String keyName;
+
+    private final List<String> keyPath;
+
+    private final boolean idKey;
+
+    private final List<String> indexedFields;
+
+    private final List<Map<BsonValue, Set<BsonValue>>> indexes;
+
+    private final OffHeapSegment[] segments;
+
+    private final Map<BsonValue, BsonValue> keysById = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private MaterializedView(Builder builder) {
+        this.keyName = builder.keyName;
+        this.keyPath = List.of(builder.keyName.split("\\."));
+        this.idKey = ID_FIELD.equals(builder.keyName);
+        this.indexedFields = List.copyOf(builder.indexedFields);
+        this.indexes = new ArrayList<>(indexedFields.size());
+        indexedFields.forEach(field -> indexes.add(new ConcurrentHashMap<>()));
+        this.segments = new OffHeapSegment[builder.segments];
+        Arrays.setAll(segments, segment -> new OffHeapSegment(builder.pageSize));
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Override
+    public void handleBatch(List<ChangeStreamDocument<Document>> events) {
+        events.forEach(this::apply);
+    }
+
+    /**
+     * @param key value of {@code keyName}, a Java value supported by the default codec registry or a {@link BsonValue}
+     * @return the document with the key, or null if the view has none
+     */
+    public Document get(Object key) {
+        BsonValue bsonKey = Partitions.toBsonValue(key);
+        OffHeapSegment.Entry entry = segmentOf(bsonKey).get(bsonKey);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return toDocument(entry);
+    }
+
+    /**
+     * @param field one of the indexed fields of the view
+     * @param value value of the field, compared with the whole value of the field
+     * @return the documents whose field has the value, in no particular order
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public List<Document> find(String field, Object value) {
+        int index = indexedFields.indexOf(field);
+        if (index < 0) {
+            throw new IllegalArgumentException("Field " + field + " is not indexed, indexed fields: " + indexedFields);
+        }
+        BsonValue bsonValue = Partitions.toBsonValue(value);
+        Set<BsonValue> keys = indexes.get(index).get(bsonValue);
+        if (keys == null) {
+            misses.increment();
+            return List.of();
+        }
+        List<Document> documents = new ArrayList<>(keys.size());
+        for (BsonValue key : keys) {
+            OffHeapSegment.Entry entry = segmentOf(key).get(key);
+            // the index is updated after the entry, so it may briefly point at a newer version without the value
+            if (entry != null && bsonValue.equals(entry.indexed()[index])) {
+                documents.add(toDocument(entry));
+            }
+        }
+        (documents.isEmpty() ? misses : hits).increment();
+        return documents;
+    }
+
+    public long size() {
+        long size = 0;
+        for (OffHeapSegment segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public String getKeyName() {
+        return keyName;
+    }
+
+    public List<String> getIndexedFields() {
+        return indexedFields;
+    }
+
+    public Stats stats() {
+        long allocated = 0;
+        long live = 0;
+        long compactions = 0;
+        for (OffHeapSegment segment : segments) {
+            allocated += segment.allocatedBytes();
+            live += segment.liveBytes();
+            compactions += segment.compactions();
+        }
+        return new Stats(size(), allocated, live, hits.sum(), misses.sum(), compactions);
+    }
+
+    /**
+     * Removes all documents. Their memory is freed once no reader uses it anymore.
+     */
+    public void clear() {
+        for (OffHeapSegment segment : segments) {
+            segment.clear();
+        }
+        indexes.forEach(Map::clear);
+        keysById.clear();
+    }
+
+    private void apply(ChangeStreamDocument<Document> event) {
+        OperationType operationType = event.getOperationType();
+        if (operationType == null) {
+            return;
+        }
+        switch (operationType) {
+            case INSERT, REPLACE, UPDATE -> {
+                if (event.getFullDocument() != null) {
+                    upsert(event.getFullDocument());
+                } else {
+                    removeById(idOf(event));
+                }
+            }
+            case DELETE -> removeById(idOf(event));
+            case DROP, DROP_DATABASE, RENAME, INVALIDATE -> clear();
+            default -> {
+                // other events do not change documents
+            }
+        }
+    }
+
+    private void upsert(Document document) {
+        RawBsonDocument raw = document instanceof LazyDocument lazy && lazy.getRawDocument() != null
+                ? lazy.getRawDocument()
+                : new RawBsonDocument(document, DOCUMENT_CODEC);
+        BsonValue id = detach(raw.get(ID_FIELD));
+        BsonValue key = detach(valueAt(raw, keyPath));
+        if (key == null) {
+            removeById(id);
+            return;
+        }
+        BsonValue[] indexed = new BsonValue[indexedFields.size()];
+        for (int i = 0; i < indexed.length; i++) {
+            indexed[i] = detach(valueAt(raw, List.of(indexedFields.get(i).split("\\."))));
+        }
+
+        ByteBuffer bytes = raw.getByteBuffer().asNIO();
+        OffHeapSegment.Entry previous = segmentOf(key).put(key, id, bytes, indexed);
+        reindex(key, previous == null ? null : previous.indexed(), indexed);
+        if (!idKey && id != null) {
+            BsonValue previousKey = keysById.put(id, key);
+            if (previousKey != null && !previousKey.equals(key)) {
+                removeEntry(previousKey, id);
+            }
+        }
+    }
+
+    private void removeById(BsonValue id) {
+        if (id == null) {
+            return;
+        }
+        BsonValue key = idKey ? id : keysById.remove(id);
+        if (key != null) {
+            removeEntry(key, idKey ? null : id);
+        }
+    }
+
+    private void removeEntry(BsonValue key, BsonValue ownerId) {
+        OffHeapSegment.Entry removed = segmentOf(key).remove(key, ownerId);
+        if (removed != null) {
+            reindex(key, removed.indexed(), null);
+        }
+    }
+
+    private void reindex(BsonValue key, BsonValue[] previous, BsonValue[] current) {
+        for (int i = 0; i < indexes.size(); i++) {
+            BsonValue previousValue = previous == null ? null : previous[i];
+            BsonValue currentValue = current == null ? null : current[i];
+            if (previousValue != null && !previousValue.equals(currentValue)) {
+                indexes.get(i).computeIfPresent(previousValue, (value, keys) -> {
+                    keys.remove(key);
+                    return keys.isEmpty() ? null : keys;
+                });
+            }
+            if (currentValue != null) {
+                indexes.get(i).compute(currentValue, (value, keys) -> {
+                    Set<BsonValue> updated = keys == null ? ConcurrentHashMap.newKeySet() : keys;
+                    updated.add(key);
+                    return updated;
+                });
+            }
+        }
+    }
+
+    private OffHeapSegment segmentOf(BsonValue key) {
+        return segments[Math.floorMod(key.hashCode(), segments.length)];
+    }
+
+    private static BsonValue idOf(ChangeStreamDocument<Document> event) {
+        BsonDocument documentKey = event.getDocumentKey();
+        return documentKey == null ? null : documentKey.get(ID_FIELD);
+    }
+
+    private static BsonValue valueAt(BsonDocument document, List<String> path) {
+        BsonValue value = document;
+        for (String field : path) {
+            if (value == null || !value.isDocument()) {
+                return null;
+            }
+            value = value.asDocument().get(field);
+        }
+        return value;
+    }
+
+    /**
+     * Values read from a raw document share its bytes; keys and indexed values are copied so the heap does not
+     * keep whole documents alive.
+     */
+    private static BsonValue detach(BsonValue value) {
+        if (value == null) {
+            return null;
+        }
+        if (value.isDocument()) {
+            BsonDocument copy = new BsonDocument();
+            value.asDocument().forEach((field, fieldValue) -> copy.put(field, detach(fieldValue)));
+            return copy;
+        }
+        if (value.isArray()) {
+            BsonArray copy = new BsonArray();
+            value.asArray().forEach(element -> copy.add(detach(element)));
+            return copy;
+        }
+        return value;
+    }
+
+    private static Document toDocument(OffHeapSegment.Entry entry) {
+        return new LazyDocument(new RawBsonDocument(OffHeapSegment.read(entry)), DOCUMENT_CODEC);
+    }
+
+    /**
+     * Snapshot of the size, memory and reads of a view. {@code allocatedBytes} is the direct memory of its pages,
+     * {@code liveBytes} the part of it holding current documents. A read is a hit if {@link #get(Object)} found a
+     * document or {@link #find(String, Object)} found at least one.
+     */
+    public record Stats(long documents, long allocatedBytes, long liveBytes, long hits, long misses, long compactions) {
+    }
+
+    public static final class Builder {
+
+        private static final int DEFAULT_SEGMENTS = 16;
+
+        private static final int DEFAULT_PAGE_SIZE = 1024 * 1024;
+
+        private static final int MIN_PAGE_SIZE = 1024;
+
+        private String keyName = ID_FIELD;
+
+        private List<String> indexedFields = List.of();
+
+        private int segments = DEFAULT_SEGMENTS;
+
+        private int pageSize = DEFAULT_PAGE_SIZE;
+
+        private Builder() {
+        }
+
+        /**
+         * Field documents are looked up by, usually the {@code keyName} of the manager. Defaults to {@code _id}.
+         */
+        public Builder keyName(String keyName) {
+            this.keyName = keyName;
+            return this;
+        }
+
+        /**
+         * Fields {@link #find(String, Object)} can look documents up by. Each index keeps the values and keys of all
+         * documents on the heap.
+         */
+        public Builder indexes(String... fields) {
+            this.indexedFields = List.of(fields);
+            return this;
+        }
+
+        /**
+         * Number of segments, each written by one thread at a time. Defaults to 16.
+         */
+        public Builder segments(int segments) {
+            this.segments = segments;
+            return this;
+        }
+
+        /**
+         * Size in bytes of the direct memory pages documents are written to; larger documents get a page of their own.
+         * Defaults to 1 MiB.
+         */
+        public Builder pageSize(int pageSize) {
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        public MaterializedView build() {
+            if (segments < 1) {
+                throw new IllegalArgumentException("View must have at least one segment: " + segments);
+            }
+            if (pageSize < MIN_PAGE_SIZE) {
+                throw new IllegalArgumentException("Page size must be at least " + MIN_PAGE_SIZE + " bytes: " + pageSize);
+            }
+            if (indexedFields.contains(keyName)) {
+                throw new IllegalArgumentException("Key " + keyName + " cannot be indexed, use get(key) instead");
+            }
+            return new MaterializedView(this);
+        }
+    }
+}
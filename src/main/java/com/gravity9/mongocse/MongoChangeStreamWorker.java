@@ -1,26 +1,45 @@
 package com.gravity9.mongocse;
 
+import com.gravity9.mongocse.listener.ChangeStreamBatchListener;
 import com.gravity9.mongocse.listener.ChangeStreamListener;
 import com.gravity9.mongocse.logging.LoggingUtil;
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
 import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.ServerCursor;
 import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
 import com.mongodb.client.MongoClient;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDateTime;
 import org.bson.BsonDocument;
 import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
 
 
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
 
 
 class MongoChangeStreamWorker implements Runnable {
@@ -28,145 +47,671 @@ class MongoChangeStreamWorker implements Runnable {
     private static final String NULL_STRING = "null";
     private static final String RESUME_TOKEN_DATA_PROPERTY = "_data";
     private static final String NON_RESUMABLE_CHANGE_STREAM_ERROR = "NonResumableChangeStreamError";
+    private static final String ID_FIELD = "_id";
     private static final long DEFAULT_INIT_TIMEOUT_MS = 30 * 1000L;
     private static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 30 * 1000L;
     private static final Logger log = LoggerFactory.getLogger(MongoChangeStreamWorker.class);
 
     private final MongoConfig mongoConfig;
+    private final SlotLayout slotLayout;
     private final int partition;
 
-    private final ConfigManager configManager;
+    private final CheckpointStore checkpointStore;
+    private final ResumeTokenCheckpointer checkpointer;
     private final MongoClientProvider clientProvider;
+    private final WorkerThreads workerThreads;
+    private final ChangeStreamMetrics metrics;
+    private final BatchReader batchReader;
+    private final BatchReader catchUpReader;
+    private final FanOutStream.Inbox fanOutInbox;
+    private final DocumentImageCache imageCache;
     private final CopyOnWriteArraySet<ChangeStreamListener> listeners;
-    private final CountDownLatch initializationLatch;
-    private final CountDownLatch shutdownLatch;
     private final String workerId;
-    private String resumeToken;
+    // handed over by the manager on start, so the worker does not query its config on its own
+    private volatile ChangeStreamWorkerConfig loadedConfig;
+    private volatile CompletableFuture<Void> initialized = CompletableFuture.completedFuture(null);
+    private volatile CompletableFuture<Void> terminated = CompletableFuture.completedFuture(null);
+    private volatile MongoChangeStreamCursor<ChangeStreamDocument<Document>> currentCursor;
+    private volatile String resumeToken;
+    private BsonTimestamp startTime;
+    private volatile boolean useConfiguredStart;
+    private volatile boolean catchingUp;
+    private String snapshotResumeToken;
+    private BsonDocument snapshotPosition;
     private ObjectId configId;
+    private BsonDocument lastReadToken;
+    private String lastDeliveredToken;
+    private Dispatcher dispatcher;
+    private String drainToken;
+    private int eventsSinceCheckpoint;
     private volatile boolean isReadingFromChangeStream = false;
 
-    MongoChangeStreamWorker(MongoConfig mongoConfig,
-                            ConfigManager configManager,
-                            int partition,
-                            String managerId,
-                            MongoClientProvider clientProvider) {
-        this.mongoConfig = mongoConfig;
-        this.configManager = configManager;
+    MongoChangeStreamWorker(WorkerContext context, int partition) {
+        this.mongoConfig = context.mongoConfig();
+        this.slotLayout = context.slotLayout();
+        this.checkpointStore = context.checkpointStore();
+        this.checkpointer = context.checkpointer();
         this.partition = partition;
         this.listeners = new CopyOnWriteArraySet<>();
-        this.initializationLatch = new CountDownLatch(1);
-        this.shutdownLatch = new CountDownLatch(1);
-        this.workerId = LoggingUtil.createWorkerId(managerId, partition);
-        this.clientProvider = clientProvider;
+        this.workerId = LoggingUtil.createWorkerId(context.managerId(), partition);
+        this.clientProvider = context.clientProvider();
+        this.workerThreads = context.workerThreads();
+        this.metrics = mongoConfig.getMetrics();
+        this.batchReader = new BatchReader(mongoConfig.getBatchPolicy());
+        this.catchUpReader = new BatchReader(mongoConfig.getCatchUpBatchPolicy());
+        this.fanOutInbox = context.fanOutStream() == null ? null : context.fanOutStream().inbox(mongoConfig.getCollectionName(), partition);
+        this.imageCache = mongoConfig.getImageCachePolicy().isEnabled()
+                ? new DocumentImageCache(mongoConfig.getImageCachePolicy(), clientProvider.getClient()
+                        .getDatabase(mongoConfig.getDatabaseName())
+                        .getCollection(mongoConfig.getCollectionName(), BsonDocument.class))
+                : null;
     }
 
-    public void stop() {
-        this.isReadingFromChangeStream = false;
-        this.awaitShutdown();
-        log.info("{} - Worker for partition {} on collection {} stopped!", workerId, partition, mongoConfig.getCollectionName());
+    /**
+     * Submits the worker to its executor.
+     *
+     * @return future completed once the change stream cursor is open (in {@link StreamMode#FAN_OUT} mode once the
+     * resume token is loaded), or exceptionally if the worker failed or did not open its cursor within the
+     * initialization timeout
+     */
+    CompletableFuture<Void> startAsync() {
+        return startAsync(null);
+    }
+
+    /**
+     * Submits the worker to its executor, starting from a config its manager already loaded.
+     *
+     * @param config checkpoint of the partition, or null to load it from the checkpoint store
+     */
+    CompletableFuture<Void> startAsync(ChangeStreamWorkerConfig config) {
+        loadedConfig = config;
+        initialized = new CompletableFuture<>();
+        terminated = new CompletableFuture<>();
+        isReadingFromChangeStream = true;
+        try {
+            workerThreads.execute(this);
+        } catch (RejectedExecutionException e) {
+            isReadingFromChangeStream = false;
+            loadedConfig = null;
+            terminated.complete(null);
+            initialized.completeExceptionally(e);
+        }
+        return initialized.copy().orTimeout(DEFAULT_INIT_TIMEOUT_MS, MILLISECONDS);
+    }
+
+    /**
+     * Starts the worker on its own change stream and stops it once it has handled every event up to and including
+     * the given resume token; the token is committed as the last one of the partition.
+     *
+     * @return future completed once the worker has stopped
+     */
+    CompletableFuture<Void> drainAsync(String untilToken) {
+        drainToken = untilToken;
+        startAsync();
+        return terminated.copy();
+    }
+
+    /**
+     * @return whether the worker has left its loop, false while it still runs after a timed out stop
+     */
+    boolean isTerminated() {
+        return terminated.isDone();
+    }
+
+    /**
+     * @return the last resume token committed by the worker, or the one it loaded on start
+     */
+    String committedResumeToken() {
+        return resumeToken;
     }
 
-    public void awaitInitialization() {
-        awaitCountDownLatch(initializationLatch, DEFAULT_INIT_TIMEOUT_MS);
+    Collection<ChangeStreamListener> listeners() {
+        return Collections.unmodifiableSet(listeners);
+    }
+
+    /**
+     * Tells the worker to stop and wakes up its cursor if it is waiting for new events on the server.
+     *
+     * @return future completed once the worker has finished its last batch, or after the shutdown timeout
+     */
+    CompletableFuture<Void> stopAsync() {
+        this.isReadingFromChangeStream = false;
+        if (fanOutInbox != null) {
+            fanOutInbox.wakeUp();
+        }
+        wakeUpCursor();
+        CompletableFuture<Void> workerTerminated = terminated;
+        return workerTerminated.copy()
+                .completeOnTimeout(null, DEFAULT_SHUTDOWN_TIMEOUT_MS, MILLISECONDS)
+                .thenRun(() -> {
+                    if (workerTerminated.isDone()) {
+                        log.info("{} - Worker for partition {} on collection {} stopped!", workerId, partition, mongoConfig.getCollectionName());
+                    } else {
+                        log.warn("{} - Worker for partition {} on collection {} did not stop within {} ms",
+                                workerId, partition, mongoConfig.getCollectionName(), DEFAULT_SHUTDOWN_TIMEOUT_MS);
+                    }
+                });
     }
 
     @Override
     public void run() {
         LoggingUtil.setLoggingContext(workerId);
-        log.info("Starting worker for partition {} on collection '{}'", partition, mongoConfig.getCollectionName());
+        try {
+            if (!isReadingFromChangeStream) {
+                return;
+            }
+            log.info("Starting worker for partition {} on collection '{}'", partition, mongoConfig.getCollectionName());
+
+            initConfiguration();
+            if (imageCache != null) {
+                // events after the loaded token are read again, so cached versions may be ahead of them
+                imageCache.clear();
+            }
+            if (needsSnapshot() && !bootstrap(streamCollection())) {
+                return;
+            }
+            if (fanOutInbox != null && drainToken == null) {
+                consumeFanOut();
+                return;
+            }
 
-        initConfiguration();
+            processData(streamCollection());
+        } catch (RuntimeException e) {
+            log.error("Worker for partition {} on collection {} failed", partition, mongoConfig.getCollectionName(), e);
+            initialized.completeExceptionally(e);
+        } finally {
+            terminated.complete(null);
+            initialized.completeExceptionally(new IllegalStateException(
+                    "Worker for partition " + partition + " was stopped before its change stream was opened"));
+            LoggingUtil.removeLoggingContext();
+        }
+    }
 
-        MongoClient mongoClient = clientProvider.getClient();
+    private MongoCollection<Document> streamCollection() {
+        MongoClient mongoClient = clientProvider.getStreamClient();
         MongoDatabase db = mongoClient.getDatabase(mongoConfig.getDatabaseName());
-        MongoCollection<Document> collection = db.getCollection(this.mongoConfig.getCollectionName());
+        return db.getCollection(this.mongoConfig.getCollectionName());
+    }
+
+    /**
+     * A partition bootstraps if it has neither read the change stream nor been rewound, or if it was stopped during
+     * its snapshot.
+     */
+    private boolean needsSnapshot() {
+        return mongoConfig.getBootstrapPolicy().isEnabled() && drainToken == null && (resumeToken == null && startTime == null || snapshotResumeToken != null);
+    }
+
+    /**
+     * Delivers the partition's documents as snapshot events, then sets the resume token to the position the change
+     * stream had when the snapshot started, see {@link BootstrapPolicy}. Failed scans continue after the last stored
+     * position.
+     *
+     * @return false if the worker was stopped before the snapshot completed
+     */
+    private boolean bootstrap(MongoCollection<Document> collection) {
+        if (snapshotResumeToken == null) {
+            snapshotResumeToken = currentStreamToken(collection);
+            snapshotPosition = null;
+            checkpointer.snapshotProgress(configId, snapshotResumeToken, null);
+            log.info("Bootstrapping partition {} on collection {} from a snapshot, change stream resumes at {}",
+                    partition, mongoConfig.getCollectionName(), snapshotResumeToken);
+        } else {
+            log.info("Continuing snapshot of partition {} on collection {} after {}", partition, mongoConfig.getCollectionName(), snapshotPosition);
+        }
+        initialized.complete(null);
+
+        Codec<Document> documentCodec = ChangeStreamIterableFactory.documentCodec(mongoConfig, collection);
+        while (isReadingFromChangeStream) {
+            try {
+                if (scanSnapshot(collection, documentCodec)) {
+                    checkpointer.snapshotCompleted(configId, snapshotResumeToken);
+                    log.info("Snapshot of partition {} on collection {} completed", partition, mongoConfig.getCollectionName());
+                    resumeToken = snapshotResumeToken;
+                    snapshotResumeToken = null;
+                    snapshotPosition = null;
+                    return true;
+                }
+            } catch (Exception ex) {
+                discardUncommittedBatches();
+                if (isReadingFromChangeStream) {
+                    metrics.reconnected(partition);
+                    log.error("Exception during snapshot of partition {} on collection {}", partition, mongoConfig.getCollectionName(), ex);
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Opens the partition's change stream only to read its current position, the resume token of its first batch.
+     */
+    private String currentStreamToken(MongoCollection<Document> collection) {
+        try (var cursor = ChangeStreamIterableFactory.createWatch(mongoConfig, collection, slotLayout, partition).cursor()) {
+            BsonDocument token = cursor.getResumeToken();
+            return Optional.ofNullable(token)
+                    .flatMap(this::readResumeToken)
+                    .orElseThrow(() -> new IllegalStateException("Change stream of partition " + partition + " has no resume token to start a snapshot at"));
+        }
+    }
 
-        processData(collection);
+    /**
+     * @return true once every document of the partition was delivered, false if the worker was stopped first
+     */
+    private boolean scanSnapshot(MongoCollection<Document> collection, Codec<Document> documentCodec) {
+        int batchSize = mongoConfig.getBootstrapPolicy().getBatchSize();
+        BsonValue afterId = snapshotPosition == null ? null : snapshotPosition.get(ID_FIELD);
+        try (MongoCursor<RawBsonDocument> cursor = ChangeStreamIterableFactory.createSnapshotScan(mongoConfig, collection, slotLayout, partition, afterId).cursor()) {
+            while (isReadingFromChangeStream) {
+                List<ChangeStreamDocument<Document>> events = new ArrayList<>(batchSize);
+                while (events.size() < batchSize && cursor.hasNext()) {
+                    events.add(toSnapshotEvent(cursor.next(), documentCodec));
+                }
+                if (!events.isEmpty()) {
+                    deliverSnapshot(events);
+                }
+                if (events.size() < batchSize) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private ChangeStreamDocument<Document> toSnapshotEvent(RawBsonDocument scanned, Codec<Document> documentCodec) {
+        BsonDocument fullDocument = scanned.getDocument("fullDocument", null);
+        return new ChangeStreamDocument<>(OperationType.INSERT.getValue(), new BsonDocument(), scanned.getDocument("ns", null), null, null,
+                fullDocument == null ? null : documentCodec.decode(fullDocument.asBsonReader(), DecoderContext.builder().build()),
+                null, scanned.getDocument("documentKey", null), null, null, null, null, null, null, BootstrapPolicy.snapshotMarker());
+    }
+
+    /**
+     * Hands a batch of snapshot events to the listeners and stores the {@code _id} of the last one. The dispatcher is
+     * only started once the snapshot completes, so the batch is handled before its position is stored.
+     */
+    private void deliverSnapshot(List<ChangeStreamDocument<Document>> events) {
+        for (ChangeStreamDocument<Document> event : events) {
+            metrics.eventReceived(partition, event.getOperationType());
+        }
+        metrics.batchReceived(partition, events.size());
+        dispatch(new ChangeStreamBatch(events, null));
+
+        BsonDocument documentKey = events.get(events.size() - 1).getDocumentKey();
+        if (documentKey != null && documentKey.containsKey(ID_FIELD)) {
+            snapshotPosition = new BsonDocument(ID_FIELD, documentKey.get(ID_FIELD));
+            checkpointer.snapshotProgress(configId, snapshotResumeToken, snapshotPosition);
+        }
     }
 
     private void processData(MongoCollection<Document> collection) {
-        ChangeStreamIterable<Document> watch = ChangeStreamIterableFactory.createWatch(mongoConfig, collection, partition);
+        if (log.isDebugEnabled()) {
+            log.debug("Watching partition {} with pipeline {}", partition,
+                    PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.partitionPipeline(mongoConfig, slotLayout, partition)));
+        }
 
-        resumeIfTokenValid(watch);
+        logStartPosition();
+        ChangeStreamIterable<Document> watch = openWatch(collection);
 
         boolean firstCursorOpen = false;
-        isReadingFromChangeStream = true;
+        startDispatcher();
 
         do {
             try (var cursor = watch.cursor()) {
+                currentCursor = cursor;
                 firstCursorOpen = logForFirstCursorOpen(firstCursorOpen);
 
                 do {
-                    processSingleDocument(cursor.tryNext());
-                    updateResumeToken(cursor.getResumeToken(), watch);
+                    List<ChangeStreamDocument<Document>> events = readBatch(cursor);
+                    ChangeStreamBatch batch = new ChangeStreamBatch(events, cursor.getResumeToken());
+                    dispatch(drainToken == null ? batch : cutAtDrainToken(batch));
                 } while (isReadingFromChangeStream);
             } catch (MongoCommandException ex) {
-                if (ex.hasErrorLabel(NON_RESUMABLE_CHANGE_STREAM_ERROR)) {
-                    log.error("Non-resumable change stream error during processing for partition {} on collection {}. "
-                                    + "Clearing token and restarting.",
-                            partition, mongoConfig.getCollectionName(), ex);
-                    configManager.clearResumeToken(configId);
-                    resumeToken = null;
-                    watch = ChangeStreamIterableFactory.createWatch(mongoConfig, collection, partition);
+                currentCursor = null;
+                discardUncommittedBatches();
+                if (!isReadingFromChangeStream) {
+                    log.debug("Change stream cursor for partition {} closed on shutdown: {}", partition, ex.getMessage());
+                } else if (ex.hasErrorLabel(NON_RESUMABLE_CHANGE_STREAM_ERROR)) {
+                    metrics.reconnected(partition);
+                    restartAfterNonResumableError(ex);
                 } else {
+                    metrics.reconnected(partition);
                     log.error("MongoDB command error {} during processing for partition {} on collection {}",
                             ex.getErrorCode(), partition, mongoConfig.getCollectionName(), ex);
                 }
             } catch (Exception ex) {
-                log.error("Exception during processing for partition {} on collection {}", partition, mongoConfig.getCollectionName(), ex);
+                currentCursor = null;
+                discardUncommittedBatches();
+                if (isReadingFromChangeStream) {
+                    metrics.reconnected(partition);
+                    log.error("Exception during processing for partition {} on collection {}", partition, mongoConfig.getCollectionName(), ex);
+                } else {
+                    log.debug("Change stream cursor for partition {} closed on shutdown: {}", partition, ex.getMessage());
+                }
             }
+            currentCursor = null;
+            watch = openWatch(collection);
         } while (isReadingFromChangeStream);
 
-        shutdownLatch.countDown();
-        LoggingUtil.removeLoggingContext();
+        stopDispatcher();
     }
 
-    private void processSingleDocument(ChangeStreamDocument<Document> document) {
-        if (document != null) {
-            Optional<String> changedDocumentIdOpt = getChangedDocumentId(document).map(ObjectId::toHexString);
-            String changedDocumentId = changedDocumentIdOpt.orElse("?");
-            var operationType = document.getOperationType();
+    /**
+     * Once the stream has reached the drain token, drops the events after it and stops reading, so the batch ends
+     * exactly at the token.
+     */
+    private ChangeStreamBatch cutAtDrainToken(ChangeStreamBatch batch) {
+        String batchToken = batch.resumeToken() == null ? null : readResumeToken(batch.resumeToken()).orElse(null);
+        if (batchToken == null || isAfter(drainToken, batchToken)) {
+            return batch;
+        }
 
-            if (operationType == null) {
-                log.warn("Received document with null operation type, document id: {}", changedDocumentId);
-                listeners.forEach(listener -> listener.handle(document));
-                return;
+        isReadingFromChangeStream = false;
+        log.info("Partition {} on collection {} reached resume token {}, stopping", partition, mongoConfig.getCollectionName(), drainToken);
+        List<ChangeStreamDocument<Document>> events = batch.events().stream()
+                .filter(event -> event.getResumeToken() == null || !isAfter(readResumeToken(event.getResumeToken()).orElse(null), drainToken))
+                .toList();
+        return new ChangeStreamBatch(events, buildResumeToken(drainToken));
+    }
+
+    /**
+     * Handles the batches the shared stream routes to this partition in {@link StreamMode#FAN_OUT} mode, until the
+     * worker is stopped and its inbox is empty.
+     */
+    private void consumeFanOut() {
+        fanOutInbox.open(resumeToken);
+        lastDeliveredToken = resumeToken;
+        initialized.complete(null);
+        log.info("Worker for partition {} on collection {} is now started!", partition, mongoConfig.getCollectionName());
+        startDispatcher();
+
+        long firstValidGeneration = 0;
+        while (isReadingFromChangeStream || !fanOutInbox.isEmpty()) {
+            FanOutStream.Delivery delivery = fanOutInbox.poll();
+            if (delivery == null) {
+                fanOutInbox.awaitDelivery(() -> isReadingFromChangeStream);
+            } else if (delivery.generation() >= firstValidGeneration) {
+                try {
+                    dispatch(skipDelivered(delivery.batch()));
+                } catch (Exception ex) {
+                    discardUncommittedBatches();
+                    lastDeliveredToken = resumeToken;
+                    firstValidGeneration = fanOutInbox.requestRewind();
+                    metrics.reconnected(partition);
+                    log.error("Exception during processing for partition {} on collection {}, rewinding shared change stream",
+                            partition, mongoConfig.getCollectionName(), ex);
+                }
             }
+        }
 
-            switch (operationType) {
-                case UPDATE:
-                    if (canLogSensitiveData()) {
-                        var updateDescription = document.getUpdateDescription();
-                        log.debug("UPDATE, document id: {}, changedFields: {}", changedDocumentId, updateDescription == null ? NULL_STRING : toJson(updateDescription.getUpdatedFields()));
-                    } else {
-                        log.info("UPDATE, document id: {}", changedDocumentId);
-                    }
-                    break;
-                case DELETE:
-                    log.info("DELETE, document id: {}", changedDocumentId);
-                    break;
-                default:
-                    if (canLogSensitiveData()) {
-                        log.debug("{} document: {}", operationType.name(), toJson(document.getFullDocument()));
-                    } else {
-                        log.info("{} document id: {}", operationType.name(), changedDocumentId);
-                    }
+        stopDispatcher();
+    }
+
+    /**
+     * Drops events at or before the last token delivered to this partition, which the shared stream replays after
+     * resuming from the oldest token of all partitions.
+     */
+    private ChangeStreamBatch skipDelivered(ChangeStreamBatch batch) {
+        String delivered = lastDeliveredToken;
+        String batchToken = batch.resumeToken() == null ? null : readResumeToken(batch.resumeToken()).orElse(null);
+        if (delivered == null) {
+            lastDeliveredToken = batchToken;
+            return batch;
+        }
+
+        List<ChangeStreamDocument<Document>> events = batch.events().stream()
+                .filter(event -> event.getResumeToken() == null || isAfter(readResumeToken(event.getResumeToken()).orElse(null), delivered))
+                .toList();
+        if (!isAfter(batchToken, delivered)) {
+            return new ChangeStreamBatch(events, null);
+        }
+        lastDeliveredToken = batchToken;
+        return new ChangeStreamBatch(events, batch.resumeToken());
+    }
+
+    /**
+     * Resume tokens are hex encoded and compare in the same order as the events they point at.
+     */
+    private static boolean isAfter(String token, String other) {
+        return token != null && token.compareTo(other) > 0;
+    }
+
+    /**
+     * Kills the server-side cursor so a {@code getMore} waiting up to {@code maxAwaitTime} returns right away.
+     * If the command fails, the worker still stops once the await window runs out.
+     */
+    private void wakeUpCursor() {
+        var cursor = currentCursor;
+        ServerCursor serverCursor = cursor == null ? null : cursor.getServerCursor();
+        if (serverCursor == null) {
+            return;
+        }
+
+        try {
+            clientProvider.getClient()
+                    .getDatabase(mongoConfig.getDatabaseName())
+                    .runCommand(new Document("killCursors", mongoConfig.getCollectionName())
+                            .append("cursors", List.of(serverCursor.getId())));
+        } catch (MongoException | IllegalStateException e) {
+            log.debug("{} - Could not kill cursor of partition {}, waiting for it to time out: {}", workerId, partition, e.getMessage());
+        }
+    }
+
+    private void dispatch(ChangeStreamBatch batch) {
+        if (batch.isEmpty() && (batch.resumeToken() == null || batch.resumeToken().equals(lastReadToken))) {
+            log.trace("No new updates found on partition {} for collection {}", partition, mongoConfig.getCollectionName());
+            return;
+        }
+        lastReadToken = batch.resumeToken();
+
+        // images are rebuilt in stream order, before dispatchers may spread the events over threads
+        ChangeStreamBatch reconstructed = imageCache == null ? batch : imageCache.reconstruct(batch);
+        if (dispatcher != null) {
+            dispatcher.submit(reconstructed);
+        } else {
+            processBatch(reconstructed);
+        }
+    }
+
+    private void processBatch(ChangeStreamBatch batch) {
+        processEvents(batch.events());
+        commit(batch.resumeToken(), batch.size());
+    }
+
+    private void startDispatcher() {
+        dispatcher = switch (mongoConfig.getDispatchMode()) {
+            case PIPELINED -> new PipelinedDispatcher(workerId, mongoConfig.getDispatchBufferCapacity(), this::processBatch, workerThreads);
+            case KEYED -> new KeyedDispatcher(workerId, mongoConfig, this::processEvents, this::commit, workerThreads);
+            case DIRECT -> null;
+        };
+        if (dispatcher != null) {
+            dispatcher.start();
+        }
+    }
+
+    private void stopDispatcher() {
+        if (dispatcher == null) {
+            return;
+        }
+        try {
+            dispatcher.stop();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for dispatcher of partition {} to finish", partition);
+        }
+        dispatcher = null;
+    }
+
+    private void discardUncommittedBatches() {
+        if (dispatcher != null) {
+            dispatcher.discardPending();
+        }
+        if (imageCache != null) {
+            imageCache.clear();
+        }
+        lastReadToken = null;
+    }
+
+    /**
+     * Opens the partition's change stream after its resume token. A partition without one starts at its stored
+     * operation time, set by a rewind or kept from a token that could no longer be resumed, then at the configured
+     * start position, and otherwise at the current end of the stream. While catching up, the server is asked for
+     * batches of the catch-up size.
+     */
+    private ChangeStreamIterable<Document> openWatch(MongoCollection<Document> collection) {
+        ChangeStreamIterable<Document> watch = ChangeStreamIterableFactory.createWatch(mongoConfig, collection, slotLayout, partition);
+        String committedToken = resumeToken;
+        if (committedToken != null) {
+            watch.resumeAfter(buildResumeToken(committedToken));
+        } else if (startTime != null) {
+            watch.startAtOperationTime(startTime);
+        } else if (useConfiguredStart && mongoConfig.getStartAfter() != null) {
+            watch.startAfter(mongoConfig.getStartAfter());
+        } else if (useConfiguredStart && mongoConfig.getStartAtOperationTime() != null) {
+            watch.startAtOperationTime(mongoConfig.getStartAtOperationTime());
+        }
+        if (catchingUp) {
+            watch.batchSize(mongoConfig.getCatchUpBatchPolicy().getMaxEvents());
+        }
+        return watch;
+    }
+
+    private void logStartPosition() {
+        if (resumeToken != null) {
+            log.info("Resuming change stream for partition {} on collection {} with token: {}", partition, mongoConfig.getCollectionName(), resumeToken);
+        } else if (startTime != null) {
+            log.info("Replaying partition {} on collection {} from operation time {}", partition, mongoConfig.getCollectionName(), startTime);
+        } else if (mongoConfig.hasStartPosition()) {
+            log.info("No resume token found for partition {} on collection {}, starting at the configured position", partition, mongoConfig.getCollectionName());
+        } else {
+            log.info("No resume token found for partition {} on collection {}, starting fresh", partition, mongoConfig.getCollectionName());
+        }
+    }
+
+    /**
+     * Replaces a token that can no longer be resumed by its cluster time, so the partition replays from there instead
+     * of skipping to the current end of the stream. A partition that fails without a token, at an operation time or a
+     * configured position, is past the oplog window and starts fresh.
+     */
+    private void restartAfterNonResumableError(MongoCommandException ex) {
+        BsonTimestamp restartTime = resumeToken == null ? null : ResumeTokens.clusterTime(resumeToken);
+        if (restartTime == null) {
+            log.error("Non-resumable change stream error during processing for partition {} on collection {}. "
+                            + "Clearing token and restarting.",
+                    partition, mongoConfig.getCollectionName(), ex);
+            useConfiguredStart = false;
+        } else {
+            log.error("Non-resumable change stream error during processing for partition {} on collection {}. "
+                            + "Replaying from cluster time {} of token {}.",
+                    partition, mongoConfig.getCollectionName(), restartTime, resumeToken, ex);
+        }
+        checkpointer.rewind(configId, restartTime);
+        resumeToken = null;
+        startTime = restartTime;
+        catchingUp = restartTime != null;
+    }
+
+    private List<ChangeStreamDocument<Document>> readBatch(MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor) {
+        List<ChangeStreamDocument<Document>> batch = (catchingUp ? catchUpReader : batchReader).read(cursor, () -> isReadingFromChangeStream);
+        if (catchingUp && batch.size() < mongoConfig.getCatchUpBatchPolicy().getMaxEvents() && cursor.available() == 0) {
+            // a batch that is not full was all the server had
+            catchingUp = false;
+            log.info("Partition {} on collection {} caught up with the change stream", partition, mongoConfig.getCollectionName());
+        }
+        if (batch.isEmpty()) {
+            metrics.idlePoll(partition);
+            return batch;
+        }
+        for (ChangeStreamDocument<Document> event : batch) {
+            metrics.eventReceived(partition, event.getOperationType());
+        }
+        metrics.batchReceived(partition, batch.size());
+        return batch;
+    }
+
+    private void processEvents(List<ChangeStreamDocument<Document>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        batch.forEach(this::logEvent);
+
+        for (ChangeStreamListener listener : listeners) {
+            long listenerStart = System.nanoTime();
+            if (listener instanceof ChangeStreamBatchListener batchListener) {
+                batchListener.handleBatch(batch);
+            } else {
+                batch.forEach(listener::handle);
             }
+            metrics.listenerCompleted(partition, listener, batch.size(), System.nanoTime() - listenerStart);
+        }
+
+        observeLag(batch.get(batch.size() - 1));
+    }
 
-            listeners.forEach(listener -> listener.handle(document));
+    private void observeLag(ChangeStreamDocument<Document> event) {
+        BsonDateTime wallTime = event.getWallTime();
+        BsonTimestamp clusterTime = event.getClusterTime();
+        long eventMillis;
+        if (wallTime != null) {
+            eventMillis = wallTime.getValue();
+        } else if (clusterTime != null) {
+            eventMillis = SECONDS.toMillis(clusterTime.getTime());
         } else {
-            log.trace("No new updates found on partition {} for collection {}", partition, mongoConfig.getCollectionName());
+            return;
+        }
+        metrics.lagObserved(partition, System.currentTimeMillis() - eventMillis);
+    }
+
+    private void logEvent(ChangeStreamDocument<Document> document) {
+        Optional<String> changedDocumentIdOpt = getChangedDocumentId(document).map(ObjectId::toHexString);
+        String changedDocumentId = changedDocumentIdOpt.orElse("?");
+        var operationType = document.getOperationType();
+
+        if (operationType == null) {
+            log.warn("Received document with null operation type, document id: {}", changedDocumentId);
+            return;
+        }
+
+        switch (operationType) {
+            case UPDATE:
+                if (canLogSensitiveData()) {
+                    var updateDescription = document.getUpdateDescription();
+                    log.debug("UPDATE, document id: {}, changedFields: {}", changedDocumentId, updateDescription == null ? NULL_STRING : toJson(updateDescription.getUpdatedFields()));
+                } else {
+                    log.info("UPDATE, document id: {}", changedDocumentId);
+                }
+                break;
+            case DELETE:
+                log.info("DELETE, document id: {}", changedDocumentId);
+                break;
+            default:
+                if (canLogSensitiveData()) {
+                    log.debug("{} document: {}", operationType.name(), toJson(document.getFullDocument()));
+                } else {
+                    log.info("{} document id: {}", operationType.name(), changedDocumentId);
+                }
         }
     }
 
-    private void updateResumeToken(BsonDocument resumeTokenDoc, ChangeStreamIterable<Document> watch) {
-        if (resumeTokenDoc != null) {
-            readResumeToken(resumeTokenDoc).ifPresent(token -> {
-                resumeToken = token;
-                log.trace("Updating resume token for partition {}, resumeToken: {}", partition, resumeToken);
-                configManager.updateResumeToken(configId, resumeToken);
-                watch.resumeAfter(resumeTokenDoc);
-            });
+    private void commit(BsonDocument committedToken, int events) {
+        eventsSinceCheckpoint += events;
+
+        if (committedToken != null) {
+            readResumeToken(committedToken)
+                    .filter(token -> !token.equals(resumeToken))
+                    .ifPresent(token -> {
+                        resumeToken = token;
+                        log.trace("Updating resume token for partition {}, resumeToken: {}", partition, token);
+                        checkpointer.track(configId, token);
+                        if (fanOutInbox != null) {
+                            fanOutInbox.committed(token);
+                        }
+                    });
+        }
+
+        CheckpointPolicy policy = checkpointer.getPolicy();
+        if (policy.hasEventThreshold() && eventsSinceCheckpoint >= policy.getEventThreshold()) {
+            eventsSinceCheckpoint = 0;
+            checkpointer.requestFlush();
         }
     }
 
@@ -192,34 +737,6 @@ class MongoChangeStreamWorker implements Runnable {
         return log.isDebugEnabled();
     }
 
-    private void resumeIfTokenValid(ChangeStreamIterable<Document> watch) {
-        if (resumeToken == null) {
-            log.info("No resume token found for partition {} on collection {}, starting fresh", partition, mongoConfig.getCollectionName());
-            return;
-        }
-
-        try {
-            log.info("Resuming change stream for partition {} on collection {} with token: {}", partition, mongoConfig.getCollectionName(), resumeToken);
-            watch.resumeAfter(buildResumeToken(resumeToken));
-        } catch (MongoCommandException e) {
-            handleResumeTokenError(e);
-        }
-    }
-
-    private void handleResumeTokenError(MongoCommandException e) {
-        if (e.hasErrorLabel(NON_RESUMABLE_CHANGE_STREAM_ERROR)) {
-            log.error("Non-resumable change stream error for partition {} on collection {}. "
-                            + "Likely cause: manual DB changes or oplog pruned. Token cleared, restarting fresh. Invalid token: {}",
-                    partition, mongoConfig.getCollectionName(), resumeToken, e);
-
-            configManager.clearResumeToken(configId);
-            resumeToken = null;
-        } else {
-            log.warn("Error resuming with saved token for partition {} on collection {} (error {}). Restarting fresh. Token: {}",
-                    partition, mongoConfig.getCollectionName(), e.getErrorCode(), resumeToken, e);
-        }
-    }
-
     private Optional<ObjectId> getChangedDocumentId(ChangeStreamDocument<Document> document) {
         Document fullDocument = document.getFullDocument();
         if (fullDocument != null && fullDocument.containsKey("_id")) {
@@ -253,27 +770,24 @@ class MongoChangeStreamWorker implements Runnable {
         return new BsonDocument(RESUME_TOKEN_DATA_PROPERTY, new BsonString(aResumeToken));
     }
 
-    private void awaitShutdown() {
-        awaitCountDownLatch(shutdownLatch, DEFAULT_SHUTDOWN_TIMEOUT_MS);
-    }
-
-    private void awaitCountDownLatch(CountDownLatch countDownLatch, long timeout) {
-        try {
-            countDownLatch.await(timeout, MILLISECONDS);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
-        }
-    }
-
     private void initConfiguration() {
-        ChangeStreamWorkerConfig changeStreamWorkerConfig = configManager.getConfigOrInit(mongoConfig.getCollectionName(), partition);
+        ChangeStreamWorkerConfig changeStreamWorkerConfig = loadedConfig;
+        loadedConfig = null;
+        if (changeStreamWorkerConfig == null) {
+            changeStreamWorkerConfig = checkpointStore.getConfigOrInit(mongoConfig.getCollectionName(), partition);
+        }
         this.resumeToken = changeStreamWorkerConfig.getResumeToken();
+        this.startTime = resumeToken == null ? changeStreamWorkerConfig.getClusterTime() : null;
+        this.useConfiguredStart = true;
+        this.catchingUp = resumeToken == null && (startTime != null || mongoConfig.hasStartPosition());
+        this.snapshotResumeToken = changeStreamWorkerConfig.getSnapshotResumeToken();
+        this.snapshotPosition = changeStreamWorkerConfig.getSnapshotPosition();
         this.configId = changeStreamWorkerConfig.getId();
     }
 
     private boolean logForFirstCursorOpen(boolean firstCursorOpen) {
         if (!firstCursorOpen) {
-            initializationLatch.countDown();
+            initialized.complete(null);
             log.info("Worker for partition {} on collection {} is now started!", partition, mongoConfig.getCollectionName());
         }
 
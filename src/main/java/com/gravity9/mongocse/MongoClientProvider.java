@@ -1,10 +1,54 @@
 package com.gravity9.mongocse;
 
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.MongoClient;
 
 import java.io.Closeable;
 
 public interface MongoClientProvider extends Closeable {
+
+    /**
+     * Client for configs, resume tokens and commands.
+     */
     MongoClient getClient();
 
+    /**
+     * Client change stream cursors are opened with. Every cursor holds a pooled connection for up to
+     * {@code maxAwaitTimeInMs} on each {@code getMore}, so a separate client keeps streams from starving the
+     * traffic of {@link #getClient()}. Defaults to {@link #getClient()}.
+     */
+    default MongoClient getStreamClient() {
+        return getClient();
+    }
+
+    /**
+     * Provider of two clients created from the same settings: one for configs and resume tokens, and one for change
+     * streams with a pool of at most {@code streamConnections} connections and wire compression, unless the
+     * settings already choose compressors. Compression uses zstd if {@code com.github.luben:zstd-jni} is on the
+     * classpath, snappy if {@code org.xerial.snappy:snappy-java} is, and zlib otherwise.
+     * <p>
+     * The provider can be shared by several managers through {@code MongoConfig.clientProvider}, in which case
+     * {@code streamConnections} should cover the change streams of all of them.
+     */
+    static MongoClientProvider create(MongoClientSettings settings, int streamConnections) {
+        return new DefaultMongoClientProvider(settings, streamConnections, true);
+    }
+
+    /**
+     * Provider of a single client for both change streams and configs, e.g. the application's own client.
+     * The codecs needed for configs are added by the library. Closing the provider closes the client.
+     */
+    static MongoClientProvider of(MongoClient client) {
+        return new MongoClientProvider() {
+            @Override
+            public MongoClient getClient() {
+                return client;
+            }
+
+            @Override
+            public void close() {
+                client.close();
+            }
+        };
+    }
 }
@@ -1,13 +1,22 @@
 package com.gravity9.mongocse;
 
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
+import com.mongodb.MongoClientSettings;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.changestream.FullDocument;
 import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
 import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
 import org.bson.conversions.Bson;
 
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.stream.Collectors;
 
 public class MongoConfig {
@@ -20,10 +29,18 @@ public class MongoConfig {
 
 	private final Bson match;
 
+	private final Set<OperationType> operationTypes;
+
+	private final ChangeStreamProjection projection;
+
+	private final List<Bson> stages;
+
 	private final String keyName;
 
 	private final int numberOfPartitions;
 
+	private final int numberOfSlots;
+
 	private final String workerConfigCollectionName;
 
 	private final String clusterConfigCollectionName;
@@ -32,22 +49,150 @@ public class MongoConfig {
 
 	private final FullDocumentBeforeChange fullDocumentBeforeChange;
 
+	private final ImageCachePolicy imageCachePolicy;
+
 	private final long maxAwaitTimeInMs;
 
+	private final CheckpointPolicy checkpointPolicy;
+
+	private final LeasePolicy leasePolicy;
+
+	private final CheckpointStore checkpointStore;
+
+	private final BootstrapPolicy bootstrapPolicy;
+
+	private final BatchPolicy batchPolicy;
+
+	private final BatchPolicy catchUpBatchPolicy;
+
+	private final BsonTimestamp startAtOperationTime;
+
+	private final BsonDocument startAfter;
+
+	private final DispatchMode dispatchMode;
+
+	private final int dispatchBufferCapacity;
+
+	private final int dispatchLanes;
+
+	private final DeliveryMode deliveryMode;
+
+	private final StreamMode streamMode;
+
+	private final ChangeStreamMetrics metrics;
+
+	private final MongoClientProvider clientProvider;
+
+	private final MongoClientSettings clientSettings;
+
+	private final boolean streamCompression;
+
+	private final ThreadFactory threadFactory;
+
+	private final ExecutorService workerExecutor;
+
+	private final boolean virtualThreads;
+
 	public MongoConfig(MongoConfigBuilder mongoConfigBuilder) {
 		this.connectionUri = mongoConfigBuilder.connectionUri;
 		this.databaseName = mongoConfigBuilder.databaseName;
 		this.collectionName = mongoConfigBuilder.collectionName;
 		this.match = mongoConfigBuilder.match;
+		this.operationTypes = Collections.unmodifiableSet(EnumSet.copyOf(mongoConfigBuilder.operationTypes));
+		this.projection = mongoConfigBuilder.projection;
+		this.stages = List.copyOf(mongoConfigBuilder.stages);
 		this.keyName = mongoConfigBuilder.keyName;
 		this.numberOfPartitions = mongoConfigBuilder.numberOfPartitions;
+		this.numberOfSlots = mongoConfigBuilder.numberOfSlots == 0 ? mongoConfigBuilder.numberOfPartitions : mongoConfigBuilder.numberOfSlots;
 		this.workerConfigCollectionName = mongoConfigBuilder.workerConfigCollectionName;
 		this.clusterConfigCollectionName = mongoConfigBuilder.clusterConfigCollectionName;
 		this.fullDocument = mongoConfigBuilder.fullDocument;
 		this.fullDocumentBeforeChange = mongoConfigBuilder.fullDocumentBeforeChange;
+		this.imageCachePolicy = mongoConfigBuilder.imageCachePolicy;
 		this.maxAwaitTimeInMs = mongoConfigBuilder.maxAwaitTimeInMs;
+		this.checkpointPolicy = mongoConfigBuilder.checkpointPolicy;
+		this.leasePolicy = mongoConfigBuilder.leasePolicy;
+		this.checkpointStore = mongoConfigBuilder.checkpointStore;
+		this.bootstrapPolicy = mongoConfigBuilder.bootstrapPolicy;
+		this.batchPolicy = mongoConfigBuilder.batchPolicy;
+		this.catchUpBatchPolicy = mongoConfigBuilder.catchUpBatchPolicy;
+		this.startAtOperationTime = mongoConfigBuilder.startAtOperationTime;
+		this.startAfter = mongoConfigBuilder.startAfter;
+		this.dispatchMode = mongoConfigBuilder.dispatchMode;
+		this.dispatchBufferCapacity = mongoConfigBuilder.dispatchBufferCapacity;
+		this.dispatchLanes = mongoConfigBuilder.dispatchLanes;
+		this.deliveryMode = mongoConfigBuilder.deliveryMode;
+		this.streamMode = mongoConfigBuilder.streamMode;
+		this.metrics = mongoConfigBuilder.metrics;
+		this.clientProvider = mongoConfigBuilder.clientProvider;
+		this.clientSettings = mongoConfigBuilder.clientSettings;
+		this.streamCompression = mongoConfigBuilder.streamCompression;
+		this.threadFactory = mongoConfigBuilder.threadFactory;
+		this.workerExecutor = mongoConfigBuilder.workerExecutor;
+		this.virtualThreads = mongoConfigBuilder.virtualThreads;
+		projection.validate(keyName);
+		StageValidator.validate(stages, keyName);
+		imageCachePolicy.validate(keyName, projection);
     }
 
+	/**
+	 * Copy of this configuration for another collection of the same database.
+	 */
+	MongoConfig withCollectionName(String collectionName) {
+		return new MongoConfig(this, collectionName);
+	}
+
+	private MongoConfig(MongoConfig other, String collectionName) {
+		this.connectionUri = other.connectionUri;
+		this.databaseName = other.databaseName;
+		this.collectionName = collectionName;
+		this.match = other.match;
+		this.operationTypes = other.operationTypes;
+		this.projection = other.projection;
+		this.stages = other.stages;
+		this.keyName = other.keyName;
+		this.numberOfPartitions = other.numberOfPartitions;
+		this.numberOfSlots = other.numberOfSlots;
+		this.workerConfigCollectionName = other.workerConfigCollectionName;
+		this.clusterConfigCollectionName = other.clusterConfigCollectionName;
+		this.fullDocument = other.fullDocument;
+		this.fullDocumentBeforeChange = other.fullDocumentBeforeChange;
+		this.imageCachePolicy = other.imageCachePolicy;
+		this.maxAwaitTimeInMs = other.maxAwaitTimeInMs;
+		this.checkpointPolicy = other.checkpointPolicy;
+		this.leasePolicy = other.leasePolicy;
+		this.checkpointStore = other.checkpointStore;
+		this.bootstrapPolicy = other.bootstrapPolicy;
+		this.batchPolicy = other.batchPolicy;
+		this.catchUpBatchPolicy = other.catchUpBatchPolicy;
+		this.startAtOperationTime = other.startAtOperationTime;
+		this.startAfter = other.startAfter;
+		this.dispatchMode = other.dispatchMode;
+		this.dispatchBufferCapacity = other.dispatchBufferCapacity;
+		this.dispatchLanes = other.dispatchLanes;
+		this.deliveryMode = other.deliveryMode;
+		this.streamMode = other.streamMode;
+		this.metrics = other.metrics;
+		this.clientProvider = other.clientProvider;
+		this.clientSettings = other.clientSettings;
+		this.streamCompression = other.streamCompression;
+		this.threadFactory = other.threadFactory;
+		this.workerExecutor = other.workerExecutor;
+		this.virtualThreads = other.virtualThreads;
+	}
+
+	public MongoClientProvider getClientProvider() {
+		return clientProvider;
+	}
+
+	public MongoClientSettings getClientSettings() {
+		return clientSettings;
+	}
+
+	public boolean isStreamCompression() {
+		return streamCompression;
+	}
+
 	public static MongoConfigBuilder builder() {
 		return new MongoConfigBuilder();
 	}
@@ -68,6 +213,25 @@ public class MongoConfig {
 		return match;
 	}
 
+	/**
+	 * Operation types that can pass the {@link #getMatch() match} stage as far as {@code operationTypes} and
+	 * {@code fieldNames} restrict it; all types if only a custom {@code match} was set.
+	 */
+	public Set<OperationType> getOperationTypes() {
+		return operationTypes;
+	}
+
+	public ChangeStreamProjection getProjection() {
+		return projection;
+	}
+
+	/**
+	 * Stages appended to the change stream pipeline after the partition filter and the {@link #getProjection() projection}.
+	 */
+	public List<Bson> getStages() {
+		return stages;
+	}
+
 	public String getKeyName() {
 		return keyName;
 	}
@@ -76,6 +240,13 @@ public class MongoConfig {
 		return numberOfPartitions;
 	}
 
+	/**
+	 * Number of slots keys are hashed into before the slots are split into partitions; the number of partitions if not set.
+	 */
+	public int getNumberOfSlots() {
+		return numberOfSlots;
+	}
+
 	public String getWorkerConfigCollectionName() {
 		return workerConfigCollectionName;
 	}
@@ -92,10 +263,108 @@ public class MongoConfig {
 		return fullDocumentBeforeChange;
 	}
 
+	public ImageCachePolicy getImageCachePolicy() {
+		return imageCachePolicy;
+	}
+
+	/**
+	 * {@code fullDocument} option the change stream is opened with; no lookups when images are rebuilt from the cache.
+	 */
+	FullDocument getStreamFullDocument() {
+		return imageCachePolicy.isEnabled() ? FullDocument.DEFAULT : fullDocument;
+	}
+
+	/**
+	 * {@code fullDocumentBeforeChange} option the change stream is opened with; no pre-images when images are rebuilt
+	 * from the cache.
+	 */
+	FullDocumentBeforeChange getStreamFullDocumentBeforeChange() {
+		return imageCachePolicy.isEnabled() ? FullDocumentBeforeChange.DEFAULT : fullDocumentBeforeChange;
+	}
+
 	public long getMaxAwaitTimeInMs() {
 		return maxAwaitTimeInMs;
 	}
 
+	public CheckpointPolicy getCheckpointPolicy() {
+		return checkpointPolicy;
+	}
+
+	public LeasePolicy getLeasePolicy() {
+		return leasePolicy;
+	}
+
+	/**
+	 * @return the store of resume tokens given to the builder, or null to store them in the worker config collection
+	 */
+	public CheckpointStore getCheckpointStore() {
+		return checkpointStore;
+	}
+
+	public BootstrapPolicy getBootstrapPolicy() {
+		return bootstrapPolicy;
+	}
+
+	public BatchPolicy getBatchPolicy() {
+		return batchPolicy;
+	}
+
+	public BatchPolicy getCatchUpBatchPolicy() {
+		return catchUpBatchPolicy;
+	}
+
+	public BsonTimestamp getStartAtOperationTime() {
+		return startAtOperationTime;
+	}
+
+	public BsonDocument getStartAfter() {
+		return startAfter == null ? null : startAfter.clone();
+	}
+
+	/**
+	 * @return true if partitions without a resume token start at a configured position instead of the current end of
+	 * the change stream
+	 */
+	boolean hasStartPosition() {
+		return startAtOperationTime != null || startAfter != null;
+	}
+
+	public DispatchMode getDispatchMode() {
+		return dispatchMode;
+	}
+
+	public int getDispatchBufferCapacity() {
+		return dispatchBufferCapacity;
+	}
+
+	public int getDispatchLanes() {
+		return dispatchLanes;
+	}
+
+	public DeliveryMode getDeliveryMode() {
+		return deliveryMode;
+	}
+
+	public StreamMode getStreamMode() {
+		return streamMode;
+	}
+
+	public ChangeStreamMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ThreadFactory getThreadFactory() {
+		return threadFactory;
+	}
+
+	public ExecutorService getWorkerExecutor() {
+		return workerExecutor;
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
 	public static class MongoConfigBuilder {
 
 		private String connectionUri;
@@ -106,10 +375,18 @@ public class MongoConfig {
 
 		private Bson match = Filters.empty();
 
+		private EnumSet<OperationType> operationTypes = EnumSet.allOf(OperationType.class);
+
+		private ChangeStreamProjection projection = ChangeStreamProjection.none();
+
+		private List<Bson> stages = List.of();
+
 		private String keyName = "_id";
 
 		private int numberOfPartitions;
 
+		private int numberOfSlots;
+
 		private String workerConfigCollectionName = "changeStreamWorkerConfig";
 
 		private String clusterConfigCollectionName = "changeStreamClusterConfig";
@@ -118,9 +395,53 @@ public class MongoConfig {
 
 		private FullDocumentBeforeChange fullDocumentBeforeChange = FullDocumentBeforeChange.DEFAULT;
 
+		private ImageCachePolicy imageCachePolicy = ImageCachePolicy.disabled();
+
 		@SuppressWarnings("checkstyle:magicnumber")
 		private long maxAwaitTimeInMs = 1000;
 
+		private CheckpointPolicy checkpointPolicy = CheckpointPolicy.defaultPolicy();
+
+		private LeasePolicy leasePolicy = LeasePolicy.disabled();
+
+		private CheckpointStore checkpointStore;
+
+		private BootstrapPolicy bootstrapPolicy = BootstrapPolicy.disabled();
+
+		private BatchPolicy batchPolicy = BatchPolicy.defaultPolicy();
+
+		private BatchPolicy catchUpBatchPolicy = BatchPolicy.catchUpPolicy();
+
+		private BsonTimestamp startAtOperationTime;
+
+		private BsonDocument startAfter;
+
+		private DispatchMode dispatchMode = DispatchMode.DIRECT;
+
+		@SuppressWarnings("checkstyle:magicnumber")
+		private int dispatchBufferCapacity = 16;
+
+		@SuppressWarnings("checkstyle:magicnumber")
+		private int dispatchLanes = 4;
+
+		private DeliveryMode deliveryMode = DeliveryMode.DECODED;
+
+		private StreamMode streamMode = StreamMode.PER_PARTITION;
+
+		private ChangeStreamMetrics metrics = ChangeStreamMetrics.noop();
+
+		private MongoClientProvider clientProvider;
+
+		private MongoClientSettings clientSettings;
+
+		private boolean streamCompression = true;
+
+		private ThreadFactory threadFactory;
+
+		private ExecutorService workerExecutor;
+
+		private boolean virtualThreads;
+
 		public MongoConfigBuilder connectionUri(String connectionUri) {
 			this.connectionUri = connectionUri;
 			return this;
@@ -138,6 +459,7 @@ public class MongoConfig {
 
 		public MongoConfigBuilder match(Bson match) {
 			this.match = match;
+			this.operationTypes = EnumSet.allOf(OperationType.class);
 			return this;
 		}
 
@@ -152,6 +474,7 @@ public class MongoConfig {
 					? fieldFilters.get(0)
 					: Filters.or(fieldFilters);
 			this.match = Filters.and(this.match, fieldFilter);
+			this.operationTypes.retainAll(EnumSet.of(OperationType.UPDATE));
 			return this;
 		}
 
@@ -164,6 +487,26 @@ public class MongoConfig {
 					.toArray(String[]::new);
 			Bson operationTypeFilter = Filters.in("operationType", operationTypeValues);
 			this.match = Filters.and(this.match, operationTypeFilter);
+			this.operationTypes.retainAll(Arrays.asList(types));
+			return this;
+		}
+
+		/**
+		 * Fields of the documents and of {@code updateDescription} the server sends with each event, see
+		 * {@link ChangeStreamProjection}.
+		 */
+		public MongoConfigBuilder projection(ChangeStreamProjection projection) {
+			this.projection = projection;
+			return this;
+		}
+
+		/**
+		 * {@code $addFields}, {@code $set}, {@code $project} or {@code $unset} stages run by the server after the
+		 * partition filter and the projection. Stages must keep the {@code _id} resume token, {@code operationType},
+		 * {@code ns}, {@code documentKey} and the partitioning key; {@link #build()} rejects those that do not.
+		 */
+		public MongoConfigBuilder stages(Bson... stages) {
+			this.stages = List.of(stages);
 			return this;
 		}
 
@@ -177,6 +520,17 @@ public class MongoConfig {
 			return this;
 		}
 
+		/**
+		 * Number of slots keys are hashed into, each partition owning a contiguous range of them, so that
+		 * {@link MongoCseManager#repartition(int)} can split them into any number of partitions up to the number of slots
+		 * while every key keeps its slot. Defaults to the number of partitions. A collection keeps the slots of its cluster
+		 * config until {@code repartition} re-slots it.
+		 */
+		public MongoConfigBuilder numberOfSlots(int numberOfSlots) {
+			this.numberOfSlots = numberOfSlots;
+			return this;
+		}
+
 		public MongoConfigBuilder workerConfigCollectionName(String workerConfigCollectionName) {
 			this.workerConfigCollectionName = workerConfigCollectionName;
 			return this;
@@ -197,13 +551,197 @@ public class MongoConfig {
 			return this;
 		}
 
+		/**
+		 * Whether partitions rebuild post-images and pre-images from cached documents instead of asking the server for
+		 * them, see {@link ImageCachePolicy}. Takes the place of {@code fullDocument} and {@code fullDocumentBeforeChange},
+		 * and needs the default {@code _id} key.
+		 */
+		public MongoConfigBuilder imageCachePolicy(ImageCachePolicy imageCachePolicy) {
+			this.imageCachePolicy = imageCachePolicy;
+			return this;
+		}
+
 		public MongoConfigBuilder maxAwaitTimeInMs(long maxAwaitTimeInMs) {
 			this.maxAwaitTimeInMs = maxAwaitTimeInMs;
 			return this;
 		}
+
+		public MongoConfigBuilder checkpointPolicy(CheckpointPolicy checkpointPolicy) {
+			this.checkpointPolicy = checkpointPolicy;
+			return this;
+		}
+
+		/**
+		 * Whether managers of the collection in several processes split its partitions between them, see {@link LeasePolicy}.
+		 * Leases need {@link StreamMode#PER_PARTITION}.
+		 */
+		public MongoConfigBuilder leasePolicy(LeasePolicy leasePolicy) {
+			this.leasePolicy = leasePolicy;
+			return this;
+		}
+
+		/**
+		 * Where partitions store their resume tokens, see {@link CheckpointStore}. Defaults to the worker config
+		 * collection. Leases need the default store, since their fencing tokens are kept next to the resume tokens.
+		 */
+		public MongoConfigBuilder checkpointStore(CheckpointStore checkpointStore) {
+			this.checkpointStore = checkpointStore;
+			return this;
+		}
+
+		/**
+		 * Whether partitions without a resume token deliver the existing documents of the collection before its changes,
+		 * see {@link BootstrapPolicy}.
+		 */
+		public MongoConfigBuilder bootstrapPolicy(BootstrapPolicy bootstrapPolicy) {
+			this.bootstrapPolicy = bootstrapPolicy;
+			return this;
+		}
+
+		public MongoConfigBuilder batchPolicy(BatchPolicy batchPolicy) {
+			this.batchPolicy = batchPolicy;
+			return this;
+		}
+
+		/**
+		 * Batches read by partitions replaying events from an operation time, until they reach the end of the change
+		 * stream. Its {@code maxEvents} is also the batch size requested from the server. Defaults to
+		 * {@link BatchPolicy#catchUpPolicy()}.
+		 */
+		public MongoConfigBuilder catchUpBatchPolicy(BatchPolicy catchUpBatchPolicy) {
+			this.catchUpBatchPolicy = catchUpBatchPolicy;
+			return this;
+		}
+
+		/**
+		 * Operation time partitions without a resume token start their change stream at, instead of its current end.
+		 * Replaces any {@link #startAfter(BsonDocument)}.
+		 */
+		public MongoConfigBuilder startAtOperationTime(BsonTimestamp startAtOperationTime) {
+			this.startAtOperationTime = startAtOperationTime;
+			this.startAfter = null;
+			return this;
+		}
+
+		/**
+		 * Resume token partitions without a resume token of their own start their change stream after, also if it
+		 * belongs to an invalidate event. Replaces any {@link #startAtOperationTime(BsonTimestamp)}.
+		 */
+		public MongoConfigBuilder startAfter(BsonDocument startAfter) {
+			this.startAfter = startAfter == null ? null : startAfter.clone();
+			this.startAtOperationTime = null;
+			return this;
+		}
+
+		public MongoConfigBuilder dispatchMode(DispatchMode dispatchMode) {
+			this.dispatchMode = dispatchMode;
+			return this;
+		}
+
+		/**
+		 * Maximum number of batches queued between the reader and the dispatcher in {@link DispatchMode#PIPELINED} mode,
+		 * and between the shared stream and each partition in {@link StreamMode#FAN_OUT} mode. Must be at least 1.
+		 */
+		public MongoConfigBuilder dispatchBufferCapacity(int dispatchBufferCapacity) {
+			this.dispatchBufferCapacity = dispatchBufferCapacity;
+			return this;
+		}
+
+		/**
+		 * Number of lanes, each with its own thread, the events of a partition are spread over in {@link DispatchMode#KEYED} mode.
+		 * Must be at least 1.
+		 */
+		public MongoConfigBuilder dispatchLanes(int dispatchLanes) {
+			this.dispatchLanes = dispatchLanes;
+			return this;
+		}
+
+		public MongoConfigBuilder deliveryMode(DeliveryMode deliveryMode) {
+			this.deliveryMode = deliveryMode;
+			return this;
+		}
+
+		/**
+		 * Whether every partition opens its own change stream or all partitions share one, see {@link StreamMode}.
+		 */
+		public MongoConfigBuilder streamMode(StreamMode streamMode) {
+			this.streamMode = streamMode;
+			return this;
+		}
+
+		/**
+		 * Receives throughput, latency and lag measurements of the workers, see
+		 * {@link com.gravity9.mongocse.metrics.micrometer.MicrometerChangeStreamMetrics} for a Micrometer binding.
+		 */
+		public MongoConfigBuilder metrics(ChangeStreamMetrics metrics) {
+			this.metrics = metrics;
+			return this;
+		}
+
+		/**
+		 * Clients to use instead of creating new ones, e.g. shared by several managers. The provider is not closed by
+		 * the manager, and {@code connectionUri} and {@code clientSettings} are ignored.
+		 */
+		public MongoConfigBuilder clientProvider(MongoClientProvider clientProvider) {
+			this.clientProvider = clientProvider;
+			return this;
+		}
+
+		/**
+		 * Settings of the clients the manager creates, instead of the {@code connectionUri}. Change streams are read
+		 * with a client of their own, with one connection per stream the manager can open.
+		 */
+		public MongoConfigBuilder clientSettings(MongoClientSettings clientSettings) {
+			this.clientSettings = clientSettings;
+			return this;
+		}
+
+		/**
+		 * Whether the client the manager creates for change streams compresses wire traffic, see
+		 * {@link MongoClientProvider#create(MongoClientSettings, int)}. Enabled by default; compressors set in
+		 * {@code clientSettings} take precedence.
+		 */
+		public MongoConfigBuilder streamCompression(boolean streamCompression) {
+			this.streamCompression = streamCompression;
+			return this;
+		}
+
+		/**
+		 * Thread factory used for worker and dispatcher threads. Takes precedence over {@link #virtualThreads(boolean)}.
+		 */
+		public MongoConfigBuilder threadFactory(ThreadFactory threadFactory) {
+			this.threadFactory = threadFactory;
+			return this;
+		}
+
+		/**
+		 * Executor the workers are submitted to. Each worker occupies one thread of the executor until the manager is stopped,
+		 * so bounded pools must allow at least {@code numberOfPartitions} threads, one more in {@link StreamMode#FAN_OUT} mode. The executor is not shut down by the manager.
+		 */
+		public MongoConfigBuilder workerExecutor(ExecutorService workerExecutor) {
+			this.workerExecutor = workerExecutor;
+			return this;
+		}
+
+		/**
+		 * Runs workers and dispatchers on virtual threads instead of platform threads.
+		 */
+		public MongoConfigBuilder virtualThreads(boolean virtualThreads) {
+			this.virtualThreads = virtualThreads;
+			return this;
+		}
+
 		public MongoConfig build() {
+			requirePositive(dispatchBufferCapacity, "Dispatch buffer capacity");
+			requirePositive(dispatchLanes, "Number of dispatch lanes");
 			return new MongoConfig(this);
 		}
+
+		private static void requirePositive(int value, String setting) {
+			if (value < 1) {
+				throw new IllegalArgumentException(setting + " must be at least 1: " + value);
+			}
+		}
 	}
 
 }
@@ -0,0 +1,258 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.ChangeStreamListener;
+import com.gravity9.mongocse.logging.LoggingUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.stream.Stream;
+
+/**
+ * Handles change events of several collections of one database with a single change stream, a single connection
+ * pool and a single checkpointer, instead of one {@link MongoCseManager} per collection.
+ * <p>
+ * The stream watches the database and only passes events of the given collections. Events are routed by the
+ * collection of their namespace, then partitioned by {@code keyName} like in {@link StreamMode#FAN_OUT} mode.
+ * Every collection keeps its own cluster config and the resume tokens of its partitions in the same documents a
+ * {@link MongoCseManager} of that collection uses.
+ * All collections share the rest of the {@link MongoConfig}; its {@code collectionName} and {@code streamMode} are
+ * ignored. Partition numbers reported to {@link MongoConfig#getMetrics() metrics} are those of the event's
+ * collection.
+ */
+public class MongoCseDatabaseManager implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(MongoCseDatabaseManager.class);
+
+    private final String managerId;
+
+    private final String databaseName;
+
+    private final MongoClientProvider clientProvider;
+
+    private final boolean ownsClientProvider;
+
+    private final CheckpointStore checkpointStore;
+
+    private final ResumeTokenCheckpointer checkpointer;
+
+    private final WorkerThreads workerThreads;
+
+    private final FanOutStream stream;
+
+    private final Map<String, SlotLayout> layouts = new LinkedHashMap<>();
+
+    private final Map<String, Map<Integer, MongoChangeStreamWorker>> workers = new HashMap<>();
+
+    /**
+     * @param mongoConfig     configuration shared by all collections
+     * @param collectionNames collections of {@code databaseName} to watch
+     */
+    public MongoCseDatabaseManager(MongoConfig mongoConfig, Collection<String> collectionNames) {
+        if (collectionNames.isEmpty()) {
+            throw new IllegalArgumentException("Cannot watch database " + mongoConfig.getDatabaseName() + " without collections");
+        }
+        if (mongoConfig.getLeasePolicy().isEnabled()) {
+            throw new IllegalArgumentException("Leases can only be used by a " + MongoCseManager.class.getSimpleName());
+        }
+        if (mongoConfig.getBootstrapPolicy().isEnabled()) {
+            throw new IllegalArgumentException("Bootstrap snapshots can only be used by a " + MongoCseManager.class.getSimpleName());
+        }
+        if (mongoConfig.hasStartPosition()) {
+            throw new IllegalArgumentException("Start positions can only be used by a " + MongoCseManager.class.getSimpleName());
+        }
+        this.managerId = LoggingUtil.createDatabaseManagerId(mongoConfig);
+        this.databaseName = mongoConfig.getDatabaseName();
+        this.ownsClientProvider = mongoConfig.getClientProvider() == null;
+        this.clientProvider = ownsClientProvider
+                ? DefaultMongoClientProvider.forManager(mongoConfig, 1)
+                : mongoConfig.getClientProvider();
+        ConfigManager configManager = new ConfigManager(mongoConfig, clientProvider);
+        configManager.ensureIndexes();
+        for (String collectionName : new LinkedHashSet<>(collectionNames)) {
+            SlotLayout requestedLayout = SlotLayout.of(mongoConfig);
+            configManager.verifyClusterConfig(collectionName, requestedLayout);
+            layouts.put(collectionName, SlotLayout.of(configManager.getOrInitClusterConfig(collectionName, requestedLayout)));
+        }
+        this.checkpointStore = mongoConfig.getCheckpointStore() == null ? configManager : mongoConfig.getCheckpointStore();
+        this.workerThreads = new WorkerThreads(mongoConfig, managerId);
+        this.checkpointer = new ResumeTokenCheckpointer(checkpointStore, mongoConfig.getCheckpointPolicy(), mongoConfig.getMetrics(),
+                workerThreads, managerId);
+        this.stream = FanOutStream.forDatabase(mongoConfig, layouts, clientProvider, workerThreads, managerId);
+
+        layouts.forEach((collectionName, layout) -> {
+            log.info("{} - Creating workers for {} partitions for collection {}", managerId, layout.partitions(), collectionName);
+            var context = new WorkerContext(mongoConfig.withCollectionName(collectionName), layout, checkpointStore, checkpointer,
+                    managerId + "_" + collectionName, clientProvider, workerThreads, stream);
+            Map<Integer, MongoChangeStreamWorker> collectionWorkers = new HashMap<>(layout.partitions());
+            for (int partition = 0; partition < layout.partitions(); partition++) {
+                collectionWorkers.put(partition, new MongoChangeStreamWorker(context, partition));
+            }
+            workers.put(collectionName, collectionWorkers);
+        });
+    }
+
+    /**
+     * Starts the change stream and the workers of all collections, blocking until they are ready.
+     *
+     * @throws StartFailureException if an exception occurs during the start process
+     */
+    public void start() {
+        join(startAsync());
+    }
+
+    /**
+     * Starts the change stream and the workers of all collections without waiting for them. If any of them fails,
+     * all are stopped again and the future completes exceptionally with a {@link StartFailureException}.
+     */
+    public CompletableFuture<Void> startAsync() {
+        log.info("{} - Starting workers for {} collections of database {}", managerId, layouts.size(), databaseName);
+        Map<String, Map<Integer, ChangeStreamWorkerConfig>> configs = new HashMap<>();
+        try {
+            layouts.forEach((collectionName, layout) -> configs.put(collectionName, checkpointStore.getConfigsOrInit(collectionName, layout.partitions())));
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(StartFailureException.startFailure(e));
+        }
+        // the stream resets its inboxes before the workers open them
+        CompletableFuture<Void> streamStarted = stream.startAsync();
+        CompletableFuture<?>[] started = Stream.concat(
+                        workers.entrySet().stream().flatMap(collection -> collection.getValue().entrySet().stream()
+                                .map(worker -> worker.getValue().startAsync(configs.get(collection.getKey()).get(worker.getKey())))),
+                        Stream.of(streamStarted))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(started)
+                .thenRun(() -> log.info("{} - All workers for database {} are now ready!", managerId, databaseName))
+                .exceptionallyCompose(ex -> stopAsync()
+                        .handle((ignored, stopException) -> {
+                            if (stopException != null) {
+                                log.error("{} - Stop on exception failed", managerId, stopException);
+                            }
+                            throw StartFailureException.startFailure(unwrap(ex));
+                        }));
+    }
+
+    /**
+     * Stops the change stream and all workers, writing pending resume tokens before returning.
+     */
+    public void stop() {
+        join(stopAsync());
+    }
+
+    /**
+     * Stops the change stream, then lets the workers handle the batches already routed to them and stop.
+     *
+     * @return future completed once every worker has stopped and pending resume tokens are written
+     */
+    public CompletableFuture<Void> stopAsync() {
+        log.info("{} - Stopping workers for database {}", managerId, databaseName);
+        return stream.stopAsync()
+                .thenCompose(ignored -> CompletableFuture.allOf(allWorkers()
+                        .map(MongoChangeStreamWorker::stopAsync)
+                        .toArray(CompletableFuture[]::new)))
+                .thenRun(() -> {
+                    checkpointer.flush();
+                    log.info("{} - All workers for database {} are now stopped!", managerId, databaseName);
+                });
+    }
+
+    public Set<String> getCollectionNames() {
+        return Collections.unmodifiableSet(layouts.keySet());
+    }
+
+    /**
+     * Partition of the collection that events of documents with the given partition key value are delivered to,
+     * see {@link MongoCseManager#partitionOf(Object)}.
+     */
+    public OptionalInt partitionOf(String collectionName, Object key) {
+        SlotLayout layout = layoutOf(collectionName);
+        return Partitions.partitionOf(key, layout.partitions(), layout.slots());
+    }
+
+    public void registerListener(String collectionName, ChangeStreamListener listener, Collection<Integer> partitions) {
+        partitions.forEach(partition -> workerOf(collectionName, partition).register(listener));
+    }
+
+    public void registerListenerToAllPartitions(String collectionName, ChangeStreamListener listener) {
+        workersOf(collectionName).values().forEach(worker -> worker.register(listener));
+    }
+
+    public void deregisterListener(String collectionName, ChangeStreamListener listener, Collection<Integer> partitions) {
+        partitions.forEach(partition -> workerOf(collectionName, partition).deregister(listener));
+    }
+
+    public void deregisterListenerFromAllPartitions(String collectionName, ChangeStreamListener listener) {
+        workersOf(collectionName).values().forEach(worker -> worker.deregister(listener));
+    }
+
+    private SlotLayout layoutOf(String collectionName) {
+        SlotLayout layout = layouts.get(collectionName);
+        if (layout == null) {
+            throw new IllegalArgumentException("Collection " + collectionName + " is not watched by " + managerId);
+        }
+        return layout;
+    }
+
+    private Map<Integer, MongoChangeStreamWorker> workersOf(String collectionName) {
+        layoutOf(collectionName);
+        return workers.get(collectionName);
+    }
+
+    private MongoChangeStreamWorker workerOf(String collectionName, int partition) {
+        MongoChangeStreamWorker worker = workersOf(collectionName).get(partition);
+        if (worker == null) {
+            throw new IllegalArgumentException("No partition " + partition + " for collection " + collectionName);
+        }
+        return worker;
+    }
+
+    private Stream<MongoChangeStreamWorker> allWorkers() {
+        return workers.values().stream().flatMap(collectionWorkers -> collectionWorkers.values().stream());
+    }
+
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            stop();
+        } catch (Exception e) {
+            log.error("{} - Error stopping workers during close", managerId, e);
+        } finally {
+            try {
+                checkpointer.close();
+            } catch (Exception e) {
+                log.error("{} - Error writing pending resume tokens during close", managerId, e);
+            }
+            workerThreads.close();
+            if (ownsClientProvider) {
+                clientProvider.close();
+            }
+        }
+    }
+}
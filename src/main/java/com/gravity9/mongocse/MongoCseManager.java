@@ -2,15 +2,28 @@ package com.gravity9.mongocse;
 
 import com.gravity9.mongocse.listener.ChangeStreamListener;
 import com.gravity9.mongocse.logging.LoggingUtil;
+import org.bson.BsonTimestamp;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.IntFunction;
+import java.util.stream.Stream;
 
 public class MongoCseManager implements Closeable {
 
@@ -18,43 +31,110 @@ public class MongoCseManager implements Closeable {
 
     private final ConfigManager configManager;
 
+    private final CheckpointStore checkpointStore;
+
     private final MongoConfig mongoConfig;
 
-    private final WorkerClusterConfig clusterConfig;
+    private volatile WorkerClusterConfig clusterConfig;
+
+    private volatile SlotLayout slotLayout;
 
-    private final Map<Integer, MongoChangeStreamWorker> workers;
+    private volatile Map<Integer, MongoChangeStreamWorker> workers;
 
     private final String managerId;
 
     private final MongoClientProvider clientProvider;
 
+    private final boolean ownsClientProvider;
+
+    private final ResumeTokenCheckpointer checkpointer;
+
+    private final WorkerThreads workerThreads;
+
+    private final Set<ChangeStreamListener> allPartitionsListeners = new CopyOnWriteArraySet<>();
+
+    private volatile FanOutStream fanOutStream;
+
+    private volatile boolean running;
+
+    private final PartitionCoordinator coordinator;
+
     public MongoCseManager(MongoConfig mongoConfig) {
+        if (mongoConfig.getLeasePolicy().isEnabled() && mongoConfig.getStreamMode() != StreamMode.PER_PARTITION) {
+            throw new IllegalArgumentException("Leases can only be used in " + StreamMode.PER_PARTITION + " stream mode");
+        }
+        if (mongoConfig.getLeasePolicy().isEnabled() && mongoConfig.getCheckpointStore() != null) {
+            throw new IllegalArgumentException("Leases need the resume tokens in the worker config collection, not in a custom checkpoint store");
+        }
+        if (mongoConfig.getBootstrapPolicy().isEnabled() && mongoConfig.getStreamMode() != StreamMode.PER_PARTITION) {
+            throw new IllegalArgumentException("Bootstrap snapshots can only be used in " + StreamMode.PER_PARTITION + " stream mode");
+        }
+        if (mongoConfig.hasStartPosition() && mongoConfig.getStreamMode() != StreamMode.PER_PARTITION) {
+            throw new IllegalArgumentException("Start positions can only be used in " + StreamMode.PER_PARTITION + " stream mode");
+        }
+        if (mongoConfig.hasStartPosition() && mongoConfig.getBootstrapPolicy().isEnabled()) {
+            throw new IllegalArgumentException("Bootstrap snapshots start at the current end of the change stream, not at a start position");
+        }
         this.mongoConfig = mongoConfig;
         this.managerId = LoggingUtil.createManagerId(mongoConfig);
-        this.clientProvider = new DefaultMongoClientProvider(mongoConfig.getConnectionUri());
+        SlotLayout requestedLayout = SlotLayout.of(mongoConfig);
+        this.ownsClientProvider = mongoConfig.getClientProvider() == null;
+        // the stream client is created on first use, so the pool is sized for the stored layout below
+        this.clientProvider = ownsClientProvider
+                ? DefaultMongoClientProvider.forManager(mongoConfig, streamsOf(requestedLayout))
+                : mongoConfig.getClientProvider();
         this.configManager = new ConfigManager(mongoConfig, this.clientProvider);
-        configManager.verifyClusterConfig(mongoConfig.getCollectionName(), mongoConfig.getNumberOfPartitions());
-        this.clusterConfig = configManager.getOrInitClusterConfig(mongoConfig.getCollectionName(), mongoConfig.getNumberOfPartitions());
-        this.workers = createWorkers();
+        configManager.ensureIndexes();
+        configManager.verifyClusterConfig(mongoConfig.getCollectionName(), requestedLayout);
+        this.clusterConfig = configManager.getOrInitClusterConfig(mongoConfig.getCollectionName(), requestedLayout);
+        this.slotLayout = SlotLayout.of(clusterConfig);
+        resizeStreamConnections(streamsOf(slotLayout));
+        this.checkpointStore = mongoConfig.getCheckpointStore() == null ? configManager : mongoConfig.getCheckpointStore();
+        this.workerThreads = new WorkerThreads(mongoConfig, managerId);
+        this.checkpointer = new ResumeTokenCheckpointer(checkpointStore, mongoConfig.getCheckpointPolicy(), mongoConfig.getMetrics(),
+                workerThreads, managerId);
+        this.fanOutStream = createFanOutStream(slotLayout);
+        this.workers = createWorkers(slotLayout, fanOutStream, partition -> Set.of());
+        this.coordinator = mongoConfig.getLeasePolicy().isEnabled()
+                ? new PartitionCoordinator(mongoConfig, slotLayout.partitions(), configManager, checkpointer, workers::get,
+                        workerThreads, managerId)
+                : null;
     }
 
-    private Map<Integer, MongoChangeStreamWorker> createWorkers() {
-        var partitionsSize = clusterConfig.getPartitions();
-        if (partitionsSize < 1) {
-            throw new IllegalArgumentException("Cannot initialize with less than 1 partition!");
+    /**
+     * Change streams the workers of a layout read at the same time: one shared stream in {@link StreamMode#FAN_OUT}
+     * mode, one per partition otherwise.
+     */
+    private int streamsOf(SlotLayout layout) {
+        return mongoConfig.getStreamMode() == StreamMode.FAN_OUT ? 1 : layout.partitions();
+    }
+
+    /**
+     * Sizes the stream pool of a client provider the manager created; configured providers are left as they are.
+     */
+    private void resizeStreamConnections(int streams) {
+        if (ownsClientProvider && clientProvider instanceof DefaultMongoClientProvider provider) {
+            provider.resizeStreamConnections(streams);
         }
+    }
+
+    private FanOutStream createFanOutStream(SlotLayout layout) {
+        return mongoConfig.getStreamMode() == StreamMode.FAN_OUT
+                ? new FanOutStream(mongoConfig, layout, clientProvider, workerThreads, managerId)
+                : null;
+    }
 
+    private Map<Integer, MongoChangeStreamWorker> createWorkers(SlotLayout layout, FanOutStream stream,
+                                                                IntFunction<Collection<ChangeStreamListener>> listenersOf) {
+        var partitionsSize = layout.partitions();
         var collectionName = clusterConfig.getCollection();
         Map<Integer, MongoChangeStreamWorker> workersByPartitionMap = new HashMap<>(partitionsSize);
         log.info("{} - Creating workers for {} partitions for collection {}", managerId, partitionsSize, collectionName);
+        var context = new WorkerContext(mongoConfig, layout, checkpointStore, checkpointer, managerId, clientProvider, workerThreads, stream);
         for (int partition = 0; partition < partitionsSize; partition++) {
-            workersByPartitionMap.put(partition, new MongoChangeStreamWorker(
-                    mongoConfig,
-                    configManager,
-                    partition,
-                    managerId,
-                    clientProvider
-            ));
+            var worker = new MongoChangeStreamWorker(context, partition);
+            listenersOf.apply(partition).forEach(worker::register);
+            workersByPartitionMap.put(partition, worker);
         }
 
         return workersByPartitionMap;
@@ -68,34 +148,320 @@ public class MongoCseManager implements Closeable {
      * @throws StartFailureException if an exception occurs during the start process
      */
     public void start() {
+        join(startAsync());
+    }
+
+    /**
+     * Starts all workers in parallel without waiting for them.
+     * If any worker fails to open its change stream, all workers are stopped again and the future completes
+     * exceptionally with a {@link StartFailureException}.
+     * In {@link StreamMode#FAN_OUT} mode the shared change stream is started together with the workers.
+     * With a {@link LeasePolicy} only the workers of partitions leased by this manager are started; partitions are
+     * taken over and handed over in the background as managers of the collection start and stop.
+     *
+     * @return future completed once every worker is ready to process change events
+     */
+    public CompletableFuture<Void> startAsync() {
+        log.info("{} - Starting all workers for collection {}", managerId, clusterConfig.getCollection());
+        running = true;
+        if (coordinator != null) {
+            return coordinator.startAsync();
+        }
+        Map<Integer, ChangeStreamWorkerConfig> configs;
         try {
-            log.info("{} - Starting all workers for collection {}", managerId, clusterConfig.getCollection());
-            workers.values().forEach(worker -> {
-                runInNewThread(worker);
-                worker.awaitInitialization();
-            });
-            log.info("{} - All workers for collection {} are now ready!", managerId, clusterConfig.getCollection());
-        } catch (Exception ex) {
-            try {
-                stop();
-            } catch (Exception exception2) {
-                log.error("{} - Stop on exception failed", managerId, exception2);
-            }
-            throw StartFailureException.startFailure(ex);
+            configs = checkpointStore.getConfigsOrInit(clusterConfig.getCollection(), slotLayout.partitions());
+        } catch (RuntimeException e) {
+            running = false;
+            return CompletableFuture.failedFuture(StartFailureException.startFailure(e));
         }
+        FanOutStream stream = fanOutStream;
+        // the shared stream resets its inboxes before the workers open them
+        CompletableFuture<Void> streamStarted = stream == null ? CompletableFuture.completedFuture(null) : stream.startAsync();
+        CompletableFuture<?>[] started = Stream.concat(
+                        workers.entrySet().stream().map(worker -> worker.getValue().startAsync(configs.get(worker.getKey()))),
+                        Stream.of(streamStarted))
+                .toArray(CompletableFuture[]::new);
+
+        return CompletableFuture.allOf(started)
+                .thenRun(() -> log.info("{} - All workers for collection {} are now ready!", managerId, clusterConfig.getCollection()))
+                .exceptionallyCompose(ex -> stopAsync()
+                        .handle((ignored, stopException) -> {
+                            if (stopException != null) {
+                                log.error("{} - Stop on exception failed", managerId, stopException);
+                            }
+                            throw StartFailureException.startFailure(unwrap(ex));
+                        }));
     }
 
     /**
      * Stops all workers for the specified collection in the MongoDB change stream enhancer (CSE) manager.
      * This method stops the workers from listening for change events and processing them.
-     * It also sets the thread reference to null, indicating that the worker has been stopped.
-     *
-     * @throws NullPointerException if the thread is null
+     * Resume tokens that are still pending according to the {@link CheckpointPolicy} are written before returning.
      */
     public void stop() {
+        join(stopAsync());
+    }
+
+    /**
+     * Stops all workers in parallel without waiting for them.
+     * Workers waiting for new events on the server are woken up right away instead of waiting for
+     * {@code maxAwaitTimeInMs} to pass. In {@link StreamMode#FAN_OUT} mode the shared change stream is stopped first
+     * and the workers handle the batches it already routed to them before stopping.
+     * With a {@link LeasePolicy} the leases of this manager are released once the resume tokens are written.
+     *
+     * @return future completed once every worker has stopped and pending resume tokens are written
+     */
+    public CompletableFuture<Void> stopAsync() {
         log.info("{} - Stopping all workers for collection {}", managerId, clusterConfig.getCollection());
-        workers.values().forEach(MongoChangeStreamWorker::stop);
-        log.info("{} - All workers for collection {} are now stopped!", managerId, clusterConfig.getCollection());
+        running = false;
+        if (coordinator != null) {
+            return coordinator.stopAsync();
+        }
+        FanOutStream stream = fanOutStream;
+        Map<Integer, MongoChangeStreamWorker> runningWorkers = workers;
+        CompletableFuture<Void> streamStopped = stream == null ? CompletableFuture.completedFuture(null) : stream.stopAsync();
+
+        return streamStopped
+                .thenCompose(ignored -> CompletableFuture.allOf(runningWorkers.values().stream()
+                        .map(MongoChangeStreamWorker::stopAsync)
+                        .toArray(CompletableFuture[]::new)))
+                .thenRun(() -> {
+                    checkpointer.flush();
+                    log.info("{} - All workers for collection {} are now stopped!", managerId, clusterConfig.getCollection());
+                });
+    }
+
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        }
+    }
+
+    private static Throwable unwrap(Throwable throwable) {
+        return throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+    }
+
+    /**
+     * Partition events of documents with the given partition key value are delivered to, see {@link Partitions}.
+     *
+     * @return the partition, or empty if such events are not delivered to any partition
+     */
+    public OptionalInt partitionOf(Object key) {
+        SlotLayout layout = slotLayout;
+        return Partitions.partitionOf(key, layout.partitions(), layout.slots());
+    }
+
+    /**
+     * Aggregation pipeline the change stream of a partition is opened with, as JSON. In {@link StreamMode#FAN_OUT}
+     * mode all partitions share the same pipeline, without the partition filter.
+     */
+    public String describePipeline(int partition) {
+        SlotLayout layout = slotLayout;
+        if (partition < 0 || partition >= layout.partitions()) {
+            throw new IllegalArgumentException("No partition " + partition + " for collection " + clusterConfig.getCollection());
+        }
+        return PartitionPipelinePlanner.toJson(mongoConfig.getStreamMode() == StreamMode.PER_PARTITION
+                ? PartitionPipelinePlanner.partitionPipeline(mongoConfig, layout, partition)
+                : PartitionPipelinePlanner.sharedPipeline(mongoConfig));
+    }
+
+    /**
+     * Splits the slots of the collection into a different number of partitions, without skipping events or
+     * delivering them in both layouts.
+     * <p>
+     * The workers are stopped, and every partition behind the most recent resume token of all partitions handles
+     * its events up to that token on its own change stream. The new layout is then stored with that token as the
+     * resume token of all its partitions, and the workers are started again if they were running. This call blocks
+     * until the partitions have caught up. Listeners stay with their partition number: added partitions get the
+     * listeners registered to all partitions, and listeners of removed partitions are dropped.
+     * <p>
+     * Keys keep their slots, unless the {@code numberOfSlots} of this manager's config or {@code numberOfPartitions}
+     * is larger than the stored number of slots. Then the collection is re-slotted to the larger of the two: no events
+     * are in flight after the drain, so keys can move to other slots. Partitions that were rewound are drained from
+     * their operation time, and partitions that have not completed their bootstrap snapshot cannot be repartitioned.
+     * <p>
+     * Managers of the collection in other processes have to be stopped before, and created with the new
+     * {@code numberOfPartitions} afterwards.
+     *
+     * @param numberOfPartitions new number of partitions
+     * @throws IllegalStateException if a partition did not reach the common resume token or has not completed its
+     *                               bootstrap snapshot; the previous layout is kept. Also thrown if the manager uses a
+     *                               {@link LeasePolicy}
+     */
+    public synchronized void repartition(int numberOfPartitions) {
+        if (coordinator != null) {
+            throw new IllegalStateException("Cannot repartition collection " + clusterConfig.getCollection() + " while partitions are leased");
+        }
+        SlotLayout previousLayout = slotLayout;
+        int slots = Math.max(previousLayout.slots(), mongoConfig.getNumberOfSlots());
+        SlotLayout newLayout = new SlotLayout(Math.max(slots, numberOfPartitions), numberOfPartitions);
+        if (newLayout.equals(previousLayout)) {
+            return;
+        }
+
+        boolean wasRunning = running;
+        if (wasRunning) {
+            stop();
+        }
+        log.info("{} - Repartitioning collection {} from {} partitions over {} slots to {} partitions over {} slots", managerId,
+                clusterConfig.getCollection(), previousLayout.partitions(), previousLayout.slots(), numberOfPartitions, newLayout.slots());
+
+        String handOffToken;
+        try {
+            // every drained partition reads a stream of its own
+            resizeStreamConnections(previousLayout.partitions());
+            handOffToken = drainToCommonToken(previousLayout);
+        } catch (RuntimeException e) {
+            resizeStreamConnections(streamsOf(previousLayout));
+            if (wasRunning) {
+                log.warn("{} - Repartitioning failed, restarting {} partitions", managerId, previousLayout.partitions());
+                start();
+            }
+            throw e;
+        }
+
+        configManager.repartition(checkpointStore, clusterConfig.getCollection(), newLayout, previousLayout.partitions(), handOffToken);
+        Map<Integer, MongoChangeStreamWorker> previousWorkers = workers;
+        clusterConfig = configManager.getOrInitClusterConfig(clusterConfig.getCollection(), newLayout);
+        slotLayout = newLayout;
+        resizeStreamConnections(streamsOf(newLayout));
+        fanOutStream = createFanOutStream(newLayout);
+        workers = createWorkers(newLayout, fanOutStream, partition -> previousWorkers.containsKey(partition)
+                ? previousWorkers.get(partition).listeners()
+                : allPartitionsListeners);
+
+        if (wasRunning) {
+            start();
+        }
+    }
+
+    /**
+     * Delivers the events of the given partitions again, from an operation time on.
+     * <p>
+     * The workers of the partitions are stopped, their resume tokens are replaced by the operation time, and they are
+     * started again if the manager is running; the other partitions keep running. Rewound partitions read batches of
+     * the {@code catchUpBatchPolicy} until they reach the end of the change stream. Events are only replayed if the
+     * operation time is still in the oplog; otherwise the partitions start at the current end of the stream.
+     *
+     * @param operationTime cluster time of the first event to deliver again, e.g. from {@code event.getClusterTime()}
+     * @throws IllegalStateException if the manager uses a {@link LeasePolicy} or {@link StreamMode#FAN_OUT} mode, or if
+     *                               a worker did not stop within the shutdown timeout; the rewind is then aborted and
+     *                               the workers that did stop are started again
+     */
+    public synchronized void rewind(BsonTimestamp operationTime, Collection<Integer> partitions) {
+        if (coordinator != null) {
+            throw new IllegalStateException("Cannot rewind partitions of collection " + clusterConfig.getCollection() + " while partitions are leased");
+        }
+        if (mongoConfig.getStreamMode() != StreamMode.PER_PARTITION) {
+            throw new IllegalStateException("Partitions can only be rewound in " + StreamMode.PER_PARTITION + " stream mode");
+        }
+        Objects.requireNonNull(operationTime, "operationTime");
+        Map<Integer, MongoChangeStreamWorker> rewound = new TreeMap<>();
+        for (int partition : partitions) {
+            MongoChangeStreamWorker worker = workers.get(partition);
+            if (worker == null) {
+                throw new IllegalArgumentException("No partition " + partition + " for collection " + clusterConfig.getCollection());
+            }
+            rewound.put(partition, worker);
+        }
+
+        log.info("{} - Rewinding partitions {} of collection {} to operation time {}", managerId, rewound.keySet(), clusterConfig.getCollection(), operationTime);
+        join(CompletableFuture.allOf(rewound.values().stream()
+                .map(MongoChangeStreamWorker::stopAsync)
+                .toArray(CompletableFuture[]::new)));
+        List<Integer> stillRunning = rewound.entrySet().stream()
+                .filter(entry -> !entry.getValue().isTerminated())
+                .map(Map.Entry::getKey)
+                .toList();
+        if (stillRunning.isEmpty()) {
+            rewound.keySet().forEach(partition -> checkpointer.rewind(
+                    checkpointStore.getConfigOrInit(clusterConfig.getCollection(), partition).getId(), operationTime));
+        }
+        if (running) {
+            // a worker still in its loop is not started again, or two loops would read the same partition
+            join(CompletableFuture.allOf(rewound.values().stream()
+                    .filter(MongoChangeStreamWorker::isTerminated)
+                    .map(MongoChangeStreamWorker::startAsync)
+                    .toArray(CompletableFuture[]::new)));
+        }
+        if (!stillRunning.isEmpty()) {
+            throw new IllegalStateException(String.format("Cannot rewind collection %s, partitions %s did not stop in time",
+                    clusterConfig.getCollection(), stillRunning));
+        }
+    }
+
+    /**
+     * Lets every partition with an older resume token catch up with the most recent one. Partitions without a token
+     * that start at an operation time, after a rewind, or at the configured start position catch up from there.
+     *
+     * @return the resume token all partitions have reached, or null if no partition has a token yet
+     * @throws IllegalStateException if a partition has not completed its bootstrap snapshot, or if a partition has to
+     *                               catch up but no partition has a token to catch up to
+     */
+    private String drainToCommonToken(SlotLayout layout) {
+        Map<Integer, String> tokens = new HashMap<>();
+        Set<Integer> behind = new TreeSet<>();
+        checkpointStore.getConfigsOrInit(clusterConfig.getCollection(), layout.partitions()).forEach((partition, config) -> {
+            String token = config.getResumeToken();
+            if (config.getSnapshotResumeToken() != null
+                    || mongoConfig.getBootstrapPolicy().isEnabled() && token == null && config.getClusterTime() == null) {
+                throw new IllegalStateException(String.format("Cannot repartition collection %s before partition %d has completed its bootstrap snapshot",
+                        clusterConfig.getCollection(), partition));
+            }
+            if (token != null) {
+                tokens.put(partition, token);
+            } else if (config.getClusterTime() != null || mongoConfig.hasStartPosition()) {
+                behind.add(partition);
+            }
+        });
+        String handOffToken = tokens.values().stream().max(Comparator.naturalOrder()).orElse(null);
+        if (handOffToken == null) {
+            if (!behind.isEmpty()) {
+                throw new IllegalStateException(String.format("Cannot repartition collection %s before partitions %s have read from their start position",
+                        clusterConfig.getCollection(), behind));
+            }
+            return null;
+        }
+        tokens.forEach((partition, token) -> {
+            if (token.compareTo(handOffToken) < 0) {
+                behind.add(partition);
+            }
+        });
+
+        // drained partitions read their own change stream, also in FAN_OUT mode
+        var drainContext = new WorkerContext(mongoConfig, layout, checkpointStore, checkpointer, managerId, clientProvider, workerThreads, null);
+        Map<Integer, MongoChangeStreamWorker> draining = new HashMap<>();
+        for (int partition : behind) {
+            var worker = new MongoChangeStreamWorker(drainContext, partition);
+            workers.get(partition).listeners().forEach(worker::register);
+            draining.put(partition, worker);
+        }
+        log.info("{} - Draining {} partitions of collection {} up to resume token {}", managerId, draining.size(), clusterConfig.getCollection(), handOffToken);
+
+        join(CompletableFuture.allOf(draining.values().stream()
+                .map(worker -> worker.drainAsync(handOffToken))
+                .toArray(CompletableFuture[]::new)));
+        checkpointer.flush();
+        draining.forEach((partition, worker) -> {
+            if (!handOffToken.equals(worker.committedResumeToken())) {
+                throw new IllegalStateException(String.format("Partition %d of collection %s did not reach resume token %s",
+                        partition, clusterConfig.getCollection(), handOffToken));
+            }
+        });
+        return handOffToken;
+    }
+
+    /**
+     * Partitions this manager currently runs. Without a {@link LeasePolicy} these are all partitions.
+     */
+    public Set<Integer> ownedPartitions() {
+        return coordinator != null ? coordinator.ownedPartitions() : new TreeSet<>(workers.keySet());
     }
 
     public void registerListener(ChangeStreamListener listener, Collection<Integer> partitions) {
@@ -106,6 +472,7 @@ public class MongoCseManager implements Closeable {
     }
 
     public void registerListenerToAllPartitions(ChangeStreamListener listener) {
+        allPartitionsListeners.add(listener);
         workers.values().forEach(worker -> worker.register(listener));
     }
 
@@ -117,6 +484,7 @@ public class MongoCseManager implements Closeable {
     }
 
     public void deregisterListenerFromAllPartitions(ChangeStreamListener listener) {
+        allPartitionsListeners.remove(listener);
         workers.values().forEach(worker -> worker.deregister(listener));
     }
 
@@ -133,11 +501,6 @@ public class MongoCseManager implements Closeable {
         return Optional.of(worker);
     }
 
-    private void runInNewThread(MongoChangeStreamWorker worker) {
-        Thread thread = new Thread(worker);
-        thread.start();
-    }
-
     @Override
     public void close() throws IOException {
         try {
@@ -145,7 +508,18 @@ public class MongoCseManager implements Closeable {
         } catch (Exception e) {
             log.error("{} - Error stopping workers during close", managerId, e);
         } finally {
-            clientProvider.close();
+            try {
+                checkpointer.close();
+            } catch (Exception e) {
+                log.error("{} - Error writing pending resume tokens during close", managerId, e);
+            }
+            if (coordinator != null) {
+                coordinator.close();
+            }
+            workerThreads.close();
+            if (ownsClientProvider) {
+                clientProvider.close();
+            }
         }
     }
 }
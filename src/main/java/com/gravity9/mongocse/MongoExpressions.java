@@ -29,6 +29,18 @@ class MongoExpressions {
 		return new Document("$mod", List.of(expr, value));
 	}
 
+	static Bson multiply(Bson expr, int value) {
+		return new Document("$multiply", List.of(expr, value));
+	}
+
+	static Bson divide(Bson expr, int value) {
+		return new Document("$divide", List.of(expr, value));
+	}
+
+	static Bson floor(Bson expr) {
+		return new Document("$floor", expr);
+	}
+
 	static BsonString fullDocumentKey(String keyName) {
 		return new BsonString("$fullDocument." + keyName);
 	}
@@ -0,0 +1,142 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonValue;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Documents of a {@link MaterializedView} whose keys hash to this segment, stored as BSON in direct memory pages.
+ * <p>
+ * Pages are append-only: a new version of a document is written behind the old one, and the index entry is swapped
+ * after the bytes are written, so readers never see a partial document and never take a lock. Writers are serialized
+ * per segment. Once less than half of the allocated memory holds live documents, the live documents are copied into
+ * fresh pages. Old pages are freed by the garbage collector once no reader uses them anymore.
+ */
+final class OffHeapSegment {
+
+    /**
+     * Location of a document in a page, with the values of the view's indexed fields.
+     */
+    record Entry(BsonValue id, ByteBuffer page, int offset, int length, BsonValue[] indexed) {
+    }
+
+    private static final int MIN_PAGES_TO_COMPACT = 2;
+
+    private final int pageSize;
+
+    private final Map<BsonValue, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    private final AtomicLong liveBytes = new AtomicLong();
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    private ByteBuffer page;
+
+    private int pageOffset;
+
+    OffHeapSegment(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    Entry get(BsonValue key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Copies the document of an entry to the heap.
+     */
+    static byte[] read(Entry entry) {
+        byte[] bytes = new byte[entry.length()];
+        entry.page().get(entry.offset(), bytes);
+        return bytes;
+    }
+
+    /**
+     * @param document BSON of the document, from its position to its limit
+     * @return the entry of the previous version of the document, or null
+     */
+    synchronized Entry put(BsonValue key, BsonValue id, ByteBuffer document, BsonValue[] indexed) {
+        Entry entry = write(id, document, document.position(), document.remaining(), indexed);
+        Entry previous = entries.put(key, entry);
+        liveBytes.addAndGet(entry.length() - (previous == null ? 0 : previous.length()));
+        compactIfSparse();
+        return previous;
+    }
+
+    /**
+     * @param ownerId if not null, the entry is only removed if it holds the document with this {@code _id}
+     * @return the removed entry, or null
+     */
+    synchronized Entry remove(BsonValue key, BsonValue ownerId) {
+        Entry entry = entries.get(key);
+        if (entry == null || ownerId != null && !ownerId.equals(entry.id())) {
+            return null;
+        }
+        entries.remove(key);
+        liveBytes.addAndGet(-entry.length());
+        compactIfSparse();
+        return entry;
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        page = null;
+        pageOffset = 0;
+        allocatedBytes.set(0);
+        liveBytes.set(0);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    long allocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    long liveBytes() {
+        return liveBytes.get();
+    }
+
+    long compactions() {
+        return compactions.get();
+    }
+
+    private Entry write(BsonValue id, ByteBuffer source, int sourceOffset, int length, BsonValue[] indexed) {
+        ByteBuffer target;
+        int offset;
+        if (length > pageSize) {
+            target = ByteBuffer.allocateDirect(length);
+            offset = 0;
+            allocatedBytes.addAndGet(length);
+        } else {
+            if (page == null || pageOffset + length > pageSize) {
+                page = ByteBuffer.allocateDirect(pageSize);
+                pageOffset = 0;
+                allocatedBytes.addAndGet(pageSize);
+            }
+            target = page;
+            offset = pageOffset;
+            pageOffset += length;
+        }
+        target.put(offset, source, sourceOffset, length);
+        return new Entry(id, target, offset, length, indexed);
+    }
+
+    private void compactIfSparse() {
+        long allocated = allocatedBytes.get();
+        if (allocated < (long) pageSize * MIN_PAGES_TO_COMPACT || liveBytes.get() * 2 >= allocated) {
+            return;
+        }
+        page = null;
+        pageOffset = 0;
+        allocatedBytes.set(0);
+        entries.replaceAll((key, entry) -> write(entry.id(), entry.page(), entry.offset(), entry.length(), entry.indexed()));
+        compactions.incrementAndGet();
+    }
+}
@@ -0,0 +1,197 @@
+package com.gravity9.mongocse;
+
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntFunction;
+
+/**
+ * Runs the partitions a manager holds a lease for, see {@link LeasePolicy}.
+ * <p>
+ * Every heartbeat the coordinator registers its manager as a live member, renews its leases and compares them with
+ * its share of the partitions: with live members sorted by id, partition {@code p} belongs to the member at index
+ * {@code p % members}. Partitions it should no longer run are stopped, their resume tokens written, and their lease
+ * released, so that the next owner resumes at the last checkpoint. Partitions it should run are started once their
+ * lease is free or expired. A partition whose lease could not be renewed is stopped right away. Every lease
+ * acquisition stamps the worker config with a new fencing token, and the checkpointer only writes resume tokens of
+ * the fencing token it was given, so a manager that lost a lease can no longer overwrite the new owner's checkpoints.
+ * All rounds run on a single scheduler thread from the manager's {@link WorkerThreads}.
+ */
+final class PartitionCoordinator implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionCoordinator.class);
+
+    private final String collectionName;
+
+    private final int partitions;
+
+    private final LeasePolicy leasePolicy;
+
+    private final ConfigManager configManager;
+
+    private final ResumeTokenCheckpointer checkpointer;
+
+    private final IntFunction<MongoChangeStreamWorker> workerOf;
+
+    private final String memberId;
+
+    private final ScheduledExecutorService scheduler;
+
+    private final Map<Integer, Long> ownedLeases = new ConcurrentHashMap<>();
+
+    private ScheduledFuture<?> rounds;
+
+    PartitionCoordinator(MongoConfig mongoConfig, int partitions, ConfigManager configManager,
+                         ResumeTokenCheckpointer checkpointer, IntFunction<MongoChangeStreamWorker> workerOf,
+                         WorkerThreads workerThreads, String managerId) {
+        this.collectionName = mongoConfig.getCollectionName();
+        this.partitions = partitions;
+        this.leasePolicy = mongoConfig.getLeasePolicy();
+        this.configManager = configManager;
+        this.checkpointer = checkpointer;
+        this.workerOf = workerOf;
+        this.memberId = managerId + "_" + new ObjectId().toHexString();
+        this.scheduler = workerThreads.newScheduledExecutor(managerId + "_coordinator");
+    }
+
+    /**
+     * Registers the member and starts the partitions it can lease right away.
+     *
+     * @return future completed after the first round; later rounds run every heartbeat interval
+     */
+    CompletableFuture<Void> startAsync() {
+        return CompletableFuture.runAsync(() -> {
+            round();
+            rounds = scheduler.scheduleWithFixedDelay(this::roundQuietly, leasePolicy.getHeartbeatIntervalMs(),
+                    leasePolicy.getHeartbeatIntervalMs(), TimeUnit.MILLISECONDS);
+        }, scheduler);
+    }
+
+    /**
+     * Stops the owned partitions, writes their resume tokens and releases their leases, so that other members
+     * take them over without waiting for the leases to expire.
+     */
+    CompletableFuture<Void> stopAsync() {
+        return CompletableFuture.runAsync(() -> {
+            if (rounds != null) {
+                rounds.cancel(false);
+                rounds = null;
+            }
+            Set<Integer> owned = Set.copyOf(ownedLeases.keySet());
+            stopWorkers(owned);
+            checkpointer.flush();
+            owned.forEach(this::release);
+            configManager.leave(collectionName, memberId);
+            log.info("{} - Left the members of collection {}", memberId, collectionName);
+        }, scheduler);
+    }
+
+    Set<Integer> ownedPartitions() {
+        return new TreeSet<>(ownedLeases.keySet());
+    }
+
+    private void roundQuietly() {
+        try {
+            round();
+        } catch (Exception e) {
+            log.error("{} - Coordination round failed, will retry on next heartbeat", memberId, e);
+        }
+    }
+
+    private void round() {
+        configManager.heartbeat(collectionName, memberId, leasePolicy.getLeaseDurationMs());
+        renewLeases();
+
+        List<String> members = configManager.liveMembers(collectionName);
+        int index = members.indexOf(memberId);
+        Set<Integer> desired = new TreeSet<>();
+        for (int partition = 0; partition < partitions && index >= 0; partition++) {
+            if (partition % members.size() == index) {
+                desired.add(partition);
+            }
+        }
+
+        Set<Integer> handedOver = new TreeSet<>(ownedLeases.keySet());
+        handedOver.removeAll(desired);
+        if (!handedOver.isEmpty()) {
+            log.info("{} - Handing over partitions {} of collection {} to {} live members", memberId, handedOver, collectionName, members.size());
+            stopWorkers(handedOver);
+            checkpointer.flush();
+            handedOver.forEach(this::release);
+        }
+
+        Map<Integer, CompletableFuture<Void>> started = new HashMap<>();
+        desired.stream()
+                .filter(partition -> !ownedLeases.containsKey(partition))
+                .forEach(partition -> acquire(partition).ifPresent(future -> started.put(partition, future)));
+        started.forEach((partition, future) -> {
+            try {
+                future.join();
+            } catch (RuntimeException e) {
+                log.error("{} - Partition {} of collection {} failed to start, releasing its lease", memberId, partition, collectionName, e);
+                stopWorkers(Set.of(partition));
+                release(partition);
+            }
+        });
+    }
+
+    private void renewLeases() {
+        Map.copyOf(ownedLeases).forEach((partition, fencingToken) -> {
+            if (!configManager.renewLease(collectionName, partition, memberId, fencingToken, leasePolicy.getLeaseDurationMs())) {
+                log.warn("{} - Lost the lease of partition {} of collection {}, stopping it", memberId, partition, collectionName);
+                ownedLeases.remove(partition);
+                workerOf.apply(partition).stopAsync().join();
+                checkpointer.discard(configManager.getConfigOrInit(collectionName, partition).getId());
+            }
+        });
+    }
+
+    private Optional<CompletableFuture<Void>> acquire(int partition) {
+        OptionalLong fencingToken = configManager.acquireLease(collectionName, partition, memberId, leasePolicy.getLeaseDurationMs());
+        if (fencingToken.isEmpty()) {
+            return Optional.empty();
+        }
+        ObjectId configId = configManager.getConfigOrInit(collectionName, partition).getId();
+        if (!configManager.fence(configId, fencingToken.getAsLong())) {
+            log.warn("{} - Partition {} of collection {} is fenced by a newer lease", memberId, partition, collectionName);
+            configManager.releaseLease(collectionName, partition, memberId, fencingToken.getAsLong());
+            return Optional.empty();
+        }
+        checkpointer.fence(configId, fencingToken.getAsLong());
+        ownedLeases.put(partition, fencingToken.getAsLong());
+        log.info("{} - Took over partition {} of collection {} with fencing token {}", memberId, partition, collectionName, fencingToken.getAsLong());
+        return Optional.of(workerOf.apply(partition).startAsync());
+    }
+
+    private void stopWorkers(Set<Integer> stopped) {
+        CompletableFuture.allOf(stopped.stream()
+                .map(partition -> workerOf.apply(partition).stopAsync())
+                .toArray(CompletableFuture[]::new)).join();
+    }
+
+    private void release(int partition) {
+        Long fencingToken = ownedLeases.remove(partition);
+        if (fencingToken != null) {
+            configManager.releaseLease(collectionName, partition, memberId, fencingToken);
+        }
+    }
+
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+}
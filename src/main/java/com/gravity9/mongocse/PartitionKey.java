@@ -0,0 +1,145 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.Decimal128;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Reads the partition key of change events and computes their partitions on the client, with the same result as
+ * the {@code $match} stage built by {@link ChangeStreamIterableFactory}: the key is read from {@code fullDocument},
+ * {@code documentKey} and {@code fullDocumentBeforeChange} with aggregation field path semantics, falsy keys belong
+ * to no partition, and a truthy key belongs to the partition {@link SlotLayout} assigns its slot to.
+ */
+final class PartitionKey {
+
+    private static final String KEY_FIELD = "key";
+
+    private static final int NO_PARTITION = -1;
+
+    private final List<String> keyPath;
+
+    PartitionKey(String keyName) {
+        this.keyPath = Arrays.asList(keyName.split("\\."));
+    }
+
+    /**
+     * @return the first key found in {@code documentKey}, {@code fullDocument} or {@code fullDocumentBeforeChange},
+     * or null if the event has no key at all
+     */
+    BsonValue keyOf(ChangeStreamDocument<Document> event) {
+        BsonValue key = documentKeyValue(event);
+        if (key == null) {
+            key = fullDocumentValue(event.getFullDocument());
+        }
+        if (key == null) {
+            key = fullDocumentValue(event.getFullDocumentBeforeChange());
+        }
+        return key;
+    }
+
+    /**
+     * Calls {@code action} once for every distinct partition the server-side filter delivers the event to, that is
+     * at most once for each of the three places the key is read from.
+     */
+    void forEachPartition(ChangeStreamDocument<Document> event, SlotLayout layout, IntConsumer action) {
+        int fromFullDocument = layout.partitionOf(fullDocumentValue(event.getFullDocument()));
+        int fromDocumentKey = layout.partitionOf(documentKeyValue(event));
+        int fromBeforeChange = layout.partitionOf(fullDocumentValue(event.getFullDocumentBeforeChange()));
+
+        if (fromFullDocument != NO_PARTITION) {
+            action.accept(fromFullDocument);
+        }
+        if (fromDocumentKey != NO_PARTITION && fromDocumentKey != fromFullDocument) {
+            action.accept(fromDocumentKey);
+        }
+        if (fromBeforeChange != NO_PARTITION && fromBeforeChange != fromFullDocument && fromBeforeChange != fromDocumentKey) {
+            action.accept(fromBeforeChange);
+        }
+    }
+
+    /**
+     * @return {@code abs(toHashedIndexKey(key)) % partitions}, or {@code -1} if the key is missing or falsy
+     */
+    static int partitionOf(BsonValue key, int partitions) {
+        if (!isTruthy(key)) {
+            return NO_PARTITION;
+        }
+        // same as abs(hash) % partitions for every hash the server accepts
+        return (int) Math.abs(HashedIndexKey.hash(key) % partitions);
+    }
+
+    /**
+     * Same as the coercion to boolean in {@code $cond}: missing, null, undefined, {@code false} and numeric zero are
+     * false, everything else is true.
+     */
+    static boolean isTruthy(BsonValue value) {
+        if (value == null) {
+            return false;
+        }
+        return switch (value.getBsonType()) {
+            case NULL, UNDEFINED -> false;
+            case BOOLEAN -> value.asBoolean().getValue();
+            case INT32 -> value.asInt32().getValue() != 0;
+            case INT64 -> value.asInt64().getValue() != 0;
+            case DOUBLE -> value.asDouble().getValue() != 0;
+            case DECIMAL128 -> !isZero(value.asDecimal128().getValue());
+            default -> true;
+        };
+    }
+
+    private static boolean isZero(Decimal128 value) {
+        return !value.isNaN() && !value.isInfinite() && HashedIndexKey.toBigDecimal(value).signum() == 0;
+    }
+
+    private BsonValue documentKeyValue(ChangeStreamDocument<Document> event) {
+        BsonDocument documentKey = event.getDocumentKey();
+        return documentKey == null ? null : resolve(documentKey, 0);
+    }
+
+    private BsonValue fullDocumentValue(Document document) {
+        if (document == null) {
+            return null;
+        }
+        // only the first field is converted, so lazy documents stay undecoded
+        Object value = document.get(keyPath.get(0));
+        if (value == null) {
+            return null;
+        }
+        BsonValue first = new Document(KEY_FIELD, value).toBsonDocument().get(KEY_FIELD);
+        return resolve(first, 1);
+    }
+
+    /**
+     * Resolves the rest of the key path like an aggregation field path: arrays on the way are traversed and yield an
+     * array of the values found in their documents.
+     */
+    private BsonValue resolve(BsonValue value, int index) {
+        if (index == keyPath.size()) {
+            return value;
+        }
+        if (value.isDocument()) {
+            BsonValue field = value.asDocument().get(keyPath.get(index));
+            return field == null ? null : resolve(field, index + 1);
+        }
+        if (value.isArray()) {
+            BsonArray values = new BsonArray();
+            for (BsonValue element : value.asArray()) {
+                if (element.isDocument() || element.isArray()) {
+                    BsonValue resolved = resolve(element, index);
+                    if (resolved != null) {
+                        values.add(resolved);
+                    }
+                }
+            }
+            return values;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,184 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.gravity9.mongocse.MongoExpressions.and;
+import static com.gravity9.mongocse.MongoExpressions.documentKey;
+import static com.gravity9.mongocse.MongoExpressions.eq;
+import static com.gravity9.mongocse.MongoExpressions.expr;
+import static com.gravity9.mongocse.MongoExpressions.fullDocumentBeforeChangeKey;
+import static com.gravity9.mongocse.MongoExpressions.fullDocumentKey;
+import static com.gravity9.mongocse.MongoExpressions.or;
+
+/**
+ * Builds the smallest {@code $match} stage that selects the events of a partition for the given configuration.
+ * <p>
+ * An event belongs to every partition its key hashes to in {@code fullDocument}, {@code documentKey} or
+ * {@code fullDocumentBeforeChange}. The planner leaves out the places the key can never be found in, and so the
+ * hash expressions the server would evaluate for nothing on every event:
+ * <ul>
+ *     <li>an {@code _id} key is the same in all three places, so {@code documentKey} alone is enough</li>
+ *     <li>{@code fullDocumentBeforeChange} is only set when pre-images are requested, and only for updates, replaces
+ *     and deletes</li>
+ *     <li>{@code fullDocument} is only set for inserts and replaces, and for updates unless {@code fullDocument} is
+ *     {@link FullDocument#DEFAULT}</li>
+ *     <li>{@code documentKey} is kept for other keys, since it contains the shard key of sharded collections</li>
+ * </ul>
+ * The user {@code match}, with its {@code operationType} and field filters, comes first, and every hash expression
+ * of a top-level key is preceded by an {@code $exists} check, so the server only evaluates the expression for events
+ * that have the key. The {@link ChangeStreamProjection projection} and user stages come after the match.
+ */
+final class PartitionPipelinePlanner {
+
+    private static final Set<OperationType> FULL_DOCUMENT_OPERATIONS = EnumSet.of(OperationType.INSERT, OperationType.REPLACE);
+
+    private static final Set<OperationType> PRE_IMAGE_OPERATIONS = EnumSet.of(OperationType.UPDATE, OperationType.REPLACE, OperationType.DELETE);
+
+    private static final Set<OperationType> DOCUMENT_KEY_OPERATIONS = EnumSet.of(
+            OperationType.INSERT, OperationType.UPDATE, OperationType.REPLACE, OperationType.DELETE);
+
+    private static final String ID_FIELD = "_id";
+
+    private PartitionPipelinePlanner() {
+    }
+
+    static List<Bson> partitionPipeline(MongoConfig mongoConfig, SlotLayout layout, int partition) {
+        return withStages(mongoConfig, Aggregates.match(and(List.of(mongoConfig.getMatch(), partitionFilter(mongoConfig, layout, partition)))));
+    }
+
+    /**
+     * Pipeline of the shared stream in {@link StreamMode#FAN_OUT} mode, which partitions events on the client.
+     */
+    static List<Bson> sharedPipeline(MongoConfig mongoConfig) {
+        return withStages(mongoConfig, Aggregates.match(mongoConfig.getMatch()));
+    }
+
+    /**
+     * Pipeline of the stream of a {@link MongoCseDatabaseManager}, which only passes events of the given collections.
+     * The collection filter comes first, so the user match is only evaluated for events the manager routes.
+     */
+    static List<Bson> databasePipeline(MongoConfig mongoConfig, Collection<String> collectionNames) {
+        return withStages(mongoConfig, Aggregates.match(Filters.and(Filters.in("ns.coll", collectionNames), mongoConfig.getMatch())));
+    }
+
+    /**
+     * Pipeline of a partition's {@link BootstrapPolicy bootstrap} scan. Documents of the collection are read in
+     * {@code _id} order, after {@code afterId} if given, and shaped into the {@code insert} events a change stream
+     * would have delivered for them, so the partition filter, the user match, the projection and the user stages
+     * select and reshape them like change events.
+     */
+    static List<Bson> snapshotPipeline(MongoConfig mongoConfig, SlotLayout layout, int partition, BsonValue afterId) {
+        String keyName = mongoConfig.getKeyName();
+        Bson partitionFilter = isIdKey(keyName)
+                ? partitionMatchExpression(documentKey(keyName), layout, partition)
+                : guarded("fullDocument", keyName, fullDocumentKey(keyName), layout, partition);
+        List<Bson> pipeline = new ArrayList<>();
+        if (afterId != null) {
+            pipeline.add(Aggregates.match(Filters.gt(ID_FIELD, afterId)));
+        }
+        pipeline.add(Aggregates.sort(Sorts.ascending(ID_FIELD)));
+        pipeline.add(Aggregates.replaceWith(new Document("operationType", OperationType.INSERT.getValue())
+                .append("ns", new Document("db", mongoConfig.getDatabaseName()).append("coll", mongoConfig.getCollectionName()))
+                .append("documentKey", new Document(ID_FIELD, "$" + ID_FIELD))
+                .append("fullDocument", "$$ROOT")));
+        pipeline.addAll(withStages(mongoConfig, Aggregates.match(and(List.of(mongoConfig.getMatch(), partitionFilter)))));
+        return pipeline;
+    }
+
+    /**
+     * The projection and user stages reshape events only after the match, which needs the complete event.
+     */
+    private static List<Bson> withStages(MongoConfig mongoConfig, Bson match) {
+        List<Bson> pipeline = new ArrayList<>();
+        pipeline.add(match);
+        pipeline.addAll(mongoConfig.getProjection().stages(mongoConfig.getKeyName()));
+        pipeline.addAll(mongoConfig.getStages());
+        return pipeline;
+    }
+
+    /**
+     * @return the pipeline as a JSON array, with the user match rendered by the default codec registry
+     */
+    static String toJson(List<Bson> pipeline) {
+        return pipeline.stream()
+                .map(stage -> stage.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry()).toJson())
+                .collect(Collectors.joining(", ", "[", "]"));
+    }
+
+    static Bson partitionFilter(MongoConfig mongoConfig, SlotLayout layout, int partition) {
+        String keyName = mongoConfig.getKeyName();
+        List<Bson> branches = new ArrayList<>();
+        if (isIdKey(keyName)) {
+            branches.add(partitionMatchExpression(documentKey(keyName), layout, partition));
+        } else {
+            Set<OperationType> operationTypes = mongoConfig.getOperationTypes();
+            if (hasFullDocument(mongoConfig.getStreamFullDocument(), operationTypes)) {
+                branches.add(guarded("fullDocument", keyName, fullDocumentKey(keyName), layout, partition));
+            }
+            if (containsAny(operationTypes, DOCUMENT_KEY_OPERATIONS)) {
+                branches.add(guarded("documentKey", keyName, documentKey(keyName), layout, partition));
+            }
+            if (hasPreImage(mongoConfig.getStreamFullDocumentBeforeChange(), operationTypes)) {
+                branches.add(guarded("fullDocumentBeforeChange", keyName, fullDocumentBeforeChangeKey(keyName), layout, partition));
+            }
+        }
+
+        if (branches.isEmpty()) {
+            // none of the selected operation types carries the key, so the partition receives no events
+            return new Document("$expr", false);
+        }
+        return branches.size() == 1 ? branches.get(0) : or(branches);
+    }
+
+    private static boolean isIdKey(String keyName) {
+        return "_id".equals(keyName) || keyName.startsWith("_id.");
+    }
+
+    private static boolean hasFullDocument(FullDocument fullDocument, Set<OperationType> operationTypes) {
+        return containsAny(operationTypes, FULL_DOCUMENT_OPERATIONS)
+                || fullDocument != FullDocument.DEFAULT && operationTypes.contains(OperationType.UPDATE);
+    }
+
+    private static boolean hasPreImage(FullDocumentBeforeChange fullDocumentBeforeChange, Set<OperationType> operationTypes) {
+        return (fullDocumentBeforeChange == FullDocumentBeforeChange.WHEN_AVAILABLE || fullDocumentBeforeChange == FullDocumentBeforeChange.REQUIRED)
+                && containsAny(operationTypes, PRE_IMAGE_OPERATIONS);
+    }
+
+    private static boolean containsAny(Set<OperationType> operationTypes, Set<OperationType> wanted) {
+        return wanted.stream().anyMatch(operationTypes::contains);
+    }
+
+    /**
+     * An {@code $exists} check in front of the hash expression matches the same events as long as the key has no
+     * dots: aggregation paths through arrays can resolve to an empty array, which is truthy while {@code $exists}
+     * is false, so dotted keys are left unguarded.
+     */
+    private static Bson guarded(String location, String keyName, BsonValue keyPath, SlotLayout layout, int partition) {
+        Bson expression = partitionMatchExpression(keyPath, layout, partition);
+        if (keyName.contains(".")) {
+            return expression;
+        }
+        return and(List.of(Filters.exists(location + "." + keyName), expression));
+    }
+
+    private static Bson partitionMatchExpression(BsonValue keyPath, SlotLayout layout, int partitionNo) {
+        return expr(eq(layout.partitionExpression(keyPath), partitionNo));
+    }
+}
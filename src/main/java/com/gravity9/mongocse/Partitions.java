@@ -0,0 +1,63 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonValue;
+import org.bson.Document;
+
+import java.util.OptionalInt;
+
+/**
+ * Computes partitions on the client, with the same result as the {@code $match} stage of the partition change
+ * streams. Producers and other services can use it to find the partition, and so the consumer, that owns a key.
+ * <p>
+ * Keys are converted to BSON with the driver's default codec registry, so {@code 42}, {@code 42L} and
+ * {@code 42.5} hash alike, like they do on the server, and an {@link org.bson.types.ObjectId} hashes like a
+ * {@link org.bson.BsonObjectId}. Keys that are {@code null}, {@code false} or numeric zero belong to no partition:
+ * events of such documents are not delivered to any worker.
+ */
+public final class Partitions {
+
+    private static final String KEY_FIELD = "key";
+
+    private Partitions() {
+    }
+
+    /**
+     * @param key                partition key value, a Java value supported by the default codec registry or a {@link BsonValue}
+     * @param numberOfPartitions number of partitions of the collection
+     * @return the partition the key belongs to, or empty if the key belongs to no partition
+     */
+    public static OptionalInt partitionOf(Object key, int numberOfPartitions) {
+        if (numberOfPartitions < 1) {
+            throw new IllegalArgumentException("Number of partitions must be at least 1: " + numberOfPartitions);
+        }
+        return partitionOf(key, numberOfPartitions, numberOfPartitions);
+    }
+
+    /**
+     * Partition of the key for a collection whose keys are hashed into {@code numberOfSlots} slots, see
+     * {@link MongoConfig.MongoConfigBuilder#numberOfSlots(int)}.
+     *
+     * @throws IllegalArgumentException if the slots cannot be split into that many partitions
+     */
+    public static OptionalInt partitionOf(Object key, int numberOfPartitions, int numberOfSlots) {
+        int partition = new SlotLayout(numberOfSlots, numberOfPartitions).partitionOf(toBsonValue(key));
+        return partition < 0 ? OptionalInt.empty() : OptionalInt.of(partition);
+    }
+
+    /**
+     * Same value as the server's {@code $toHashedIndexKey}, which is also the key of hashed indexes and hashed
+     * sharding.
+     *
+     * @throws IllegalArgumentException for JavaScript code with scope, which the server cannot hash either
+     */
+    public static long hashedIndexKey(Object key) {
+        return HashedIndexKey.hash(toBsonValue(key));
+    }
+
+    static BsonValue toBsonValue(Object key) {
+        if (key instanceof BsonValue bsonValue) {
+            return bsonValue;
+        }
+        return new Document(KEY_FIELD, key).toBsonDocument().get(KEY_FIELD);
+    }
+}
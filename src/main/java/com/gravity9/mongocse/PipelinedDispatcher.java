@@ -0,0 +1,97 @@
+package com.gravity9.mongocse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.function.Consumer;
+
+/**
+ * Dispatch stage of a partition running in {@link DispatchMode#PIPELINED} mode.
+ * The reader thread submits batches into a bounded ring buffer and goes back to the cursor, while the dispatcher
+ * thread hands them to the listeners. When a handler fails, all queued batches are discarded and the failure is
+ * reported to the reader on its next submit, so it can reposition the stream at the last committed token.
+ */
+class PipelinedDispatcher implements Dispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(PipelinedDispatcher.class);
+
+    private final SpscRingBuffer<ChangeStreamBatch> buffer;
+
+    private final Consumer<ChangeStreamBatch> handler;
+
+    private final Thread thread;
+
+    private volatile boolean running = true;
+
+    private volatile boolean discarding = false;
+
+    private volatile boolean busy = false;
+
+    private volatile RuntimeException failure;
+
+    PipelinedDispatcher(String workerId, int capacity, Consumer<ChangeStreamBatch> handler, WorkerThreads workerThreads) {
+        this.buffer = new SpscRingBuffer<>(capacity);
+        this.handler = handler;
+        this.thread = workerThreads.newThread(this::dispatchLoop, workerId + "_dispatcher");
+    }
+
+    @Override
+    public void start() {
+        thread.start();
+    }
+
+    @Override
+    public void submit(ChangeStreamBatch batch) {
+        throwIfFailed();
+        buffer.put(batch, () -> running && failure == null);
+        throwIfFailed();
+    }
+
+    @Override
+    public void discardPending() {
+        discarding = true;
+        while (!buffer.isEmpty() || busy) {
+            Thread.onSpinWait();
+            Thread.yield();
+        }
+        failure = null;
+        discarding = false;
+    }
+
+    @Override
+    public void stop() throws InterruptedException {
+        running = false;
+        buffer.wakeUp();
+        thread.join();
+    }
+
+    private void throwIfFailed() {
+        RuntimeException currentFailure = failure;
+        if (currentFailure != null) {
+            throw new IllegalStateException("Dispatching a previous batch failed", currentFailure);
+        }
+    }
+
+    private void dispatchLoop() {
+        while (running || !buffer.isEmpty()) {
+            busy = true;
+            ChangeStreamBatch batch = buffer.poll();
+            if (batch == null) {
+                busy = false;
+                buffer.awaitElement(() -> running);
+                continue;
+            }
+
+            try {
+                if (!discarding && failure == null) {
+                    handler.accept(batch);
+                }
+            } catch (RuntimeException e) {
+                log.error("Listener failed in dispatcher thread {}, discarding queued batches", thread.getName(), e);
+                failure = e;
+            } finally {
+                busy = false;
+            }
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
+import org.bson.BsonDocument;
+import org.bson.BsonTimestamp;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Write-behind store of resume tokens shared by all workers of a manager.
+ * Workers only hand over their latest token, which replaces any token of the same partition that has not been
+ * written yet. Pending tokens are written in a single bulk write, either from the background flusher thread
+ * (on the policy interval or when a worker reaches the event threshold) or synchronously on shutdown.
+ */
+class ResumeTokenCheckpointer implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ResumeTokenCheckpointer.class);
+
+    private final CheckpointStore checkpointStore;
+
+    private final CheckpointPolicy policy;
+
+    private final ChangeStreamMetrics metrics;
+
+    private final Map<ObjectId, String> pendingTokens = new ConcurrentHashMap<>();
+
+    private final Map<ObjectId, String> flushedTokens = new ConcurrentHashMap<>();
+
+    private final Map<ObjectId, Long> fencingTokens = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flusher;
+
+    private final Lock flushLock = new ReentrantLock();
+
+    ResumeTokenCheckpointer(CheckpointStore checkpointStore, CheckpointPolicy policy, ChangeStreamMetrics metrics,
+                            WorkerThreads workerThreads, String managerId) {
+        this.checkpointStore = checkpointStore;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.flusher = workerThreads.newScheduledExecutor(managerId + "_checkpointer");
+        if (policy.hasInterval()) {
+            flusher.scheduleWithFixedDelay(this::flushQuietly, policy.getIntervalMs(), policy.getIntervalMs(), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    CheckpointPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Records the latest resume token of a partition. Tokens equal to the last written one are ignored.
+     */
+    void track(ObjectId configId, String resumeToken) {
+        if (resumeToken.equals(flushedTokens.get(configId))) {
+            pendingTokens.remove(configId);
+            return;
+        }
+        pendingTokens.put(configId, resumeToken);
+    }
+
+    /**
+     * Makes later writes of the partition's tokens conditional on the fencing token of its lease.
+     * Tokens tracked under an earlier lease are dropped.
+     */
+    void fence(ObjectId configId, long fencingToken) {
+        flushLock.lock();
+        try {
+            fencingTokens.put(configId, fencingToken);
+            pendingTokens.remove(configId);
+            flushedTokens.remove(configId);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Drops the tokens of a partition whose lease was lost, as they can no longer be written under its fencing token.
+     */
+    void discard(ObjectId configId) {
+        flushLock.lock();
+        try {
+            pendingTokens.remove(configId);
+            flushedTokens.remove(configId);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Schedules a flush on the background thread without waiting for it.
+     */
+    void requestFlush() {
+        try {
+            flusher.execute(this::flushQuietly);
+        } catch (RejectedExecutionException e) {
+            log.debug("Checkpointer already closed, flush request ignored");
+        }
+    }
+
+    /**
+     * Writes all pending tokens and waits for the write to complete.
+     */
+    void flush() {
+        flushLock.lock();
+        try {
+            Map<ObjectId, String> toWrite = new HashMap<>(pendingTokens);
+            toWrite.entrySet().removeIf(entry -> entry.getValue().equals(flushedTokens.get(entry.getKey())));
+            if (toWrite.isEmpty()) {
+                return;
+            }
+
+            log.trace("Writing {} resume tokens", toWrite.size());
+            long writeStart = System.nanoTime();
+            Set<ObjectId> written = checkpointStore.updateResumeTokens(toWrite, fencingTokens);
+            if (written.size() < toWrite.size()) {
+                log.warn("{} of {} resume tokens were not written, their partitions are leased by another manager",
+                        toWrite.size() - written.size(), toWrite.size());
+            }
+            metrics.checkpointWritten(toWrite.size(), System.nanoTime() - writeStart);
+            // tokens that were not written stay pending, and are tried again until a new lease fences them out
+            written.forEach(configId -> {
+                String token = toWrite.get(configId);
+                flushedTokens.put(configId, token);
+                pendingTokens.remove(configId, token);
+            });
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Writes how far the partition's snapshot got, right away, under the fencing token of its lease.
+     *
+     * @param position {@code _id} of the last document the snapshot delivered, null before it delivered any
+     */
+    void snapshotProgress(ObjectId configId, String snapshotResumeToken, BsonDocument position) {
+        flushLock.lock();
+        try {
+            checkpointStore.updateSnapshot(configId, snapshotResumeToken, position, fencingTokens.get(configId));
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Ends the partition's snapshot and writes the token its change stream resumes from.
+     */
+    void snapshotCompleted(ObjectId configId, String resumeToken) {
+        flushLock.lock();
+        try {
+            checkpointStore.completeSnapshot(configId, resumeToken, fencingTokens.get(configId));
+            pendingTokens.remove(configId);
+            flushedTokens.put(configId, resumeToken);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Drops any pending token of the partition and replaces its stored token by an operation time to restart from.
+     *
+     * @param operationTime null to restart at the current end of the change stream
+     */
+    void rewind(ObjectId configId, BsonTimestamp operationTime) {
+        flushLock.lock();
+        try {
+            pendingTokens.remove(configId);
+            flushedTokens.remove(configId);
+            checkpointStore.resetResumeToken(configId, operationTime, fencingTokens.get(configId));
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("Could not write resume tokens, will retry on next checkpoint", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        flusher.shutdownNow();
+        flush();
+    }
+}
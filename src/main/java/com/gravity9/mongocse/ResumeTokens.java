@@ -0,0 +1,37 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonTimestamp;
+
+/**
+ * Reads the cluster time of the event a resume token points at.
+ * <p>
+ * The {@code _data} of a resume token is a hex encoded key string starting with the cluster time of its event, a
+ * timestamp type byte followed by the timestamp in 8 big-endian bytes. Tokens compare in the same order as their
+ * cluster times, so the cluster time of a stored token is a safe point to restart a change stream from.
+ */
+final class ResumeTokens {
+
+    private static final String TIMESTAMP_TYPE = "82";
+
+    private static final int TIMESTAMP_HEX_LENGTH = 16;
+
+    private static final int HEX_RADIX = 16;
+
+    private ResumeTokens() {
+    }
+
+    /**
+     * @return the cluster time, or null if the token does not start with one
+     */
+    static BsonTimestamp clusterTime(String resumeToken) {
+        int end = TIMESTAMP_TYPE.length() + TIMESTAMP_HEX_LENGTH;
+        if (resumeToken == null || resumeToken.length() < end || !resumeToken.startsWith(TIMESTAMP_TYPE)) {
+            return null;
+        }
+        try {
+            return new BsonTimestamp(Long.parseUnsignedLong(resumeToken.substring(TIMESTAMP_TYPE.length(), end), HEX_RADIX));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
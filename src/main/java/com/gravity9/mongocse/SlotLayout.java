@@ -0,0 +1,96 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import static com.gravity9.mongocse.MongoExpressions.abs;
+import static com.gravity9.mongocse.MongoExpressions.cond;
+import static com.gravity9.mongocse.MongoExpressions.divide;
+import static com.gravity9.mongocse.MongoExpressions.floor;
+import static com.gravity9.mongocse.MongoExpressions.mod;
+import static com.gravity9.mongocse.MongoExpressions.multiply;
+import static com.gravity9.mongocse.MongoExpressions.toHashedIndexKey;
+
+/**
+ * Maps keys to slots and slots to partitions. A truthy key belongs to slot
+ * {@code abs(toHashedIndexKey(key)) % slots}, and slot {@code s} belongs to partition {@code s * partitions / slots},
+ * so every partition owns a contiguous range of slots and partition sizes differ by at most one slot.
+ * <p>
+ * The slot of a key only changes when a collection is re-slotted, which drains all partitions first, like a change of
+ * the number of partitions. With as many slots as partitions a key belongs to partition
+ * {@code abs(toHashedIndexKey(key)) % partitions}, the layout of configurations written before slots were introduced.
+ *
+ * @param slots      number of slots, at most {@link #MAX_SLOTS}
+ * @param partitions number of partitions, between 1 and {@code slots}
+ */
+record SlotLayout(int slots, int partitions) {
+
+    private static final String NULL_STRING = "null";
+
+    private static final int NO_PARTITION = -1;
+
+    /**
+     * Keeps {@code slot * partitions} below 2^40, where the server's double division still floors to the same
+     * partition as integer division.
+     */
+    @SuppressWarnings("checkstyle:magicnumber")
+    static final int MAX_SLOTS = 1 << 20;
+
+    SlotLayout {
+        if (partitions < 1) {
+            throw new IllegalArgumentException("Cannot initialize with less than 1 partition!");
+        }
+        if (slots > MAX_SLOTS) {
+            throw new IllegalArgumentException("Cannot use more than " + MAX_SLOTS + " slots: " + slots);
+        }
+        if (slots < partitions) {
+            throw new IllegalArgumentException(String.format("Cannot split %d slots into %d partitions", slots, partitions));
+        }
+    }
+
+    static SlotLayout of(MongoConfig mongoConfig) {
+        return new SlotLayout(mongoConfig.getNumberOfSlots(), mongoConfig.getNumberOfPartitions());
+    }
+
+    /**
+     * Layout of a stored cluster config; configs written before slots were introduced have one slot per partition.
+     */
+    static SlotLayout of(WorkerClusterConfig clusterConfig) {
+        int slots = clusterConfig.getSlots() == 0 ? clusterConfig.getPartitions() : clusterConfig.getSlots();
+        return new SlotLayout(slots, clusterConfig.getPartitions());
+    }
+
+    SlotLayout withPartitions(int newPartitions) {
+        return new SlotLayout(slots, newPartitions);
+    }
+
+    /**
+     * @return the partition of the key, or {@code -1} if the key is missing or falsy
+     */
+    int partitionOf(BsonValue key) {
+        int slot = PartitionKey.partitionOf(key, slots);
+        return slot == NO_PARTITION ? NO_PARTITION : partitionOfSlot(slot);
+    }
+
+    int partitionOfSlot(int slot) {
+        return (int) ((long) slot * partitions / slots);
+    }
+
+    /**
+     * @return first slot of the partition; the partition owns the slots up to the first slot of the next one
+     */
+    int firstSlot(int partition) {
+        return (int) (((long) partition * slots + partitions - 1) / partitions);
+    }
+
+    /**
+     * Aggregation expression evaluating to the partition of the key at {@code keyPath}, or to {@code "null"} for
+     * missing and falsy keys. With {@link #MAX_SLOTS} at most, {@code $floor} of the double division matches
+     * {@link #partitionOfSlot}.
+     */
+    Bson partitionExpression(BsonValue keyPath) {
+        Bson slot = mod(abs(toHashedIndexKey(keyPath)), slots);
+        Bson partition = slots == partitions ? slot : floor(divide(multiply(slot, partitions), slots));
+        return cond(keyPath, partition, NULL_STRING);
+    }
+}
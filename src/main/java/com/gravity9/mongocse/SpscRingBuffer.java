@@ -0,0 +1,145 @@
+package com.gravity9.mongocse;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Bounded, lock-free ring buffer for exactly one producer thread and one consumer thread.
+ * The blocking {@link #put} and {@link #awaitElement} methods spin briefly and then park until the other side
+ * unparks them, so a full buffer pushes back on the producer instead of growing. Whoever turns a waiter's
+ * {@code keepWaiting} condition false calls {@link #wakeUp} so that the waiter sees it.
+ */
+final class SpscRingBuffer<E> {
+
+    private static final int SPIN_TRIES = 100;
+    // only a safety net, waiters are unparked by offer, poll and wakeUp
+    private static final long MAX_PARK_NANOS = 1_000_000_000L;
+
+    private final AtomicReferenceArray<E> elements;
+
+    private final int mask;
+
+    private final AtomicLong head = new AtomicLong();
+
+    private final AtomicLong tail = new AtomicLong();
+
+    private volatile Thread waitingProducer;
+
+    private volatile Thread waitingConsumer;
+
+    SpscRingBuffer(int requestedCapacity) {
+        if (requestedCapacity < 1) {
+            throw new IllegalArgumentException("Ring buffer capacity must be positive: " + requestedCapacity);
+        }
+        int capacity = Integer.highestOneBit(requestedCapacity);
+        if (capacity < requestedCapacity) {
+            capacity <<= 1;
+        }
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    boolean isEmpty() {
+        return tail.get() == head.get();
+    }
+
+    boolean offer(E element) {
+        long currentTail = tail.get();
+        if (currentTail - head.get() > mask) {
+            return false;
+        }
+        elements.lazySet(index(currentTail), element);
+        // a volatile write, so either the consumer sees the element or its registration is seen here
+        tail.set(currentTail + 1);
+        LockSupport.unpark(waitingConsumer);
+        return true;
+    }
+
+    E poll() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int index = index(currentHead);
+        E element = elements.get(index);
+        elements.lazySet(index, null);
+        head.set(currentHead + 1);
+        LockSupport.unpark(waitingProducer);
+        return element;
+    }
+
+    /**
+     * Adds the element, waiting while the buffer is full.
+     *
+     * @return false if {@code keepWaiting} turned false before there was room for the element
+     */
+    boolean put(E element, BooleanSupplier keepWaiting) {
+        int tries = 0;
+        while (!offer(element)) {
+            if (!keepWaiting.getAsBoolean()) {
+                return false;
+            }
+            tries = backOff(tries, true);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until the buffer has an element to poll.
+     *
+     * @return false if {@code keepWaiting} turned false while the buffer was empty
+     */
+    boolean awaitElement(BooleanSupplier keepWaiting) {
+        int tries = 0;
+        while (isEmpty()) {
+            if (!keepWaiting.getAsBoolean()) {
+                return false;
+            }
+            tries = backOff(tries, false);
+        }
+        return true;
+    }
+
+    /**
+     * Unparks the waiting producer and consumer so that they check their {@code keepWaiting} condition again.
+     */
+    void wakeUp() {
+        LockSupport.unpark(waitingProducer);
+        LockSupport.unpark(waitingConsumer);
+    }
+
+    private int backOff(int tries, boolean producer) {
+        if (tries < SPIN_TRIES) {
+            Thread.onSpinWait();
+            return tries + 1;
+        }
+        if (producer) {
+            waitingProducer = Thread.currentThread();
+            if (size() > mask) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+            waitingProducer = null;
+        } else {
+            waitingConsumer = Thread.currentThread();
+            if (isEmpty()) {
+                LockSupport.parkNanos(this, MAX_PARK_NANOS);
+            }
+            waitingConsumer = null;
+        }
+        return tries;
+    }
+
+    private int index(long sequence) {
+        return (int) sequence & mask;
+    }
+}
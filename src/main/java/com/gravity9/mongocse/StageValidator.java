@@ -0,0 +1,154 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.MongoClientSettings;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks user stages appended to the change stream pipeline. Only stages reshaping events are allowed, and none of
+ * them may remove or rewrite the fields the library reads from every event: the {@code _id} resume token,
+ * {@code operationType}, {@code ns}, {@code documentKey} and the partitioning key in {@code fullDocument} and
+ * {@code fullDocumentBeforeChange}.
+ * Paths are compared as written, so a stage moving a protected field away and back is rejected as well.
+ */
+final class StageValidator {
+
+    private static final Set<String> ALLOWED_STAGES = Set.of("$addFields", "$set", "$project", "$unset");
+
+    private StageValidator() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if a stage is not allowed or touches a protected field
+     */
+    static void validate(List<Bson> stages, String keyName) {
+        List<String> protectedPaths = protectedPaths(keyName);
+        for (Bson stage : stages) {
+            BsonDocument document = stage.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+            if (document.size() != 1 || !ALLOWED_STAGES.contains(document.getFirstKey())) {
+                throw new IllegalArgumentException("Only " + ALLOWED_STAGES + " stages can be added to change streams: " + document.toJson());
+            }
+            String name = document.getFirstKey();
+            BsonValue specification = document.get(name);
+            switch (name) {
+                case "$unset" -> checkRemoved(unsetPaths(specification, document), protectedPaths, document);
+                case "$project" -> checkProjection(specification, protectedPaths, document);
+                default -> checkAssigned(leaves(specification, document, ""), protectedPaths, document);
+            }
+        }
+    }
+
+    private static List<String> protectedPaths(String keyName) {
+        List<String> paths = new ArrayList<>(List.of("_id", "operationType", "ns", "documentKey"));
+        if (!"_id".equals(keyName) && !keyName.startsWith("_id.")) {
+            paths.add("fullDocument." + keyName);
+            paths.add("fullDocumentBeforeChange." + keyName);
+        }
+        return paths;
+    }
+
+    /**
+     * Whether changing one of the paths changes the other: they are equal, or one is the parent of the other.
+     */
+    static boolean overlaps(String path, String other) {
+        return path.equals(other) || other.startsWith(path + ".") || path.startsWith(other + ".");
+    }
+
+    private static boolean isParentOrSame(String path, String other) {
+        return path.equals(other) || other.startsWith(path + ".");
+    }
+
+    private static List<String> unsetPaths(BsonValue specification, BsonDocument stage) {
+        if (specification.isString()) {
+            return List.of(specification.asString().getValue());
+        }
+        if (specification.isArray() && specification.asArray().stream().allMatch(BsonValue::isString)) {
+            return specification.asArray().stream().map(path -> path.asString().getValue()).toList();
+        }
+        throw new IllegalArgumentException("$unset takes a field path or an array of them: " + stage.toJson());
+    }
+
+    private static void checkRemoved(List<String> removed, List<String> protectedPaths, BsonDocument stage) {
+        for (String path : removed) {
+            for (String protectedPath : protectedPaths) {
+                if (isParentOrSame(path, protectedPath)) {
+                    throw new IllegalArgumentException("Stage removes " + protectedPath + ": " + stage.toJson());
+                }
+            }
+        }
+    }
+
+    private static void checkAssigned(Map<String, BsonValue> assigned, List<String> protectedPaths, BsonDocument stage) {
+        for (String path : assigned.keySet()) {
+            for (String protectedPath : protectedPaths) {
+                if (overlaps(path, protectedPath)) {
+                    throw new IllegalArgumentException("Stage rewrites " + protectedPath + ": " + stage.toJson());
+                }
+            }
+        }
+    }
+
+    /**
+     * An exclusion projection must not remove protected paths; an inclusion projection must keep each of them
+     * whole, without computing new values for them.
+     */
+    private static void checkProjection(BsonValue specification, List<String> protectedPaths, BsonDocument stage) {
+        Map<String, BsonValue> fields = leaves(specification, stage, "");
+        List<String> excluded = new ArrayList<>();
+        List<String> included = new ArrayList<>();
+        Map<String, BsonValue> computed = new LinkedHashMap<>();
+        fields.forEach((path, value) -> {
+            if (isFlag(value)) {
+                (isTrue(value) ? included : excluded).add(path);
+            } else {
+                computed.put(path, value);
+            }
+        });
+        checkAssigned(computed, protectedPaths, stage);
+        checkRemoved(excluded, protectedPaths, stage);
+        if (included.isEmpty() && computed.isEmpty()) {
+            return;
+        }
+        for (String protectedPath : protectedPaths) {
+            // _id is kept by inclusion projections unless excluded, which is rejected above
+            if (!"_id".equals(protectedPath) && included.stream().noneMatch(path -> isParentOrSame(path, protectedPath))) {
+                throw new IllegalArgumentException("Stage does not keep " + protectedPath + ": " + stage.toJson());
+            }
+        }
+    }
+
+    /**
+     * Field paths a stage specification assigns, with embedded documents of field names flattened into dotted paths
+     * and documents of operators kept as values.
+     */
+    private static Map<String, BsonValue> leaves(BsonValue specification, BsonDocument stage, String prefix) {
+        if (!specification.isDocument()) {
+            throw new IllegalArgumentException(stage.getFirstKey() + " takes a document of fields: " + stage.toJson());
+        }
+        Map<String, BsonValue> leaves = new LinkedHashMap<>();
+        specification.asDocument().forEach((field, value) -> {
+            String path = prefix + field;
+            if (value.isDocument() && !value.asDocument().isEmpty() && !value.asDocument().getFirstKey().startsWith("$")) {
+                leaves.putAll(leaves(value, stage, path + "."));
+            } else {
+                leaves.put(path, value);
+            }
+        });
+        return leaves;
+    }
+
+    private static boolean isFlag(BsonValue value) {
+        return value.isBoolean() || value.isNumber();
+    }
+
+    private static boolean isTrue(BsonValue value) {
+        return value.isBoolean() ? value.asBoolean().getValue() : value.asNumber().doubleValue() != 0;
+    }
+}
@@ -0,0 +1,23 @@
+package com.gravity9.mongocse;
+
+/**
+ * Defines how many change streams a manager opens on the server.
+ */
+public enum StreamMode {
+
+    /**
+     * Every partition opens its own change stream with a {@code $match} stage selecting the events of that partition.
+     * Each stream scans the whole oplog of the collection on the server, so server CPU grows with the number of
+     * partitions.
+     */
+    PER_PARTITION,
+
+    /**
+     * The manager opens a single change stream and computes the partition of every event on the client, with the
+     * same hash and the same result as the server-side filter. Events are handed to the partition workers, which
+     * keep their own resume tokens, so managers can switch between the modes without losing or reassigning events.
+     * After a restart the stream resumes from the oldest resume token of all partitions and events a partition has
+     * already handled are skipped.
+     */
+    FAN_OUT
+}
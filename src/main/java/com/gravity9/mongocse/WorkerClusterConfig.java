@@ -7,6 +7,8 @@ public class WorkerClusterConfig {
     private ObjectId id;
     private String collection;
     private int partitions;
+    // 0 in configs written before slots were introduced, which have one slot per partition
+    private int slots;
 
     public ObjectId getId() {
         return id;
@@ -31,4 +33,12 @@ public class WorkerClusterConfig {
     public void setPartitions(int partitions) {
         this.partitions = partitions;
     }
+
+    public int getSlots() {
+        return slots;
+    }
+
+    public void setSlots(int slots) {
+        this.slots = slots;
+    }
 }
@@ -0,0 +1,17 @@
+package com.gravity9.mongocse;
+
+/**
+ * Collaborators shared by all workers of a manager.
+ *
+ * @param slotLayout   layout of the partitions the workers belong to
+ * @param fanOutStream the shared change stream in {@link StreamMode#FAN_OUT} mode, null otherwise
+ */
+record WorkerContext(MongoConfig mongoConfig,
+                     SlotLayout slotLayout,
+                     CheckpointStore checkpointStore,
+                     ResumeTokenCheckpointer checkpointer,
+                     String managerId,
+                     MongoClientProvider clientProvider,
+                     WorkerThreads workerThreads,
+                     FanOutStream fanOutStream) {
+}
@@ -0,0 +1,99 @@
+package com.gravity9.mongocse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used by the workers of a manager.
+ * Workers run on the executor supplied in {@link MongoConfig}, or on a thread-per-task executor built from the
+ * configured thread factory, virtual threads or named platform threads (in that order of precedence).
+ * Dispatcher and background threads are always created with the thread factory.
+ */
+class WorkerThreads implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(WorkerThreads.class);
+
+    private final ThreadFactory threadFactory;
+
+    private final boolean customThreadFactory;
+
+    private final Executor workerExecutor;
+
+    private final ExecutorService ownedExecutor;
+
+    WorkerThreads(MongoConfig mongoConfig, String managerId) {
+        this.customThreadFactory = mongoConfig.getThreadFactory() != null;
+        this.threadFactory = customThreadFactory
+                ? mongoConfig.getThreadFactory()
+                : defaultThreadFactory(mongoConfig.isVirtualThreads(), managerId);
+
+        if (mongoConfig.getWorkerExecutor() != null) {
+            this.workerExecutor = mongoConfig.getWorkerExecutor();
+            this.ownedExecutor = null;
+            warnIfPoolTooSmall(mongoConfig, managerId);
+        } else {
+            this.ownedExecutor = Executors.newThreadPerTaskExecutor(threadFactory);
+            this.workerExecutor = ownedExecutor;
+        }
+    }
+
+    void execute(Runnable worker) {
+        workerExecutor.execute(worker);
+    }
+
+    Thread newThread(Runnable runnable, String name) {
+        Thread thread = threadFactory.newThread(runnable);
+        if (!customThreadFactory) {
+            thread.setName(name);
+        }
+        return thread;
+    }
+
+    /**
+     * Single-threaded scheduler for background tasks of the manager, whose thread comes from the thread factory.
+     * Threads of the default factories are daemon threads, so a manager that is never closed does not keep the JVM
+     * alive.
+     */
+    ScheduledExecutorService newScheduledExecutor(String name) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = newThread(runnable, name);
+            if (!customThreadFactory) {
+                thread.setDaemon(true);
+            }
+            return thread;
+        });
+    }
+
+    private static ThreadFactory defaultThreadFactory(boolean virtualThreads, String managerId) {
+        if (virtualThreads) {
+            return Thread.ofVirtual().name(managerId + "_vthread_", 0).factory();
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        return runnable -> new Thread(runnable, managerId + "_thread_" + threadCount.getAndIncrement());
+    }
+
+    private static void warnIfPoolTooSmall(MongoConfig mongoConfig, String managerId) {
+        if (mongoConfig.getWorkerExecutor() instanceof ThreadPoolExecutor pool
+                && pool.getMaximumPoolSize() < mongoConfig.getNumberOfPartitions()) {
+            log.warn("{} - Worker executor allows {} threads but {} partitions are configured. "
+                            + "Each worker occupies a thread until it is stopped, so some partitions will not start.",
+                    managerId, pool.getMaximumPoolSize(), mongoConfig.getNumberOfPartitions());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+}
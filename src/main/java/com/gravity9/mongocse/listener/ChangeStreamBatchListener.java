@@ -0,0 +1,25 @@
+package com.gravity9.mongocse.listener;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * Listener receiving all events that were buffered in the change stream cursor as a single batch.
+ * The size of a batch is limited by the {@link com.gravity9.mongocse.BatchPolicy} of the manager.
+ * The resume token of the partition is checkpointed once per batch, after all listeners returned.
+ * Batch listeners are registered with the same methods as {@link ChangeStreamListener}.
+ */
+public interface ChangeStreamBatchListener extends ChangeStreamListener {
+
+	/**
+	 * Handles a non-empty, unmodifiable batch of events in the order they were read from the partition.
+	 */
+	void handleBatch(List<ChangeStreamDocument<Document>> events);
+
+	@Override
+	default void handle(ChangeStreamDocument<Document> event) {
+		handleBatch(List.of(event));
+	}
+}
@@ -16,6 +16,10 @@ public final class LoggingUtil {
         return "csem_" + config.getDatabaseName() + "_" + config.getCollectionName() + "_" + managerCount.getAndIncrement();
     }
 
+    public static String createDatabaseManagerId(MongoConfig config) {
+        return "csem_" + config.getDatabaseName() + "_" + managerCount.getAndIncrement();
+    }
+
     public static String createWorkerId(String managerId, int partition) {
         return managerId + "_partition_" + partition;
     }
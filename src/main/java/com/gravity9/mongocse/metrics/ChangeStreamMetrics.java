@@ -0,0 +1,71 @@
+package com.gravity9.mongocse.metrics;
+
+import com.gravity9.mongocse.listener.ChangeStreamListener;
+import com.mongodb.client.model.changestream.OperationType;
+
+/**
+ * Receives measurements from the workers of a manager. Set an implementation with
+ * {@code MongoConfig.builder().metrics(...)}; by default all measurements are dropped.
+ * Methods are called from worker, dispatcher and checkpointer threads, often once per event, so implementations
+ * must be thread-safe and cheap. Every method has an empty default implementation.
+ */
+public interface ChangeStreamMetrics {
+
+    /**
+     * @return implementation ignoring all measurements without allocating
+     */
+    static ChangeStreamMetrics noop() {
+        return NoopChangeStreamMetrics.INSTANCE;
+    }
+
+    /**
+     * Called for every event read from the change stream of a partition.
+     *
+     * @param operationType operation type of the event, null if the server sent one unknown to the driver
+     */
+    default void eventReceived(int partition, OperationType operationType) {
+    }
+
+    /**
+     * Called for every non-empty batch read from the change stream of a partition.
+     */
+    default void batchReceived(int partition, int events) {
+    }
+
+    /**
+     * Called when a poll of the change stream of a partition returned no events.
+     */
+    default void idlePoll(int partition) {
+    }
+
+    /**
+     * Called after a listener handled events of a partition.
+     *
+     * @param events         number of events passed to the listener in this call
+     * @param durationNanos  time spent in the listener
+     */
+    default void listenerCompleted(int partition, ChangeStreamListener listener, int events, long durationNanos) {
+    }
+
+    /**
+     * Called after resume tokens were written to the worker config collection.
+     *
+     * @param tokens         number of partitions whose token was written
+     * @param durationNanos  duration of the write
+     */
+    default void checkpointWritten(int tokens, long durationNanos) {
+    }
+
+    /**
+     * Called when the change stream of a partition is reopened after an error.
+     */
+    default void reconnected(int partition) {
+    }
+
+    /**
+     * Called after the listeners handled a batch, with the time between the last event of the batch being written
+     * on the server (its {@code wallTime}, or its {@code clusterTime} on servers before 6.0) and now.
+     */
+    default void lagObserved(int partition, long lagMillis) {
+    }
+}
@@ -0,0 +1,14 @@
+package com.gravity9.mongocse.metrics;
+
+final class NoopChangeStreamMetrics implements ChangeStreamMetrics {
+
+    static final NoopChangeStreamMetrics INSTANCE = new NoopChangeStreamMetrics();
+
+    private NoopChangeStreamMetrics() {
+    }
+
+    @Override
+    public String toString() {
+        return "NoopChangeStreamMetrics";
+    }
+}
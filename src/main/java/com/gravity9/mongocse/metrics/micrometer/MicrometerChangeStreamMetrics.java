@@ -0,0 +1,162 @@
+package com.gravity9.mongocse.metrics.micrometer;
+
+import com.gravity9.mongocse.listener.ChangeStreamListener;
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
+import com.mongodb.client.model.changestream.OperationType;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tag;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.TimeGauge;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes worker measurements to a Micrometer {@link MeterRegistry}.
+ * Requires {@code io.micrometer:micrometer-core} on the classpath. All meters are tagged with {@code partition}
+ * and the tags passed to the constructor, for example the collection name when several managers share a registry.
+ * <ul>
+ *     <li>{@code mongocse.events} - counter of received events, tagged with {@code operation}</li>
+ *     <li>{@code mongocse.batch.size} - distribution of the number of events per batch</li>
+ *     <li>{@code mongocse.polls.idle} - counter of polls that returned no events</li>
+ *     <li>{@code mongocse.listener.duration} - timer of listener calls, tagged with {@code listener}</li>
+ *     <li>{@code mongocse.checkpoint.duration} - timer of resume token writes (not tagged with a partition)</li>
+ *     <li>{@code mongocse.reconnects} - counter of change streams reopened after an error</li>
+ *     <li>{@code mongocse.lag} - time between the last handled event being written on the server and it being handled</li>
+ * </ul>
+ */
+public class MicrometerChangeStreamMetrics implements ChangeStreamMetrics {
+
+    private static final String PREFIX = "mongocse.";
+
+    private static final String UNKNOWN_OPERATION = "unknown";
+
+    private final MeterRegistry registry;
+
+    private final Tags tags;
+
+    private final Map<Integer, PartitionMeters> partitions = new ConcurrentHashMap<>();
+
+    private final Timer checkpointTimer;
+
+    public MicrometerChangeStreamMetrics(MeterRegistry registry) {
+        this(registry, Tags.empty());
+    }
+
+    public MicrometerChangeStreamMetrics(MeterRegistry registry, Iterable<Tag> tags) {
+        this.registry = registry;
+        this.tags = Tags.of(tags);
+        this.checkpointTimer = Timer.builder(PREFIX + "checkpoint.duration")
+                .description("Time spent writing resume tokens")
+                .tags(this.tags)
+                .register(registry);
+    }
+
+    @Override
+    public void eventReceived(int partition, OperationType operationType) {
+        partition(partition).events(operationType).increment();
+    }
+
+    @Override
+    public void batchReceived(int partition, int events) {
+        partition(partition).batchSize.record(events);
+    }
+
+    @Override
+    public void idlePoll(int partition) {
+        partition(partition).idlePolls.increment();
+    }
+
+    @Override
+    public void listenerCompleted(int partition, ChangeStreamListener listener, int events, long durationNanos) {
+        partition(partition).listenerTimer(listener).record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void checkpointWritten(int tokens, long durationNanos) {
+        checkpointTimer.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void reconnected(int partition) {
+        partition(partition).reconnects.increment();
+    }
+
+    @Override
+    public void lagObserved(int partition, long lagMillis) {
+        partition(partition).lagMillis.set(lagMillis);
+    }
+
+    private PartitionMeters partition(int partition) {
+        return partitions.computeIfAbsent(partition, PartitionMeters::new);
+    }
+
+    private final class PartitionMeters {
+
+        private final Tags partitionTags;
+
+        private final Map<OperationType, Counter> eventCounters = new EnumMap<>(OperationType.class);
+
+        private final Counter unknownEvents;
+
+        private final DistributionSummary batchSize;
+
+        private final Counter idlePolls;
+
+        private final Counter reconnects;
+
+        private final AtomicLong lagMillis = new AtomicLong();
+
+        private final Map<ChangeStreamListener, Timer> listenerTimers = new ConcurrentHashMap<>();
+
+        private PartitionMeters(int partition) {
+            this.partitionTags = tags.and("partition", String.valueOf(partition));
+            for (OperationType operationType : OperationType.values()) {
+                eventCounters.put(operationType, eventCounter(operationType.getValue()));
+            }
+            this.unknownEvents = eventCounter(UNKNOWN_OPERATION);
+            this.batchSize = DistributionSummary.builder(PREFIX + "batch.size")
+                    .description("Number of events per batch read from the change stream")
+                    .tags(partitionTags)
+                    .register(registry);
+            this.idlePolls = Counter.builder(PREFIX + "polls.idle")
+                    .description("Polls of the change stream that returned no events")
+                    .tags(partitionTags)
+                    .register(registry);
+            this.reconnects = Counter.builder(PREFIX + "reconnects")
+                    .description("Change streams reopened after an error")
+                    .tags(partitionTags)
+                    .register(registry);
+            TimeGauge.builder(PREFIX + "lag", lagMillis, TimeUnit.MILLISECONDS, AtomicLong::doubleValue)
+                    .description("Time between the last handled event being written on the server and it being handled")
+                    .tags(partitionTags)
+                    .register(registry);
+        }
+
+        private Counter events(OperationType operationType) {
+            return operationType == null ? unknownEvents : eventCounters.get(operationType);
+        }
+
+        private Timer listenerTimer(ChangeStreamListener listener) {
+            return listenerTimers.computeIfAbsent(listener, key -> Timer.builder(PREFIX + "listener.duration")
+                    .description("Time spent in listeners")
+                    .tags(partitionTags)
+                    .tag("listener", key.getClass().getName())
+                    .register(registry));
+        }
+
+        private Counter eventCounter(String operation) {
+            return Counter.builder(PREFIX + "events")
+                    .description("Change events received")
+                    .tags(partitionTags)
+                    .tag("operation", operation)
+                    .register(registry);
+        }
+    }
+}
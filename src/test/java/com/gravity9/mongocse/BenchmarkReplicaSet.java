@@ -0,0 +1,51 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import org.testcontainers.mongodb.MongoDBContainer;
+
+/**
+ * Replica set a benchmark runs against: the one at {@code -Dbenchmark.mongoUri} if given, otherwise a MongoDB 7.0
+ * container started with Testcontainers, which needs Docker. A given replica set should be a scratch one, since the
+ * benchmark database is dropped before every trial so configs of earlier trials do not clash.
+ * <p>
+ * JMH runs benchmarks in a forked JVM, so pass the property with
+ * {@code -jvmArgsAppend -Dbenchmark.mongoUri=mongodb://mongo1:27017/?replicaSet=dbrs}.
+ */
+final class BenchmarkReplicaSet implements AutoCloseable {
+
+    private static final String URI_PROPERTY = "benchmark.mongoUri";
+
+    private final MongoDBContainer container;
+
+    private final String connectionUri;
+
+    private BenchmarkReplicaSet(MongoDBContainer container, String connectionUri) {
+        this.container = container;
+        this.connectionUri = connectionUri;
+    }
+
+    static BenchmarkReplicaSet start(String databaseName) {
+        String uri = System.getProperty(URI_PROPERTY);
+        if (uri == null || uri.isBlank()) {
+            MongoDBContainer container = new MongoDBContainer("mongo:7.0").withReplicaSet();
+            container.start();
+            return new BenchmarkReplicaSet(container, container.getReplicaSetUrl());
+        }
+        try (MongoClient client = MongoClients.create(uri)) {
+            client.getDatabase(databaseName).drop();
+        }
+        return new BenchmarkReplicaSet(null, uri);
+    }
+
+    String getConnectionUri() {
+        return connectionUri;
+    }
+
+    @Override
+    public void close() {
+        if (container != null) {
+            container.stop();
+        }
+    }
+}
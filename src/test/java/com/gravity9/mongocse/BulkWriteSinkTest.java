@@ -0,0 +1,123 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.MongoNamespace;
+import com.mongodb.MongoSocketReadException;
+import com.mongodb.ServerAddress;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.DeleteOneModel;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.TruncatedArray;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.gravity9.mongocse.constants.Events.event;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BulkWriteSinkTest {
+
+    @Test
+    void givenEventsOfSameKey_shouldKeepTheirOrderAcrossRounds() {
+        BulkWriteSink sink = BulkWriteSink.builder(collection(new ArrayList<>(), new AtomicInteger())).build();
+
+        List<List<WriteModel<Document>>> plan = sink.plan(List.of(
+                event("update", 1, null, new UpdateDescription(List.of(), new BsonDocument("status", new BsonString("PAID")))),
+                event("insert", 2, new Document("_id", 2), null),
+                event("update", 1, null, new UpdateDescription(List.of("status"), new BsonDocument()))));
+
+        assertEquals(2, plan.size());
+        assertEquals(2, plan.get(0).size());
+        assertInstanceOf(UpdateOneModel.class, plan.get(0).get(0));
+        assertInstanceOf(ReplaceOneModel.class, plan.get(0).get(1));
+        assertEquals(new BsonDocument("$unset", new BsonDocument("status", new BsonString(""))),
+                ((UpdateOneModel<Document>) plan.get(1).get(0)).getUpdate());
+    }
+
+    @Test
+    void givenReplaceOrDelete_shouldDropEarlierModelsOfKey() {
+        BulkWriteSink sink = BulkWriteSink.builder(collection(new ArrayList<>(), new AtomicInteger())).build();
+
+        List<List<WriteModel<Document>>> plan = sink.plan(List.of(
+                event("insert", 1, new Document("_id", 1), null),
+                event("update", 1, null, new UpdateDescription(List.of(), new BsonDocument("status", new BsonString("PAID")))),
+                event("delete", 1, null, null),
+                event("drop", 0, null, null)));
+
+        assertEquals(1, plan.size());
+        assertEquals(1, plan.get(0).size());
+        assertInstanceOf(DeleteOneModel.class, plan.get(0).get(0));
+    }
+
+    @Test
+    void givenTruncatedArray_shouldTruncateBeforeSettingElements() {
+        List<WriteModel<Document>> models = BulkWriteSink.writeModels(event("update", 1, null, new UpdateDescription(
+                List.of(), new BsonDocument("items.1", new BsonInt32(7)), List.of(new TruncatedArray("items", 2)))));
+
+        assertEquals(2, models.size());
+        BsonDocument truncate = ((UpdateOneModel<Document>) models.get(0)).getUpdate().toBsonDocument();
+        assertEquals(new BsonInt32(2), truncate.getDocument("$push").getDocument("items").get("$slice"));
+        assertTrue(((UpdateOneModel<Document>) models.get(1)).getUpdate().toBsonDocument().containsKey("$set"));
+    }
+
+    @Test
+    void givenManyModels_shouldSplitBulkWrites() {
+        List<List<WriteModel<Document>>> writes = new ArrayList<>();
+        BulkWriteSink sink = BulkWriteSink.builder(collection(writes, new AtomicInteger())).maxWriteModels(2).build();
+
+        sink.handleBatch(List.of(
+                event("insert", 1, new Document("_id", 1), null),
+                event("insert", 2, new Document("_id", 2), null),
+                event("insert", 3, new Document("_id", 3), null)));
+
+        assertEquals(List.of(2, 1), writes.stream().map(List::size).toList());
+        assertEquals(new BulkWriteSink.Stats(2, 3, 0), sink.stats());
+    }
+
+    @Test
+    void givenFailingWrites_shouldRetryAndThenFailBatch() {
+        List<List<WriteModel<Document>>> writes = new ArrayList<>();
+        AtomicInteger failures = new AtomicInteger(1);
+        BulkWriteSink sink = BulkWriteSink.builder(collection(writes, failures)).maxRetries(1).retryBackoffMs(0).build();
+        List<ChangeStreamDocument<Document>> batch = List.of(event("insert", 1, new Document("_id", 1), null));
+
+        sink.handleBatch(batch);
+        assertEquals(1, writes.size());
+
+        failures.set(2);
+        assertThrows(MongoSocketReadException.class, () -> sink.handleBatch(batch));
+        assertEquals(new BulkWriteSink.Stats(1, 1, 2), sink.stats());
+    }
+
+    /**
+     * Collection recording the models of its bulk writes, failing the next {@code failures} of them.
+     */
+    @SuppressWarnings("unchecked")
+    private static MongoCollection<Document> collection(List<List<WriteModel<Document>>> writes, AtomicInteger failures) {
+        return (MongoCollection<Document>) Proxy.newProxyInstance(BulkWriteSinkTest.class.getClassLoader(),
+                new Class<?>[]{MongoCollection.class}, (proxy, method, args) -> switch (method.getName()) {
+                    case "bulkWrite" -> {
+                        if (failures.getAndUpdate(count -> Math.max(0, count - 1)) > 0) {
+                            throw new MongoSocketReadException("Connection reset", new ServerAddress());
+                        }
+                        writes.add(List.copyOf((List<WriteModel<Document>>) args[0]));
+                        yield null;
+                    }
+                    case "getNamespace" -> new MongoNamespace("sink.target");
+                    default -> throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,92 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeStreamProjectionTest {
+
+    @Test
+    void givenProjectionAndStages_shouldAppendThemAfterPartitionMatch() {
+        BsonArray pipeline = describe(MongoConfig.builder()
+                .keyName("customerId")
+                .numberOfPartitions(3)
+                .projection(ChangeStreamProjection.none()
+                        .excludeFullDocument("payload.raw")
+                        .includeFullDocumentBeforeChange("status"))
+                .stages(Aggregates.unset("wallTime")));
+
+        assertEquals(List.of("$match", "$unset", "$set", "$unset"),
+                pipeline.stream().map(stage -> stage.asDocument().getFirstKey()).toList());
+        assertEquals(new BsonArray(List.of(new BsonString("fullDocument.payload.raw"))), pipeline.get(1).asDocument().getArray("$unset"));
+        String kept = pipeline.get(2).asDocument().getDocument("$set").getDocument("fullDocumentBeforeChange").toJson();
+        assertTrue(kept.contains("[\"status\", \"customerId\"]"), kept);
+    }
+
+    @Test
+    void givenIncludedUpdatedFields_shouldFilterUpdateDescriptionByTopLevelField() {
+        BsonArray pipeline = describe(MongoConfig.builder()
+                .numberOfPartitions(3)
+                .projection(ChangeStreamProjection.none().includeUpdatedFields("status")));
+        String updateDescription = pipeline.get(1).asDocument().getDocument("$set").getDocument("updateDescription").toJson();
+
+        assertTrue(updateDescription.contains("{\"$split\": [\"$$this.k\", \".\"]}"), updateDescription);
+        assertTrue(updateDescription.contains("\"input\": \"$updateDescription.removedFields\""), updateDescription);
+    }
+
+    @Test
+    void givenStagesStrippingResumeTokenOrKey_shouldRejectConfig() {
+        MongoConfig.MongoConfigBuilder builder = MongoConfig.builder().keyName("customer.id").numberOfPartitions(3);
+
+        assertThrows(IllegalArgumentException.class, () -> builder.stages(Aggregates.unset("_id")).build());
+        assertThrows(IllegalArgumentException.class, () -> builder.stages(Aggregates.unset("fullDocument.customer")).build());
+        assertThrows(IllegalArgumentException.class, () -> builder.stages(Aggregates.project(Projections.exclude("documentKey"))).build());
+        assertThrows(IllegalArgumentException.class, () -> builder.stages(Aggregates.project(
+                Projections.include("operationType", "ns", "documentKey", "fullDocument.status"))).build());
+        assertThrows(IllegalArgumentException.class, () -> builder.stages(
+                new Document("$addFields", new Document("fullDocument", new Document("customer", "anonymous")))).build());
+        assertThrows(IllegalArgumentException.class, () -> builder.stages(Aggregates.match(Filters.empty())).build());
+        assertThrows(IllegalArgumentException.class, () -> builder
+                .stages()
+                .projection(ChangeStreamProjection.none().excludeFullDocumentBeforeChange("customer"))
+                .build());
+    }
+
+    @Test
+    void givenStagesKeepingResumeTokenAndKey_shouldAcceptConfig() {
+        MongoConfig.MongoConfigBuilder builder = MongoConfig.builder().keyName("customer.id").numberOfPartitions(3);
+
+        builder.stages(Aggregates.unset("fullDocument.payload", "fullDocument.customer.name")).build();
+        builder.stages(Aggregates.project(Projections.include("operationType", "ns", "documentKey",
+                "fullDocument.status", "fullDocument.customer", "fullDocumentBeforeChange.customer.id"))).build();
+        builder.stages(new Document("$addFields", new Document("fullDocument", new Document("total", new Document("$sum", "$fullDocument.items"))))).build();
+        MongoConfig.builder().numberOfPartitions(3).projection(ChangeStreamProjection.none().excludeFullDocument("_id")).build();
+    }
+
+    @Test
+    void givenInvalidFields_shouldRejectProjection() {
+        ChangeStreamProjection projection = ChangeStreamProjection.none().includeFullDocument("status");
+
+        assertThrows(IllegalArgumentException.class, () -> projection.excludeFullDocument("payload"));
+        assertThrows(IllegalArgumentException.class, () -> projection.includeFullDocumentBeforeChange("customer.name"));
+        assertThrows(IllegalArgumentException.class, () -> projection.excludeUpdatedFields("customer.name"));
+        assertThrows(IllegalArgumentException.class, () -> projection.includeUpdatedFields());
+    }
+
+    private static BsonArray describe(MongoConfig.MongoConfigBuilder builder) {
+        MongoConfig mongoConfig = builder.build();
+        String pipeline = PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.partitionPipeline(mongoConfig, SlotLayout.of(mongoConfig), 0));
+        return BsonDocument.parse("{\"stages\": " + pipeline + "}").getArray("stages");
+    }
+}
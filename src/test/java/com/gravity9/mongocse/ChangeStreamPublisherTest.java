@@ -0,0 +1,146 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.constants.Events;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChangeStreamPublisherTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    @Test
+    void givenBatch_shouldOnlyDeliverRequestedEvents() throws Exception {
+        ChangeStreamPublisher publisher = new ChangeStreamPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        CompletableFuture<Void> handled = CompletableFuture.runAsync(() -> publisher.handleBatch(List.of(event(1), event(2), event(3))));
+        subscriber.subscription.get().request(2);
+
+        assertThrows(TimeoutException.class, () -> handled.get(200, TimeUnit.MILLISECONDS));
+        assertEquals(List.of(1, 2), subscriber.ids());
+
+        subscriber.subscription.get().request(Long.MAX_VALUE);
+        handled.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertEquals(List.of(1, 2, 3), subscriber.ids());
+    }
+
+    @Test
+    void givenPartitionsHandingOverConcurrently_shouldSerializeSignals() throws Exception {
+        ChangeStreamPublisher publisher = new ChangeStreamPublisher();
+        AtomicBoolean inOnNext = new AtomicBoolean();
+        AtomicBoolean overlapped = new AtomicBoolean();
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(ChangeStreamDocument<Document> item) {
+                overlapped.compareAndSet(false, !inOnNext.compareAndSet(false, true));
+                super.onNext(item);
+                inOnNext.set(false);
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.get().request(Long.MAX_VALUE);
+
+        CompletableFuture.allOf(
+                CompletableFuture.runAsync(() -> publisher.handleBatch(List.of(event(1), event(2), event(3)))),
+                CompletableFuture.runAsync(() -> publisher.handleBatch(List.of(event(4), event(5), event(6))))
+        ).get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+
+        assertEquals(6, subscriber.ids().size());
+        assertFalse(overlapped.get());
+    }
+
+    @Test
+    void givenSecondSubscriber_shouldSignalError() {
+        ChangeStreamPublisher publisher = new ChangeStreamPublisher();
+        publisher.subscribe(new RecordingSubscriber());
+        RecordingSubscriber second = new RecordingSubscriber();
+
+        publisher.subscribe(second);
+
+        assertInstanceOf(IllegalStateException.class, second.error.get());
+    }
+
+    @Test
+    void givenNonPositiveRequest_shouldSignalErrorAndCancel() {
+        ChangeStreamPublisher publisher = new ChangeStreamPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+
+        subscriber.subscription.get().request(0);
+
+        assertInstanceOf(IllegalArgumentException.class, subscriber.error.get());
+        assertFalse(publisher.hasSubscriber());
+    }
+
+    @Test
+    void givenClose_shouldCompleteSubscriberAndFailWaitingBatch() throws Exception {
+        ChangeStreamPublisher publisher = new ChangeStreamPublisher();
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        CompletableFuture<Void> handled = CompletableFuture.runAsync(() -> publisher.handleBatch(List.of(event(1))));
+
+        publisher.close();
+
+        ExecutionException failure = assertThrows(ExecutionException.class, () -> handled.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        assertInstanceOf(IllegalStateException.class, failure.getCause());
+        assertTrue(subscriber.completed.get());
+        assertEquals(List.of(), subscriber.ids());
+    }
+
+    private static ChangeStreamDocument<Document> event(int id) {
+        return Events.event("insert", id, new Document("_id", id));
+    }
+
+    private static class RecordingSubscriber implements Flow.Subscriber<ChangeStreamDocument<Document>> {
+
+        final AtomicReference<Flow.Subscription> subscription = new AtomicReference<>();
+
+        final List<ChangeStreamDocument<Document>> events = new CopyOnWriteArrayList<>();
+
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        final AtomicBoolean completed = new AtomicBoolean();
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription.set(subscription);
+        }
+
+        @Override
+        public void onNext(ChangeStreamDocument<Document> item) {
+            events.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.set(true);
+        }
+
+        List<Integer> ids() {
+            return events.stream().map(event -> event.getFullDocument().getInteger("_id")).toList();
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.gravity9.mongocse;
 
 import com.gravity9.mongocse.constants.TestIds;
+import com.gravity9.mongocse.listener.TestChangeStreamBatchListener;
 import com.gravity9.mongocse.listener.TestChangeStreamListener;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Updates;
 import com.mongodb.client.model.changestream.ChangeStreamDocument;
@@ -10,6 +12,7 @@ import com.mongodb.client.model.changestream.FullDocument;
 import com.mongodb.client.model.changestream.OperationType;
 import com.mongodb.client.result.InsertOneResult;
 import com.mongodb.client.result.UpdateResult;
+import org.bson.BsonTimestamp;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
@@ -21,6 +24,10 @@ import org.slf4j.LoggerFactory;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -790,4 +797,294 @@ class ChangeStreamTest extends AbstractMongoDbBase {
         assertEventsContainNumberOfOpTypes(events, OperationType.UPDATE, 1);
         assertEventsContainNumberOfOpTypes(events, OperationType.DELETE, 1);
     }
+
+    @Test
+    void givenBatchListener_shouldReceiveEventsInBatchesLimitedByBatchPolicy() throws Exception {
+        var config = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(1)
+                .batchPolicy(BatchPolicy.of(10, 0, 200))
+                .build();
+
+        MongoCseManager manager = new MongoCseManager(config);
+        TestChangeStreamBatchListener batchListener = new TestChangeStreamBatchListener();
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(batchListener);
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+
+        List<Document> documents = IntStream.range(0, 25)
+                .mapToObj(i -> new Document("testValue", i))
+                .toList();
+        collection.insertMany(documents);
+
+        List<ChangeStreamDocument<Document>> events = waitForEvents(batchListener, documents.size());
+
+        assertEquals(documents.size(), events.size());
+        assertEquals(documents.size(), waitForEvents(listener, documents.size()).size());
+        assertTrue(batchListener.getBatches().stream().allMatch(batch -> !batch.isEmpty() && batch.size() <= 10));
+        assertTrue(batchListener.getBatches().size() < documents.size());
+        manager.stop();
+    }
+
+    @Test
+    void givenPipelinedDispatchMode_slowListenerShouldReceiveAllEventsInOrder() throws Exception {
+        var config = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(1)
+                .dispatchMode(DispatchMode.PIPELINED)
+                .dispatchBufferCapacity(2)
+                .batchPolicy(BatchPolicy.maxEvents(5))
+                .build();
+
+        MongoCseManager manager = new MongoCseManager(config);
+        TestChangeStreamListener slowListener = new TestChangeStreamListener() {
+            @Override
+            public void handle(ChangeStreamDocument<Document> event) {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.handle(event);
+            }
+        };
+        manager.registerListenerToAllPartitions(slowListener);
+        manager.start();
+
+        List<Document> documents = IntStream.range(0, 40)
+                .mapToObj(i -> new Document("testValue", i))
+                .toList();
+        collection.insertMany(documents);
+
+        List<ChangeStreamDocument<Document>> events = waitForEvents(slowListener, documents.size());
+
+        assertEquals(documents.size(), events.size());
+        for (int i = 0; i < documents.size(); i++) {
+            assertEquals(i, events.get(i).getFullDocument().getInteger("testValue"));
+        }
+        manager.stop();
+    }
+
+
+    @Test
+    void givenLongAwaitTime_stopAsyncShouldWakeUpIdleWorkersAndAllowRestart() throws Exception {
+        MongoConfig longAwaitConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(3)
+                .maxAwaitTimeInMs(20_000)
+                .build();
+        MongoCseManager manager = new MongoCseManager(longAwaitConfig);
+
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.startAsync().get(30, TimeUnit.SECONDS);
+
+        // Let every worker block in getMore on the idle stream
+        Thread.sleep(1000);
+
+        long stopStart = System.nanoTime();
+        manager.stopAsync().get(30, TimeUnit.SECONDS);
+        long stopMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - stopStart);
+        assertTrue(stopMillis < 10_000, "Stop took " + stopMillis + " ms");
+
+        manager.startAsync().get(30, TimeUnit.SECONDS);
+        collection.insertOne(new Document("testValue", 1));
+
+        assertEquals(1, waitForEvents(listener, 1).size());
+        manager.close();
+    }
+
+
+    @Test
+    void givenFanOutStreamMode_eachPartitionShouldReceiveItsEventsAndKeepItsResumeToken() throws Exception {
+        MongoConfig fanOutConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(3)
+                .streamMode(StreamMode.FAN_OUT)
+                .build();
+        MongoCseManager manager = new MongoCseManager(fanOutConfig);
+
+        List<TestChangeStreamListener> listeners = List.of(
+                new TestChangeStreamListener(), new TestChangeStreamListener(), new TestChangeStreamListener());
+        for (int partition = 0; partition < listeners.size(); partition++) {
+            manager.registerListener(listeners.get(partition), List.of(partition));
+        }
+        manager.start();
+
+        insertDocumentsToAllPartitions();
+
+        for (int partition = 0; partition < listeners.size(); partition++) {
+            List<ChangeStreamDocument<Document>> events = waitForEvents(listeners.get(partition), 1);
+            assertEquals(1, events.size());
+            assertEquals(partition, events.get(0).getFullDocument().getInteger("testValue"));
+        }
+        manager.close();
+
+        // Per-partition streams resume from the tokens committed in fan-out mode, without replaying events
+        MongoCseManager perPartitionManager = new MongoCseManager(mongoConfig);
+        TestChangeStreamListener afterSwitch = new TestChangeStreamListener();
+        perPartitionManager.registerListenerToAllPartitions(afterSwitch);
+        perPartitionManager.start();
+
+        collection.insertOne(new Document("_id", new ObjectId(TestIds.MOD_3_ID)).append("testValue", 3));
+
+        List<ChangeStreamDocument<Document>> events = waitForEvents(afterSwitch, 1);
+        assertEquals(1, events.size());
+        assertEquals(3, events.get(0).getFullDocument().getInteger("testValue"));
+        perPartitionManager.close();
+    }
+
+
+    @Test
+    void givenProjection_shouldOnlyReceiveProjectedFields() throws Exception {
+        MongoConfig projectedConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(3)
+                .keyName("testValue")
+                .projection(ChangeStreamProjection.none()
+                        .includeFullDocument("status")
+                        .excludeUpdatedFields("payload"))
+                .stages(Aggregates.unset("wallTime"))
+                .build();
+        MongoCseManager manager = new MongoCseManager(projectedConfig);
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+
+        ObjectId id = new ObjectId();
+        collection.insertOne(new Document("_id", id).append("testValue", 1).append("status", "NEW").append("payload", "large"));
+        collection.updateOne(Filters.eq("_id", id), Updates.combine(Updates.set("status", "PAID"), Updates.set("payload", "larger")));
+
+        List<ChangeStreamDocument<Document>> events = waitForEvents(listener, 2);
+        manager.close();
+
+        assertEquals(2, events.size());
+        assertEquals(new Document("testValue", 1).append("status", "NEW"), events.get(0).getFullDocument());
+        assertNull(events.get(0).getUpdateDescription());
+        assertEquals(Set.of("status"), events.get(1).getUpdateDescription().getUpdatedFields().keySet());
+        assertEquals(1, events.get(1).getFullDocument().getInteger("testValue"));
+    }
+
+
+    @Test
+    void givenImageCache_shouldRebuildImagesWithoutServerLookups() throws Exception {
+        MongoConfig cachedConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(1)
+                .imageCachePolicy(ImageCachePolicy.prePostImages(100))
+                .build();
+        ObjectId existing = new ObjectId();
+        collection.insertOne(new Document("_id", existing).append("status", "OLD"));
+        MongoCseManager manager = new MongoCseManager(cachedConfig);
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+
+        ObjectId id = new ObjectId();
+        collection.insertOne(new Document("_id", id).append("status", "NEW").append("tags", List.of("a", "b")));
+        collection.updateOne(Filters.eq("_id", id), Updates.combine(Updates.set("status", "PAID"), Updates.popLast("tags")));
+        collection.updateOne(Filters.eq("_id", existing), Updates.set("status", "UPDATED"));
+        collection.deleteOne(Filters.eq("_id", id));
+
+        List<ChangeStreamDocument<Document>> events = waitForEvents(listener, 4);
+        manager.close();
+
+        assertEquals(new Document("_id", id).append("status", "PAID").append("tags", List.of("a")), events.get(1).getFullDocument());
+        assertEquals("NEW", events.get(1).getFullDocumentBeforeChange().getString("status"));
+        assertEquals("UPDATED", events.get(2).getFullDocument().getString("status"));
+        assertNull(events.get(2).getFullDocumentBeforeChange());
+        assertEquals("PAID", events.get(3).getFullDocumentBeforeChange().getString("status"));
+    }
+
+
+    @Test
+    void givenBootstrapSnapshot_shouldDeliverExistingDocumentsBeforeChanges() throws Exception {
+        MongoConfig bootstrapConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(3)
+                .bootstrapPolicy(BootstrapPolicy.snapshot(4))
+                .build();
+        List<ObjectId> existing = IntStream.range(0, 10).mapToObj(i -> new ObjectId()).toList();
+        collection.insertMany(existing.stream().map(id -> new Document("_id", id)).toList());
+        MongoCseManager manager = new MongoCseManager(bootstrapConfig);
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+
+        List<ChangeStreamDocument<Document>> snapshot = waitForEvents(listener, existing.size());
+        ObjectId inserted = new ObjectId();
+        collection.insertOne(new Document("_id", inserted));
+        List<ChangeStreamDocument<Document>> events = waitForEvents(listener, existing.size() + 1);
+        manager.close();
+
+        assertTrue(snapshot.stream().allMatch(BootstrapPolicy::isSnapshotEvent));
+        assertEquals(Set.copyOf(existing), snapshot.stream().map(event -> event.getFullDocument().getObjectId("_id")).collect(Collectors.toSet()));
+        assertFalse(BootstrapPolicy.isSnapshotEvent(events.get(existing.size())));
+        assertEquals(inserted, events.get(existing.size()).getFullDocument().getObjectId("_id"));
+
+        MongoCseManager restarted = new MongoCseManager(bootstrapConfig);
+        TestChangeStreamListener restartedListener = new TestChangeStreamListener();
+        restarted.registerListenerToAllPartitions(restartedListener);
+        restarted.start();
+        collection.insertOne(new Document("_id", new ObjectId()));
+        List<ChangeStreamDocument<Document>> afterRestart = waitForEvents(restartedListener, 1);
+        restarted.close();
+
+        assertEquals(1, afterRestart.size());
+        assertFalse(BootstrapPolicy.isSnapshotEvent(afterRestart.get(0)));
+    }
+
+
+    @Test
+    void givenRewind_shouldReplayEventsFromOperationTime() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfig);
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+
+        collection.insertOne(new Document("_id", new ObjectId()));
+        collection.insertOne(new Document("_id", new ObjectId()));
+        List<ChangeStreamDocument<Document>> events = waitForEvents(listener, 2);
+        BsonTimestamp firstClusterTime = events.stream()
+                .map(ChangeStreamDocument::getClusterTime)
+                .min(BsonTimestamp::compareTo)
+                .orElseThrow();
+
+        manager.rewind(firstClusterTime, List.of(0, 1, 2));
+        List<ChangeStreamDocument<Document>> replayed = waitForEvents(listener, 4);
+        manager.close();
+
+        assertEquals(4, replayed.size());
+        assertEquals(Set.copyOf(events.subList(0, 2).stream().map(ChangeStreamDocument::getDocumentKey).toList()),
+                Set.copyOf(replayed.subList(2, 4).stream().map(ChangeStreamDocument::getDocumentKey).toList()));
+    }
 }
@@ -0,0 +1,230 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.event.ConnectionCheckOutStartedEvent;
+import com.mongodb.event.ConnectionCheckedOutEvent;
+import com.mongodb.event.ConnectionPoolListener;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares a manager whose change streams share the connection pool of its configs and of the application with one
+ * reading them through a pool of their own, with and without wire compression of the streams. The pool of the
+ * shared client has one connection per partition, as many as the streams, so every {@code getMore} waiting for
+ * events competes with the application for a connection.
+ * <p>
+ * Each invocation inserts {@code events} documents of about 1 KB while an application thread queries through the
+ * manager's config client. The score is the time until the listeners have received all events.
+ * {@code wireKbOut} is the traffic the server sent meanwhile, from {@code serverStatus}, {@code poolWaitMs} the time
+ * all checkouts of the manager's clients waited for a connection, and {@code appQueryMaxMs} the slowest application
+ * query.
+ * <p>
+ * Needs Docker for the MongoDB replica set, or an existing one, see {@link BenchmarkReplicaSet}. Run with
+ * {@code mvn test-compile exec:exec -Pbenchmark -Dbenchmark="ClientPoolBenchmark"}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ClientPoolBenchmark {
+
+    private static final int INSERT_CHUNK = 500;
+
+    private static final long NANOS_PER_MILLI = 1_000_000;
+
+    private static final int BYTES_PER_KB = 1024;
+
+    private static final String PAYLOAD = "change stream event payload ".repeat(36);
+
+    public enum Pool {
+        SHARED,
+        SEPARATE
+    }
+
+    public enum Compression {
+        NONE,
+        ZLIB,
+        ZSTD
+    }
+
+    @Param({"SHARED", "SEPARATE"})
+    public Pool pool;
+
+    @Param({"NONE", "ZLIB", "ZSTD"})
+    public Compression compression;
+
+    @Param({"16"})
+    public int partitions;
+
+    @Param({"5000"})
+    public int events;
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final PoolWaits poolWaits = new PoolWaits();
+
+    private BenchmarkReplicaSet replicaSet;
+
+    private MongoClient client;
+
+    private MongoCollection<Document> collection;
+
+    private MongoClientProvider clientProvider;
+
+    private MongoCseManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        replicaSet = BenchmarkReplicaSet.start("benchmark");
+        client = MongoClients.create(replicaSet.getConnectionUri());
+        collection = client.getDatabase("benchmark").getCollection("events");
+
+        MongoClientSettings settings = MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString(replicaSet.getConnectionUri()))
+                .applyToConnectionPoolSettings(poolSettings -> poolSettings.maxSize(partitions).addConnectionPoolListener(poolWaits))
+                .compressorList(compressors())
+                .build();
+        clientProvider = pool == Pool.SHARED
+                ? MongoClientProvider.of(MongoClients.create(settings))
+                : new DefaultMongoClientProvider(settings, partitions, false);
+
+        manager = new MongoCseManager(MongoConfig.builder()
+                .clientProvider(clientProvider)
+                .databaseName("benchmark")
+                .collectionName("events")
+                .numberOfPartitions(partitions)
+                .virtualThreads(true)
+                .build());
+        manager.registerListenerToAllPartitions(event -> received.incrementAndGet());
+        manager.start();
+    }
+
+    private List<MongoCompressor> compressors() {
+        return switch (compression) {
+            case NONE -> List.of();
+            case ZLIB -> List.of(MongoCompressor.createZlibCompressor());
+            case ZSTD -> List.of(MongoCompressor.createZstdCompressor());
+        };
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        manager.close();
+        clientProvider.close();
+        client.close();
+        replicaSet.close();
+    }
+
+    @Benchmark
+    public void drainInserts(WireMetrics metrics) throws Exception {
+        received.set(0);
+        poolWaits.reset();
+        long bytesOutBefore = serverBytesOut();
+        AtomicBoolean inserting = new AtomicBoolean(true);
+        CompletableFuture<Long> appQueries = CompletableFuture.supplyAsync(() -> queryWhile(inserting));
+
+        List<Document> chunk = new ArrayList<>(INSERT_CHUNK);
+        for (int i = 0; i < events; i++) {
+            chunk.add(new Document("value", i).append("payload", PAYLOAD));
+            if (chunk.size() == INSERT_CHUNK || i == events - 1) {
+                collection.insertMany(chunk);
+                chunk.clear();
+            }
+        }
+        while (received.get() < events) {
+            Thread.onSpinWait();
+        }
+        inserting.set(false);
+
+        metrics.appQueryMaxMs += appQueries.get() / NANOS_PER_MILLI;
+        metrics.poolWaitMs += poolWaits.total.sum() / NANOS_PER_MILLI;
+        metrics.wireKbOut += (serverBytesOut() - bytesOutBefore) / BYTES_PER_KB;
+    }
+
+    /**
+     * @return the longest query time in nanoseconds
+     */
+    private long queryWhile(AtomicBoolean running) {
+        MongoCollection<Document> side = clientProvider.getClient().getDatabase("benchmark").getCollection("side");
+        long slowest = 0;
+        while (running.get()) {
+            long start = System.nanoTime();
+            side.find(Filters.eq("_id", 1)).first();
+            slowest = Math.max(slowest, System.nanoTime() - start);
+        }
+        return slowest;
+    }
+
+    private long serverBytesOut() {
+        Document network = client.getDatabase("admin").runCommand(new Document("serverStatus", 1)).get("network", Document.class);
+        return ((Number) network.get("bytesOut")).longValue();
+    }
+
+    /**
+     * Time checkouts waited for a connection, from the start of the checkout until a connection was handed out.
+     */
+    private static final class PoolWaits implements ConnectionPoolListener {
+
+        private final ThreadLocal<Long> checkOutStart = new ThreadLocal<>();
+
+        private final LongAdder total = new LongAdder();
+
+        @Override
+        public void connectionCheckOutStarted(ConnectionCheckOutStartedEvent event) {
+            checkOutStart.set(System.nanoTime());
+        }
+
+        @Override
+        public void connectionCheckedOut(ConnectionCheckedOutEvent event) {
+            Long start = checkOutStart.get();
+            if (start != null) {
+                total.add(System.nanoTime() - start);
+                checkOutStart.remove();
+            }
+        }
+
+        void reset() {
+            total.reset();
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class WireMetrics {
+
+        public long wireKbOut;
+
+        public long poolWaitMs;
+
+        public long appQueryMaxMs;
+    }
+}
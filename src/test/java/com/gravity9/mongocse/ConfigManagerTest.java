@@ -1,8 +1,11 @@
 package com.gravity9.mongocse;
 
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.Map;
+
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
@@ -34,7 +37,7 @@ public class ConfigManagerTest extends AbstractMongoDbBase {
         new MongoCseManager(mongoConfig);
         assertDoesNotThrow(() -> new MongoCseManager(mongoConfig));
 
-        WorkerClusterConfig config = new ConfigManager(mongoConfig, CLIENT_PROVIDER).getOrInitClusterConfig(getTestCollectionName(), partitions);
+        WorkerClusterConfig config = new ConfigManager(mongoConfig, CLIENT_PROVIDER).getOrInitClusterConfig(getTestCollectionName(), new SlotLayout(partitions, partitions));
         assertEquals(getTestCollectionName(), config.getCollection());
         assertEquals(partitions, config.getPartitions());
     }
@@ -102,7 +105,8 @@ public class ConfigManagerTest extends AbstractMongoDbBase {
 		assertNull(workerConfig.getResumeToken());
 
 		String testToken = "test-resume-token-12345";
-		ChangeStreamWorkerConfig updatedConfig = configManager.updateResumeToken(workerConfig.getId(), testToken);
+		configManager.updateResumeToken(workerConfig.getId(), testToken);
+		ChangeStreamWorkerConfig updatedConfig = configManager.getConfigOrInit(getTestCollectionName(), 0);
 		assertEquals(testToken, updatedConfig.getResumeToken());
 
 		configManager.clearResumeToken(workerConfig.getId());
@@ -141,4 +145,66 @@ public class ConfigManagerTest extends AbstractMongoDbBase {
 		assertNull(refreshedConfig1.getResumeToken());
 		assertEquals(token2, refreshedConfig2.getResumeToken());
 	}
+
+	@Test
+	void givenMultipleWorkerConfigs_whenUpdateResumeTokens_thenAllTokensAreWrittenInOneCall() {
+		var mongoConfig = mongoConfigBuilder
+				.numberOfPartitions(2)
+				.build();
+		ConfigManager configManager = new ConfigManager(mongoConfig, CLIENT_PROVIDER);
+
+		ChangeStreamWorkerConfig config0 = configManager.getConfigOrInit(getTestCollectionName(), 0);
+		ChangeStreamWorkerConfig config1 = configManager.getConfigOrInit(getTestCollectionName(), 1);
+
+		configManager.updateResumeTokens(Map.of(
+				config0.getId(), "bulk-token-0",
+				config1.getId(), "bulk-token-1"
+		));
+
+		assertEquals("bulk-token-0", configManager.getConfigOrInit(getTestCollectionName(), 0).getResumeToken());
+		assertEquals("bulk-token-1", configManager.getConfigOrInit(getTestCollectionName(), 1).getResumeToken());
+	}
+
+	@Test
+	void givenPendingToken_whenCheckpointerFlushed_thenUnchangedTokenIsNotWrittenAgain() {
+		var mongoConfig = mongoConfigBuilder
+				.numberOfPartitions(1)
+				.build();
+		ConfigManager configManager = new ConfigManager(mongoConfig, CLIENT_PROVIDER);
+		ChangeStreamWorkerConfig config = configManager.getConfigOrInit(getTestCollectionName(), 0);
+
+		try (var workerThreads = new WorkerThreads(mongoConfig, "test");
+			 var checkpointer = new ResumeTokenCheckpointer(configManager, CheckpointPolicy.onShutdown(), ChangeStreamMetrics.noop(), workerThreads, "test")) {
+			checkpointer.track(config.getId(), "first-token");
+			checkpointer.track(config.getId(), "second-token");
+			assertNull(configManager.getConfigOrInit(getTestCollectionName(), 0).getResumeToken());
+
+			checkpointer.flush();
+			assertEquals("second-token", configManager.getConfigOrInit(getTestCollectionName(), 0).getResumeToken());
+
+			configManager.clearResumeToken(config.getId());
+			checkpointer.track(config.getId(), "second-token");
+			checkpointer.flush();
+			assertNull(configManager.getConfigOrInit(getTestCollectionName(), 0).getResumeToken());
+		}
+	}
+
+	@Test
+	void givenSomeWorkerConfigs_whenGetConfigsOrInit_thenMissingConfigsAreCreatedAndExistingKept() {
+		var mongoConfig = mongoConfigBuilder
+				.numberOfPartitions(3)
+				.build();
+		ConfigManager configManager = new ConfigManager(mongoConfig, CLIENT_PROVIDER);
+		configManager.ensureIndexes();
+		ChangeStreamWorkerConfig config1 = configManager.getConfigOrInit(getTestCollectionName(), 1);
+		configManager.updateResumeToken(config1.getId(), "token-partition-1");
+
+		Map<Integer, ChangeStreamWorkerConfig> configs = configManager.getConfigsOrInit(getTestCollectionName(), 3);
+
+		assertEquals(3, configs.size());
+		assertEquals(config1.getId(), configs.get(1).getId());
+		assertEquals("token-partition-1", configs.get(1).getResumeToken());
+		assertNull(configs.get(0).getResumeToken());
+		assertEquals(configs.get(2).getId(), configManager.getConfigOrInit(getTestCollectionName(), 2).getId());
+	}
 }
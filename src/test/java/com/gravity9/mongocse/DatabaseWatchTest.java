@@ -0,0 +1,134 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.TestChangeStreamListener;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DatabaseWatchTest extends AbstractMongoDbBase {
+
+    private static final String ORDERS = "dbWatchOrders";
+    private static final String CUSTOMERS = "dbWatchCustomers";
+    private static final String IGNORED = "dbWatchIgnored";
+
+    private MongoDatabase database;
+
+    private MongoConfig mongoConfig;
+
+    @BeforeEach
+    public void setup() {
+        super.setup();
+        database = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName());
+        mongoConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(3)
+                .maxAwaitTimeInMs(100)
+                .build();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        for (String collectionName : List.of(ORDERS, CUSTOMERS, IGNORED)) {
+            database.getCollection(collectionName).drop();
+            database.getCollection(getWorkerConfigCollectionName()).deleteMany(Filters.eq("collection", collectionName));
+            database.getCollection(getClusterConfigCollectionName()).deleteMany(Filters.eq("collection", collectionName));
+        }
+    }
+
+    @Test
+    void givenSeveralCollections_shouldRouteEventsToListenersOfTheirCollection() throws Exception {
+        MongoCseDatabaseManager manager = new MongoCseDatabaseManager(mongoConfig, List.of(ORDERS, CUSTOMERS));
+        TestChangeStreamListener orders = new TestChangeStreamListener();
+        TestChangeStreamListener customers = new TestChangeStreamListener();
+        Map<ObjectId, Integer> orderPartitions = new ConcurrentHashMap<>();
+        manager.registerListenerToAllPartitions(ORDERS, orders);
+        manager.registerListenerToAllPartitions(CUSTOMERS, customers);
+        for (int partition = 0; partition < 3; partition++) {
+            int receivingPartition = partition;
+            manager.registerListener(ORDERS, event -> orderPartitions.put(
+                    event.getDocumentKey().getObjectId("_id").getValue(), receivingPartition), List.of(partition));
+        }
+        manager.start();
+
+        for (int i = 0; i < 10; i++) {
+            database.getCollection(ORDERS).insertOne(new Document("_id", new ObjectId()));
+            database.getCollection(CUSTOMERS).insertOne(new Document("_id", new ObjectId()));
+            database.getCollection(IGNORED).insertOne(new Document("_id", new ObjectId()));
+        }
+        waitForEvents(orders, 10);
+        waitForEvents(customers, 10);
+        Thread.sleep(500);
+        manager.close();
+
+        assertEquals(10, orders.getEvents().size());
+        assertEquals(10, customers.getEvents().size());
+        orders.getEvents().forEach(event -> assertEquals(ORDERS, event.getNamespace().getCollectionName()));
+        customers.getEvents().forEach(event -> assertEquals(CUSTOMERS, event.getNamespace().getCollectionName()));
+        orderPartitions.forEach((id, partition) -> assertEquals(OptionalInt.of(partition), manager.partitionOf(ORDERS, id)));
+    }
+
+    @Test
+    void givenRestartedManager_shouldResumeEveryCollectionFromItsOwnToken() throws Exception {
+        MongoCseDatabaseManager manager = new MongoCseDatabaseManager(mongoConfig, List.of(ORDERS, CUSTOMERS));
+        manager.start();
+        database.getCollection(ORDERS).insertOne(new Document("value", 1));
+        Thread.sleep(500);
+        manager.close();
+
+        database.getCollection(ORDERS).insertOne(new Document("value", 2));
+        database.getCollection(CUSTOMERS).insertOne(new Document("value", 3));
+        for (String collectionName : List.of(ORDERS, CUSTOMERS)) {
+            for (int partition = 0; partition < 3; partition++) {
+                assertNotNull(new ConfigManager(mongoConfig, CLIENT_PROVIDER).getConfigOrInit(collectionName, partition).getResumeToken());
+            }
+        }
+
+        MongoCseDatabaseManager restarted = new MongoCseDatabaseManager(mongoConfig, List.of(ORDERS, CUSTOMERS));
+        TestChangeStreamListener orders = new TestChangeStreamListener();
+        TestChangeStreamListener customers = new TestChangeStreamListener();
+        restarted.registerListenerToAllPartitions(ORDERS, orders);
+        restarted.registerListenerToAllPartitions(CUSTOMERS, customers);
+        restarted.start();
+        waitForEvents(orders, 1);
+        waitForEvents(customers, 1);
+        restarted.close();
+
+        assertEquals(1, orders.getEvents().size());
+        assertEquals(2, orders.getEvents().get(0).getFullDocument().getInteger("value"));
+        assertEquals(1, customers.getEvents().size());
+    }
+
+    @Test
+    void givenCollectionManagedBefore_shouldKeepItsClusterConfig() throws Exception {
+        MongoConfig ordersConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(ORDERS)
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(2)
+                .build();
+        new MongoCseManager(ordersConfig).close();
+
+        assertThrows(IllegalArgumentException.class, () -> new MongoCseDatabaseManager(mongoConfig, List.of(ORDERS, CUSTOMERS)));
+        assertThrows(IllegalArgumentException.class, () -> new MongoCseDatabaseManager(mongoConfig, List.of()));
+        assertNull(database.getCollection(getClusterConfigCollectionName()).find(Filters.eq("collection", CUSTOMERS)).first());
+    }
+}
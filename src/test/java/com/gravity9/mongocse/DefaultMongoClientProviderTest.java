@@ -0,0 +1,67 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoCompressor;
+import com.mongodb.client.MongoClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class DefaultMongoClientProviderTest {
+
+    private static final MongoClientSettings SETTINGS = MongoClientSettings.builder()
+            .applyConnectionString(new ConnectionString("mongodb://localhost:27017"))
+            .build();
+
+    @Test
+    void givenStreamConnections_shouldReadStreamsWithAClientOfTheirOwn() throws Exception {
+        try (MongoClientProvider provider = MongoClientProvider.create(SETTINGS, 4)) {
+            assertNotSame(provider.getClient(), provider.getStreamClient());
+            assertSame(provider.getStreamClient(), provider.getStreamClient());
+        }
+    }
+
+    @Test
+    void givenResizedStreamConnections_shouldCreateStreamClientWithNewPool() throws Exception {
+        try (DefaultMongoClientProvider provider = new DefaultMongoClientProvider(SETTINGS, 4, false)) {
+            MongoClient streamClient = provider.getStreamClient();
+            provider.resizeStreamConnections(4);
+            assertSame(streamClient, provider.getStreamClient());
+
+            provider.resizeStreamConnections(1);
+            assertEquals(1, provider.getStreamConnections());
+            assertNotSame(streamClient, provider.getStreamClient());
+        }
+    }
+
+    @Test
+    void givenSharedClient_shouldNotResizeStreamConnections() throws Exception {
+        try (DefaultMongoClientProvider provider = new DefaultMongoClientProvider(SETTINGS, 0, false)) {
+            provider.resizeStreamConnections(8);
+            assertEquals(0, provider.getStreamConnections());
+            assertSame(provider.getClient(), provider.getStreamClient());
+        }
+    }
+
+    @Test
+    void givenNoStreamConnections_shouldShareTheClient() throws Exception {
+        try (MongoClientProvider provider = new DefaultMongoClientProvider(SETTINGS, 0, true)) {
+            assertSame(provider.getClient(), provider.getStreamClient());
+        }
+    }
+
+    @Test
+    void givenZstdOnClasspath_shouldPreferItAndFallBackToZlib() {
+        List<String> compressors = DefaultMongoClientProvider.availableCompressors().stream()
+                .map(MongoCompressor::getName)
+                .toList();
+
+        assertEquals("zstd", compressors.get(0));
+        assertEquals("zlib", compressors.get(compressors.size() - 1));
+    }
+}
@@ -0,0 +1,97 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares decoding change events with {@link DeliveryMode#DECODED} and {@link DeliveryMode#LAZY} documents, for a
+ * listener reading two fields and for a listener reading the whole document.
+ * Add {@code -prof gc} to the JMH options to see the allocation rate per event.
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Pbenchmark -Dbenchmark="DeliveryModeBenchmark -prof gc"}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DeliveryModeBenchmark {
+
+    private static final CodecRegistry DEFAULT_REGISTRY = MongoClientSettings.getDefaultCodecRegistry();
+
+    @Param({"DECODED", "LAZY"})
+    public DeliveryMode deliveryMode;
+
+    @Param({"20", "200"})
+    public int fields;
+
+    private RawBsonDocument event;
+
+    private Codec<ChangeStreamDocument<Document>> codec;
+
+    @Setup
+    public void setUp() {
+        CodecRegistry registry = deliveryMode == DeliveryMode.LAZY
+                ? CodecRegistries.fromRegistries(CodecRegistries.fromCodecs(new LazyDocumentCodec(DEFAULT_REGISTRY.get(Document.class))), DEFAULT_REGISTRY)
+                : DEFAULT_REGISTRY;
+        codec = ChangeStreamDocument.createCodec(Document.class, registry);
+        event = new RawBsonDocument(createEvent(fields), DEFAULT_REGISTRY.get(BsonDocument.class));
+    }
+
+    @Benchmark
+    public void readTwoFields(Blackhole blackhole) {
+        Document fullDocument = event.decode(codec).getFullDocument();
+        blackhole.consume(fullDocument.getObjectId("_id"));
+        blackhole.consume(fullDocument.getString("status"));
+    }
+
+    @Benchmark
+    public void readAllFields(Blackhole blackhole) {
+        Document fullDocument = event.decode(codec).getFullDocument();
+        fullDocument.forEach((key, value) -> blackhole.consume(value));
+    }
+
+    private static BsonDocument createEvent(int fields) {
+        Document fullDocument = new Document("_id", new ObjectId())
+                .append("status", "ACTIVE")
+                .append("createdAt", new Date());
+        for (int i = 0; fullDocument.size() < fields; i++) {
+            List<Object> tags = new ArrayList<>();
+            tags.add("tag-" + i);
+            tags.add(i);
+            fullDocument.append("field" + i, new Document("name", "value-" + i).append("amount", i * 1.5).append("tags", tags));
+        }
+        return new BsonDocument("_id", new BsonDocument("_data", new BsonString("8263A1B2C3000000012B022C0100296E5A1004")))
+                .append("operationType", new BsonString("update"))
+                .append("documentKey", new BsonDocument("_id", new BsonInt32(1)))
+                .append("fullDocument", BsonDocumentWrapper.asBsonDocument(fullDocument, DEFAULT_REGISTRY));
+    }
+}
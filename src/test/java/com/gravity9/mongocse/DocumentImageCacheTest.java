@@ -0,0 +1,112 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.TruncatedArray;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.gravity9.mongocse.constants.Events.event;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DocumentImageCacheTest {
+
+    private final List<List<BsonValue>> lookups = new ArrayList<>();
+
+    @Test
+    void givenCachedDocument_shouldApplyUpdatesWithoutLookup() {
+        DocumentImageCache cache = new DocumentImageCache(ImageCachePolicy.prePostImages(10), this::lookUp);
+
+        List<ChangeStreamDocument<Document>> events = cache.reconstruct(batch(List.of(
+                insert(1, new Document("_id", 1).append("status", "NEW").append("items", List.of("a", "b", "c")).append("note", "x")),
+                update(1, new UpdateDescription(List.of("note"), BsonDocument.parse("{\"status\": \"PAID\", \"items.1\": \"B\", \"customer.name\": \"Ann\"}"),
+                        List.of(new TruncatedArray("items", 2)))),
+                delete(1)))).events();
+
+        assertEquals(List.of(), lookups);
+        assertEquals(Document.parse("{\"_id\": 1, \"status\": \"PAID\", \"items\": [\"a\", \"B\"], \"customer\": {\"name\": \"Ann\"}}"),
+                events.get(1).getFullDocument());
+        assertEquals("NEW", events.get(1).getFullDocumentBeforeChange().getString("status"));
+        assertEquals("PAID", events.get(2).getFullDocumentBeforeChange().getString("status"));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    void givenUncachedDocuments_shouldLookThemUpOncePerBatch() {
+        DocumentImageCache cache = new DocumentImageCache(ImageCachePolicy.postImages(10), this::lookUp);
+
+        List<ChangeStreamDocument<Document>> events = cache.reconstruct(batch(List.of(
+                update(1, new UpdateDescription(List.of(), BsonDocument.parse("{\"status\": \"PAID\"}"))),
+                update(2, new UpdateDescription(List.of(), BsonDocument.parse("{\"status\": \"PAID\"}"))),
+                update(1, new UpdateDescription(List.of(), BsonDocument.parse("{\"status\": \"SHIPPED\"}"))),
+                update(3, new UpdateDescription(List.of(), BsonDocument.parse("{\"status\": \"PAID\"}")))))).events();
+
+        assertEquals(List.of(List.of(new BsonInt32(1), new BsonInt32(2), new BsonInt32(3))), lookups);
+        assertEquals("LOOKED_UP", events.get(0).getFullDocument().getString("status"));
+        assertEquals("SHIPPED", events.get(2).getFullDocument().getString("status"));
+        assertNull(events.get(1).getFullDocument());
+        assertNull(events.get(0).getFullDocumentBeforeChange());
+    }
+
+    @Test
+    void givenFullCache_shouldEvictLeastRecentlyUsedDocument() {
+        DocumentImageCache cache = new DocumentImageCache(ImageCachePolicy.postImages(2), this::lookUp);
+
+        cache.reconstruct(batch(List.of(insert(1, new Document("_id", 1)), insert(3, new Document("_id", 3)), insert(5, new Document("_id", 5)))));
+        cache.reconstruct(batch(List.of(update(1, new UpdateDescription(List.of(), BsonDocument.parse("{\"status\": \"PAID\"}"))))));
+
+        assertEquals(List.of(List.of(new BsonInt32(1))), lookups);
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    void givenCustomKeyOrProjection_shouldRejectImageCache() {
+        assertThrows(IllegalArgumentException.class, () -> MongoConfig.builder()
+                .keyName("customerId")
+                .imageCachePolicy(ImageCachePolicy.defaultCache())
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> MongoConfig.builder()
+                .projection(ChangeStreamProjection.none().includeFullDocument("status"))
+                .imageCachePolicy(ImageCachePolicy.defaultCache())
+                .build());
+        assertThrows(IllegalArgumentException.class, () -> ImageCachePolicy.postImages(0));
+        assertEquals(FullDocument.DEFAULT, MongoConfig.builder().imageCachePolicy(ImageCachePolicy.defaultCache()).build().getStreamFullDocument());
+    }
+
+    /**
+     * Odd ids exist with status LOOKED_UP, even ids were deleted.
+     */
+    private List<BsonDocument> lookUp(List<BsonValue> ids) {
+        lookups.add(ids);
+        return ids.stream()
+                .filter(id -> id.asInt32().getValue() % 2 == 1)
+                .map(id -> new BsonDocument("_id", id).append("status", new BsonString("LOOKED_UP")))
+                .toList();
+    }
+
+    private static ChangeStreamBatch batch(List<ChangeStreamDocument<Document>> events) {
+        return new ChangeStreamBatch(events, null);
+    }
+
+    private static ChangeStreamDocument<Document> insert(int id, Document document) {
+        return event("insert", id, document);
+    }
+
+    private static ChangeStreamDocument<Document> update(int id, UpdateDescription updateDescription) {
+        return event("update", id, null, updateDescription);
+    }
+
+    private static ChangeStreamDocument<Document> delete(int id) {
+        return event("delete", id, null);
+    }
+}
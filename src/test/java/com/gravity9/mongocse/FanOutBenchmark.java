@@ -0,0 +1,134 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares {@link StreamMode#PER_PARTITION} and {@link StreamMode#FAN_OUT} for a growing number of partitions.
+ * Each invocation inserts {@code events} documents and waits until the listeners have received all of them, so the
+ * score is the end-to-end time. The CPU time the server spent meanwhile is read from {@code serverStatus} and
+ * reported as {@code serverCpuMs}, together with {@code idleServerCpuMs} for one second without writes, which shows
+ * the cost of the open streams polling an idle collection.
+ * <p>
+ * Needs Docker for the MongoDB replica set, or an existing one, see {@link BenchmarkReplicaSet}. Run with
+ * {@code mvn test-compile exec:exec -Pbenchmark -Dbenchmark="FanOutBenchmark -p partitions=64"}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+    private static final int INSERT_CHUNK = 1000;
+
+    private static final long IDLE_WINDOW_MS = 1000;
+
+    private static final long MICROS_PER_MILLI = 1000;
+
+    @Param({"8", "64", "256"})
+    public int partitions;
+
+    @Param({"PER_PARTITION", "FAN_OUT"})
+    public StreamMode streamMode;
+
+    @Param({"20000"})
+    public int events;
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private BenchmarkReplicaSet replicaSet;
+
+    private MongoClient client;
+
+    private MongoCollection<Document> collection;
+
+    private MongoCseManager manager;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        replicaSet = BenchmarkReplicaSet.start("benchmark");
+        client = MongoClients.create(replicaSet.getConnectionUri());
+        collection = client.getDatabase("benchmark").getCollection("events");
+
+        manager = new MongoCseManager(MongoConfig.builder()
+                .connectionUri(replicaSet.getConnectionUri())
+                .databaseName("benchmark")
+                .collectionName("events")
+                .numberOfPartitions(partitions)
+                .streamMode(streamMode)
+                .virtualThreads(true)
+                .build());
+        manager.registerListenerToAllPartitions(event -> received.incrementAndGet());
+        manager.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        manager.close();
+        client.close();
+        replicaSet.close();
+    }
+
+    @Benchmark
+    public void drainInserts(ServerMetrics metrics) throws InterruptedException {
+        long idleCpuBefore = serverCpuMicros();
+        Thread.sleep(IDLE_WINDOW_MS);
+        metrics.idleServerCpuMs += (serverCpuMicros() - idleCpuBefore) / MICROS_PER_MILLI;
+
+        received.set(0);
+        long cpuBefore = serverCpuMicros();
+        List<Document> chunk = new ArrayList<>(INSERT_CHUNK);
+        for (int i = 0; i < events; i++) {
+            chunk.add(new Document("value", i));
+            if (chunk.size() == INSERT_CHUNK || i == events - 1) {
+                collection.insertMany(chunk);
+                chunk.clear();
+            }
+        }
+        while (received.get() < events) {
+            Thread.onSpinWait();
+        }
+        metrics.serverCpuMs += (serverCpuMicros() - cpuBefore) / MICROS_PER_MILLI;
+    }
+
+    private long serverCpuMicros() {
+        Document extraInfo = client.getDatabase("admin").runCommand(new Document("serverStatus", 1)).get("extra_info", Document.class);
+        return toLong(extraInfo.get("user_time_us")) + toLong(extraInfo.get("system_time_us"));
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number number ? number.longValue() : 0;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ServerMetrics {
+
+        public long serverCpuMs;
+
+        public long idleServerCpuMs;
+    }
+}
@@ -0,0 +1,190 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import org.bson.BsonArray;
+import org.bson.BsonBinary;
+import org.bson.BsonBinarySubType;
+import org.bson.BsonBoolean;
+import org.bson.BsonDateTime;
+import org.bson.BsonDbPointer;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonJavaScript;
+import org.bson.BsonMaxKey;
+import org.bson.BsonMinKey;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonRegularExpression;
+import org.bson.BsonString;
+import org.bson.BsonSymbol;
+import org.bson.BsonTimestamp;
+import org.bson.BsonType;
+import org.bson.BsonUndefined;
+import org.bson.BsonValue;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.OptionalInt;
+import java.util.Random;
+
+import static com.gravity9.mongocse.MongoExpressions.abs;
+import static com.gravity9.mongocse.MongoExpressions.cond;
+import static com.gravity9.mongocse.MongoExpressions.mod;
+import static com.gravity9.mongocse.MongoExpressions.toHashedIndexKey;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Compares {@link Partitions} with the server for random values of every BSON type the server can hash.
+ */
+class HashedIndexKeyServerTest extends AbstractMongoDbBase {
+
+    private static final int VALUES_PER_TYPE = 200;
+
+    private static final int PARTITIONS = 7;
+
+    private static final String VALUE_FIELD = "v";
+
+    private MongoCollection<BsonDocument> collection;
+
+    @BeforeEach
+    public void setup() {
+        super.setup();
+        collection = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName()).getCollection(getTestCollectionName(), BsonDocument.class);
+    }
+
+    @Test
+    void givenRandomValuesOfEveryType_shouldMatchServerHashAndPartition() {
+        for (BsonType type : BsonType.values()) {
+            if (type != BsonType.END_OF_DOCUMENT && type != BsonType.JAVASCRIPT_WITH_SCOPE) {
+                assertMatchesServer(type);
+            }
+        }
+    }
+
+    private void assertMatchesServer(BsonType type) {
+        Random random = new Random(type.getValue());
+        List<BsonDocument> documents = new ArrayList<>();
+        for (int i = 0; i < VALUES_PER_TYPE; i++) {
+            documents.add(new BsonDocument("_id", new BsonInt32(i)).append(VALUE_FIELD, randomValue(type, random, 2)));
+        }
+        collection.deleteMany(new BsonDocument());
+        collection.insertMany(documents);
+
+        BsonString valuePath = new BsonString("$" + VALUE_FIELD);
+        List<BsonDocument> results = collection.aggregate(List.of(Aggregates.project(Projections.fields(
+                Projections.include(VALUE_FIELD),
+                Projections.computed("hash", toHashedIndexKey(valuePath)),
+                Projections.computed("partition", cond(valuePath, mod(abs(toHashedIndexKey(valuePath)), PARTITIONS), "null"))
+        )))).into(new ArrayList<>());
+
+        assertEquals(VALUES_PER_TYPE, results.size());
+        for (BsonDocument result : results) {
+            BsonValue value = result.get(VALUE_FIELD);
+            String message = type + " value " + result.toJson();
+            assertEquals(result.getInt64("hash").getValue(), Partitions.hashedIndexKey(value), message);
+            BsonValue serverPartition = result.get("partition");
+            OptionalInt expected = serverPartition.isString() ? OptionalInt.empty() : OptionalInt.of(serverPartition.asNumber().intValue());
+            assertEquals(expected, Partitions.partitionOf(value, PARTITIONS), message);
+        }
+    }
+
+    private static BsonValue randomValue(BsonType type, Random random, int depth) {
+        return switch (type) {
+            case DOUBLE -> new BsonDouble(randomDouble(random));
+            case STRING -> new BsonString(randomString(random));
+            case DOCUMENT -> randomDocument(random, depth);
+            case ARRAY -> randomArray(random, depth);
+            case BINARY -> randomBinary(random);
+            case UNDEFINED -> new BsonUndefined();
+            case OBJECT_ID -> new BsonObjectId(new ObjectId(random.nextInt(Integer.MAX_VALUE), random.nextInt(1 << 24)));
+            case BOOLEAN -> BsonBoolean.valueOf(random.nextBoolean());
+            case DATE_TIME -> new BsonDateTime(random.nextLong());
+            case NULL -> BsonNull.VALUE;
+            case REGULAR_EXPRESSION -> new BsonRegularExpression(randomString(random), random.nextBoolean() ? "i" : "imsx");
+            case DB_POINTER -> new BsonDbPointer("test." + randomString(random), new ObjectId());
+            case JAVASCRIPT -> new BsonJavaScript("function() { return " + random.nextInt() + "; }");
+            case SYMBOL -> new BsonSymbol(randomString(random));
+            case INT32 -> new BsonInt32(random.nextInt(4) == 0 ? random.nextInt(3) - 1 : random.nextInt());
+            case TIMESTAMP -> new BsonTimestamp(random.nextInt(Integer.MAX_VALUE), random.nextInt(Integer.MAX_VALUE));
+            case INT64 -> new BsonInt64(random.nextInt(4) == 0 ? random.nextInt(3) - 1 : random.nextLong());
+            case DECIMAL128 -> new BsonDecimal128(randomDecimal(random));
+            case MIN_KEY -> new BsonMinKey();
+            case MAX_KEY -> new BsonMaxKey();
+            default -> throw new IllegalArgumentException("Cannot generate " + type);
+        };
+    }
+
+    private static double randomDouble(Random random) {
+        double[] specials = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0x1p63, -0x1p63, 1e300, -1e-300, 0.5, -0.5};
+        return switch (random.nextInt(3)) {
+            case 0 -> specials[random.nextInt(specials.length)];
+            case 1 -> (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(40));
+            default -> Double.longBitsToDouble(random.nextLong());
+        };
+    }
+
+    private static Decimal128 randomDecimal(Random random) {
+        Decimal128[] specials = {Decimal128.NaN, Decimal128.POSITIVE_INFINITY, Decimal128.NEGATIVE_INFINITY,
+                Decimal128.POSITIVE_ZERO, Decimal128.NEGATIVE_ZERO, Decimal128.parse("2.5"), Decimal128.parse("-3.5"),
+                Decimal128.parse("9223372036854775807.5"), Decimal128.parse("1E+30")};
+        if (random.nextInt(3) == 0) {
+            return specials[random.nextInt(specials.length)];
+        }
+        return new Decimal128(BigDecimal.valueOf(random.nextLong(), random.nextInt(30) - 10));
+    }
+
+    private static String randomString(Random random) {
+        StringBuilder builder = new StringBuilder();
+        int length = random.nextInt(12);
+        for (int i = 0; i < length; i++) {
+            builder.appendCodePoint(random.nextBoolean() ? 'a' + random.nextInt(26) : 0x80 + random.nextInt(0x2000));
+        }
+        return builder.toString();
+    }
+
+    private static BsonValue randomDocument(Random random, int depth) {
+        BsonDocument document = new BsonDocument();
+        int size = random.nextInt(4);
+        for (int i = 0; i < size; i++) {
+            document.append("f" + randomString(random), randomNested(random, depth));
+        }
+        return document;
+    }
+
+    private static BsonValue randomArray(Random random, int depth) {
+        BsonArray array = new BsonArray();
+        int size = random.nextInt(4);
+        for (int i = 0; i < size; i++) {
+            array.add(randomNested(random, depth));
+        }
+        return array;
+    }
+
+    private static BsonValue randomNested(Random random, int depth) {
+        BsonType[] scalars = {BsonType.INT32, BsonType.DOUBLE, BsonType.STRING, BsonType.OBJECT_ID, BsonType.NULL, BsonType.BOOLEAN};
+        if (depth > 0 && random.nextInt(3) == 0) {
+            return randomValue(random.nextBoolean() ? BsonType.DOCUMENT : BsonType.ARRAY, random, depth - 1);
+        }
+        return randomValue(scalars[random.nextInt(scalars.length)], random, 0);
+    }
+
+    private static BsonBinary randomBinary(Random random) {
+        byte[] subtypes = {BsonBinarySubType.BINARY.getValue(), BsonBinarySubType.OLD_BINARY.getValue(),
+                BsonBinarySubType.UUID_STANDARD.getValue(), BsonBinarySubType.MD5.getValue(), BsonBinarySubType.USER_DEFINED.getValue()};
+        byte subtype = subtypes[random.nextInt(subtypes.length)];
+        int length = subtype == BsonBinarySubType.UUID_STANDARD.getValue() || subtype == BsonBinarySubType.MD5.getValue() ? 16 : random.nextInt(40);
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return new BsonBinary(subtype, data);
+    }
+}
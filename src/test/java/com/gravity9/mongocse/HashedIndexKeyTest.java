@@ -0,0 +1,69 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.constants.TestIds;
+import org.bson.BsonArray;
+import org.bson.BsonDecimal128;
+import org.bson.BsonDocument;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonMaxKey;
+import org.bson.BsonNull;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.types.Decimal128;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class HashedIndexKeyTest {
+
+    @Test
+    void givenKnownValues_shouldMatchServerHashes() {
+        assertEquals(-944302157085130861L, HashedIndexKey.hash(new BsonInt32(42)));
+        assertEquals(4854801880128277513L, HashedIndexKey.hash(new BsonInt32(0)));
+        assertEquals(5902408780260971510L, HashedIndexKey.hash(new BsonInt32(1)));
+        assertEquals(2338878944348059895L, HashedIndexKey.hash(BsonNull.VALUE));
+        assertEquals(5504842513779440750L, HashedIndexKey.hash(new BsonMaxKey()));
+    }
+
+    @Test
+    void givenNumbersOfDifferentTypes_shouldHashTheirLongValue() {
+        long expected = HashedIndexKey.hash(new BsonInt32(42));
+
+        assertEquals(expected, HashedIndexKey.hash(new BsonInt64(42)));
+        assertEquals(expected, HashedIndexKey.hash(new BsonDouble(42.123)));
+        assertEquals(expected, HashedIndexKey.hash(new BsonDecimal128(Decimal128.parse("42"))));
+        assertEquals(HashedIndexKey.hash(new BsonInt64(Long.MAX_VALUE)), HashedIndexKey.hash(new BsonDouble(1e30)));
+        assertEquals(HashedIndexKey.hash(new BsonInt32(0)), HashedIndexKey.hash(new BsonDouble(Double.NaN)));
+        assertEquals(HashedIndexKey.hash(new BsonInt32(0)), HashedIndexKey.hash(new BsonDecimal128(Decimal128.NEGATIVE_ZERO)));
+        assertEquals(HashedIndexKey.hash(new BsonInt32(2)), HashedIndexKey.hash(new BsonDecimal128(Decimal128.parse("2.5"))));
+    }
+
+    @Test
+    void givenTestIds_shouldComputeSamePartitionsAsServer() {
+        assertEquals(0, PartitionKey.partitionOf(new BsonObjectId(new ObjectId(TestIds.MOD_0_ID)), 3));
+        assertEquals(1, PartitionKey.partitionOf(new BsonObjectId(new ObjectId(TestIds.MOD_1_ID)), 3));
+        assertEquals(2, PartitionKey.partitionOf(new BsonObjectId(new ObjectId(TestIds.MOD_2_ID)), 3));
+        assertEquals(0, PartitionKey.partitionOf(new BsonObjectId(new ObjectId(TestIds.MOD_3_ID)), 3));
+        assertEquals(0, PartitionKey.partitionOf(new BsonObjectId(new ObjectId(TestIds.MOD_3_ID)), 4));
+    }
+
+    @Test
+    void givenDocumentsAndArrays_shouldHashFieldNamesAndOrder() {
+        BsonDocument document = new BsonDocument("a", new BsonInt32(1)).append("b", new BsonString("x"));
+        BsonDocument reordered = new BsonDocument("b", new BsonString("x")).append("a", new BsonInt32(1));
+        BsonDocument renamed = new BsonDocument("a", new BsonInt32(1)).append("c", new BsonString("x"));
+
+        assertEquals(HashedIndexKey.hash(document), HashedIndexKey.hash(document.clone()));
+        assertNotEquals(HashedIndexKey.hash(document), HashedIndexKey.hash(reordered));
+        assertNotEquals(HashedIndexKey.hash(document), HashedIndexKey.hash(renamed));
+        assertEquals(HashedIndexKey.hash(new BsonArray(List.of(new BsonInt32(1)))),
+                HashedIndexKey.hash(new BsonArray(List.of(new BsonDouble(1.5)))));
+        assertNotEquals(HashedIndexKey.hash(new BsonArray()), HashedIndexKey.hash(new BsonDocument()));
+    }
+}
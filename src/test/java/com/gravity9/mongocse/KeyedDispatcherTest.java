@@ -0,0 +1,192 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.constants.Events;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.Document;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.gravity9.mongocse.constants.Events.token;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class KeyedDispatcherTest {
+
+    private static final long SLOW_EVENT_MS = 100;
+
+    private final MongoConfig mongoConfig = MongoConfig.builder()
+            .dispatchMode(DispatchMode.KEYED)
+            .dispatchLanes(4)
+            .build();
+
+    private final WorkerThreads workerThreads = new WorkerThreads(mongoConfig, "keyed-test");
+
+    private final List<BsonDocument> committedTokens = new CopyOnWriteArrayList<>();
+
+    private final AtomicInteger committedEvents = new AtomicInteger();
+
+    @AfterEach
+    void tearDown() {
+        workerThreads.close();
+    }
+
+    @Test
+    void givenSlowEventOfOneKey_tokenShouldNotAdvancePastIt() throws Exception {
+        CountDownLatch releaseSlowEvent = new CountDownLatch(1);
+        CountDownLatch otherKeysHandled = new CountDownLatch(2);
+        KeyedDispatcher dispatcher = new KeyedDispatcher("keyed-test", mongoConfig, events -> events.forEach(event -> {
+            if (event.getDocumentKey().getInt32("_id").getValue() == 0) {
+                await(releaseSlowEvent);
+            } else {
+                otherKeysHandled.countDown();
+            }
+        }), this::commit, workerThreads);
+        dispatcher.start();
+
+        ChangeStreamDocument<Document> slowEvent = event(0, "t1");
+        ChangeStreamDocument<Document> otherEvent = findEventInOtherLane(dispatcher, slowEvent, "t2");
+        ChangeStreamDocument<Document> nextOtherEvent = event(otherEvent.getDocumentKey().getInt32("_id").getValue(), "t3");
+        dispatcher.submit(new ChangeStreamBatch(List.of(slowEvent, otherEvent, nextOtherEvent), token("batch")));
+
+        assertTrue(otherKeysHandled.await(5, TimeUnit.SECONDS));
+        assertTrue(committedTokens.isEmpty());
+
+        releaseSlowEvent.countDown();
+        dispatcher.stop();
+
+        assertEquals(token("batch"), committedTokens.get(committedTokens.size() - 1));
+        assertEquals(3, committedEvents.get());
+    }
+
+    @Test
+    void givenManyKeys_eventsOfEachKeyShouldBeHandledInOrder() throws Exception {
+        int keys = 16;
+        int eventsPerKey = 500;
+        Map<Integer, List<Integer>> handledByKey = new ConcurrentHashMap<>();
+        KeyedDispatcher dispatcher = new KeyedDispatcher("keyed-test", mongoConfig, events -> events.forEach(event -> {
+            int key = event.getDocumentKey().getInt32("_id").getValue();
+            handledByKey.computeIfAbsent(key, ignored -> Collections.synchronizedList(new ArrayList<>()))
+                    .add(event.getFullDocument().getInteger("sequence"));
+        }), this::commit, workerThreads);
+        dispatcher.start();
+
+        for (int sequence = 0; sequence < eventsPerKey; sequence++) {
+            List<ChangeStreamDocument<Document>> batch = new ArrayList<>();
+            for (int key = 0; key < keys; key++) {
+                batch.add(event(key, sequence + "_" + key, new Document("_id", key).append("sequence", sequence)));
+            }
+            dispatcher.submit(new ChangeStreamBatch(batch, token("batch_" + sequence)));
+        }
+        dispatcher.stop();
+
+        for (int key = 0; key < keys; key++) {
+            List<Integer> handled = handledByKey.get(key);
+            assertEquals(eventsPerKey, handled.size());
+            for (int sequence = 0; sequence < eventsPerKey; sequence++) {
+                assertEquals(sequence, handled.get(sequence));
+            }
+        }
+        assertEquals(keys * eventsPerKey, committedEvents.get());
+        assertEquals(token("batch_" + (eventsPerKey - 1)), committedTokens.get(committedTokens.size() - 1));
+    }
+
+    @Test
+    void givenDeleteWithoutPreImageAfterUpdate_shouldUseLaneOfUpdate() {
+        MongoConfig customKeyConfig = MongoConfig.builder()
+                .dispatchMode(DispatchMode.KEYED)
+                .dispatchLanes(4)
+                .keyName("customerId")
+                .build();
+        KeyedDispatcher dispatcher = new KeyedDispatcher("keyed-test", customKeyConfig, events -> { }, this::commit, workerThreads);
+
+        for (int key = 0; key < 32; key++) {
+            ChangeStreamDocument<Document> update = event(key, "a", new Document("_id", key).append("customerId", "customer-" + key));
+            ChangeStreamDocument<Document> delete = Events.event("delete", token("b"), new BsonInt32(key), null, null, null);
+
+            assertEquals(dispatcher.laneOf(update), dispatcher.laneOf(delete));
+        }
+    }
+
+    @Test
+    void givenDeleteWithoutPreImageAfterUpdate_shouldHandleThemInOrder() throws Exception {
+        MongoConfig customKeyConfig = MongoConfig.builder()
+                .dispatchMode(DispatchMode.KEYED)
+                .dispatchLanes(4)
+                .keyName("customerId")
+                .build();
+        List<String> handled = new CopyOnWriteArrayList<>();
+        KeyedDispatcher dispatcher = new KeyedDispatcher("keyed-test", customKeyConfig, events -> events.forEach(event -> {
+            if ("update".equals(event.getOperationTypeString())) {
+                // a slow update must still be handled before the delete of the same document
+                sleep(SLOW_EVENT_MS);
+            }
+            handled.add(event.getOperationTypeString());
+        }), this::commit, workerThreads);
+        dispatcher.start();
+
+        dispatcher.submit(new ChangeStreamBatch(List.of(
+                event(7, "t1", new Document("_id", 7).append("customerId", "customer-7")),
+                Events.event("delete", token("t2"), new BsonInt32(7), null, null, null)), token("batch")));
+        dispatcher.stop();
+
+        assertEquals(List.of("update", "delete"), handled);
+        assertEquals(2, committedEvents.get());
+    }
+
+    private ChangeStreamDocument<Document> findEventInOtherLane(KeyedDispatcher dispatcher, ChangeStreamDocument<Document> event, String token) {
+        for (int key = 1; ; key++) {
+            ChangeStreamDocument<Document> candidate = event(key, token);
+            if (dispatcher.laneOf(candidate) != dispatcher.laneOf(event)) {
+                return candidate;
+            }
+        }
+    }
+
+    @Test
+    void givenNoLanesOrBuffer_configShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> MongoConfig.builder().dispatchLanes(0).build());
+        assertThrows(IllegalArgumentException.class, () -> MongoConfig.builder().dispatchBufferCapacity(0).build());
+    }
+
+    private void commit(BsonDocument token, int events) {
+        committedTokens.add(token);
+        committedEvents.addAndGet(events);
+    }
+
+    private static ChangeStreamDocument<Document> event(int key, String token) {
+        return event(key, token, new Document("_id", key));
+    }
+
+    private static ChangeStreamDocument<Document> event(int key, String token, Document fullDocument) {
+        return Events.event("update", token(token), new BsonInt32(key), fullDocument, null, null);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
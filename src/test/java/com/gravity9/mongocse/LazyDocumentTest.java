@@ -0,0 +1,87 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LazyDocumentTest {
+
+    private static final CodecRegistry DEFAULT_REGISTRY = MongoClientSettings.getDefaultCodecRegistry();
+
+    private static final CodecRegistry LAZY_REGISTRY = CodecRegistries.fromRegistries(
+            CodecRegistries.fromCodecs(new LazyDocumentCodec(DEFAULT_REGISTRY.get(Document.class))),
+            DEFAULT_REGISTRY
+    );
+
+    private final ObjectId id = new ObjectId();
+
+    private final Document fullDocument = new Document("_id", id)
+            .append("name", "test")
+            .append("count", 42)
+            .append("nested", new Document("value", 1.5).append("tags", List.of("a", "b")));
+
+    @Test
+    void givenLazyRegistry_fullDocumentShouldDecodeOnlyReadFields() {
+        Document document = decodeEvent().getFullDocument();
+
+        LazyDocument lazyDocument = assertInstanceOf(LazyDocument.class, document);
+        assertEquals(id, document.getObjectId("_id"));
+        assertEquals(42, document.getInteger("count"));
+        assertEquals(1.5, document.getEmbedded(List.of("nested", "value"), Double.class));
+        assertEquals(List.of("a", "b"), document.get("nested", Document.class).getList("tags", String.class));
+        assertTrue(document.containsKey("name"));
+        assertNull(document.get("missing"));
+        assertEquals(4, document.size());
+        assertFalse(lazyDocument.isDecoded());
+    }
+
+    @Test
+    void givenLazyDocument_iteratingOrModifyingShouldDecodeItFully() {
+        LazyDocument document = (LazyDocument) decodeEvent().getFullDocument();
+
+        assertEquals(fullDocument, new Document(document));
+        assertTrue(document.isDecoded());
+        assertEquals(decodeEvent().getFullDocument(), document);
+
+        document.put("count", 43);
+        assertEquals(43, document.getInteger("count"));
+        assertEquals(fullDocument.keySet(), document.keySet());
+    }
+
+    @Test
+    void givenLazyDocument_encodingShouldKeepRawBytes() {
+        Document document = decodeEvent().getFullDocument();
+
+        RawBsonDocument encoded = new RawBsonDocument(document, LAZY_REGISTRY.get(Document.class));
+
+        assertEquals(new RawBsonDocument(fullDocument, DEFAULT_REGISTRY.get(Document.class)), encoded);
+        assertFalse(((LazyDocument) document).isDecoded());
+    }
+
+    private ChangeStreamDocument<Document> decodeEvent() {
+        BsonDocument event = new BsonDocument("_id", new BsonDocument("_data", new BsonString("token")))
+                .append("operationType", new BsonString("insert"))
+                .append("documentKey", new BsonDocument("_id", new BsonInt32(1)))
+                .append("fullDocument", BsonDocumentWrapper.asBsonDocument(fullDocument, DEFAULT_REGISTRY));
+        Codec<ChangeStreamDocument<Document>> codec = ChangeStreamDocument.createCodec(Document.class, LAZY_REGISTRY);
+        return new RawBsonDocument(event, DEFAULT_REGISTRY.get(BsonDocument.class)).decode(codec);
+    }
+}
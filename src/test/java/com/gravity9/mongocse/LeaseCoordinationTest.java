@@ -0,0 +1,144 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.TestChangeStreamListener;
+import com.mongodb.client.MongoCollection;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeaseCoordinationTest extends AbstractMongoDbBase {
+
+    private static final int PARTITIONS = 4;
+
+    private MongoConfig mongoConfig;
+
+    private MongoCollection<Document> collection;
+
+    @BeforeEach
+    public void setup() {
+        super.setup();
+        collection = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName()).getCollection(getTestCollectionName());
+        mongoConfig = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfPartitions(PARTITIONS)
+                .leasePolicy(LeasePolicy.leases(1000, 200))
+                .maxAwaitTimeInMs(100)
+                .build();
+    }
+
+    @Test
+    void givenTwoManagers_shouldSplitPartitionsAndDeliverEveryEventOnce() throws Exception {
+        MongoCseManager first = new MongoCseManager(mongoConfig);
+        MongoCseManager second = new MongoCseManager(mongoConfig);
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        first.registerListenerToAllPartitions(listener);
+        second.registerListenerToAllPartitions(listener);
+        first.start();
+        second.start();
+        waitForPartitions(first, second);
+
+        Set<Integer> all = new HashSet<>(first.ownedPartitions());
+        all.addAll(second.ownedPartitions());
+        assertEquals(PARTITIONS, all.size());
+        assertEquals(PARTITIONS, first.ownedPartitions().size() + second.ownedPartitions().size());
+
+        for (int i = 0; i < 40; i++) {
+            collection.insertOne(new Document("_id", new ObjectId()));
+        }
+        waitForEvents(listener, 40);
+        // give duplicates time to show up
+        Thread.sleep(1000);
+        assertEquals(40, listener.getEvents().size());
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void givenStoppedManager_shouldHandOverItsPartitions() throws Exception {
+        MongoCseManager first = new MongoCseManager(mongoConfig);
+        MongoCseManager second = new MongoCseManager(mongoConfig);
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        second.registerListenerToAllPartitions(listener);
+        first.start();
+        second.start();
+        waitForPartitions(first, second);
+
+        first.stop();
+        for (int attempt = 0; attempt < 20 && second.ownedPartitions().size() < PARTITIONS; attempt++) {
+            Thread.sleep(200);
+        }
+        assertEquals(Set.of(0, 1, 2, 3), second.ownedPartitions());
+        assertTrue(first.ownedPartitions().isEmpty());
+
+        for (int i = 0; i < 20; i++) {
+            collection.insertOne(new Document("_id", new ObjectId()));
+        }
+        assertEquals(20, waitForEvents(listener, 20).size());
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    void givenExpiredLease_shouldFenceCheckpointsOfThePreviousOwner() throws Exception {
+        ConfigManager configManager = new ConfigManager(mongoConfig, CLIENT_PROVIDER);
+        String collectionName = getTestCollectionName();
+        ObjectId configId = configManager.getConfigOrInit(collectionName, 0).getId();
+
+        OptionalLong firstToken = configManager.acquireLease(collectionName, 0, "first", 300);
+        assertTrue(firstToken.isPresent());
+        assertTrue(configManager.fence(configId, firstToken.getAsLong()));
+        assertTrue(configManager.acquireLease(collectionName, 0, "second", 300).isEmpty());
+
+        Thread.sleep(500);
+        OptionalLong secondToken = configManager.acquireLease(collectionName, 0, "second", 300);
+        assertTrue(secondToken.isPresent());
+        assertTrue(secondToken.getAsLong() > firstToken.getAsLong());
+        assertTrue(configManager.fence(configId, secondToken.getAsLong()));
+
+        assertFalse(configManager.renewLease(collectionName, 0, "first", firstToken.getAsLong(), 300));
+        assertFalse(configManager.fence(configId, firstToken.getAsLong()));
+        assertEquals(Set.of(), configManager.updateResumeTokens(Map.of(configId, "stale"), Map.of(configId, firstToken.getAsLong())));
+        assertEquals(Set.of(configId), configManager.updateResumeTokens(Map.of(configId, "current"), Map.of(configId, secondToken.getAsLong())));
+        assertEquals("current", configManager.getConfigOrInit(collectionName, 0).getResumeToken());
+    }
+
+    @Test
+    void givenLeasesInFanOutMode_shouldThrow() {
+        MongoConfig fanOut = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .streamMode(StreamMode.FAN_OUT)
+                .leasePolicy(LeasePolicy.defaultLeases())
+                .build();
+
+        assertThrows(IllegalArgumentException.class, () -> new MongoCseManager(fanOut));
+    }
+
+    private static void waitForPartitions(MongoCseManager first, MongoCseManager second) throws InterruptedException {
+        // both members have to see each other before the first one hands over its surplus partitions
+        for (int attempt = 0; attempt < 20; attempt++) {
+            if (first.ownedPartitions().size() == PARTITIONS / 2 && second.ownedPartitions().size() == PARTITIONS / 2) {
+                return;
+            }
+            Thread.sleep(200);
+        }
+    }
+}
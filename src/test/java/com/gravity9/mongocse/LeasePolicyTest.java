@@ -0,0 +1,28 @@
+package com.gravity9.mongocse;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LeasePolicyTest {
+
+    @Test
+    void givenLeaseDuration_shouldRenewThreeTimesPerLease() {
+        LeasePolicy policy = LeasePolicy.leases(9000);
+
+        assertTrue(policy.isEnabled());
+        assertEquals(9000, policy.getLeaseDurationMs());
+        assertEquals(3000, policy.getHeartbeatIntervalMs());
+        assertFalse(LeasePolicy.disabled().isEnabled());
+    }
+
+    @Test
+    void givenHeartbeatNotShorterThanLease_shouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> LeasePolicy.leases(1000, 1000));
+        assertThrows(IllegalArgumentException.class, () -> LeasePolicy.leases(1000, 0));
+        assertThrows(IllegalArgumentException.class, () -> LeasePolicy.leases(2));
+    }
+}
@@ -0,0 +1,150 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class MappedFileCheckpointStoreTest {
+
+    private static final String COLLECTION = "orders";
+
+    private static final String TOKEN_1 = "8265A1B2C3000000012B042C0100296E5A1004";
+
+    private static final String TOKEN_2 = "8265A1B2C4000000022B042C0100296E5A1004";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void givenTokens_shouldKeepThemAfterReopen() throws IOException {
+        Path file = directory.resolve("checkpoints");
+        try (var store = MappedFileCheckpointStore.open(file, 4, MappedFileCheckpointStore.FsyncPolicy.ON_WRITE)) {
+            var config0 = store.getConfigOrInit(COLLECTION, 0);
+            var config1 = store.getConfigOrInit(COLLECTION, 1);
+            assertNull(config0.getResumeToken());
+
+            assertEquals(Set.of(config0.getId(), config1.getId()),
+                    store.updateResumeTokens(Map.of(config0.getId(), TOKEN_1, config1.getId(), "token-1"), Map.of()));
+        }
+
+        try (var store = MappedFileCheckpointStore.open(file, 4, MappedFileCheckpointStore.FsyncPolicy.NEVER)) {
+            var config0 = store.getConfigOrInit(COLLECTION, 0);
+            assertEquals(TOKEN_1, config0.getResumeToken());
+            assertEquals(ResumeTokens.clusterTime(TOKEN_1), config0.getClusterTime());
+            assertEquals("token-1", store.getConfigOrInit(COLLECTION, 1).getResumeToken());
+
+            store.clearResumeToken(config0.getId());
+            assertNull(store.getConfigOrInit(COLLECTION, 0).getResumeToken());
+        }
+    }
+
+    @Test
+    void givenSnapshot_shouldStorePositionUntilCompleted() throws IOException {
+        try (var store = MappedFileCheckpointStore.open(directory.resolve("checkpoints"), 1, MappedFileCheckpointStore.FsyncPolicy.NEVER)) {
+            var id = store.getConfigOrInit(COLLECTION, 0).getId();
+            BsonDocument position = new BsonDocument("_id", new BsonInt32(42));
+
+            store.updateSnapshot(id, TOKEN_1, position, null);
+            var scanning = store.getConfigOrInit(COLLECTION, 0);
+            assertEquals(TOKEN_1, scanning.getSnapshotResumeToken());
+            assertEquals(position, scanning.getSnapshotPosition());
+
+            store.completeSnapshot(id, TOKEN_1, null);
+            var completed = store.getConfigOrInit(COLLECTION, 0);
+            assertEquals(TOKEN_1, completed.getResumeToken());
+            assertNull(completed.getSnapshotResumeToken());
+            assertNull(completed.getSnapshotPosition());
+
+            store.resetResumeToken(id, new BsonTimestamp(7, 1), null);
+            var rewound = store.getConfigOrInit(COLLECTION, 0);
+            assertNull(rewound.getResumeToken());
+            assertEquals(new BsonTimestamp(7, 1), rewound.getClusterTime());
+        }
+    }
+
+    @Test
+    void givenTornWrite_shouldResumeFromPreviousToken() throws IOException {
+        Path file = directory.resolve("checkpoints");
+        try (var store = MappedFileCheckpointStore.open(file, 1, MappedFileCheckpointStore.FsyncPolicy.ON_WRITE)) {
+            var id = store.getConfigOrInit(COLLECTION, 0).getId();
+            store.updateResumeToken(id, TOKEN_1);
+            store.updateResumeToken(id, TOKEN_2);
+        }
+        byte[] content = Files.readAllBytes(file);
+        byte[] written = HexFormat.of().parseHex(TOKEN_2);
+        int offset = indexOf(content, written);
+        content[offset + written.length - 1] ^= 1;
+        Files.write(file, content);
+
+        try (var store = MappedFileCheckpointStore.open(file, 1, MappedFileCheckpointStore.FsyncPolicy.NEVER)) {
+            assertEquals(TOKEN_1, store.getConfigOrInit(COLLECTION, 0).getResumeToken());
+        }
+    }
+
+    @Test
+    void givenRepartition_shouldResetAndRemovePartitions() throws IOException {
+        try (var store = MappedFileCheckpointStore.open(directory.resolve("checkpoints"), 3, MappedFileCheckpointStore.FsyncPolicy.NEVER)) {
+            store.updateSnapshot(store.getConfigOrInit(COLLECTION, 0).getId(), TOKEN_1, null, null);
+            store.getConfigOrInit(COLLECTION, 2);
+
+            store.resetPartitions(COLLECTION, 3, TOKEN_2);
+            store.removePartitions(COLLECTION, 1);
+
+            var config0 = store.getConfigOrInit(COLLECTION, 0);
+            assertEquals(TOKEN_2, config0.getResumeToken());
+            assertNull(config0.getSnapshotResumeToken());
+            // removed partitions free their slots and start without a token
+            assertNull(store.getConfigOrInit(COLLECTION, 1).getResumeToken());
+            assertNull(store.getConfigOrInit(COLLECTION, 2).getResumeToken());
+            assertThrows(IllegalStateException.class, () -> store.getConfigOrInit("invoices", 0));
+        }
+    }
+
+    @Test
+    void givenOpenStore_shouldRejectSecondStoreOfFileUntilClosed() throws IOException {
+        Path file = directory.resolve("checkpoints");
+        var store = MappedFileCheckpointStore.open(file, 1, MappedFileCheckpointStore.FsyncPolicy.NEVER);
+        assertThrows(IllegalStateException.class, () -> MappedFileCheckpointStore.open(file, 1, MappedFileCheckpointStore.FsyncPolicy.NEVER));
+        store.close();
+
+        try (var reopened = MappedFileCheckpointStore.open(file, 1, MappedFileCheckpointStore.FsyncPolicy.NEVER)) {
+            assertEquals(file, reopened.getFile());
+        }
+    }
+
+    @Test
+    void givenSeveralPartitions_shouldLoadAndCreateThemAtOnce() throws IOException {
+        try (var store = MappedFileCheckpointStore.open(directory.resolve("checkpoints"), 3, MappedFileCheckpointStore.FsyncPolicy.ON_WRITE)) {
+            store.updateResumeToken(store.getConfigOrInit(COLLECTION, 1).getId(), TOKEN_1);
+
+            Map<Integer, ChangeStreamWorkerConfig> configs = store.getConfigsOrInit(COLLECTION, 3);
+
+            assertEquals(3, configs.size());
+            assertEquals(TOKEN_1, configs.get(1).getResumeToken());
+            assertNull(configs.get(0).getResumeToken());
+            assertEquals(configs.get(2).getId(), store.getConfigOrInit(COLLECTION, 2).getId());
+        }
+    }
+
+    private static int indexOf(byte[] content, byte[] bytes) {
+        for (int i = content.length - bytes.length; i >= 0; i--) {
+            if (HexFormat.of().formatHex(content, i, i + bytes.length).equals(HexFormat.of().formatHex(bytes))) {
+                return i;
+            }
+        }
+        throw new AssertionError("Token not found in checkpoint file");
+    }
+}
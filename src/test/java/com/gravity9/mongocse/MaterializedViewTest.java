@@ -0,0 +1,99 @@
+package com.gravity9.mongocse;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static com.gravity9.mongocse.constants.Events.event;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MaterializedViewTest {
+
+    @Test
+    void givenEvents_shouldKeepLatestVersionOfDocuments() {
+        MaterializedView view = MaterializedView.builder().build();
+
+        view.handleBatch(List.of(
+                event("insert", 1, new Document("_id", 1).append("status", "NEW")),
+                event("insert", 2, new Document("_id", 2).append("status", "NEW")),
+                event("update", 1, new Document("_id", 1).append("status", "PAID")),
+                event("delete", 2, null)));
+
+        assertEquals(new Document("_id", 1).append("status", "PAID"), new Document(view.get(1)));
+        assertNull(view.get(2));
+        assertEquals(1, view.size());
+        MaterializedView.Stats stats = view.stats();
+        assertEquals(1, stats.hits());
+        assertEquals(1, stats.misses());
+    }
+
+    @Test
+    void givenUpdateWithoutFullDocument_shouldDropStaleDocument() {
+        MaterializedView view = MaterializedView.builder().build();
+
+        view.handleBatch(List.of(
+                event("insert", 1, new Document("_id", 1).append("status", "NEW")),
+                event("update", 1, null)));
+
+        assertNull(view.get(1));
+    }
+
+    @Test
+    void givenCustomKey_shouldFollowKeyChangesAndIndexes() {
+        MaterializedView view = MaterializedView.builder()
+                .keyName("customerId")
+                .indexes("status")
+                .build();
+
+        view.handleBatch(List.of(
+                event("insert", 1, new Document("_id", 1).append("customerId", "a").append("status", "NEW")),
+                event("insert", 2, new Document("_id", 2).append("customerId", "b").append("status", "NEW")),
+                event("replace", 1, new Document("_id", 1).append("customerId", "c").append("status", "PAID"))));
+
+        assertNull(view.get("a"));
+        assertEquals(1, view.get("c").getInteger("_id"));
+        assertEquals(List.of(view.get("b")), view.find("status", "NEW"));
+        assertEquals(List.of(view.get("c")), view.find("status", "PAID"));
+
+        view.handleBatch(List.of(event("delete", 1, null)));
+
+        assertNull(view.get("c"));
+        assertEquals(List.of(), view.find("status", "PAID"));
+        assertThrows(IllegalArgumentException.class, () -> view.find("customerId", "b"));
+    }
+
+    @Test
+    void givenRewrittenDocuments_shouldCompactPages() {
+        MaterializedView view = MaterializedView.builder()
+                .segments(1)
+                .pageSize(1024)
+                .build();
+        String padding = "x".repeat(200);
+
+        for (int version = 0; version < 20; version++) {
+            view.handleBatch(List.of(event("replace", 1, new Document("_id", 1).append("version", version).append("padding", padding))));
+        }
+
+        MaterializedView.Stats stats = view.stats();
+        assertEquals(19, view.get(1).getInteger("version"));
+        assertTrue(stats.compactions() > 0);
+        assertEquals(1024, stats.allocatedBytes());
+    }
+
+    @Test
+    void givenDrop_shouldClearView() {
+        MaterializedView view = MaterializedView.builder().indexes("status").build();
+
+        view.handleBatch(List.of(
+                event("insert", 1, new Document("_id", 1).append("status", "NEW")),
+                event("drop", 0, null)));
+
+        assertEquals(0, view.size());
+        assertEquals(List.of(), view.find("status", "NEW"));
+        assertEquals(0, view.stats().allocatedBytes());
+    }
+}
@@ -0,0 +1,85 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.constants.Events;
+import com.gravity9.mongocse.constants.TestIds;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonArray;
+import org.bson.BsonInt32;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionKeyTest {
+
+    private static final ObjectId ID_0 = new ObjectId(TestIds.MOD_0_ID);
+    private static final ObjectId ID_1 = new ObjectId(TestIds.MOD_1_ID);
+    private static final ObjectId ID_2 = new ObjectId(TestIds.MOD_2_ID);
+
+    @Test
+    void givenKeyInDocumentKeyOnly_shouldRouteToItsPartition() {
+        PartitionKey partitionKey = new PartitionKey("_id");
+
+        assertEquals(List.of(1), partitionsOf(partitionKey, event(new BsonObjectId(ID_1), null, null)));
+    }
+
+    @Test
+    void givenKeyChangedByUpdate_shouldRouteToPartitionsOfOldAndNewValue() {
+        PartitionKey partitionKey = new PartitionKey("testId");
+        ChangeStreamDocument<Document> event = event(new BsonObjectId(ID_0),
+                new Document("_id", ID_0).append("testId", ID_1),
+                new Document("_id", ID_0).append("testId", ID_2));
+
+        assertEquals(List.of(1, 2), partitionsOf(partitionKey, event));
+    }
+
+    @Test
+    void givenSameKeyInEveryLocation_shouldRouteOnlyOnce() {
+        PartitionKey partitionKey = new PartitionKey("_id");
+        ChangeStreamDocument<Document> event = event(new BsonObjectId(ID_2), new Document("_id", ID_2), new Document("_id", ID_2));
+
+        assertEquals(List.of(2), partitionsOf(partitionKey, event));
+    }
+
+    @Test
+    void givenFalsyKey_shouldNotRouteToAnyPartition() {
+        PartitionKey partitionKey = new PartitionKey("testId");
+
+        assertEquals(List.of(), partitionsOf(partitionKey, event(new BsonInt32(1), new Document("testId", 0), null)));
+        assertEquals(List.of(), partitionsOf(partitionKey, event(new BsonInt32(1), new Document("testId", false), null)));
+        assertEquals(List.of(), partitionsOf(partitionKey, event(new BsonInt32(1), new Document("testId", null), null)));
+        assertEquals(List.of(), partitionsOf(partitionKey, event(new BsonInt32(1), new Document("other", ID_0), null)));
+        assertFalse(PartitionKey.isTruthy(null));
+        assertTrue(PartitionKey.isTruthy(new BsonString("")));
+    }
+
+    @Test
+    void givenDottedKeyThroughArray_shouldResolveLikeAggregationFieldPath() {
+        PartitionKey partitionKey = new PartitionKey("items.sku");
+        Document fullDocument = new Document("items", List.of(new Document("sku", "a"), "skipped", new Document("sku", "b")));
+        BsonArray expectedKey = new BsonArray(List.of(new BsonString("a"), new BsonString("b")));
+
+        assertEquals(expectedKey, partitionKey.keyOf(event(new BsonInt32(1), fullDocument, null)));
+        assertEquals(List.of(PartitionKey.partitionOf(expectedKey, 3)),
+                partitionsOf(partitionKey, event(new BsonInt32(1), fullDocument, null)));
+    }
+
+    private static List<Integer> partitionsOf(PartitionKey partitionKey, ChangeStreamDocument<Document> event) {
+        List<Integer> partitions = new ArrayList<>();
+        partitionKey.forEachPartition(event, new SlotLayout(3, 3), partitions::add);
+        return partitions;
+    }
+
+    private static ChangeStreamDocument<Document> event(BsonValue id, Document fullDocument, Document fullDocumentBeforeChange) {
+        return Events.event("update", Events.token("token"), id, fullDocument, fullDocumentBeforeChange, null);
+    }
+}
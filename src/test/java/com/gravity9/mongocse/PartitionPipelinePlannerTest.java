@@ -0,0 +1,161 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.FullDocumentBeforeChange;
+import com.mongodb.client.model.changestream.OperationType;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.junit.jupiter.api.Test;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PartitionPipelinePlannerTest {
+
+    @Test
+    void givenIdKey_shouldOnlyHashDocumentKey() {
+        String pipeline = describe(MongoConfig.builder()
+                .numberOfPartitions(3)
+                .fullDocumentBeforeChange(FullDocumentBeforeChange.REQUIRED));
+
+        assertEquals(List.of("documentKey"), hashedLocations(pipeline));
+        assertFalse(pipeline.contains("$exists"));
+    }
+
+    @Test
+    void givenCustomKeyWithoutPreImages_shouldSkipFullDocumentBeforeChange() {
+        String pipeline = describe(MongoConfig.builder().keyName("testId").numberOfPartitions(3));
+
+        assertEquals(List.of("fullDocument", "documentKey"), hashedLocations(pipeline));
+        assertTrue(pipeline.contains("{\"fullDocument.testId\": {\"$exists\": true}}"));
+    }
+
+    @Test
+    void givenCustomKeyWithPreImages_shouldHashAllLocations() {
+        String pipeline = describe(MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .fullDocumentBeforeChange(FullDocumentBeforeChange.WHEN_AVAILABLE));
+
+        assertEquals(List.of("fullDocument", "documentKey", "fullDocumentBeforeChange"), hashedLocations(pipeline));
+    }
+
+    @Test
+    void givenOperationTypes_shouldSkipLocationsTheseEventsNeverHave() {
+        assertEquals(List.of("documentKey", "fullDocumentBeforeChange"), hashedLocations(describe(MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .fullDocumentBeforeChange(FullDocumentBeforeChange.REQUIRED)
+                .operationTypes(OperationType.DELETE))));
+        assertEquals(List.of("fullDocument", "documentKey"), hashedLocations(describe(MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .fullDocumentBeforeChange(FullDocumentBeforeChange.REQUIRED)
+                .operationTypes(OperationType.INSERT))));
+        assertEquals(List.of("documentKey"), hashedLocations(describe(MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .fullDocument(FullDocument.DEFAULT)
+                .fieldNames("status"))));
+        assertEquals(List.of(), hashedLocations(describe(MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .operationTypes(OperationType.DROP))));
+    }
+
+    @Test
+    void givenCustomMatchAfterOperationTypes_shouldForgetOperationTypes() {
+        MongoConfig mongoConfig = MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .operationTypes(OperationType.DELETE)
+                .match(Filters.eq("fullDocument.status", "ACTIVE"))
+                .build();
+
+        assertEquals(EnumSet.allOf(OperationType.class), mongoConfig.getOperationTypes());
+        assertEquals(List.of("fullDocument", "documentKey"),
+                hashedLocations(PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.partitionPipeline(mongoConfig, SlotLayout.of(mongoConfig), 0))));
+    }
+
+    @Test
+    void givenDottedKey_shouldNotGuardWithExists() {
+        String pipeline = describe(MongoConfig.builder().keyName("customer.id").numberOfPartitions(3));
+
+        assertEquals(List.of("fullDocument", "documentKey"), hashedLocations(pipeline));
+        assertFalse(pipeline.contains("$exists"));
+    }
+
+    @Test
+    void givenUserMatch_shouldComeBeforePartitionFilter() {
+        String pipeline = describe(MongoConfig.builder()
+                .keyName("testId")
+                .numberOfPartitions(3)
+                .operationTypes(OperationType.INSERT, OperationType.UPDATE));
+        BsonDocument match = BsonDocument.parse("{\"stages\": " + pipeline + "}").getArray("stages").get(0).asDocument().getDocument("$match");
+
+        assertTrue(match.getArray("$and").get(0).toString().contains("operationType"));
+    }
+
+    private static String describe(MongoConfig.MongoConfigBuilder builder) {
+        MongoConfig mongoConfig = builder.build();
+        return PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.partitionPipeline(mongoConfig, SlotLayout.of(mongoConfig), 1));
+    }
+
+    private static List<String> hashedLocations(String pipeline) {
+        return List.of("fullDocument", "documentKey", "fullDocumentBeforeChange").stream()
+                .filter(location -> pipeline.contains("{\"$toHashedIndexKey\": \"$" + location + "."))
+                .toList();
+    }
+
+
+    @Test
+    void givenMoreSlotsThanPartitions_shouldMapSlotToPartition() {
+        String withSlots = describe(MongoConfig.builder().numberOfPartitions(3).numberOfSlots(12));
+        String withoutSlots = describe(MongoConfig.builder().numberOfPartitions(3));
+
+        assertTrue(withSlots.contains("{\"$floor\": {\"$divide\": [{\"$multiply\": [{\"$mod\": [{\"$abs\": {\"$toHashedIndexKey\": \"$documentKey._id\"}}, 12]}, 3]}, 12]}}"));
+        assertFalse(withoutSlots.contains("$floor"));
+    }
+
+
+    @Test
+    void givenDatabasePipeline_shouldFilterCollectionsBeforeUserMatch() {
+        MongoConfig mongoConfig = MongoConfig.builder()
+                .numberOfPartitions(3)
+                .operationTypes(OperationType.INSERT)
+                .build();
+        String pipeline = PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.databasePipeline(mongoConfig, List.of("orders", "customers")));
+        BsonDocument match = BsonDocument.parse("{\"stages\": " + pipeline + "}").getArray("stages").get(0).asDocument().getDocument("$match");
+
+        assertEquals("{\"ns.coll\": {\"$in\": [\"orders\", \"customers\"]}}", match.getArray("$and").get(0).asDocument().toJson());
+        assertTrue(match.getArray("$and").get(1).toString().contains("operationType"));
+        assertFalse(pipeline.contains("$toHashedIndexKey"));
+    }
+
+
+    @Test
+    void givenSnapshotPipeline_shouldScanAfterPositionInIdOrderBeforeMatching() {
+        MongoConfig mongoConfig = MongoConfig.builder()
+                .databaseName("shop")
+                .collectionName("orders")
+                .keyName("customerId")
+                .numberOfPartitions(3)
+                .build();
+        String pipeline = PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.snapshotPipeline(mongoConfig, SlotLayout.of(mongoConfig), 1, new BsonInt32(42)));
+        BsonArray stages = BsonDocument.parse("{\"stages\": " + pipeline + "}").getArray("stages");
+
+        assertEquals("{\"$match\": {\"_id\": {\"$gt\": 42}}}", stages.get(0).asDocument().toJson());
+        assertEquals("{\"$sort\": {\"_id\": 1}}", stages.get(1).asDocument().toJson());
+        assertEquals("{\"operationType\": \"insert\", \"ns\": {\"db\": \"shop\", \"coll\": \"orders\"}, \"documentKey\": {\"_id\": \"$_id\"}, \"fullDocument\": \"$$ROOT\"}",
+                stages.get(2).asDocument().getDocument("$replaceWith").toJson());
+        assertEquals(List.of("fullDocument"), hashedLocations(stages.get(3).asDocument().toJson()));
+        assertTrue(PartitionPipelinePlanner.toJson(PartitionPipelinePlanner.snapshotPipeline(mongoConfig, SlotLayout.of(mongoConfig), 1, null))
+                .startsWith("[{\"$sort\""));
+    }
+}
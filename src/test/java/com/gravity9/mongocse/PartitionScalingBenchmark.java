@@ -0,0 +1,200 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.ChangeStreamListener;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares the ways of running {@code partitions} partitions spread over {@code collections} collections against a
+ * real replica set: a manager per collection with a platform or a virtual thread per partition, a manager per
+ * collection in {@link StreamMode#FAN_OUT} mode, and one {@link MongoCseDatabaseManager} for all collections.
+ * Each invocation inserts {@code events} documents round-robin over the collections and waits until the listeners
+ * have received all of them, so the score is the end-to-end time. Besides it, the live JVM threads, the resident
+ * memory (read from /proc, 0 elsewhere) and the average and maximum latency from insert to listener are reported.
+ * <p>
+ * Needs Docker for the MongoDB replica set, or an existing one, see {@link BenchmarkReplicaSet}. Run with
+ * {@code mvn test-compile exec:exec -Pbenchmark -Dbenchmark="PartitionScalingBenchmark -p partitions=1024"}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PartitionScalingBenchmark {
+
+    /**
+     * How the partitions are run.
+     */
+    public enum Engine {
+        PLATFORM_THREADS,
+        VIRTUAL_THREADS,
+        FAN_OUT,
+        DATABASE
+    }
+
+    private static final String DATABASE_NAME = "benchmark";
+
+    private static final String SENT_AT = "sentAt";
+
+    private static final int INSERT_CHUNK = 1000;
+
+    private static final long NANOS_PER_MICRO = 1000;
+
+    @Param({"1024", "4096"})
+    public int partitions;
+
+    @Param({"16"})
+    public int collections;
+
+    @Param({"PLATFORM_THREADS", "VIRTUAL_THREADS", "FAN_OUT", "DATABASE"})
+    public Engine engine;
+
+    @Param({"10000"})
+    public int events;
+
+    private final AtomicInteger received = new AtomicInteger();
+
+    private final LongAdder totalLatencyNanos = new LongAdder();
+
+    private final LongAccumulator maxLatencyNanos = new LongAccumulator(Math::max, 0);
+
+    private final List<Closeable> managers = new ArrayList<>();
+
+    private final List<String> collectionNames = new ArrayList<>();
+
+    private BenchmarkReplicaSet replicaSet;
+
+    private MongoClient client;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        replicaSet = BenchmarkReplicaSet.start(DATABASE_NAME);
+        client = MongoClients.create(replicaSet.getConnectionUri());
+        for (int i = 0; i < collections; i++) {
+            collectionNames.add("events" + i);
+        }
+
+        ChangeStreamListener listener = event -> {
+            long latency = System.nanoTime() - event.getFullDocument().getLong(SENT_AT);
+            totalLatencyNanos.add(latency);
+            maxLatencyNanos.accumulate(latency);
+            received.incrementAndGet();
+        };
+        if (engine == Engine.DATABASE) {
+            var manager = new MongoCseDatabaseManager(config(collectionNames.get(0)).build(), collectionNames);
+            collectionNames.forEach(name -> manager.registerListenerToAllPartitions(name, listener));
+            manager.start();
+            managers.add(manager);
+            return;
+        }
+        for (String collectionName : collectionNames) {
+            var manager = new MongoCseManager(config(collectionName)
+                    .streamMode(engine == Engine.FAN_OUT ? StreamMode.FAN_OUT : StreamMode.PER_PARTITION)
+                    .virtualThreads(engine != Engine.PLATFORM_THREADS)
+                    .build());
+            manager.registerListenerToAllPartitions(listener);
+            manager.start();
+            managers.add(manager);
+        }
+    }
+
+    private MongoConfig.MongoConfigBuilder config(String collectionName) {
+        return MongoConfig.builder()
+                .connectionUri(replicaSet.getConnectionUri())
+                .databaseName(DATABASE_NAME)
+                .collectionName(collectionName)
+                .numberOfPartitions(partitions / collections)
+                .virtualThreads(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (Closeable manager : managers) {
+            manager.close();
+        }
+        client.close();
+        replicaSet.close();
+    }
+
+    @Benchmark
+    public void deliverInserts(ScalingMetrics metrics) {
+        received.set(0);
+        totalLatencyNanos.reset();
+        maxLatencyNanos.reset();
+        metrics.threads += ManagementFactory.getThreadMXBean().getThreadCount();
+        metrics.residentMemoryKb += residentMemoryKb();
+
+        MongoDatabase database = client.getDatabase(DATABASE_NAME);
+        List<List<Document>> chunks = new ArrayList<>();
+        collectionNames.forEach(name -> chunks.add(new ArrayList<>(INSERT_CHUNK)));
+        for (int i = 0; i < events; i++) {
+            int collection = i % collections;
+            List<Document> chunk = chunks.get(collection);
+            chunk.add(new Document("value", i).append(SENT_AT, System.nanoTime()));
+            if (chunk.size() == INSERT_CHUNK || i >= events - collections) {
+                database.getCollection(collectionNames.get(collection)).insertMany(chunk);
+                chunk.clear();
+            }
+        }
+        while (received.get() < events) {
+            Thread.onSpinWait();
+        }
+        metrics.averageLatencyUs += totalLatencyNanos.sum() / events / NANOS_PER_MICRO;
+        metrics.maxLatencyUs += maxLatencyNanos.get() / NANOS_PER_MICRO;
+    }
+
+    private static long residentMemoryKb() {
+        try {
+            return Files.readAllLines(Path.of("/proc/self/status")).stream()
+                    .filter(line -> line.startsWith("VmRSS:"))
+                    .map(line -> line.substring("VmRSS:".length()).replace("kB", "").trim())
+                    .mapToLong(Long::parseLong)
+                    .findFirst()
+                    .orElse(0);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ScalingMetrics {
+
+        public long threads;
+
+        public long residentMemoryKb;
+
+        public long averageLatencyUs;
+
+        public long maxLatencyUs;
+    }
+}
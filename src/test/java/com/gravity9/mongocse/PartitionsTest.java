@@ -0,0 +1,56 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.constants.TestIds;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.BsonJavaScriptWithScope;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.OptionalInt;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PartitionsTest {
+
+    @Test
+    void givenTestIds_shouldReturnTheirPartitions() {
+        assertEquals(OptionalInt.of(0), Partitions.partitionOf(new ObjectId(TestIds.MOD_0_ID), 3));
+        assertEquals(OptionalInt.of(1), Partitions.partitionOf(new ObjectId(TestIds.MOD_1_ID), 3));
+        assertEquals(OptionalInt.of(2), Partitions.partitionOf(new ObjectId(TestIds.MOD_2_ID), 3));
+    }
+
+    @Test
+    void givenJavaAndBsonValues_shouldHashAlike() {
+        assertEquals(Partitions.hashedIndexKey(42), Partitions.hashedIndexKey(42L));
+        assertEquals(Partitions.hashedIndexKey(42), Partitions.hashedIndexKey(42.9));
+        assertEquals(Partitions.hashedIndexKey(42), Partitions.hashedIndexKey(new BsonInt64(42)));
+        assertEquals(Partitions.hashedIndexKey(new Document("a", 1)), Partitions.hashedIndexKey(BsonDocument.parse("{\"a\": 1}")));
+    }
+
+    @Test
+    void givenFalsyKey_shouldReturnNoPartition() {
+        assertEquals(OptionalInt.empty(), Partitions.partitionOf(null, 3));
+        assertEquals(OptionalInt.empty(), Partitions.partitionOf(false, 3));
+        assertEquals(OptionalInt.empty(), Partitions.partitionOf(0.0, 3));
+    }
+
+    @Test
+    void givenSlots_shouldReturnThePartitionOwningTheSlotOfTheKey() {
+        for (String id : new String[]{TestIds.MOD_0_ID, TestIds.MOD_1_ID, TestIds.MOD_2_ID}) {
+            int slot = Partitions.partitionOf(new ObjectId(id), 12).orElseThrow();
+            assertEquals(OptionalInt.of(slot * 4 / 12), Partitions.partitionOf(new ObjectId(id), 4, 12));
+        }
+        assertEquals(Partitions.partitionOf("key", 3), Partitions.partitionOf("key", 3, 3));
+    }
+
+    @Test
+    void givenInvalidArguments_shouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> Partitions.partitionOf("key", 0));
+        assertThrows(IllegalArgumentException.class, () -> Partitions.partitionOf("key", 4, 3));
+        assertThrows(IllegalArgumentException.class,
+                () -> Partitions.hashedIndexKey(new BsonJavaScriptWithScope("x", new BsonDocument())));
+    }
+}
@@ -0,0 +1,192 @@
+package com.gravity9.mongocse;
+
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.gravity9.mongocse.MongoExpressions.abs;
+import static com.gravity9.mongocse.MongoExpressions.and;
+import static com.gravity9.mongocse.MongoExpressions.cond;
+import static com.gravity9.mongocse.MongoExpressions.documentKey;
+import static com.gravity9.mongocse.MongoExpressions.eq;
+import static com.gravity9.mongocse.MongoExpressions.expr;
+import static com.gravity9.mongocse.MongoExpressions.fullDocumentBeforeChangeKey;
+import static com.gravity9.mongocse.MongoExpressions.fullDocumentKey;
+import static com.gravity9.mongocse.MongoExpressions.mod;
+import static com.gravity9.mongocse.MongoExpressions.or;
+import static com.gravity9.mongocse.MongoExpressions.toHashedIndexKey;
+
+/**
+ * Compares the server CPU spent by partition change streams opened with the planned pipeline of
+ * {@link PartitionPipelinePlanner} and with the filter that hashes all three key locations for every event.
+ * Each invocation inserts and updates {@code events / 2} documents while one change stream per partition reads them;
+ * updates look up the full document, so that events of a {@code testId} key reach their partition.
+ * The score is the time until every stream has read its events; {@code serverCpuMsPerStream} is the CPU time the
+ * server spent meanwhile, from {@code serverStatus}, divided by the number of streams.
+ * <p>
+ * Needs Docker for the MongoDB replica set, or an existing one, see {@link BenchmarkReplicaSet}. Run with
+ * {@code mvn test-compile exec:exec -Pbenchmark -Dbenchmark="PipelineBenchmark"}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+
+    private static final String NULL_STRING = "null";
+
+    private static final long MICROS_PER_MILLI = 1000;
+
+    private static final long MAX_AWAIT_MS = 100;
+
+    public enum Filter {
+        ALL_LOCATIONS,
+        PLANNED
+    }
+
+    @Param({"_id", "testId"})
+    public String keyName;
+
+    @Param({"ALL_LOCATIONS", "PLANNED"})
+    public Filter filter;
+
+    @Param({"16"})
+    public int partitions;
+
+    @Param({"5000"})
+    public int events;
+
+    private BenchmarkReplicaSet replicaSet;
+
+    private MongoClient client;
+
+    private MongoCollection<Document> collection;
+
+    private MongoConfig mongoConfig;
+
+    private ExecutorService readers;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        replicaSet = BenchmarkReplicaSet.start("benchmark");
+        client = MongoClients.create(replicaSet.getConnectionUri());
+        collection = client.getDatabase("benchmark").getCollection("events");
+        mongoConfig = MongoConfig.builder()
+                .connectionUri(replicaSet.getConnectionUri())
+                .databaseName("benchmark")
+                .collectionName("events")
+                .keyName(keyName)
+                .numberOfPartitions(partitions)
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .build();
+        readers = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        readers.close();
+        client.close();
+        replicaSet.close();
+    }
+
+    @Benchmark
+    public void readPartitions(ServerMetrics metrics) throws Exception {
+        List<MongoChangeStreamCursor<ChangeStreamDocument<Document>>> cursors = new ArrayList<>();
+        for (int partition = 0; partition < partitions; partition++) {
+            cursors.add(collection.watch(pipeline(partition))
+                    .fullDocument(mongoConfig.getFullDocument())
+                    .maxAwaitTime(MAX_AWAIT_MS, TimeUnit.MILLISECONDS)
+                    .cursor());
+        }
+
+        long cpuBefore = serverCpuMicros();
+        List<ObjectId> ids = new ArrayList<>();
+        for (int i = 0; i < events / 2; i++) {
+            ObjectId id = new ObjectId();
+            ids.add(id);
+            collection.insertOne(new Document("_id", id).append("testId", new ObjectId()).append("value", i));
+        }
+        ids.forEach(id -> collection.updateOne(new Document("_id", id), Updates.inc("value", 1)));
+
+        AtomicInteger received = new AtomicInteger();
+        int expected = ids.size() * 2;
+        List<Future<?>> reading = new ArrayList<>();
+        for (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor : cursors) {
+            reading.add(readers.submit(() -> {
+                while (received.get() < expected) {
+                    if (cursor.tryNext() != null) {
+                        received.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Future<?> future : reading) {
+            future.get();
+        }
+        metrics.serverCpuMsPerStream += (serverCpuMicros() - cpuBefore) / MICROS_PER_MILLI / partitions;
+        cursors.forEach(MongoChangeStreamCursor::close);
+    }
+
+    private List<Bson> pipeline(int partition) {
+        if (filter == Filter.PLANNED) {
+            return PartitionPipelinePlanner.partitionPipeline(mongoConfig, SlotLayout.of(mongoConfig), partition);
+        }
+        return List.of(Aggregates.match(and(List.of(mongoConfig.getMatch(), or(List.of(
+                hashExpression(fullDocumentKey(keyName), partition),
+                hashExpression(documentKey(keyName), partition),
+                hashExpression(fullDocumentBeforeChangeKey(keyName), partition)))))));
+    }
+
+    private Bson hashExpression(BsonValue keyPath, int partition) {
+        return expr(eq(cond(keyPath, mod(abs(toHashedIndexKey(keyPath)), partitions), NULL_STRING), partition));
+    }
+
+    private long serverCpuMicros() {
+        Document extraInfo = client.getDatabase("admin").runCommand(new Document("serverStatus", 1)).get("extra_info", Document.class);
+        return toLong(extraInfo.get("user_time_us")) + toLong(extraInfo.get("system_time_us"));
+    }
+
+    private static long toLong(Object value) {
+        return value instanceof Number number ? number.longValue() : 0;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ServerMetrics {
+
+        public long serverCpuMsPerStream;
+    }
+}
@@ -0,0 +1,218 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.listener.ChangeStreamListener;
+import com.gravity9.mongocse.listener.TestChangeStreamListener;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalInt;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class RepartitionTest extends AbstractMongoDbBase {
+
+    private static final int SLOTS = 8;
+
+    private MongoConfig.MongoConfigBuilder mongoConfigBuilder;
+
+    private MongoCollection<Document> collection;
+
+    @BeforeEach
+    public void setup() {
+        super.setup();
+        collection = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName()).getCollection(getTestCollectionName());
+        mongoConfigBuilder = MongoConfig.builder()
+                .connectionUri(getConnectionUri())
+                .databaseName(getDatabaseName())
+                .collectionName(getTestCollectionName())
+                .workerConfigCollectionName(getWorkerConfigCollectionName())
+                .clusterConfigCollectionName(getClusterConfigCollectionName())
+                .numberOfSlots(SLOTS)
+                .maxAwaitTimeInMs(100);
+    }
+
+    @Test
+    void givenInsertsDuringRepartition_shouldDeliverEveryEventExactlyOnce() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2).build());
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+
+        Set<ObjectId> inserted = ConcurrentHashMap.newKeySet();
+        CompletableFuture<Void> inserts = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 200; i++) {
+                ObjectId id = new ObjectId();
+                collection.insertOne(new Document("_id", id));
+                inserted.add(id);
+            }
+        });
+        manager.repartition(4);
+        inserts.get();
+
+        waitForEvents(listener, inserted.size());
+        // give duplicates time to show up
+        Thread.sleep(1000);
+        List<ObjectId> received = ids(listener.getEvents());
+        manager.close();
+
+        assertEquals(inserted.size(), received.size());
+        assertEquals(inserted, new HashSet<>(received));
+    }
+
+    @Test
+    void givenRepartitionedManager_shouldDeliverEventsToPartitionsOfTheNewLayout() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2).build());
+        manager.start();
+        manager.repartition(5);
+        Map<ObjectId, Integer> receivedBy = new ConcurrentHashMap<>();
+        TestChangeStreamListener allEvents = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(allEvents);
+        for (int partition = 0; partition < 5; partition++) {
+            manager.registerListener(recordingPartition(partition, receivedBy), List.of(partition));
+        }
+
+        for (int i = 0; i < 50; i++) {
+            collection.insertOne(new Document("_id", new ObjectId()));
+        }
+        waitForEvents(allEvents, 50);
+        manager.close();
+
+        assertEquals(50, receivedBy.size());
+        receivedBy.forEach((id, partition) -> {
+            assertEquals(manager.partitionOf(id), OptionalInt.of(partition));
+            assertEquals(Partitions.partitionOf(id, 5, SLOTS), OptionalInt.of(partition));
+        });
+    }
+
+    @Test
+    void givenStoppedManager_whenRepartitioned_shouldStoreTheNewLayout() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(4).build());
+        manager.start();
+        collection.insertOne(new Document("value", 1));
+        Thread.sleep(500);
+        manager.stop();
+
+        manager.repartition(1);
+        manager.close();
+
+        var database = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName());
+        Document clusterConfig = database.getCollection(getClusterConfigCollectionName())
+                .find(Filters.eq("collection", getTestCollectionName())).first();
+        assertEquals(1, clusterConfig.getInteger("partitions"));
+        assertEquals(SLOTS, clusterConfig.getInteger("slots"));
+        List<Document> workerConfigs = database.getCollection(getWorkerConfigCollectionName())
+                .find(Filters.eq("collection", getTestCollectionName())).into(new ArrayList<>());
+        assertEquals(1, workerConfigs.size());
+
+        MongoConfig previousConfig = mongoConfigBuilder.numberOfPartitions(4).build();
+        assertThrows(IllegalArgumentException.class, () -> new MongoCseManager(previousConfig));
+        new MongoCseManager(mongoConfigBuilder.numberOfPartitions(1).numberOfSlots(SLOTS).build()).close();
+    }
+
+    @Test
+    void givenConfigWithOneSlotPerPartition_whenRepartitioned_shouldReslotWithoutLosingEvents() throws Exception {
+        new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2).numberOfSlots(2).build()).close();
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2).numberOfSlots(SLOTS).build());
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+        ObjectId id = new ObjectId();
+        assertEquals(Partitions.partitionOf(id, 2, 2), manager.partitionOf(id));
+
+        Set<ObjectId> inserted = ConcurrentHashMap.newKeySet();
+        CompletableFuture<Void> inserts = CompletableFuture.runAsync(() -> {
+            for (int i = 0; i < 100; i++) {
+                ObjectId insertedId = new ObjectId();
+                collection.insertOne(new Document("_id", insertedId));
+                inserted.add(insertedId);
+            }
+        });
+        manager.repartition(4);
+        inserts.get();
+
+        waitForEvents(listener, inserted.size());
+        Thread.sleep(1000);
+        List<ObjectId> received = ids(listener.getEvents());
+        manager.close();
+
+        assertEquals(inserted, new HashSet<>(received));
+        assertEquals(inserted.size(), received.size());
+        assertEquals(Partitions.partitionOf(id, 4, SLOTS), manager.partitionOf(id));
+        Document clusterConfig = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName()).getCollection(getClusterConfigCollectionName())
+                .find(Filters.eq("collection", getTestCollectionName())).first();
+        assertEquals(SLOTS, clusterConfig.getInteger("slots"));
+    }
+
+    @Test
+    void givenMorePartitionsThanSlots_shouldReslotToThePartitions() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2).build());
+
+        assertThrows(IllegalArgumentException.class, () -> manager.repartition(0));
+        manager.repartition(SLOTS + 1);
+        manager.close();
+
+        ObjectId id = new ObjectId();
+        assertEquals(Partitions.partitionOf(id, SLOTS + 1), manager.partitionOf(id));
+        Document clusterConfig = CLIENT_PROVIDER.getClient().getDatabase(getDatabaseName()).getCollection(getClusterConfigCollectionName())
+                .find(Filters.eq("collection", getTestCollectionName())).first();
+        assertEquals(SLOTS + 1, clusterConfig.getInteger("slots"));
+    }
+
+    @Test
+    void givenPartitionsBeforeTheirSnapshot_shouldRefuseToRepartition() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2)
+                .bootstrapPolicy(BootstrapPolicy.snapshot(4))
+                .build());
+
+        assertThrows(IllegalStateException.class, () -> manager.repartition(4));
+        assertEquals(Set.of(0, 1), manager.ownedPartitions());
+        manager.close();
+    }
+
+    @Test
+    void givenRewoundPartition_whenRepartitioned_shouldReplayItsEventsBeforeTheNewLayout() throws Exception {
+        MongoCseManager manager = new MongoCseManager(mongoConfigBuilder.numberOfPartitions(2).build());
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        manager.registerListenerToAllPartitions(listener);
+        manager.start();
+        for (int i = 0; i < 20; i++) {
+            collection.insertOne(new Document("_id", new ObjectId()));
+        }
+        waitForEvents(listener, 20);
+        manager.stop();
+
+        ChangeStreamDocument<Document> rewoundEvent = listener.getEvents().get(0);
+        ObjectId rewoundId = rewoundEvent.getDocumentKey().getObjectId("_id").getValue();
+        manager.rewind(rewoundEvent.getClusterTime(), List.of(manager.partitionOf(rewoundId).orElseThrow()));
+        manager.repartition(4);
+        manager.close();
+
+        assertEquals(2, ids(listener.getEvents()).stream().filter(rewoundId::equals).count());
+    }
+
+    private static ChangeStreamListener recordingPartition(int partition, Map<ObjectId, Integer> receivedBy) {
+        return event -> receivedBy.put(event.getDocumentKey().getObjectId("_id").getValue(), partition);
+    }
+
+    private static List<ObjectId> ids(List<ChangeStreamDocument<Document>> events) {
+        synchronized (events) {
+            return events.stream()
+                    .map(event -> event.getDocumentKey().getObjectId("_id").getValue())
+                    .collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package com.gravity9.mongocse;
+
+import com.gravity9.mongocse.metrics.ChangeStreamMetrics;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class ResumeTokenCheckpointerTest {
+
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final ObjectId leased = new ObjectId();
+
+    private final ObjectId lost = new ObjectId();
+
+    private final List<Map<ObjectId, String>> writes = new CopyOnWriteArrayList<>();
+
+    @Test
+    void givenTokenRejectedByFence_shouldKeepItPendingUntilDiscarded() {
+        MongoConfig mongoConfig = MongoConfig.builder().build();
+        try (var workerThreads = new WorkerThreads(mongoConfig, "checkpointer-test");
+             var checkpointer = new ResumeTokenCheckpointer(store(Set.of(leased), null), CheckpointPolicy.onShutdown(),
+                     ChangeStreamMetrics.noop(), workerThreads, "checkpointer-test")) {
+            checkpointer.track(leased, "token-1");
+            checkpointer.track(lost, "token-2");
+
+            checkpointer.flush();
+            checkpointer.flush();
+            checkpointer.discard(lost);
+            checkpointer.flush();
+
+            assertEquals(List.of(Map.of(leased, "token-1", lost, "token-2"), Map.of(lost, "token-2")), writes);
+        }
+    }
+
+    @Test
+    void givenThreadFactory_shouldFlushOnItsThread() throws Exception {
+        MongoConfig mongoConfig = MongoConfig.builder()
+                .threadFactory(runnable -> new Thread(runnable, "custom-thread"))
+                .build();
+        CompletableFuture<String> flushThread = new CompletableFuture<>();
+        try (var workerThreads = new WorkerThreads(mongoConfig, "checkpointer-test");
+             var checkpointer = new ResumeTokenCheckpointer(store(Set.of(leased), flushThread), CheckpointPolicy.onShutdown(),
+                     ChangeStreamMetrics.noop(), workerThreads, "checkpointer-test")) {
+            checkpointer.track(leased, "token-1");
+            checkpointer.requestFlush();
+
+            assertEquals("custom-thread", flushThread.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Store writing only the tokens of the given configs, as if the others were fenced by a newer lease.
+     */
+    private CheckpointStore store(Set<ObjectId> writable, CompletableFuture<String> flushThread) {
+        return (CheckpointStore) Proxy.newProxyInstance(ResumeTokenCheckpointerTest.class.getClassLoader(),
+                new Class<?>[]{CheckpointStore.class}, (proxy, method, args) -> {
+                    if (!"updateResumeTokens".equals(method.getName())) {
+                        throw new UnsupportedOperationException(method.getName());
+                    }
+                    @SuppressWarnings("unchecked")
+                    Map<ObjectId, String> tokens = (Map<ObjectId, String>) args[0];
+                    writes.add(new HashMap<>(tokens));
+                    if (flushThread != null) {
+                        flushThread.complete(Thread.currentThread().getName());
+                    }
+                    Set<ObjectId> written = new HashSet<>(tokens.keySet());
+                    written.retainAll(writable);
+                    return written;
+                });
+    }
+}
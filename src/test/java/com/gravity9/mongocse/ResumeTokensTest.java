@@ -0,0 +1,45 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonTimestamp;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class ResumeTokensTest {
+
+    @Test
+    void givenEventToken_shouldReadItsClusterTime() {
+        String token = "8263A1F1E6000000012B022C0100296E5A1004A5093ABB38FE4B9EA67F01BB1A96D812463C5F6964003C3132333435000004";
+
+        assertEquals(new BsonTimestamp(0x63A1F1E6, 1), ResumeTokens.clusterTime(token));
+    }
+
+    @Test
+    void givenTokenWithoutClusterTime_shouldReturnNull() {
+        assertNull(ResumeTokens.clusterTime(null));
+        assertNull(ResumeTokens.clusterTime("82ABC"));
+        assertNull(ResumeTokens.clusterTime("first-token"));
+        assertNull(ResumeTokens.clusterTime("82zzzzzzzzzzzzzzzz"));
+    }
+
+    @Test
+    void givenStartPositions_shouldKeepTheLastOne() {
+        BsonDocument token = new BsonDocument("_data", new BsonString("8263A1F1E600000001"));
+        MongoConfig startAfter = MongoConfig.builder()
+                .startAtOperationTime(new BsonTimestamp(1, 1))
+                .startAfter(token)
+                .build();
+        MongoConfig startAt = MongoConfig.builder()
+                .startAfter(token)
+                .startAtOperationTime(new BsonTimestamp(1, 1))
+                .build();
+
+        assertEquals(token, startAfter.getStartAfter());
+        assertNull(startAfter.getStartAtOperationTime());
+        assertNull(startAt.getStartAfter());
+        assertEquals(new BsonTimestamp(1, 1), startAt.getStartAtOperationTime());
+    }
+}
@@ -0,0 +1,65 @@
+package com.gravity9.mongocse;
+
+import org.bson.BsonInt64;
+import org.bson.BsonObjectId;
+import org.bson.BsonValue;
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SlotLayoutTest {
+
+    @Test
+    void givenOneSlotPerPartition_shouldPartitionLikeModuloOfPartitions() {
+        SlotLayout layout = new SlotLayout(7, 7);
+        Random random = new Random(1);
+        for (int i = 0; i < 1000; i++) {
+            BsonValue key = new BsonInt64(random.nextLong());
+            assertEquals(PartitionKey.partitionOf(key, 7), layout.partitionOf(key));
+        }
+        assertEquals(-1, layout.partitionOf(new BsonInt64(0)));
+    }
+
+    @Test
+    void givenMoreSlots_shouldGiveEveryPartitionAContiguousRangeOfAlmostEqualSize() {
+        SlotLayout layout = new SlotLayout(16, 5);
+        int[] sizes = new int[5];
+        for (int slot = 0; slot < 16; slot++) {
+            int partition = layout.partitionOfSlot(slot);
+            assertTrue(slot >= layout.firstSlot(partition));
+            assertTrue(partition == 4 || slot < layout.firstSlot(partition + 1));
+            sizes[partition]++;
+        }
+        for (int size : sizes) {
+            assertTrue(size == 3 || size == 4);
+        }
+        assertEquals(0, layout.firstSlot(0));
+    }
+
+    @Test
+    void givenRepartitionedLayout_shouldKeepTheSlotOfEveryKey() {
+        SlotLayout slotsOnly = new SlotLayout(64, 64);
+        SlotLayout small = new SlotLayout(64, 8);
+        SlotLayout large = small.withPartitions(32);
+        for (int i = 0; i < 1000; i++) {
+            BsonValue key = new BsonObjectId(new ObjectId());
+            int slot = slotsOnly.partitionOf(key);
+            assertEquals(small.partitionOfSlot(slot), small.partitionOf(key));
+            assertEquals(large.partitionOfSlot(slot), large.partitionOf(key));
+            // splitting every range into four moves a key only within its previous range
+            assertEquals(small.partitionOf(key), large.partitionOf(key) / 4);
+        }
+    }
+
+    @Test
+    void givenInvalidLayout_shouldThrow() {
+        assertThrows(IllegalArgumentException.class, () -> new SlotLayout(4, 0));
+        assertThrows(IllegalArgumentException.class, () -> new SlotLayout(4, 5));
+        assertThrows(IllegalArgumentException.class, () -> new SlotLayout(SlotLayout.MAX_SLOTS + 1, 1));
+    }
+}
@@ -0,0 +1,106 @@
+package com.gravity9.mongocse;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpscRingBufferTest {
+
+    // well below the safety park limit, so only an unpark gets the consumer going in time
+    private static final long PARK_MS = 200;
+
+    @Test
+    void givenRequestedCapacity_shouldRoundUpToPowerOfTwo() {
+        assertEquals(1, new SpscRingBuffer<>(1).capacity());
+        assertEquals(8, new SpscRingBuffer<>(5).capacity());
+        assertEquals(16, new SpscRingBuffer<>(16).capacity());
+        assertThrows(IllegalArgumentException.class, () -> new SpscRingBuffer<>(0));
+    }
+
+    @Test
+    void givenFullBuffer_offerShouldFailUntilElementIsPolled() {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(2);
+
+        assertTrue(buffer.offer(1));
+        assertTrue(buffer.offer(2));
+        assertFalse(buffer.offer(3));
+        assertEquals(2, buffer.size());
+
+        assertEquals(1, buffer.poll());
+        assertTrue(buffer.offer(3));
+        assertEquals(2, buffer.poll());
+        assertEquals(3, buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    void givenFullBuffer_putShouldGiveUpWhenToldToStopWaiting() {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(1);
+        buffer.offer(1);
+
+        assertFalse(buffer.put(2, () -> false));
+        assertTrue(buffer.awaitElement(() -> false));
+        buffer.poll();
+        assertFalse(buffer.awaitElement(() -> false));
+    }
+
+    @Test
+    void givenParkedConsumer_shouldWakeUpOnOfferAndOnWakeUp() throws InterruptedException {
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(2);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Integer> received = new CopyOnWriteArrayList<>();
+
+        Thread consumer = new Thread(() -> {
+            while (buffer.awaitElement(running::get)) {
+                received.add(buffer.poll());
+            }
+        });
+        consumer.start();
+
+        Thread.sleep(PARK_MS);
+        buffer.offer(1);
+        Thread.sleep(PARK_MS);
+        assertEquals(List.of(1), received);
+
+        running.set(false);
+        buffer.wakeUp();
+        consumer.join(PARK_MS);
+        assertFalse(consumer.isAlive());
+    }
+
+    @Test
+    void givenSlowConsumer_producerShouldBeBlockedAndAllElementsDeliveredInOrder() throws InterruptedException {
+        int elements = 100_000;
+        SpscRingBuffer<Integer> buffer = new SpscRingBuffer<>(4);
+        AtomicBoolean running = new AtomicBoolean(true);
+        List<Integer> received = new ArrayList<>(elements);
+
+        Thread consumer = new Thread(() -> {
+            while (received.size() < elements && buffer.awaitElement(running::get)) {
+                received.add(buffer.poll());
+            }
+        });
+        consumer.start();
+
+        for (int i = 0; i < elements; i++) {
+            assertTrue(buffer.put(i, running::get));
+        }
+        consumer.join(10_000);
+        running.set(false);
+
+        assertEquals(elements, received.size());
+        for (int i = 0; i < elements; i++) {
+            assertEquals(i, received.get(i));
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.gravity9.mongocse;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * Compares platform and virtual worker threads for many idle partitions.
+ * Each simulated worker blocks for {@code pollMs} per poll, like a worker waiting in {@code tryNext} on an idle change stream.
+ * Besides the time to start, poll and stop all workers, it reports the live platform threads, the resident memory and
+ * the context switches of the JVM during one second of polling (the last two are read from /proc and are 0 elsewhere).
+ * <p>
+ * Run with {@code mvn test-compile exec:exec -Pbenchmark -Dbenchmark="WorkerThreadsBenchmark -p partitions=1000"}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xss1m"})
+@State(Scope.Benchmark)
+public class WorkerThreadsBenchmark {
+
+    private static final long OBSERVATION_WINDOW_MS = 1000;
+
+    @Param({"100", "1000", "4000"})
+    public int partitions;
+
+    @Param({"false", "true"})
+    public boolean virtualThreads;
+
+    @Param({"100"})
+    public long pollMs;
+
+    private MongoConfig mongoConfig;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mongoConfig = MongoConfig.builder()
+                .numberOfPartitions(partitions)
+                .virtualThreads(virtualThreads)
+                .build();
+    }
+
+    @Benchmark
+    public void idlePartitions(ThreadMetrics metrics) throws InterruptedException {
+        CountDownLatch started = new CountDownLatch(partitions);
+        CountDownLatch stopped = new CountDownLatch(partitions);
+        AtomicBoolean running = new AtomicBoolean(true);
+
+        try (WorkerThreads workerThreads = new WorkerThreads(mongoConfig, "benchmark")) {
+            for (int partition = 0; partition < partitions; partition++) {
+                workerThreads.execute(() -> {
+                    started.countDown();
+                    while (running.get()) {
+                        LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(pollMs));
+                    }
+                    stopped.countDown();
+                });
+            }
+            started.await();
+
+            long contextSwitchesBefore = contextSwitches();
+            Thread.sleep(OBSERVATION_WINDOW_MS);
+            metrics.contextSwitches += contextSwitches() - contextSwitchesBefore;
+            metrics.platformThreads += ManagementFactory.getThreadMXBean().getThreadCount();
+            metrics.residentMemoryKb += residentMemoryKb();
+
+            running.set(false);
+            stopped.await();
+        }
+    }
+
+    private static long contextSwitches() {
+        try (Stream<Path> tasks = Files.list(Path.of("/proc/self/task"))) {
+            return tasks.mapToLong(task -> readStatus(task.resolve("status"), "voluntary_ctxt_switches:")
+                    + readStatus(task.resolve("status"), "nonvoluntary_ctxt_switches:")).sum();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long residentMemoryKb() {
+        return readStatus(Path.of("/proc/self/status"), "VmRSS:");
+    }
+
+    private static long readStatus(Path status, String field) {
+        try {
+            List<String> lines = Files.readAllLines(status);
+            return lines.stream()
+                    .filter(line -> line.startsWith(field))
+                    .map(line -> line.substring(field.length()).replace("kB", "").trim())
+                    .mapToLong(Long::parseLong)
+                    .findFirst()
+                    .orElse(0);
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class ThreadMetrics {
+
+        public long contextSwitches;
+
+        public long platformThreads;
+
+        public long residentMemoryKb;
+    }
+}
@@ -0,0 +1,39 @@
+package com.gravity9.mongocse.constants;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.Document;
+
+/**
+ * Change events built without a server, for tests of listeners and dispatchers.
+ */
+public final class Events {
+
+    private Events() {
+    }
+
+    public static ChangeStreamDocument<Document> event(String operationType, int id, Document fullDocument) {
+        return event(operationType, id, fullDocument, null);
+    }
+
+    public static ChangeStreamDocument<Document> event(String operationType, int id, Document fullDocument, UpdateDescription updateDescription) {
+        return event(operationType, token("token"), new BsonInt32(id), fullDocument, null, updateDescription);
+    }
+
+    /**
+     * @param id {@code _id} of the {@code documentKey}, null for an event without one
+     */
+    public static ChangeStreamDocument<Document> event(String operationType, BsonDocument resumeToken, BsonValue id, Document fullDocument,
+                                                       Document fullDocumentBeforeChange, UpdateDescription updateDescription) {
+        return new ChangeStreamDocument<>(operationType, resumeToken, null, null, null, fullDocument, fullDocumentBeforeChange,
+                id == null ? null : new BsonDocument("_id", id), null, updateDescription, null, null, null, null, null);
+    }
+
+    public static BsonDocument token(String data) {
+        return new BsonDocument("_data", new BsonString(data));
+    }
+}
@@ -0,0 +1,27 @@
+package com.gravity9.mongocse.listener;
+
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.bson.Document;
+
+public class TestChangeStreamBatchListener extends TestChangeStreamListener implements ChangeStreamBatchListener {
+
+	List<List<ChangeStreamDocument<Document>>> batches = Collections.synchronizedList(new ArrayList<>());
+
+	@Override
+	public void handleBatch(List<ChangeStreamDocument<Document>> batch) {
+		batches.add(batch);
+		events.addAll(batch);
+	}
+
+	@Override
+	public void handle(ChangeStreamDocument<Document> event) {
+		ChangeStreamBatchListener.super.handle(event);
+	}
+
+	public List<List<ChangeStreamDocument<Document>>> getBatches() {
+		return batches;
+	}
+}
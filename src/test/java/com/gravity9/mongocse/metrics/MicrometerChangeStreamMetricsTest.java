@@ -0,0 +1,76 @@
+package com.gravity9.mongocse.metrics;
+
+import com.gravity9.mongocse.listener.TestChangeStreamListener;
+import com.gravity9.mongocse.metrics.micrometer.MicrometerChangeStreamMetrics;
+import com.mongodb.client.model.changestream.OperationType;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MicrometerChangeStreamMetricsTest {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    private final ChangeStreamMetrics metrics = new MicrometerChangeStreamMetrics(registry, Tags.of("collection", "test"));
+
+    @Test
+    void givenMeasurements_shouldPublishMetersPerPartition() {
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+
+        metrics.eventReceived(0, OperationType.INSERT);
+        metrics.eventReceived(0, OperationType.INSERT);
+        metrics.eventReceived(1, OperationType.DELETE);
+        metrics.eventReceived(1, null);
+        metrics.batchReceived(0, 2);
+        metrics.idlePoll(1);
+        metrics.listenerCompleted(0, listener, 2, TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.checkpointWritten(2, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.reconnected(1);
+        metrics.lagObserved(0, 250);
+
+        assertEquals(2, registry.get("mongocse.events").tags("partition", "0", "operation", "insert", "collection", "test").counter().count());
+        assertEquals(1, registry.get("mongocse.events").tags("partition", "1", "operation", "delete").counter().count());
+        assertEquals(1, registry.get("mongocse.events").tags("partition", "1", "operation", "unknown").counter().count());
+        assertEquals(2, registry.get("mongocse.batch.size").tags("partition", "0").summary().totalAmount());
+        assertEquals(1, registry.get("mongocse.polls.idle").tags("partition", "1").counter().count());
+        assertEquals(5, registry.get("mongocse.listener.duration")
+                .tags("partition", "0", "listener", TestChangeStreamListener.class.getName())
+                .timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(3, registry.get("mongocse.checkpoint.duration").timer().totalTime(TimeUnit.MILLISECONDS));
+        assertEquals(1, registry.get("mongocse.reconnects").tags("partition", "1").counter().count());
+        assertEquals(250, registry.get("mongocse.lag").tags("partition", "0").timeGauge().value(TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    void noopMetrics_shouldNotAllocate() {
+        ChangeStreamMetrics noop = ChangeStreamMetrics.noop();
+        TestChangeStreamListener listener = new TestChangeStreamListener();
+        var threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        callAll(noop, listener, 1_000);
+
+        long before = threadBean.getCurrentThreadAllocatedBytes();
+        callAll(noop, listener, 100_000);
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - before;
+
+        assertTrue(allocated < 1024, "No-op metrics allocated " + allocated + " bytes");
+    }
+
+    private static void callAll(ChangeStreamMetrics metrics, TestChangeStreamListener listener, int times) {
+        for (int i = 0; i < times; i++) {
+            int partition = i % 512;
+            metrics.eventReceived(partition, OperationType.UPDATE);
+            metrics.batchReceived(partition, i);
+            metrics.idlePoll(partition);
+            metrics.listenerCompleted(partition, listener, 1, i);
+            metrics.checkpointWritten(1, i);
+            metrics.reconnected(partition);
+            metrics.lagObserved(partition, i);
+        }
+    }
+}